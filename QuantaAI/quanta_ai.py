@@ -1,6 +1,8 @@
 import os
 import sys
+import json
 from fastapi import FastAPI, Header
+from fastapi.responses import StreamingResponse
 from pydantic import BaseModel, Field
 from langchain_community.chat_models import ChatPerplexity
 from langchain.schema import HumanMessage, AIMessage, SystemMessage, BaseMessage
@@ -10,7 +12,7 @@ from langchain_openai import ChatOpenAI
 from langchain_xai import ChatXAI
 from langchain_google_genai import ChatGoogleGenerativeAI
 from pydantic import BaseModel
-from typing import List, Optional, Set
+from typing import Iterator, List, Optional, Set
 import traceback
 
 ABS_FILE = os.path.abspath(__file__)
@@ -69,6 +71,25 @@ def index() -> str:
 def api_query(req: AIRequest,
               api_key: Optional[str] = Header(None, alias="X-api-key")
     ) -> AIResponse:
+    # the last event is always the complete answer
+    final = {}
+    for event in query_events(req, api_key, False):
+        final = event
+    return AIResponse(content=final.get("content"), cost=final.get("cost"), error=final.get("error"))
+
+# Same as /api/query, but the answer is sent as it's generated. The response is newline delimited JSON
+# with one {"delta": "..."} line per chunk of text, and then a last line that's the same as the
+# AIResponse from /api/query plus "done": true. Coding Agent mode only sends the last line.
+@app.post("/api/query/stream")
+def api_query_stream(req: AIRequest,
+              api_key: Optional[str] = Header(None, alias="X-api-key")
+    ) -> StreamingResponse:
+    def lines():
+        for event in query_events(req, api_key, True):
+            yield json.dumps(event, separators=(",", ":")) + "\n"
+    return StreamingResponse(lines(), media_type="application/x-ndjson")
+
+def query_events(req: AIRequest, api_key: Optional[str], stream: bool) -> Iterator[dict]:
     try:        
         # Log the request as pretty json
         print(f"""REQ received: prompt={req.prompt}
@@ -79,6 +100,7 @@ foldersToExclude: {req.foldersToExclude}
 agentFileExtensions: {req.agentFileExtensions}
 maxTokens: {req.maxTokens}
 temperature: {req.temperature}
+stream: {stream}
 """)
             
         llm = getChatModel(req, api_key)
@@ -94,7 +116,8 @@ temperature: {req.temperature}
         maxCost: float = calculate_cost(input_tokens, req.maxTokens, req.model)
         if (maxCost > req.credit):
             print("User is out of credit.")
-            return AIResponse(content=None, cost=None, error="Insufficient credit. Add funds to your account, using `Menu -> AI -> Settings -> Add Credit`")         
+            yield final_event(None, None, "Insufficient credit. Add funds to your account, using `Menu -> AI -> Settings -> Add Credit`")
+            return
 
         answer: str = ""
         response: BaseMessage | None = None
@@ -134,6 +157,14 @@ temperature: {req.temperature}
                 ""
             )
             answer = messages[-1].content # type: ignore
+        elif stream:
+            print("Chat mode (streaming)")
+            messages = buildMessages(req)
+            for chunk in llm.stream(messages):
+                text = chunk.content
+                if isinstance(text, str) and text:
+                    answer += text
+                    yield {"delta": text}
         else:
             print("Chat mode")
             messages = buildMessages(req)
@@ -144,11 +175,12 @@ temperature: {req.temperature}
         output_tokens = int((len(answer)+3) / 3)        
         maxCost = calculate_cost(input_tokens, output_tokens, req.model)
 
-        # not make our return value and return it
-        ret = AIResponse(content=answer, cost=maxCost, error=None)
-        return ret
+        yield final_event(answer, maxCost, None)
     except Exception as e:
-        return AIResponse(content=None, cost=None, error=str(e)+"\n"+traceback.format_exc())
+        yield final_event(None, None, str(e)+"\n"+traceback.format_exc())
+
+def final_event(content: Optional[str], cost: Optional[float], error: Optional[str]) -> dict:
+    return {"content": content, "cost": cost, "error": error, "done": True}
 
 # Builds list of past messages
 def buildContext(req) -> List[BaseMessage]:
@@ -0,0 +1,74 @@
+# Stand-in for the QuantaAI microservice that needs no AI keys (or any packages), for running the
+# app locally and load testing the AI path. It answers /api/query and /api/query/stream with a canned
+# answer, sending the stream as real chunked HTTP with a pause between chunks so it behaves like a
+# model generating tokens.
+#
+#   python3 QuantaAI/stub_ai.py [--port 8186] [--chunks 40] [--delay 0.05] [--error]
+#
+# and point the app at it with the quantaAI.host and quantaAI.port properties.
+import argparse
+import json
+import time
+from http.server import BaseHTTPRequestHandler, ThreadingHTTPServer
+
+ANSWER = ("This is a canned answer from the QuantaAI stub. It is split into chunks and sent a little "
+          "at a time, the same way a real model streams its output, so the whole pipeline from the "
+          "microservice thru the server and out to the browser can be exercised without calling any "
+          "actual AI service. ")
+
+args = None
+
+class StubHandler(BaseHTTPRequestHandler):
+    protocol_version = "HTTP/1.1"
+
+    def do_GET(self):
+        self.send_body(200, "text/plain", b"QuantaAI Stub is running.")
+
+    def do_POST(self):
+        length = int(self.headers.get("Content-Length", 0))
+        req = json.loads(self.rfile.read(length) or b"{}")
+        answer = (ANSWER * max(1, args.chunks // 8))[: args.chunks * 12]
+        chunks = [answer[i:i + 12] for i in range(0, len(answer), 12)]
+        final = {"content": None if args.error else answer,
+                 "cost": None if args.error else 0.0001 * len(chunks),
+                 "error": "Stub error (--error)" if args.error else None}
+
+        if self.path == "/api/query":
+            time.sleep(args.delay * len(chunks))
+            self.send_body(200, "application/json", json.dumps(final).encode())
+        elif self.path == "/api/query/stream":
+            self.send_response(200)
+            self.send_header("Content-Type", "application/x-ndjson")
+            self.send_header("Transfer-Encoding", "chunked")
+            self.end_headers()
+            if not args.error and not req.get("codingAgent"):
+                for text in chunks:
+                    self.send_chunk(json.dumps({"delta": text}) + "\n")
+                    time.sleep(args.delay)
+            final["done"] = True
+            self.send_chunk(json.dumps(final) + "\n")
+            self.wfile.write(b"0\r\n\r\n")
+        else:
+            self.send_body(404, "text/plain", b"Not found")
+
+    def send_chunk(self, text):
+        data = text.encode()
+        self.wfile.write(b"%x\r\n%s\r\n" % (len(data), data))
+        self.wfile.flush()
+
+    def send_body(self, code, mime, data):
+        self.send_response(code)
+        self.send_header("Content-Type", mime)
+        self.send_header("Content-Length", str(len(data)))
+        self.end_headers()
+        self.wfile.write(data)
+
+if __name__ == "__main__":
+    parser = argparse.ArgumentParser(description="QuantaAI stub")
+    parser.add_argument("--port", type=int, default=8186)
+    parser.add_argument("--chunks", type=int, default=40, help="number of chunks in each streamed answer")
+    parser.add_argument("--delay", type=float, default=0.05, help="seconds between chunks")
+    parser.add_argument("--error", action="store_true", help="answer every query with an error")
+    args = parser.parse_args()
+    print(f"QuantaAI Stub listening on port {args.port}")
+    ThreadingHTTPServer(("", args.port), StubHandler).serve_forever()
@@ -0,0 +1,29 @@
+#!/bin/bash
+
+# Compares two JMH JSON result files (as written by run-benchmarks.sh), showing each benchmark's
+# score in both and the change. Lower is better for all our benchmarks (they're average times).
+#
+# usage: ./compare-benchmarks.sh bench-results/<before>.json bench-results/<after>.json
+
+if [ $# -ne 2 ]; then
+    echo "usage: $0 <before.json> <after.json>"
+    exit 1
+fi
+
+python3 - "$1" "$2" <<'PYEOF'
+import json, sys
+
+def load(fileName):
+    with open(fileName) as f:
+        return {r["benchmark"]: r["primaryMetric"] for r in json.load(f)}
+
+before, after = load(sys.argv[1]), load(sys.argv[2])
+print("%-60s %14s %14s %8s" % ("Benchmark", "Before", "After", "Change"))
+for name in sorted(set(before) | set(after)):
+    b, a = before.get(name), after.get(name)
+    unit = (a or b)["scoreUnit"]
+    bs = "%.2f" % b["score"] if b else "-"
+    afs = "%.2f" % a["score"] if a else "-"
+    change = "%+.1f%%" % ((a["score"] - b["score"]) * 100.0 / b["score"]) if a and b and b["score"] else ""
+    print("%-60s %14s %14s %8s  %s" % (name.replace("quanta.bench.", ""), bs, afs, change, unit))
+PYEOF
@@ -0,0 +1,24 @@
+#!/bin/bash
+
+# Runs the JMH micro-benchmarks (see the 'bench' profile in pom.xml) and saves the results as JSON in
+# bench-results/<commit>.json so runs can be compared between commits, with compare-benchmarks.sh
+#
+# usage: ./run-benchmarks.sh [benchmark regex and/or other JMH options]
+#   ex: ./run-benchmarks.sh SubNodeCodecBench
+#   ex: ./run-benchmarks.sh "-f 2 -wi 5"
+
+cd "$(dirname "$0")/.."
+
+COMMIT=$(git rev-parse --short HEAD)
+if [[ -n $(git status --porcelain -- src pom.xml) ]]; then
+    COMMIT="${COMMIT}-dirty"
+fi
+mkdir -p bench-results
+OUT="$(pwd)/bench-results/${COMMIT}.json"
+
+mvn -B -q -P bench compile exec:exec -Djmh.out="${OUT}" -Djmh.args="$*"
+if [ $? -ne 0 ]; then
+    echo "FAILED: Benchmark run"
+    exit 1
+fi
+echo "Results: ${OUT}"
@@ -0,0 +1,25 @@
+#!/bin/bash
+
+# Runs the load test (see the 'loadtest' profile in pom.xml and quanta.loadtest.LoadTest) against a
+# throwaway mongod and an embedded Redis, and saves the results as JSON in loadtest-results/<commit>.json
+# so runs can be compared between commits. Needs 'mongod' on the PATH (or pass --mongod <path>).
+#
+# usage: ./run-loadtest.sh [LoadTest options]
+#   ex: ./run-loadtest.sh --users 20 --rate 100 --duration 120
+#   ex: ./run-loadtest.sh --script my-workload.txt --sse false
+
+cd "$(dirname "$0")/.."
+
+COMMIT=$(git rev-parse --short HEAD)
+if [[ -n $(git status --porcelain -- src pom.xml) ]]; then
+    COMMIT="${COMMIT}-dirty"
+fi
+mkdir -p loadtest-results
+OUT="$(pwd)/loadtest-results/${COMMIT}.json"
+
+mvn -B -q -P loadtest compile exec:exec -Dloadtest.args="--out ${OUT} $*"
+if [ $? -ne 0 ]; then
+    echo "FAILED: Load test run"
+    exit 1
+fi
+echo "Results: ${OUT}"
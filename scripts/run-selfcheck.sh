@@ -0,0 +1,25 @@
+#!/bin/bash
+
+# Runs one of the self checks in src/loadtest (see the 'loadtest' profile in pom.xml), which start the
+# whole app against a throwaway mongod and an embedded Redis plus whatever stub the check needs, and
+# exit non-zero if anything failed. Needs 'mongod' on the PATH (or pass --mongod <path>).
+#
+# usage: ./run-selfcheck.sh <check> [options]
+#   ex: ./run-selfcheck.sh MailCheck      (mail outbox against an in-process SMTP stub)
+#   ex: ./run-selfcheck.sh AIStreamCheck  (streamed AI answers against an in-process QuantaAI stub)
+
+cd "$(dirname "$0")/.."
+
+CHECK=$1
+if [ -z "$CHECK" ]; then
+    echo "usage: $0 <check> [options]"
+    exit 1
+fi
+shift
+
+mvn -B -q -P loadtest compile exec:exec -Dloadtest.main="quanta.loadtest.${CHECK}" -Dloadtest.args="$*"
+if [ $? -ne 0 ]; then
+    echo "FAILED: ${CHECK}"
+    exit 1
+fi
+echo "PASSED: ${CHECK}"
@@ -0,0 +1,156 @@
+package quanta.bench;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Supplier;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import quanta.config.ServiceBase;
+import quanta.config.SessionContext;
+import quanta.model.client.NodeProp;
+import quanta.model.client.NodeType;
+import quanta.model.client.PrincipalName;
+import quanta.mongo.AdminRun;
+import quanta.mongo.MongoAuth;
+import quanta.mongo.MongoUtil;
+import quanta.mongo.SubNodeConverter;
+import quanta.mongo.model.AccountNode;
+import quanta.mongo.model.SubNode;
+import quanta.service.AclService;
+import quanta.service.UserManagerService;
+import quanta.types.TypePluginMgr;
+import quanta.util.EnglishDictionary;
+import quanta.util.SubNodeUtil;
+import quanta.util.TL;
+
+/*
+ * Sample data and the minimum of the app the benchmarks need, without Spring or a database. Nodes are
+ * built from Documents (the way they come out of the DB) so no setters run, since those do auth
+ * checks.
+ */
+public class BenchData {
+    public static final ObjectId OWNER_ID = new ObjectId("5f0000000000000000000001");
+    public static final ObjectId VIEWER_ID = new ObjectId("5f0000000000000000000002");
+
+    public static final String CONTENT = """
+            # Weekly Notes
+
+            Some **markdown** content with a [link](https://example.com) and a few #hashtags #quanta, plus
+            enough ordinary words in it to look like a typical node. The quick brown fox jumps over the lazy
+            dog, and then does it again because benchmarks like repetition.
+
+            | Col A | Col B |
+            |-------|-------|
+            | 1     | 2     |
+
+            * first item
+            * second item with `code`
+            """;
+
+    // A typical stored node: some props, an attachment, shares and a link
+    public static Document nodeDoc(int idx) {
+        Date now = new Date();
+        return new Document() //
+                .append(SubNode.ID, new ObjectId()) //
+                .append(SubNode.ORDINAL, (long) idx) //
+                .append(SubNode.HAS_CHILDREN, Boolean.FALSE) //
+                .append(SubNode.PATH, "/r/usr/a1b/c2d/" + Integer.toString(idx, 36)) //
+                .append(SubNode.TYPE, NodeType.NONE.s()) //
+                .append(SubNode.CONTENT, CONTENT) //
+                .append(SubNode.TAGS, "#quanta #notes") //
+                .append(SubNode.OWNER, OWNER_ID) //
+                .append(SubNode.CREATE_TIME, now) //
+                .append(SubNode.MODIFY_TIME, now) //
+                .append(SubNode.AC, new Document() //
+                        .append(PrincipalName.PUBLIC.s(), new Document("prvs", "rd")) //
+                        .append(VIEWER_ID.toHexString(), new Document("prvs", "rd,wr"))) //
+                .append(SubNode.PROPS, new Document() //
+                        .append(NodeProp.INLINE_CHILDREN.s(), Boolean.TRUE) //
+                        .append(NodeProp.VOTE.s(), "up") //
+                        .append("sn:count", 42) //
+                        .append("sn:list", Arrays.asList("a", "b", "c"))) //
+                .append(SubNode.ATTACHMENTS, new Document("p", new Document() //
+                        .append("mime", "image/png") //
+                        .append("fileName", "picture.png") //
+                        .append("size", 123456L) //
+                        .append("width", 800) //
+                        .append("height", 600) //
+                        .append("bin", new ObjectId().toHexString()) //
+                        .append("ordinal", 0))) //
+                .append(SubNode.LINKS, List.of(new Document("id", new ObjectId().toHexString()).append("name", "ref"))) //
+                .append(SubNode.LIKES, List.of("alice", "bob")) //
+                .append(SubNode.DEPTH, 6) //
+                .append(SubNode.CONTENT_LEN, CONTENT.length()) //
+                .append("_class", "n1");
+    }
+
+    public static SubNode node(int idx) {
+        return new SubNode(nodeDoc(idx));
+    }
+
+    public static AccountNode ownerAccount() {
+        return new AccountNode(new Document() //
+                .append(SubNode.ID, OWNER_ID) //
+                .append(SubNode.PATH, "/r/usr/a1b") //
+                .append(SubNode.TYPE, NodeType.ACCOUNT.s()) //
+                .append(SubNode.OWNER, OWNER_ID) //
+                .append(SubNode.PROPS, new Document() //
+                        .append(NodeProp.USER.s(), "alice") //
+                        .append(NodeProp.DISPLAY_NAME.s(), "Alice")));
+    }
+
+    // Same mapping setup as MongoAppConfig, minus the database
+    public static MappingMongoConverter converter() {
+        MongoCustomConversions conversions = new MongoCustomConversions(List.of(new SubNodeConverter()));
+        MongoMappingContext mappingContext = new MongoMappingContext();
+        mappingContext.setSimpleTypeHolder(conversions.getSimpleTypeHolder());
+        mappingContext.afterPropertiesSet();
+        MappingMongoConverter converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, mappingContext);
+        converter.setCustomConversions(conversions);
+        converter.afterPropertiesSet();
+        return converter;
+    }
+
+    /*
+     * Installs plain instances of the services the benchmarked code calls, with the database lookups
+     * stubbed out, and a session for a (non owner) viewer on this thread.
+     */
+    public static void initServices() {
+        AccountNode owner = ownerAccount();
+        // stop words aren't loaded (that needs the app context) so every word is counted, but the lookup
+        // cost is the same
+        ServiceBase.svc_english = new EnglishDictionary();
+        ServiceBase.svc_mongoUtil = new MongoUtil();
+        ServiceBase.svc_acl = new AclService();
+        ServiceBase.svc_typeMgr = new TypePluginMgr();
+        ServiceBase.svc_snUtil = new SubNodeUtil();
+        ServiceBase.svc_arun = new AdminRun() {
+            @Override
+            public <T> T run(Supplier<T> runner) {
+                return runner.get();
+            }
+        };
+        ServiceBase.svc_auth = new MongoAuth() {
+            @Override
+            public String getAccountPropById(String accountId, String prop) {
+                return "bob";
+            }
+        };
+        ServiceBase.svc_user = new UserManagerService() {
+            @Override
+            public AccountNode getAccountNodeAP(SubNode node) {
+                return owner;
+            }
+        };
+
+        SessionContext sc = new SessionContext();
+        sc.setUserName("bob");
+        sc.setUserNodeId(VIEWER_ID.toHexString());
+        TL.setSC(sc);
+    }
+}
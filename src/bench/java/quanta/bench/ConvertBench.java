@@ -0,0 +1,47 @@
+package quanta.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import quanta.config.SessionContext;
+import quanta.model.NodeInfo;
+import quanta.mongo.model.SubNode;
+import quanta.util.Convert;
+import quanta.util.TL;
+
+/* Building the NodeInfo sent to the client for one node, as rendering does for every node shown */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConvertBench {
+    private Convert convert;
+    private SessionContext sc;
+    private SubNode node;
+
+    @Setup
+    public void setup() {
+        BenchData.initServices();
+        convert = new Convert();
+        sc = TL.getSC();
+        node = BenchData.node(1);
+        // linked nodes would each be read from the DB
+        node.setLinks(null);
+    }
+
+    @Benchmark
+    public NodeInfo toNodeInfo() {
+        return convert.toNodeInfo(false, sc, node, false, Convert.LOGICAL_ORDINAL_IGNORE, false, false, false, false,
+                null);
+    }
+}
@@ -0,0 +1,49 @@
+package quanta.bench;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import quanta.model.client.PrivilegeType;
+import quanta.mongo.MongoAuth;
+import quanta.mongo.model.SubNode;
+
+/* The ACL check done for every node read or written by a non-owner */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MongoAuthBench {
+    private MongoAuth auth;
+    private SubNode node;
+    private String viewerId = BenchData.VIEWER_ID.toHexString();
+    private String strangerId = "5f00000000000000000000ff";
+    private List<PrivilegeType> readWrite = Arrays.asList(PrivilegeType.READ, PrivilegeType.WRITE);
+
+    @Setup
+    public void setup() {
+        auth = new MongoAuth();
+        node = BenchData.node(1);
+    }
+
+    @Benchmark
+    public boolean nodeAuthShared() {
+        return auth.nodeAuth(node, viewerId, readWrite);
+    }
+
+    @Benchmark
+    public boolean nodeAuthPublicOnly() {
+        return auth.nodeAuth(node, strangerId, readWrite);
+    }
+}
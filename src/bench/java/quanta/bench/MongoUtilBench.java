@@ -0,0 +1,49 @@
+package quanta.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.mongodb.core.query.Criteria;
+import quanta.config.ServiceBase;
+import quanta.mongo.MongoUtil;
+
+/* The path regexes built for nearly every tree query */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MongoUtilBench {
+    private MongoUtil util;
+    private String path = "/r/usr/a1b/c2d/e3f/";
+
+    @Setup
+    public void setup() {
+        BenchData.initServices();
+        util = ServiceBase.svc_mongoUtil;
+    }
+
+    @Benchmark
+    public String regexChildren() {
+        return util.regexChildren(path);
+    }
+
+    @Benchmark
+    public String regexSubGraph() {
+        return util.regexSubGraph(path);
+    }
+
+    @Benchmark
+    public Criteria subGraphCriteria() {
+        return util.subGraphCriteria(path);
+    }
+}
@@ -0,0 +1,72 @@
+package quanta.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
+import quanta.config.SessionContext;
+import quanta.model.UserPreferences;
+import quanta.redis.SessionSerializer;
+
+/* Session encode/decode, which happens on every request, against the JSON it replaced */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SessionSerializerBench {
+    private SessionSerializer binary = new SessionSerializer();
+    private GenericJackson2JsonRedisSerializer json = new GenericJackson2JsonRedisSerializer();
+    private SessionContext sc;
+    private byte[] binaryBytes;
+    private byte[] jsonBytes;
+
+    @Setup
+    public void setup() {
+        sc = new SessionContext();
+        sc.setUserName("bob");
+        sc.setUserNodeId(BenchData.VIEWER_ID.toHexString());
+        sc.setUserToken("0f8e3b6c-5d2a-4c1e-9b7f-2a6d8c4e1f30");
+        sc.setTimelinePath("/r/usr/a1b/c2d");
+        sc.setTimezone("America/Chicago");
+        sc.setTimeZoneAbbrev("CST");
+        sc.setLastLoginTime(System.currentTimeMillis());
+        sc.setLastActiveTime(System.currentTimeMillis());
+        UserPreferences prefs = new UserPreferences();
+        prefs.setAiMode("chat");
+        prefs.setMaxUploadFileSize(20);
+        sc.setUserPreferences(prefs);
+
+        binaryBytes = binary.serialize(sc);
+        jsonBytes = json.serialize(sc);
+    }
+
+    @Benchmark
+    public byte[] serializeBinary() {
+        return binary.serialize(sc);
+    }
+
+    @Benchmark
+    public SessionContext deserializeBinary() {
+        return binary.deserialize(binaryBytes);
+    }
+
+    @Benchmark
+    public byte[] serializeJson() {
+        return json.serialize(sc);
+    }
+
+    @Benchmark
+    public Object deserializeJson() {
+        return json.deserialize(jsonBytes);
+    }
+}
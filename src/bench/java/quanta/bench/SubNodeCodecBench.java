@@ -0,0 +1,72 @@
+package quanta.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.io.BasicOutputBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import com.mongodb.MongoClientSettings;
+import quanta.mongo.SubNodeCodec;
+import quanta.mongo.SubNodeConverter;
+import quanta.mongo.model.SubNode;
+
+/*
+ * Node decoding the way Spring does it (Document, then SubNodeConverter) against SubNodeCodec reading
+ * the same bytes, and encoding.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SubNodeCodecBench {
+    private RawBsonDocument raw;
+    private SubNode node;
+    private Codec<Document> docCodec;
+    private SubNodeConverter converter;
+    private SubNodeCodec codec;
+    private final DecoderContext decoderCtx = DecoderContext.builder().build();
+    private final EncoderContext encoderCtx = EncoderContext.builder().build();
+
+    @Setup
+    public void setup() {
+        CodecRegistry registry = MongoClientSettings.getDefaultCodecRegistry();
+        docCodec = registry.get(Document.class);
+        raw = new RawBsonDocument(BenchData.nodeDoc(1), docCodec);
+        node = BenchData.node(1);
+        converter = new SubNodeConverter();
+        codec = new SubNodeCodec(registry, BenchData.converter());
+    }
+
+    @Benchmark
+    public SubNode decodeConverter() {
+        return converter.convert(docCodec.decode(raw.asBsonReader(), decoderCtx));
+    }
+
+    @Benchmark
+    public SubNode decodeCodec() {
+        return codec.decode(raw.asBsonReader(), decoderCtx);
+    }
+
+    @Benchmark
+    public int encode() {
+        BasicOutputBuffer buf = new BasicOutputBuffer();
+        codec.encode(new BsonBinaryWriter(buf), node, encoderCtx);
+        return buf.getPosition();
+    }
+}
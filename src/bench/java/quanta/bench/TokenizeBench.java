@@ -0,0 +1,49 @@
+package quanta.bench;
+
+import java.util.LinkedHashSet;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import quanta.mongo.model.SubNode;
+import quanta.service.NodeStats;
+import quanta.service.SearchIndex;
+
+/*
+ * The tokenizing behind NodeSearchService's node stats (NodeStats.addNode, which is where that code
+ * lives now) and the search index.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TokenizeBench {
+    private SubNode node;
+
+    @Setup
+    public void setup() {
+        BenchData.initServices();
+        node = BenchData.node(1);
+    }
+
+    @Benchmark
+    public NodeStats nodeStats() {
+        NodeStats stats = new NodeStats();
+        stats.addNode(node, 1, BenchData.OWNER_ID);
+        return stats;
+    }
+
+    @Benchmark
+    public LinkedHashSet<String> searchIndexTokenize() {
+        return SearchIndex.tokenize(BenchData.CONTENT);
+    }
+}
@@ -0,0 +1,51 @@
+package quanta.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import quanta.util.XString;
+
+/* The path and string helpers used all over the request paths */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class XStringBench {
+    private String path = "/r/usr/a1b/c2d/e3f";
+    private String tags = "#quanta #notes #weekly #ideas";
+
+    @Benchmark
+    public String truncAfterLast() {
+        return XString.truncAfterLast(path, "/");
+    }
+
+    @Benchmark
+    public String parseAfterLast() {
+        return XString.parseAfterLast(path, "/");
+    }
+
+    @Benchmark
+    public String stripIfEndsWith() {
+        return XString.stripIfEndsWith(path + "/", "/");
+    }
+
+    @Benchmark
+    public List<String> tokenize() {
+        return XString.tokenize(tags, " ", true);
+    }
+
+    @Benchmark
+    public boolean isMarkdownHeading() {
+        return XString.isMarkdownHeading(BenchData.CONTENT);
+    }
+}
@@ -0,0 +1,273 @@
+package quanta.loadtest;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.query.Query;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import quanta.config.ServiceBase;
+import quanta.exception.base.RuntimeEx;
+import quanta.model.client.AIModel;
+import quanta.model.client.NodeProp;
+import quanta.model.client.NodeType;
+import quanta.mongo.model.AccountNode;
+import quanta.mongo.model.SubNode;
+import quanta.util.TL;
+import quanta.util.Util;
+
+/*
+ * Self check of streamed AI answers (AIService) against AIStub, with the whole app running in this JVM
+ * (see TestServers). A test user asks the question over HTTP like the browser does, while listening
+ * on its server push stream. Covers:
+ *
+ *   stream    the answer reaches the browser in order, in several pushes and ending with one 'done',
+ *             and the user is billed and the answer node created exactly once, and only after the
+ *             final line (the stub holds it back while we look)
+ *   error     an error in the final line fails the request with no billing and no answer node
+ *   cutoff    a stream that ends without a final line does the same
+ *
+ * Options (all optional):
+ *   --mongod PATH     mongod binary (default 'mongod' on the PATH)
+ *   --tokens N        tokens in each streamed answer (default 40)
+ *   --delay MS        pause between tokens (default 30)
+ *
+ * Exits non-zero if any check failed.
+ */
+public class AIStreamCheck extends ServiceBase {
+    private static Logger log = LoggerFactory.getLogger(AIStreamCheck.class);
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private static final String USER = "aicheck";
+    private static final BigDecimal START_BALANCE = new BigDecimal("10");
+    private static final long TIMEOUT_MILLIS = 30_000;
+    // how long we give the server to do something it shouldn't, before saying it didn't
+    private static final long SETTLE_MILLIS = 2_000;
+
+    private final AIStub ai;
+    private final String baseUrl;
+    private final Map<String, String> results = new LinkedHashMap<>();
+    // aiStream push events received, in order
+    private final List<JsonNode> pushes = Collections.synchronizedList(new ArrayList<>());
+    private LoadClient client;
+    private List<String> failures;
+
+    public AIStreamCheck(AIStub ai, String baseUrl) {
+        this.ai = ai;
+        this.baseUrl = baseUrl;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = TestServers.parseOpts(args);
+        AIStub ai = new AIStub(Integer.parseInt(opts.getOrDefault("tokens", "40")),
+                Long.parseLong(opts.getOrDefault("delay", "30")));
+        TestServers servers = new TestServers();
+        int exitCode = 1;
+        try {
+            Map<String, Object> props = new LinkedHashMap<>();
+            props.put("testUserAccounts", USER + ":" + TestServers.PASSWORD + ":" + USER + "@localhost");
+            props.put("quantaAI.host", "127.0.0.1");
+            props.put("quantaAI.port", String.valueOf(ai.getPort()));
+            props.put("ANTH_API_KEY", "stub");
+            servers.start(opts.getOrDefault("mongod", "mongod"), props);
+
+            AIStreamCheck check = new AIStreamCheck(ai, "http://127.0.0.1:" + servers.getPort());
+            if (check.run()) {
+                exitCode = 0;
+            }
+        } catch (Exception e) {
+            log.error("AI stream check failed", e);
+        } finally {
+            servers.stop();
+            ai.close();
+        }
+        System.exit(exitCode);
+    }
+
+    public boolean run() throws Exception {
+        TL.setSC(svc_auth.getAdminSC());
+        AccountNode account = svc_user.getAccountByUserNameAP(USER);
+        if (account == null) {
+            throw new RuntimeEx("Check user wasn't created: " + USER);
+        }
+        SubNode notes = svc_arun.run(() -> svc_user.getNotesNode(USER, account));
+        client = new LoadClient(baseUrl, new Seeder.UserData(USER, notes.getIdStr()), TestServers.PASSWORD);
+        client.login();
+        client.openServerPush((name, data) -> {
+            if ("aiStream".equals(name)) {
+                try {
+                    pushes.add(mapper.readTree(data));
+                } catch (Exception e) {
+                    log.error("Bad aiStream push: " + data, e);
+                }
+            }
+        });
+
+        runCheck("stream", this::checkStream);
+        runCheck("error", () -> checkFailure(AIStub.Mode.ERROR));
+        runCheck("cutoff", () -> checkFailure(AIStub.Mode.CUTOFF));
+
+        StringBuilder sb = new StringBuilder("\nAI stream check results:\n");
+        boolean ok = true;
+        for (Map.Entry<String, String> entry : results.entrySet()) {
+            sb.append(String.format("  %-8s %s\n", entry.getKey(), entry.getValue()));
+            ok &= entry.getValue().equals("PASS");
+        }
+        sb.append("AI stub requests: " + ai.getRequestCount() + "\n");
+        log.info(sb.toString());
+        return ok;
+    }
+
+    interface Check {
+        void run() throws Exception;
+    }
+
+    private void runCheck(String name, Check check) {
+        failures = new ArrayList<>();
+        try {
+            check.run();
+        } catch (Exception e) {
+            log.error("Check '" + name + "' threw", e);
+            failures.add(String.valueOf(e.getMessage()));
+        }
+        results.put(name, failures.isEmpty() ? "PASS" : "FAIL: " + String.join("; ", failures));
+    }
+
+    private void checkStream() throws Exception {
+        SubNode question = createQuestion();
+        String id = question.getIdStr();
+        String answer = ai.getAnswer();
+        int requests = ai.getRequestCount();
+        ai.setMode(AIStub.Mode.ANSWER);
+        ai.holdFinal();
+        FutureTask<JsonNode> call = ask(id);
+
+        if (!ai.awaitHolding(TIMEOUT_MILLIS)) {
+            throw new RuntimeEx("Timed out waiting for the AI stub to stream the answer");
+        }
+        waitFor("the first streamed text", () -> !getText(id).isEmpty());
+        // give the last deltas time to be pushed too (or not, they may wait for the final line)
+        Util.sleep(SETTLE_MILLIS);
+
+        // everything so far happened before the final line
+        String partial = getText(id);
+        check(answer.startsWith(partial), "text streamed before the final line is out of order: " + partial);
+        check(!isDone(id), "stream reported done before the final line");
+        check(getBalance().compareTo(START_BALANCE) == 0, "user was billed before the answer completed");
+        check(countAnswers(question) == 0, "answer node was created before the answer completed");
+
+        ai.releaseFinal();
+        JsonNode res = call.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        check(res.path("code").asInt(200) == 200, "request failed: " + res.path("message").asText(""));
+        check(answer.equals(res.path("newNode").path("content").asText(null)), "answer in the response doesn't match");
+
+        waitFor("the done push", () -> isDone(id));
+        List<JsonNode> events = getPushes(id);
+        check(answer.equals(getText(id)), "streamed text doesn't match the answer: " + getText(id));
+        check(events.size() > 2, "answer wasn't streamed, it came in " + events.size() + " pushes");
+        long doneCount = events.stream().filter(e -> e.path("done").asBoolean()).count();
+        check(doneCount == 1, "stream reported done " + doneCount + " times");
+        check(events.get(events.size() - 1).path("done").asBoolean(), "pushes arrived after the done push");
+
+        // a second bill or answer node would have shown up by now
+        Util.sleep(SETTLE_MILLIS);
+        check(ai.getRequestCount() == requests + 1, "AI was called " + (ai.getRequestCount() - requests) + " times");
+        BigDecimal expected = START_BALANCE.subtract(new BigDecimal(AIStub.COST));
+        check(getBalance().compareTo(expected) == 0, "balance should be " + expected + " but is " + getBalance());
+        long answers = countAnswers(question);
+        check(answers == 1, answers + " answer nodes created");
+    }
+
+    private void checkFailure(AIStub.Mode mode) throws Exception {
+        SubNode question = createQuestion();
+        String id = question.getIdStr();
+        ai.setMode(mode);
+        JsonNode res = ask(id).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        check(res.path("code").asInt(200) != 200, "request succeeded without an answer");
+
+        waitFor("the done push", () -> isDone(id));
+        check(ai.getAnswer().startsWith(getText(id)), "streamed text is out of order: " + getText(id));
+
+        Util.sleep(SETTLE_MILLIS);
+        check(getBalance().compareTo(START_BALANCE) == 0, "user was billed for a failed answer");
+        long answers = countAnswers(question);
+        check(answers == 0, answers + " answer nodes created for a failed answer");
+    }
+
+    // asks on a virtual thread, so we can look around while the answer streams
+    private FutureTask<JsonNode> ask(String id) {
+        FutureTask<JsonNode> call = new FutureTask<>(() -> client.askAI(id));
+        Thread.ofVirtual().start(call);
+        return call;
+    }
+
+    // a new AI configured node with a question in it, and the user's balance reset
+    private SubNode createQuestion() {
+        return svc_arun.run(() -> {
+            AccountNode account = svc_user.getAccountByUserNameAP(USER);
+            account.set(NodeProp.USER_AI_BALANCE, START_BALANCE.toString());
+            svc_mongoUpdate.save(account);
+
+            SubNode notes = svc_user.getNotesNode(USER, account);
+            SubNode node = svc_mongoCreate.createNode(notes.getPath() + "/?", NodeType.NONE.s(), null);
+            node.setOwner(account.getId());
+            node.setContent("What comes next?");
+            node.set(NodeProp.AI_CONFIG, "true");
+            node.set(NodeProp.AI_SERVICE, AIModel.ANTH.s());
+            svc_mongoUpdate.save(node);
+            return node;
+        });
+    }
+
+    private BigDecimal getBalance() {
+        return svc_arun.run(() -> svc_user.getUserBalance(svc_user.getAccountByUserNameAP(USER).getIdStr()));
+    }
+
+    private long countAnswers(SubNode question) {
+        return svc_arun.run(() -> svc_ops.count(new Query(
+                svc_mongoUtil.childrenCriteria(question.getPath()).and(SubNode.TYPE).is(NodeType.AI_ANSWER.s()))));
+    }
+
+    private List<JsonNode> getPushes(String streamId) {
+        synchronized (pushes) {
+            return pushes.stream().filter(p -> streamId.equals(p.path("streamId").asText())).toList();
+        }
+    }
+
+    // all the text pushed for the stream so far, in the order it arrived
+    private String getText(String streamId) {
+        StringBuilder sb = new StringBuilder();
+        for (JsonNode p : getPushes(streamId)) {
+            sb.append(p.path("text").asText(""));
+        }
+        return sb.toString();
+    }
+
+    private boolean isDone(String streamId) {
+        return getPushes(streamId).stream().anyMatch(p -> p.path("done").asBoolean());
+    }
+
+    private void waitFor(String what, BooleanSupplier cond) {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!cond.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new RuntimeEx("Timed out waiting for " + what);
+            }
+            Util.sleep(100);
+        }
+    }
+
+    private void check(boolean ok, String msg) {
+        if (!ok) {
+            failures.add(msg);
+        }
+    }
+}
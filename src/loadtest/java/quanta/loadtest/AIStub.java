@@ -0,0 +1,155 @@
+package quanta.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import quanta.util.Util;
+
+/*
+ * Stand-in for the QuantaAI stream endpoint (/api/query/stream) on a loopback port, like
+ * QuantaAI/stub_ai.py but in this JVM so a check can control it. Streams numbered tokens ("tok000 ",
+ * "tok001 ", ...) as delta lines with a pause between them, then the final line, which can be made to
+ * wait until the check lets it go.
+ */
+public class AIStub {
+    private static Logger log = LoggerFactory.getLogger(AIStub.class);
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    public static final float COST = 0.25f;
+
+    public enum Mode {
+        // the final line has the answer and its cost
+        ANSWER,
+        // the final line has an error instead
+        ERROR,
+        // the stream just ends after the deltas, with no final line
+        CUTOFF
+    }
+
+    private final HttpServer server;
+    private final int tokens;
+    private final long delayMillis;
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile Mode mode = Mode.ANSWER;
+    // when set, the final line isn't sent until it's released
+    private volatile CountDownLatch hold;
+    private volatile CountDownLatch holding;
+
+    public AIStub(int tokens, long delayMillis) throws IOException {
+        this.tokens = tokens;
+        this.delayMillis = delayMillis;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/api/query/stream", this::handleStream);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public static String token(int i) {
+        return String.format("tok%03d ", i);
+    }
+
+    /* The whole answer, which is all the tokens in order */
+    public String getAnswer() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < tokens; i++) {
+            sb.append(token(i));
+        }
+        return sb.toString();
+    }
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    /* Makes the next stream wait after its last delta, until releaseFinal */
+    public void holdFinal() {
+        holding = new CountDownLatch(1);
+        hold = new CountDownLatch(1);
+    }
+
+    /* Waits until a held stream has sent all its deltas, returning false if it didn't in time */
+    public boolean awaitHolding(long millis) throws InterruptedException {
+        return holding.await(millis, TimeUnit.MILLISECONDS);
+    }
+
+    public void releaseFinal() {
+        CountDownLatch h = hold;
+        hold = null;
+        if (h != null) {
+            h.countDown();
+        }
+    }
+
+    public int getRequestCount() {
+        return requests.get();
+    }
+
+    public void close() {
+        releaseFinal();
+        server.stop(0);
+    }
+
+    private void handleStream(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        try (exchange; InputStream in = exchange.getRequestBody()) {
+            // the request itself isn't looked at
+            in.readAllBytes();
+            exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+            // zero length means chunked, so each line goes out as soon as it's flushed
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream out = exchange.getResponseBody();
+
+            for (int i = 0; i < tokens; i++) {
+                writeLine(out, Map.of("delta", token(i)));
+                Util.sleep(delayMillis);
+            }
+
+            CountDownLatch h = hold;
+            if (h != null) {
+                holding.countDown();
+                h.await(60, TimeUnit.SECONDS);
+            }
+
+            Map<String, Object> last = new HashMap<>();
+            switch (mode) {
+                case ANSWER -> {
+                    last.put("content", getAnswer());
+                    last.put("cost", COST);
+                }
+                case ERROR -> last.put("error", "Stub error");
+                case CUTOFF -> {
+                    return;
+                }
+            }
+            last.put("done", true);
+            writeLine(out, last);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            log.debug("AI stub stream ended: " + e.getMessage());
+        }
+    }
+
+    private static void writeLine(OutputStream out, Object obj) throws IOException {
+        out.write((mapper.writeValueAsString(obj) + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+}
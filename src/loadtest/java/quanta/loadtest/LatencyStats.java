@@ -0,0 +1,96 @@
+package quanta.loadtest;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/*
+ * Latencies per command (named like the server's "rpc.<command>" PerfEvents). Every sample is kept,
+ * which is fine for the few million requests a run makes, so the percentiles are exact.
+ */
+public class LatencyStats {
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private final ConcurrentHashMap<String, Samples> samples = new ConcurrentHashMap<>();
+
+    private static class Samples {
+        long[] nanos = new long[1024];
+        int count;
+        long errors;
+
+        synchronized void add(long latency, boolean error) {
+            if (count == nanos.length) {
+                nanos = Arrays.copyOf(nanos, count * 2);
+            }
+            nanos[count++] = latency;
+            if (error)
+                errors++;
+        }
+    }
+
+    public void record(String command, long latencyNanos, boolean error) {
+        samples.computeIfAbsent(command, k -> new Samples()).add(latencyNanos, error);
+    }
+
+    public void clear() {
+        samples.clear();
+    }
+
+    /* Per command: count, errors, throughput and latency percentiles in milliseconds */
+    public Map<String, Map<String, Object>> summary(double seconds) {
+        Map<String, Map<String, Object>> ret = new TreeMap<>();
+        samples.forEach((command, s) -> {
+            long[] sorted;
+            long errors;
+            synchronized (s) {
+                sorted = Arrays.copyOf(s.nanos, s.count);
+                errors = s.errors;
+            }
+            Arrays.sort(sorted);
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("count", sorted.length);
+            row.put("errors", errors);
+            row.put("perSec", Math.round(sorted.length / seconds * 10) / 10.0);
+            for (double p : PERCENTILES) {
+                row.put("p" + (p == Math.floor(p) ? String.valueOf((int) p) : String.valueOf(p)),
+                        millis(percentile(sorted, p)));
+            }
+            row.put("max", millis(sorted.length > 0 ? sorted[sorted.length - 1] : 0));
+            ret.put(command, row);
+        });
+        return ret;
+    }
+
+    public String report(double seconds) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-22s %8s %7s %8s %9s %9s %9s %9s %9s%n", "Command", "Count", "Errors", "Per Sec",
+                "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "Max ms"));
+        summary(seconds).forEach((command, row) -> sb.append(String.format("%-22s %8d %7d %8.1f %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+                command, row.get("count"), row.get("errors"), row.get("perSec"), row.get("p50"), row.get("p90"),
+                row.get("p99"), row.get("p99.9"), row.get("max"))));
+        return sb.toString();
+    }
+
+    public void writeJson(File file, Map<String, Object> runInfo, double seconds) throws Exception {
+        Map<String, Object> out = new LinkedHashMap<>(runInfo);
+        out.put("results", summary(seconds));
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(file, out);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0)
+            return 0;
+        int idx = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(idx, sorted.length - 1))];
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 10000.0) / 100.0;
+    }
+}
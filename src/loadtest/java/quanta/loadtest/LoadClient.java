@@ -0,0 +1,232 @@
+package quanta.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.net.CookieManager;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import quanta.exception.base.RuntimeEx;
+import quanta.model.client.Constant;
+import quanta.model.client.NodeType;
+
+/*
+ * One simulated user: its own HTTP client (so its own session cookie) and bearer token, making the
+ * same REST calls the browser client does.
+ */
+public class LoadClient {
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final String[] SEARCH_WORDS = {"quantum", "river", "coffee", "planet", "library", "garden"};
+
+    private final String baseUrl;
+    private final Seeder.UserData user;
+    private final String password;
+    private final HttpClient http;
+    private String token;
+
+    public LoadClient(String baseUrl, Seeder.UserData user, String password) {
+        this.baseUrl = baseUrl;
+        this.user = user;
+        this.password = password;
+        this.http = HttpClient.newBuilder().cookieHandler(new CookieManager()).connectTimeout(Duration.ofSeconds(10))
+                .build();
+    }
+
+    public void login() throws Exception {
+        ObjectNode req = mapper.createObjectNode();
+        req.put("userName", user.userName);
+        req.put("password", password);
+        req.put("tzOffset", 0);
+        req.put("dst", false);
+        token = post("login", req).path("authToken").asText(null);
+        if (token == null) {
+            throw new RuntimeEx("Login failed for " + user.userName);
+        }
+    }
+
+    public void render(List<String> publicIds) throws Exception {
+        ObjectNode req = mapper.createObjectNode();
+        // mostly our own nodes, sometimes someone else's public node
+        List<String> ids = publicIds.isEmpty() || ThreadLocalRandom.current().nextInt(4) > 0 ? user.nodeIds : publicIds;
+        req.put("nodeId", pick(ids));
+        req.put("offset", 0);
+        check(post("renderNode", req));
+    }
+
+    public void feed() throws Exception {
+        ObjectNode req = mapper.createObjectNode();
+        req.put("page", 0);
+        req.put("toPublic", true);
+        req.put("fromFriends", false);
+        req.put("toMe", false);
+        req.put("fromMe", false);
+        check(post("nodeFeed", req));
+    }
+
+    public void search() throws Exception {
+        ObjectNode def = mapper.createObjectNode();
+        def.put("searchText", pick(SEARCH_WORDS));
+        def.put("recursive", true);
+        def.put("fuzzy", false);
+        def.put("caseSensitive", false);
+        ObjectNode req = mapper.createObjectNode();
+        req.set("searchDefinition", def);
+        req.put("nodeId", user.rootId);
+        req.put("page", 0);
+        check(post("nodeSearch", req));
+    }
+
+    /* Renders one of our nodes, then saves it back with the content changed, like an edit would */
+    public void save(LatencyStats stats) throws Exception {
+        ObjectNode renderReq = mapper.createObjectNode();
+        // skip the Notes node itself (index 0) when there's anything else
+        renderReq.put("nodeId", pick(user.nodeIds.size() > 1 ? user.nodeIds.subList(1, user.nodeIds.size()) : user.nodeIds));
+        renderReq.put("singleNode", true);
+        JsonNode node = timed(stats, "rpc.renderNode", () -> check(post("renderNode", renderReq))).path("node");
+        if (!(node instanceof ObjectNode nodeInfo)) {
+            throw new RuntimeEx("No node to save");
+        }
+        nodeInfo.put("content", nodeInfo.path("content").asText("") + "\nedited " + System.nanoTime());
+        ObjectNode req = mapper.createObjectNode();
+        req.set("node", nodeInfo);
+        check(post("saveNode", req));
+    }
+
+    public void upload(int sizeBytes) throws Exception {
+        String boundary = "----quanta-loadtest-" + System.nanoTime();
+        byte[] data = new byte[sizeBytes];
+        ThreadLocalRandom.current().nextBytes(data);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        String nodeId = pick(user.nodeIds);
+        body.write(("--" + boundary + "\r\nContent-Disposition: form-data; name=\"nodeId\"\r\n\r\n" + nodeId + "\r\n")
+                .getBytes(StandardCharsets.UTF_8));
+        body.write(("--" + boundary
+                + "\r\nContent-Disposition: form-data; name=\"files\"; filename=\"loadtest.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        body.write(data);
+        body.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+
+        HttpRequest req = request("upload").header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body.toByteArray())).build();
+        check(send(req));
+    }
+
+    /*
+     * Opens the server push (SSE) stream and counts events until the stream ends or the thread is
+     * interrupted. Returns after the connection is established, with the reading continuing on a virtual
+     * thread.
+     */
+    public Thread openServerPush(AtomicLong events) throws Exception {
+        return openServerPush((name, data) -> events.incrementAndGet());
+    }
+
+    /* Same as above but hands each event's name and data to 'onEvent' */
+    public Thread openServerPush(BiConsumer<String, String> onEvent) throws Exception {
+        HttpRequest req = HttpRequest.newBuilder(URI.create(baseUrl + "/api/serverPush/" + token))
+                .header("Accept", "text/event-stream").GET().build();
+        HttpResponse<Stream<String>> res = http.send(req, HttpResponse.BodyHandlers.ofLines());
+        if (res.statusCode() != 200) {
+            throw new RuntimeEx("serverPush returned " + res.statusCode());
+        }
+        return Thread.ofVirtual().start(() -> {
+            try (Stream<String> lines = res.body()) {
+                String[] name = {null};
+                lines.forEach(line -> {
+                    if (line.startsWith("event:")) {
+                        name[0] = line.substring(6).trim();
+                    } else if (line.startsWith("data:")) {
+                        onEvent.accept(name[0], line.substring(5).trim());
+                    } else if (line.isEmpty()) {
+                        name[0] = null;
+                    }
+                });
+            } catch (Exception e) {
+                // stream closed
+            }
+        });
+    }
+
+    /*
+     * Asks the AI to answer the question in node 'nodeId' (which has to be AI configured), the same way
+     * the browser does, and returns the response unchecked so callers can look at failures too.
+     */
+    public JsonNode askAI(String nodeId) throws Exception {
+        ObjectNode req = mapper.createObjectNode();
+        req.put("nodeId", nodeId);
+        req.put("aiRequest", true);
+        req.put("typeName", NodeType.NONE.s());
+        req.put("createAtTop", true);
+        req.put("content", "");
+        req.put("aiMode", Constant.AI_MODE_CHAT.s());
+        req.put("allowAiOverwrite", true);
+        return post("createSubNode", req);
+    }
+
+    interface Call {
+        JsonNode run() throws Exception;
+    }
+
+    // times a call made as a part of another workload
+    private JsonNode timed(LatencyStats stats, String command, Call call) throws Exception {
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            JsonNode ret = call.run();
+            error = false;
+            return ret;
+        } finally {
+            stats.record(command, System.nanoTime() - start, error);
+        }
+    }
+
+    private JsonNode post(String command, ObjectNode body) throws Exception {
+        HttpRequest req = request(command).header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(mapper.writeValueAsString(body))).build();
+        return send(req);
+    }
+
+    private HttpRequest.Builder request(String command) {
+        HttpRequest.Builder b = HttpRequest.newBuilder(URI.create(baseUrl + "/api/" + command))
+                .timeout(Duration.ofSeconds(60));
+        if (token != null) {
+            b.header("Bearer", token);
+        }
+        return b;
+    }
+
+    private JsonNode send(HttpRequest req) throws Exception {
+        HttpResponse<String> res = http.send(req, HttpResponse.BodyHandlers.ofString());
+        if (res.statusCode() != 200) {
+            throw new RuntimeEx(req.uri().getPath() + " returned HTTP " + res.statusCode());
+        }
+        return mapper.readTree(res.body());
+    }
+
+    // the app reports most failures as HTTP 200 with an error code in the body
+    private static JsonNode check(JsonNode res) {
+        int code = res.path("code").asInt(200);
+        if (code != 200) {
+            throw new RuntimeEx("code " + code + ": " + res.path("message").asText(""));
+        }
+        return res;
+    }
+
+    private static <T> T pick(List<T> list) {
+        return list.get(ThreadLocalRandom.current().nextInt(list.size()));
+    }
+
+    private static String pick(String[] arr) {
+        return arr[ThreadLocalRandom.current().nextInt(arr.length)];
+    }
+}
@@ -0,0 +1,249 @@
+package quanta.loadtest;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import quanta.exception.base.RuntimeEx;
+
+/*
+ * Reproducible load test: runs the whole app in this JVM against a throwaway mongod replica set and an
+ * embedded Redis, seeds a synthetic tree per user, then drives a weighted mix of REST calls at a fixed
+ * arrival rate and reports latency percentiles per command.
+ *
+ * Requests are started on schedule whether or not earlier ones have finished (an open model, like real
+ * users), and each latency is measured from when the request was scheduled to start rather than when it
+ * actually got sent, so a stalled server shows up as latency instead of silently lowering the request
+ * rate (coordinated omission).
+ *
+ * Options (all optional):
+ *   --users N         simulated users (default 10)
+ *   --nodes N         nodes seeded per user (default 2000)
+ *   --fanOut N        children per node in the seeded tree (default 10)
+ *   --publicEvery N   every Nth seeded node is public (default 5)
+ *   --rate N          requests per second, across all users (default 50)
+ *   --duration S      measured seconds (default 60)
+ *   --warmup S        seconds run before measuring starts (default 15)
+ *   --sse true|false  hold a server push connection open per user (default true)
+ *   --uploadBytes N   size of each uploaded file (default 65536)
+ *   --script FILE     workload mix, lines of "<workload> <weight>" (workloads: render, feed, search, save, upload)
+ *   --mongod PATH     mongod binary (default 'mongod' on the PATH)
+ *   --seed N          random seed for the data and the request sequence (default 1)
+ *   --out FILE        JSON results (default target/loadtest-result.json)
+ */
+public class LoadTest {
+    private static Logger log = LoggerFactory.getLogger(LoadTest.class);
+
+    private static final String PASSWORD = TestServers.PASSWORD;
+    private static final String DEFAULT_SCRIPT = """
+            render 50
+            feed 15
+            search 15
+            save 15
+            upload 5
+            """;
+
+    private final Map<String, String> opts;
+    private final LatencyStats stats = new LatencyStats();
+    private final AtomicLong sseEvents = new AtomicLong();
+
+    private List<String> workloads;
+    private int[] cumulativeWeights;
+
+    private final TestServers servers = new TestServers();
+
+    public LoadTest(Map<String, String> opts) {
+        this.opts = opts;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = TestServers.parseOpts(args);
+        int exitCode = 0;
+        LoadTest test = new LoadTest(opts);
+        try {
+            test.run();
+        } catch (Exception e) {
+            log.error("Load test failed", e);
+            exitCode = 1;
+        } finally {
+            test.servers.stop();
+        }
+        System.exit(exitCode);
+    }
+
+    private void run() throws Exception {
+        int users = intOpt("users", 10);
+        int rate = intOpt("rate", 50);
+        int duration = intOpt("duration", 60);
+        int warmup = intOpt("warmup", 15);
+        long seed = intOpt("seed", 1);
+        parseScript(opts.containsKey("script") ? Files.readString(new File(opts.get("script")).toPath())
+                : DEFAULT_SCRIPT);
+
+        int port = startServers(users);
+        String baseUrl = "http://127.0.0.1:" + port;
+
+        List<String> userNames = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            userNames.add("lt" + i);
+        }
+        long seedStart = System.currentTimeMillis();
+        List<Seeder.UserData> data = new Seeder(intOpt("nodes", 2000), intOpt("fanOut", 10),
+                intOpt("publicEvery", 5), seed).seed(userNames);
+        log.info("Seeding took " + (System.currentTimeMillis() - seedStart) + "ms");
+
+        // public nodes of all users, for renders of other people's content
+        List<String> publicIds = new ArrayList<>();
+        data.forEach(d -> publicIds.addAll(d.publicIds));
+
+        List<LoadClient> clients = new ArrayList<>();
+        List<Thread> sseThreads = new ArrayList<>();
+        for (Seeder.UserData d : data) {
+            LoadClient client = new LoadClient(baseUrl, d, PASSWORD);
+            client.login();
+            if (boolOpt("sse", true)) {
+                sseThreads.add(client.openServerPush(sseEvents));
+            }
+            clients.add(client);
+        }
+
+        Random rand = new Random(seed);
+        try (ExecutorService exec = Executors.newVirtualThreadPerTaskExecutor()) {
+            log.info("Warming up for " + warmup + "s");
+            drive(exec, clients, publicIds, rand, rate, warmup);
+            stats.clear();
+
+            log.info("Measuring for " + duration + "s at " + rate + " req/s");
+            long start = System.nanoTime();
+            drive(exec, clients, publicIds, rand, rate, duration);
+            // stragglers still count, their latency runs to when they finish
+            exec.shutdown();
+            exec.awaitTermination(2, TimeUnit.MINUTES);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            log.info("\n" + stats.report(seconds) + "SSE events received: " + sseEvents.get());
+            Map<String, Object> runInfo = new LinkedHashMap<>();
+            runInfo.put("options", new HashMap<>(opts));
+            runInfo.put("users", users);
+            runInfo.put("targetRate", rate);
+            runInfo.put("seconds", seconds);
+            runInfo.put("workloads", workloads);
+            runInfo.put("sseEvents", sseEvents.get());
+            File out = new File(opts.getOrDefault("out", "target/loadtest-result.json"));
+            stats.writeJson(out, runInfo, seconds);
+            log.info("Results: " + out.getAbsolutePath());
+        }
+        sseThreads.forEach(Thread::interrupt);
+    }
+
+    /*
+     * Submits requests at 'rate' per second for 'seconds'. Each request gets its scheduled start time
+     * up front and its latency is measured from that, not from when it began running.
+     */
+    private void drive(ExecutorService exec, List<LoadClient> clients, List<String> publicIds, Random rand, int rate,
+            int seconds) {
+        long intervalNanos = 1_000_000_000L / rate;
+        long start = System.nanoTime();
+        long total = (long) rate * seconds;
+        for (long i = 0; i < total; i++) {
+            long scheduled = start + i * intervalNanos;
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            LoadClient client = clients.get(rand.nextInt(clients.size()));
+            String workload = pickWorkload(rand);
+            exec.submit(() -> execute(client, workload, publicIds, scheduled));
+        }
+    }
+
+    private void execute(LoadClient client, String workload, List<String> publicIds, long scheduled) {
+        boolean error = true;
+        String command = switch (workload) {
+            case "render" -> "rpc.renderNode";
+            case "feed" -> "rpc.nodeFeed";
+            case "search" -> "rpc.nodeSearch";
+            case "save" -> "rpc.saveNode";
+            case "upload" -> "rpc.upload";
+            default -> throw new RuntimeEx("Unknown workload: " + workload);
+        };
+        try {
+            switch (workload) {
+                case "render" -> client.render(publicIds);
+                case "feed" -> client.feed();
+                case "search" -> client.search();
+                case "save" -> client.save(stats);
+                case "upload" -> client.upload(intOpt("uploadBytes", 65536));
+            }
+            error = false;
+        } catch (Exception e) {
+            log.debug(workload + " failed: " + e.getMessage());
+        } finally {
+            stats.record(command, System.nanoTime() - scheduled, error);
+        }
+    }
+
+    private void parseScript(String script) {
+        workloads = new ArrayList<>();
+        List<Integer> weights = new ArrayList<>();
+        for (String line : script.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            String[] parts = line.split("\\s+");
+            workloads.add(parts[0]);
+            weights.add(parts.length > 1 ? Integer.parseInt(parts[1]) : 1);
+        }
+        if (workloads.isEmpty()) {
+            throw new RuntimeEx("Empty workload script");
+        }
+        cumulativeWeights = new int[weights.size()];
+        int sum = 0;
+        for (int i = 0; i < weights.size(); i++) {
+            sum += weights.get(i);
+            cumulativeWeights[i] = sum;
+        }
+    }
+
+    private String pickWorkload(Random rand) {
+        int r = rand.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (r < cumulativeWeights[i])
+                return workloads.get(i);
+        }
+        return workloads.get(workloads.size() - 1);
+    }
+
+    /* Starts mongod, Redis and the app with the load test users, and returns the app's HTTP port */
+    private int startServers(int users) throws Exception {
+        StringBuilder accounts = new StringBuilder();
+        for (int i = 0; i < users; i++) {
+            if (i > 0)
+                accounts.append(",");
+            accounts.append("lt" + i + ":" + PASSWORD + ":lt" + i + "@localhost");
+        }
+        Map<String, Object> props = new HashMap<>();
+        props.put("testUserAccounts", accounts.toString());
+        servers.start(opts.getOrDefault("mongod", "mongod"), props);
+        return servers.getPort();
+    }
+
+    private int intOpt(String name, int def) {
+        return opts.containsKey(name) ? Integer.parseInt(opts.get(name)) : def;
+    }
+
+    private boolean boolOpt(String name, boolean def) {
+        return opts.containsKey(name) ? Boolean.parseBoolean(opts.get(name)) : def;
+    }
+}
@@ -0,0 +1,94 @@
+package quanta.loadtest;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import quanta.exception.base.RuntimeEx;
+import quanta.util.Util;
+
+/*
+ * A throwaway single member replica set (the app requires replica set 'rs0', for transactions) run
+ * from the 'mongod' binary, with its data in a temp folder that's deleted on stop.
+ */
+public class LocalMongo {
+    private static Logger log = LoggerFactory.getLogger(LocalMongo.class);
+
+    private final String mongodBin;
+    private final int port;
+    private File dataDir;
+    private Process process;
+
+    public LocalMongo(String mongodBin, int port) {
+        this.mongodBin = mongodBin;
+        this.port = port;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void start() throws Exception {
+        dataDir = Files.createTempDirectory("quanta-loadtest-mongo").toFile();
+        File logFile = new File(dataDir, "mongod.log");
+        log.info("Starting " + mongodBin + " on port " + port + " in " + dataDir);
+        process = new ProcessBuilder(List.of(mongodBin, "--replSet", "rs0", "--port", String.valueOf(port),
+                "--bind_ip", "127.0.0.1", "--dbpath", dataDir.getAbsolutePath(), "--logpath",
+                logFile.getAbsolutePath())).redirectErrorStream(true).start();
+
+        try (MongoClient client = MongoClients.create("mongodb://127.0.0.1:" + port + "/?directConnection=true")) {
+            waitFor("mongod to accept connections", () -> {
+                client.getDatabase("admin").runCommand(new Document("ping", 1));
+                return true;
+            });
+            client.getDatabase("admin").runCommand(new Document("replSetInitiate", new Document("_id", "rs0")
+                    .append("members", List.of(new Document("_id", 0).append("host", "127.0.0.1:" + port)))));
+            waitFor("replica set primary", () -> client.getDatabase("admin").runCommand(new Document("hello", 1))
+                    .getBoolean("isWritablePrimary", false));
+        }
+        log.info("mongod replica set ready");
+    }
+
+    public void stop() {
+        if (process != null) {
+            process.destroy();
+            try {
+                process.waitFor();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (dataDir != null) {
+            try {
+                FileUtils.deleteDirectory(dataDir);
+            } catch (Exception e) {
+                log.warn("Unable to delete " + dataDir);
+            }
+        }
+    }
+
+    interface Check {
+        boolean ok() throws Exception;
+    }
+
+    private void waitFor(String what, Check check) {
+        for (int i = 0; i < 60; i++) {
+            if (!process.isAlive()) {
+                throw new RuntimeEx("mongod exited (code " + process.exitValue() + "), see its log in " + dataDir);
+            }
+            try {
+                if (check.ok())
+                    return;
+            } catch (Exception e) {
+                // not up yet
+            }
+            Util.sleep(500);
+        }
+        throw new RuntimeEx("Timed out waiting for " + what);
+    }
+}
@@ -0,0 +1,284 @@
+package quanta.loadtest;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import quanta.config.ServiceBase;
+import quanta.exception.base.RuntimeEx;
+import quanta.model.client.NodeProp;
+import quanta.model.client.NodeType;
+import quanta.mongo.model.SubNode;
+import quanta.service.EmailService;
+import quanta.util.TL;
+import quanta.util.Util;
+
+/*
+ * Self check of the mail outbox (EmailService) against SmtpStub, with the whole app running in this
+ * JVM (see TestServers). Covers:
+ *
+ *   send      queued mail is delivered exactly once each (several workers draining at once) and then
+ *             deleted from the outbox
+ *   lease     mail leased by someone else isn't touched until the lease expires
+ *   retry     a temporary SMTP failure keeps the mail, with the attempt counted and the next try pushed
+ *             out by the exponential backoff, and it's delivered once it comes due
+ *   dead      a permanently bad message, and one failing MAX_ATTEMPTS times, are left in the outbox
+ *             marked dead with the error, and never sent again
+ *
+ * Waiting out real backoff times would take hours, so the checks move the next try time back instead.
+ *
+ * Options (all optional):
+ *   --mongod PATH     mongod binary (default 'mongod' on the PATH)
+ *
+ * Exits non-zero if any check failed.
+ */
+public class MailCheck extends ServiceBase {
+    private static Logger log = LoggerFactory.getLogger(MailCheck.class);
+
+    private static final long TIMEOUT_MILLIS = 30_000;
+    // how long we give workers to do something they shouldn't, before saying they didn't
+    private static final long SETTLE_MILLIS = 3_000;
+
+    private final SmtpStub smtp;
+    private final Map<String, String> results = new LinkedHashMap<>();
+    private List<String> failures;
+
+    public MailCheck(SmtpStub smtp) {
+        this.smtp = smtp;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = TestServers.parseOpts(args);
+        SmtpStub smtp = new SmtpStub();
+        TestServers servers = new TestServers();
+        int exitCode = 1;
+        try {
+            Map<String, Object> props = new LinkedHashMap<>();
+            props.put("mail.host", "127.0.0.1");
+            props.put("mail.port", String.valueOf(smtp.getPort()));
+            // no user means no SMTP auth, but the password has to be set for mail to be enabled at all
+            props.put("mail.user", "");
+            props.put("mail.password", "stub");
+            props.put("mail.from", "noreply@localhost");
+            servers.start(opts.getOrDefault("mongod", "mongod"), props);
+
+            MailCheck check = new MailCheck(smtp);
+            if (check.run()) {
+                exitCode = 0;
+            }
+        } catch (Exception e) {
+            log.error("Mail check failed", e);
+        } finally {
+            servers.stop();
+            smtp.close();
+        }
+        System.exit(exitCode);
+    }
+
+    public boolean run() {
+        TL.setSC(svc_auth.getAdminSC());
+        runCheck("send", this::checkSend);
+        runCheck("lease", this::checkLease);
+        runCheck("retry", this::checkRetry);
+        runCheck("dead", this::checkDead);
+
+        StringBuilder sb = new StringBuilder("\nMail check results:\n");
+        boolean ok = true;
+        for (Map.Entry<String, String> entry : results.entrySet()) {
+            sb.append(String.format("  %-8s %s\n", entry.getKey(), entry.getValue()));
+            ok &= entry.getValue().equals("PASS");
+        }
+        sb.append("SMTP connections opened: " + smtp.getConnectionCount() + "\n");
+        log.info(sb.toString());
+        return ok;
+    }
+
+    private void runCheck(String name, Runnable check) {
+        failures = new ArrayList<>();
+        try {
+            check.run();
+        } catch (Exception e) {
+            log.error("Check '" + name + "' threw", e);
+            failures.add(e.getMessage());
+        }
+        results.put(name, failures.isEmpty() ? "PASS" : "FAIL: " + String.join("; ", failures));
+    }
+
+    private void checkSend() {
+        List<String> rcpts = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            String rcpt = "send" + i + "@localhost";
+            rcpts.add(rcpt);
+            svc_email.queueEmail(rcpt, "Subject " + i, "Body " + i);
+        }
+        for (String rcpt : rcpts) {
+            waitFor(rcpt + " delivered and deleted", () -> smtp.count(rcpt) > 0 && findMail(rcpt) == null);
+        }
+        // anything sent twice would have shown up by now
+        Util.sleep(SETTLE_MILLIS);
+        for (String rcpt : rcpts) {
+            check(smtp.count(rcpt) == 1, rcpt + " was delivered " + smtp.count(rcpt) + " times");
+        }
+    }
+
+    private void checkLease() {
+        String rcpt = "leased@localhost";
+        SubNode mail = queueLeased(rcpt, System.currentTimeMillis() + 10 * 60_000);
+        svc_email.setOutboxDirty();
+        Util.sleep(SETTLE_MILLIS);
+        check(smtp.count(rcpt) == 0, "mail leased by someone else was sent");
+        check(findMail(rcpt) != null, "mail leased by someone else was deleted");
+
+        // like the replica holding the lease died
+        setProp(mail.getId(), NodeProp.EMAIL_LEASE, System.currentTimeMillis() - 1);
+        svc_email.setOutboxDirty();
+        waitFor(rcpt + " delivered after its lease expired", () -> smtp.count(rcpt) == 1 && findMail(rcpt) == null);
+    }
+
+    private void checkRetry() {
+        String rcpt = "retry@localhost";
+        int failCount = 2;
+        smtp.failNext(rcpt, failCount);
+        long triggerTime = System.currentTimeMillis();
+        svc_email.queueEmail(rcpt, "Retry", "Body");
+
+        for (int attempt = 1; attempt <= failCount; attempt++) {
+            SubNode mail = waitForFailure(rcpt, attempt);
+            long seenTime = System.currentTimeMillis();
+            check(!EmailService.STATUS_DEAD.equals(mail.getStr(NodeProp.EMAIL_STATUS)),
+                    "attempt " + attempt + " marked the mail dead");
+            check(mail.getStr(NodeProp.EMAIL_ERROR) != null, "attempt " + attempt + " didn't record the error");
+            check(smtp.count(rcpt) == 0, "rejected mail counted as delivered");
+
+            // the failure happened somewhere between triggerTime and seenTime
+            long backoff = EmailService.MIN_BACKOFF_MILLIS << (attempt - 1);
+            Long nextTry = mail.getInt(NodeProp.EMAIL_NEXT_TRY);
+            check(nextTry != null && nextTry >= triggerTime + backoff && nextTry <= seenTime + backoff,
+                    "attempt " + attempt + " next try should be about " + (backoff / 1000) + "s out, was "
+                            + (nextTry == null ? "unset" : ((nextTry - seenTime) / 1000) + "s"));
+
+            // nothing is sent before the next try comes due
+            svc_email.setOutboxDirty();
+            Util.sleep(SETTLE_MILLIS);
+            check(mail.getInt(NodeProp.EMAIL_ATTEMPTS).equals(findMail(rcpt).getInt(NodeProp.EMAIL_ATTEMPTS)),
+                    "attempt " + attempt + " was retried before its backoff ran out");
+
+            triggerTime = System.currentTimeMillis();
+            makeDue(mail.getId());
+        }
+        waitFor(rcpt + " delivered on retry", () -> smtp.count(rcpt) == 1 && findMail(rcpt) == null);
+    }
+
+    private void checkDead() {
+        // a message that can never be sent (no subject) is dead on the first try
+        String badRcpt = "nosubject@localhost";
+        svc_email.queueEmail(badRcpt, "", "Body");
+        SubNode bad = waitForMail(badRcpt, "marked dead", n -> EmailService.STATUS_DEAD.equals(n.getStr(NodeProp.EMAIL_STATUS)));
+        check(bad.getInt(NodeProp.EMAIL_ATTEMPTS) == 1, "bad mail was tried " + bad.getInt(NodeProp.EMAIL_ATTEMPTS) + " times");
+        check(bad.getStr(NodeProp.EMAIL_ERROR) != null, "dead mail has no error");
+
+        // a server that always refuses gets MAX_ATTEMPTS tries
+        String downRcpt = "down@localhost";
+        smtp.failAlways(downRcpt);
+        svc_email.queueEmail(downRcpt, "Down", "Body");
+        SubNode down = null;
+        for (int attempt = 1; attempt <= EmailService.MAX_ATTEMPTS; attempt++) {
+            down = waitForFailure(downRcpt, attempt);
+            boolean dead = EmailService.STATUS_DEAD.equals(down.getStr(NodeProp.EMAIL_STATUS));
+            if (attempt < EmailService.MAX_ATTEMPTS) {
+                check(!dead, "marked dead after only " + attempt + " attempts");
+                makeDue(down.getId());
+            } else {
+                check(dead, "not marked dead after " + attempt + " attempts");
+            }
+        }
+
+        // dead mail stays put and is never leased again, even when its retry time has passed
+        makeDue(down.getId());
+        svc_email.setOutboxDirty();
+        Util.sleep(SETTLE_MILLIS);
+        check(smtp.count(badRcpt) == 0 && smtp.count(downRcpt) == 0, "dead mail was delivered");
+        SubNode badAfter = findMail(badRcpt);
+        SubNode downAfter = findMail(downRcpt);
+        check(badAfter != null && downAfter != null, "dead mail was removed from the outbox");
+        if (downAfter != null) {
+            check(downAfter.getInt(NodeProp.EMAIL_ATTEMPTS) == EmailService.MAX_ATTEMPTS,
+                    "dead mail was tried again (" + downAfter.getInt(NodeProp.EMAIL_ATTEMPTS) + " attempts)");
+        }
+    }
+
+    // waits for the failure of the given attempt to be recorded, which is when the lease is released
+    private SubNode waitForFailure(String rcpt, int attempt) {
+        return waitForMail(rcpt, "failure of attempt " + attempt, n -> {
+            Long attempts = n.getInt(NodeProp.EMAIL_ATTEMPTS);
+            return attempts != null && attempts == attempt && n.getInt(NodeProp.EMAIL_LEASE) == null
+                    && n.getStr(NodeProp.EMAIL_ERROR) != null;
+        });
+    }
+
+    private SubNode waitForMail(String rcpt, String what, Predicate<SubNode> cond) {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            SubNode mail = findMail(rcpt);
+            if (mail != null && cond.test(mail))
+                return mail;
+            Util.sleep(100);
+        }
+        throw new RuntimeEx("Timed out waiting for " + rcpt + ": " + what);
+    }
+
+    private void waitFor(String what, BooleanSupplier cond) {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!cond.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new RuntimeEx("Timed out waiting for " + what);
+            }
+            Util.sleep(100);
+        }
+    }
+
+    private void check(boolean ok, String msg) {
+        if (!ok) {
+            failures.add(msg);
+        }
+    }
+
+    // same as EmailService.queueMail, but already leased until 'leaseUntil'
+    private SubNode queueLeased(String rcpt, long leaseUntil) {
+        return svc_arun.run(() -> {
+            SubNode outbox = svc_email.getSystemOutbox();
+            SubNode mail = svc_mongoCreate.createNode(outbox.getPath() + "/?", NodeType.NONE.s(), null);
+            mail.setOwner(TL.getSC().getUserNodeObjId());
+            mail.set(NodeProp.EMAIL_CONTENT, "Body");
+            mail.set(NodeProp.EMAIL_SUBJECT, "Leased");
+            mail.set(NodeProp.EMAIL_RECIP, rcpt);
+            mail.set(NodeProp.EMAIL_LEASE, leaseUntil);
+            svc_mongoUpdate.save(mail);
+            return mail;
+        });
+    }
+
+    private SubNode findMail(String rcpt) {
+        return svc_arun.run(() -> svc_ops
+                .findOne(new Query(Criteria.where(SubNode.PROPS + "." + NodeProp.EMAIL_RECIP.s()).is(rcpt))));
+    }
+
+    // what the passing of the backoff time would do
+    private void makeDue(ObjectId id) {
+        setProp(id, NodeProp.EMAIL_NEXT_TRY, System.currentTimeMillis() - 1);
+        svc_email.setOutboxDirty();
+    }
+
+    private void setProp(ObjectId id, NodeProp prop, Object val) {
+        svc_ops.findAndModify(new Query(Criteria.where(SubNode.ID).is(id)),
+                new Update().set(SubNode.PROPS + "." + prop.s(), val));
+    }
+}
@@ -0,0 +1,153 @@
+package quanta.loadtest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
+import quanta.config.ServiceBase;
+import quanta.exception.base.RuntimeEx;
+import quanta.model.client.NodeType;
+import quanta.model.client.PrincipalName;
+import quanta.model.client.PrivilegeType;
+import quanta.mongo.model.AccessControl;
+import quanta.mongo.model.AccountNode;
+import quanta.mongo.model.SubNode;
+import quanta.util.Const;
+import quanta.util.TL;
+
+/*
+ * Fills the DB with a synthetic tree under each load test user's Notes node, breadth first with a
+ * fixed fan-out, written with bulk inserts. Runs inside the app (after startup created the users from
+ * the 'testUserAccounts' property). Every 'publicEvery'th node is shared to public so feeds and other
+ * users have something to read.
+ */
+public class Seeder extends ServiceBase {
+    private static Logger log = LoggerFactory.getLogger(Seeder.class);
+
+    private static final String[] WORDS = {"alpha", "beta", "gamma", "delta", "quantum", "tree", "node", "graph",
+            "render", "search", "feed", "cloud", "river", "mountain", "coffee", "music", "science", "history",
+            "garden", "planet", "signal", "market", "design", "energy", "travel", "puzzle", "library", "ocean"};
+
+    // what the load clients need to know about each user's data
+    public static class UserData {
+        public final String userName;
+        public final String rootId;
+        // a sample of the user's node ids, for renders and saves
+        public final List<String> nodeIds = new ArrayList<>();
+        // a sample of the user's public node ids, for other users to render
+        public final List<String> publicIds = new ArrayList<>();
+
+        UserData(String userName, String rootId) {
+            this.userName = userName;
+            this.rootId = rootId;
+        }
+    }
+
+    private final int nodesPerUser;
+    private final int fanOut;
+    private final int publicEvery;
+    private final Random rand;
+
+    public Seeder(int nodesPerUser, int fanOut, int publicEvery, long seed) {
+        this.nodesPerUser = nodesPerUser;
+        this.fanOut = fanOut;
+        this.publicEvery = publicEvery;
+        this.rand = new Random(seed);
+    }
+
+    public List<UserData> seed(List<String> userNames) {
+        TL.setSC(svc_auth.getAdminSC());
+        return svc_arun.run(() -> {
+            List<UserData> ret = new ArrayList<>();
+            for (String userName : userNames) {
+                ret.add(seedUser(userName));
+            }
+            return ret;
+        });
+    }
+
+    private UserData seedUser(String userName) {
+        AccountNode account = svc_user.getAccountByUserNameAP(userName);
+        if (account == null) {
+            throw new RuntimeEx("Load test user wasn't created: " + userName);
+        }
+        SubNode root = svc_user.getNotesNode(userName, account);
+        root.setHasChildren(true);
+        svc_mongoUpdate.save(root);
+
+        UserData data = new UserData(userName, root.getIdStr());
+        data.nodeIds.add(root.getIdStr());
+        // keep about 200 ids per user, spread over the whole tree
+        int sampleEvery = Math.max(1, nodesPerUser / 200);
+
+        BulkOperations bops = null;
+        int pending = 0;
+        // breadth first: 'parents' are the paths of the previous level
+        List<String> parents = List.of(root.getPath());
+        int created = 0;
+        while (created < nodesPerUser) {
+            List<String> nextLevel = new ArrayList<>();
+            for (String parentPath : parents) {
+                for (int i = 0; i < fanOut && created < nodesPerUser; i++) {
+                    SubNode node = new SubNode(account.getOwner(), parentPath + "/" + Long.toString(created, 36),
+                            NodeType.NONE.s(), (long) i);
+                    node.setContent(randomContent());
+                    boolean isPublic = created % publicEvery == 0;
+                    if (isPublic) {
+                        node.putAc(PrincipalName.PUBLIC.s(), new AccessControl(null, PrivilegeType.READ.s()));
+                    }
+                    // breadth first, node number 'created' gets node numbers fanOut * (created + 1) and up as
+                    // its children
+                    node.setHasChildren((long) fanOut * (created + 1) < nodesPerUser);
+                    node.updateDerivedFields();
+                    // id set last, so the setters above don't put this node on the dirty list
+                    node.setId(new ObjectId());
+
+                    if (bops == null) {
+                        bops = svc_ops.bulkOps(BulkMode.UNORDERED);
+                    }
+                    bops.insert(node);
+                    if (++pending >= Const.MAX_BULK_OPS) {
+                        bops.execute();
+                        bops = null;
+                        pending = 0;
+                    }
+                    nextLevel.add(node.getPath());
+                    if (created % sampleEvery == 0) {
+                        data.nodeIds.add(node.getIdStr());
+                    }
+                    if (isPublic && (created / publicEvery) % sampleEvery == 0) {
+                        data.publicIds.add(node.getIdStr());
+                    }
+                    created++;
+                }
+            }
+            if (nextLevel.isEmpty())
+                break;
+            parents = nextLevel;
+        }
+        if (bops != null) {
+            bops.execute();
+        }
+        log.info("Seeded " + created + " nodes for " + userName);
+        return data;
+    }
+
+    private String randomContent() {
+        StringBuilder sb = new StringBuilder("### ");
+        int words = 10 + rand.nextInt(60);
+        for (int i = 0; i < words; i++) {
+            if (i == 3) {
+                sb.append("\n\n");
+            } else if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(WORDS[rand.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+}
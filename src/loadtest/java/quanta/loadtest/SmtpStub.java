@@ -0,0 +1,185 @@
+package quanta.loadtest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Just enough of an SMTP server (EHLO, MAIL, RCPT, DATA, RSET, NOOP, QUIT, no auth) on a loopback port
+ * to take mail from EmailService and remember it. A recipient can be set to get a temporary failure
+ * (451) on RCPT TO, a given number of times or always, to exercise retries.
+ */
+public class SmtpStub {
+    private static Logger log = LoggerFactory.getLogger(SmtpStub.class);
+
+    public static class Received {
+        public final String from;
+        public final List<String> to;
+        public final String data;
+
+        Received(String from, List<String> to, String data) {
+            this.from = from;
+            this.to = to;
+            this.data = data;
+        }
+    }
+
+    private final ServerSocket server;
+    private final List<Received> received = Collections.synchronizedList(new ArrayList<>());
+    // recipient -> how many more RCPT TOs for it get a 451 (negative means always)
+    private final ConcurrentHashMap<String, AtomicInteger> failures = new ConcurrentHashMap<>();
+    private final AtomicInteger connections = new AtomicInteger();
+
+    public SmtpStub() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread.ofVirtual().start(this::acceptLoop);
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    public void failNext(String rcpt, int times) {
+        failures.put(rcpt.toLowerCase(), new AtomicInteger(times));
+    }
+
+    public void failAlways(String rcpt) {
+        failNext(rcpt, -1);
+    }
+
+    /* Number of accepted messages addressed to 'rcpt' */
+    public int count(String rcpt) {
+        synchronized (received) {
+            int count = 0;
+            for (Received r : received) {
+                if (r.to.contains(rcpt.toLowerCase())) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    public void close() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private void acceptLoop() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                connections.incrementAndGet();
+                Thread.ofVirtual().start(() -> handle(socket));
+            } catch (IOException e) {
+                if (!server.isClosed()) {
+                    log.error("SMTP stub accept failed", e);
+                }
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (socket;
+                BufferedReader in =
+                        new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
+            reply(out, "220 localhost SMTP stub");
+            String from = null;
+            List<String> to = new ArrayList<>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                String cmd = line.length() >= 4 ? line.substring(0, 4).toUpperCase(Locale.ROOT) : line;
+                switch (cmd) {
+                    case "EHLO" -> reply(out, "250-localhost\r\n250 8BITMIME");
+                    case "HELO", "NOOP" -> reply(out, "250 OK");
+                    case "MAIL" -> {
+                        from = getAddress(line);
+                        to = new ArrayList<>();
+                        reply(out, "250 OK");
+                    }
+                    case "RCPT" -> {
+                        String rcpt = getAddress(line);
+                        if (shouldFail(rcpt)) {
+                            reply(out, "451 Try again later");
+                        } else {
+                            to.add(rcpt);
+                            reply(out, "250 OK");
+                        }
+                    }
+                    case "DATA" -> {
+                        if (from == null || to.isEmpty()) {
+                            reply(out, "503 Bad sequence of commands");
+                            break;
+                        }
+                        reply(out, "354 End data with <CR><LF>.<CR><LF>");
+                        StringBuilder data = new StringBuilder();
+                        while ((line = in.readLine()) != null && !line.equals(".")) {
+                            // undo the dot stuffing
+                            data.append(line.startsWith("..") ? line.substring(1) : line).append("\n");
+                        }
+                        received.add(new Received(from, to, data.toString()));
+                        from = null;
+                        to = new ArrayList<>();
+                        reply(out, "250 OK");
+                    }
+                    case "RSET" -> {
+                        from = null;
+                        to = new ArrayList<>();
+                        reply(out, "250 OK");
+                    }
+                    case "QUIT" -> {
+                        reply(out, "221 Bye");
+                        return;
+                    }
+                    default -> reply(out, "502 Command not implemented");
+                }
+            }
+        } catch (IOException e) {
+            log.debug("SMTP stub connection ended: " + e.getMessage());
+        }
+    }
+
+    private boolean shouldFail(String rcpt) {
+        AtomicInteger remaining = failures.get(rcpt);
+        if (remaining == null)
+            return false;
+        if (remaining.get() < 0)
+            return true;
+        return remaining.getAndUpdate(n -> n > 0 ? n - 1 : 0) > 0;
+    }
+
+    // from a line like "RCPT TO:<bob@localhost>"
+    private static String getAddress(String line) {
+        int start = line.indexOf('<');
+        int end = line.indexOf('>', start + 1);
+        String addr = start >= 0 && end > start ? line.substring(start + 1, end) : line.substring(line.indexOf(':') + 1);
+        return addr.trim().toLowerCase();
+    }
+
+    private static void reply(Writer out, String msg) throws IOException {
+        out.write(msg + "\r\n");
+        out.flush();
+    }
+}
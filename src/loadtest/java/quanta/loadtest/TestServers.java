@@ -0,0 +1,124 @@
+package quanta.loadtest;
+
+import java.io.File;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import quanta.AppServer;
+import quanta.exception.base.RuntimeEx;
+import quanta.mongo.MongoRepository;
+import quanta.util.Util;
+import redis.embedded.RedisServer;
+
+/*
+ * The whole app running in this JVM against a throwaway mongod replica set and an embedded Redis, for
+ * the load test and the self checks. Callers add their own properties on top of the defaults here
+ * (like test accounts or mail settings).
+ */
+public class TestServers {
+    private static Logger log = LoggerFactory.getLogger(TestServers.class);
+
+    public static final String PASSWORD = "loadtest-pw";
+
+    private LocalMongo mongo;
+    private RedisServer redis;
+    private ConfigurableApplicationContext app;
+    private int port;
+
+    /* Starts mongod, Redis and the app, and returns once the DB is initialized */
+    public void start(String mongodPath, Map<String, Object> extraProps) throws Exception {
+        mongo = new LocalMongo(mongodPath, freePort());
+        mongo.start();
+
+        int redisPort = freePort();
+        redis = new RedisServer(redisPort);
+        redis.start();
+
+        port = freePort();
+        File dataFolder = Files.createTempDirectory("quanta-loadtest-data").toFile();
+
+        Map<String, Object> props = new HashMap<>();
+        props.put("mongodb.host", "127.0.0.1");
+        props.put("mongodb.port", String.valueOf(mongo.getPort()));
+        props.put("mongoSecurity", "false");
+        props.put("REDIS_HOST", "127.0.0.1");
+        props.put("REDIS_PORT", String.valueOf(redisPort));
+        props.put("REDIS_PASSWORD", "");
+        props.put("server.port", String.valueOf(port));
+        props.put("adminPassword", PASSWORD);
+        props.put("testPassword", PASSWORD);
+        props.put("throttleTime", "0");
+        props.put("adminDataFolder", dataFolder.getAbsolutePath());
+        props.put("profileName", "loadtest");
+        props.put("instanceId", "loadtest");
+        props.put("httpProtocol", "http");
+        props.put("metaHost", "127.0.0.1");
+        props.put("aiAgentEnabled", "false");
+        props.put("rssPreCacheEnabled", "false");
+        props.put("searchIndexEnabled", "false");
+        props.put("spring.servlet.multipart.max-file-size", "200MB");
+        props.put("spring.servlet.multipart.max-request-size", "200MB");
+        props.putAll(extraProps);
+
+        SpringApplication sa = new SpringApplication(AppServer.class);
+        sa.setDefaultProperties(props);
+        app = sa.run();
+
+        long deadline = System.currentTimeMillis() + 120_000;
+        while (!MongoRepository.fullInit) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new RuntimeEx("Timed out waiting for the DB to initialize");
+            }
+            Util.sleep(250);
+        }
+    }
+
+    /* The app's HTTP port */
+    public int getPort() {
+        return port;
+    }
+
+    public void stop() {
+        try {
+            if (app != null) {
+                AppServer.setShuttingDown(true);
+                app.close();
+            }
+        } catch (Exception e) {
+            log.error("Failed stopping app", e);
+        }
+        try {
+            if (redis != null) {
+                redis.stop();
+            }
+        } catch (Exception e) {
+            log.error("Failed stopping redis", e);
+        }
+        if (mongo != null) {
+            mongo.stop();
+        }
+    }
+
+    public static int freePort() throws Exception {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    /* Parses "--name value" pairs */
+    public static Map<String, String> parseOpts(String[] args) {
+        Map<String, String> opts = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new RuntimeEx("Bad option: " + args[i]);
+            }
+            opts.put(args[i].substring(2), args[i + 1]);
+        }
+        return opts;
+    }
+}
@@ -200,6 +200,15 @@ public class AppProp {
         return "true".equals(env.getProperty("aiAgentEnabled"));
     }
 
+    public boolean getSearchIndexEnabled() {
+        return "true".equals(env.getProperty("searchIndexEnabled"));
+    }
+
+    // capture the launching stack trace of every async task, to log if it fails (costly, for debugging)
+    public boolean getAsyncStackTraces() {
+        return "true".equals(env.getProperty("asyncStackTraces"));
+    }
+
     public boolean getMultiUserEnabled() {
         return "true".equals(env.getProperty("multiUserEnabled"));
     }
@@ -1,9 +1,9 @@
 package quanta.config;
 import java.util.concurrent.Executor;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.VirtualThreadTaskExecutor;
 import org.springframework.scheduling.annotation.AsyncConfigurer;
 import org.springframework.scheduling.annotation.EnableAsync;
-import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.transaction.annotation.EnableTransactionManagement;
 
 @Configuration
@@ -11,15 +11,9 @@ import org.springframework.transaction.annotation.EnableTransactionManagement;
 @EnableAsync
 public class AsyncTransactionConfig implements AsyncConfigurer {
 
+    // a virtual thread per task (see AsyncExec for why there's no pool)
     @Override
     public Executor getAsyncExecutor() {
-        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
-        executor.setCorePoolSize(20);
-        executor.setMaxPoolSize(42);
-        executor.setQueueCapacity(100);
-        executor.setThreadNamePrefix("async-");
-        executor.initialize();
-        return executor;
+        return new VirtualThreadTaskExecutor("async-");
     }
 }
-
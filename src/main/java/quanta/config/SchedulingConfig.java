@@ -16,14 +16,20 @@ import org.springframework.scheduling.config.ScheduledTaskRegistrar;
 @Configuration
 @EnableScheduling
 public class SchedulingConfig implements SchedulingConfigurer {
+    // enough that every @Scheduled job can be running at the same time
+    private static final int SCHEDULER_THREADS = 32;
 
     @Override
     public void configureTasks(ScheduledTaskRegistrar taskRegistrar) {
         taskRegistrar.setScheduler(taskExecutor());
     }
 
+    /*
+     * The scheduled jobs mostly wait on the DB and network, so they run on virtual threads, and the
+     * thread count here is only how many jobs can be running at once, not a limit on I/O.
+     */
     @Bean(destroyMethod = "shutdown")
     public Executor taskExecutor() {
-        return Executors.newScheduledThreadPool(10);
+        return Executors.newScheduledThreadPool(SCHEDULER_THREADS, Thread.ofVirtual().name("sched-", 0).factory());
     }
 }
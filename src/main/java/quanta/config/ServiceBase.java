@@ -19,24 +19,32 @@ import quanta.mongo.MongoRepository;
 import quanta.mongo.MongoTemplateWrapper;
 import quanta.mongo.MongoUpdate;
 import quanta.mongo.MongoUtil;
+import quanta.mongo.NodeChangeEvents;
+import quanta.service.AIContextCache;
 import quanta.service.AIService;
 import quanta.service.AclService;
 import quanta.service.AttachmentService;
 import quanta.service.CryptoService;
 import quanta.service.EmailService;
+import quanta.service.FollowCountService;
 import quanta.service.FriendService;
 import quanta.service.GraphNodesService;
 import quanta.service.MongoTransactional;
 import quanta.service.NodeEditService;
 import quanta.service.NodeMoveService;
 import quanta.service.NodeRenderService;
+import quanta.service.MerkleService;
 import quanta.service.NodeSearchService;
+import quanta.service.NodeStatsService;
 import quanta.service.OpenGraphService;
+import quanta.service.OutboundHttpService;
 import quanta.service.PublicationService;
+import quanta.service.PushRouter;
 import quanta.service.PushService;
 import quanta.service.RSSFeedService;
 import quanta.service.RedisService;
 import quanta.service.SchemaOrgService;
+import quanta.service.SearchIndexService;
 import quanta.service.SystemService;
 import quanta.service.TransferService;
 import quanta.service.UserFeedService;
@@ -129,8 +137,16 @@ public class ServiceBase {
     public static CryptoService svc_crypto;
     public static SchemaOrgService svc_schema;
     public static AIService svc_ai;
+    public static AIContextCache svc_aiContext;
+    public static FollowCountService svc_followCount;
+    public static OutboundHttpService svc_http;
     public static TransferService svc_xfer;
     public static PublicationService svc_publication;
+    public static PushRouter svc_pushRouter;
+    public static NodeStatsService svc_nodeStats;
+    public static MerkleService svc_merkle;
+    public static SearchIndexService svc_searchIndex;
+    public static NodeChangeEvents svc_nodeEvents;
 
     public static boolean initComplete = false;
     public static final Object initLock = new Object();
@@ -208,8 +224,16 @@ public class ServiceBase {
             svc_crypto = getBean(ctx, CryptoService.class);
             svc_schema = getBean(ctx, SchemaOrgService.class);
             svc_ai = getBean(ctx, AIService.class);
+            svc_aiContext = getBean(ctx, AIContextCache.class);
+            svc_followCount = getBean(ctx, FollowCountService.class);
+            svc_http = getBean(ctx, OutboundHttpService.class);
             svc_xfer = getBean(ctx, TransferService.class);
             svc_publication = getBean(ctx, PublicationService.class);
+            svc_pushRouter = getBean(ctx, PushRouter.class);
+            svc_nodeStats = getBean(ctx, NodeStatsService.class);
+            svc_merkle = getBean(ctx, MerkleService.class);
+            svc_searchIndex = getBean(ctx, SearchIndexService.class);
+            svc_nodeEvents = getBean(ctx, NodeChangeEvents.class);
             gracefulShutdown = getBean(ctx, GracefulShutdown.class);
 
             // We improve over Spring by only calling PostConstructs once all
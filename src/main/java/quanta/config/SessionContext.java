@@ -5,6 +5,7 @@ import org.bson.types.ObjectId;
 import org.springframework.data.annotation.Transient;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import quanta.model.UserPreferences;
 import quanta.model.client.PrincipalName;
 import quanta.service.UserManagerService;
@@ -15,7 +16,8 @@ import quanta.service.UserManagerService;
  * 1: Need to refactor so that the only session-specific data are things that apply to THIS server
  * node instance and wouldn't be something that would make load balancer nodes have issues.
  *
- * Serializable for saving to Redis
+ * Saved to Redis by SessionSerializer. Older sessions were saved as JSON, which is why the Jackson
+ * annotations are still here.
  */
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class SessionContext {
@@ -52,8 +54,16 @@ public class SessionContext {
      * Keeps track of expansion states set by user. We can't just use a set to represent expanded nodes,
      * because we need to know if a node is expanded or not, based on an actual action taken by the
      * user.
+     *
+     * These aren't saved with the rest of the session. They're in Redis on their own (see
+     * RedisService.getExpandStates) and only read the first time rendering asks for them in a request.
      */
-    private HashMap<String, Boolean> nodeExpandStates = new HashMap<>();
+    @JsonIgnore
+    private HashMap<String, Boolean> nodeExpandStates;
+
+    // states from a session that was saved as JSON, which RedisService.save moves to their own hash
+    @JsonIgnore
+    private HashMap<String, Boolean> legacyExpandStates;
 
     public SessionContext() {}
 
@@ -64,6 +74,7 @@ public class SessionContext {
         userNodeId = null;
         userNodeObjId = null;
         timelinePath = null;
+        nodeExpandStates = null;
     }
 
     public String getUserToken() {
@@ -192,11 +203,32 @@ public class SessionContext {
         this.command = command;
     }
 
+    @JsonIgnore
     public HashMap<String, Boolean> getNodeExpandStates() {
+        if (nodeExpandStates == null) {
+            nodeExpandStates = userToken != null ? ServiceBase.svc_redis.getExpandStates(userToken) : new HashMap<>();
+        }
         return nodeExpandStates;
     }
 
-    public void setNodeExpandStates(HashMap<String, Boolean> nodeExpandStates) {
-        this.nodeExpandStates = nodeExpandStates;
+    // Sets the state for this request and saves it right away (it's not part of the session save)
+    public void setNodeExpanded(String nodeId, boolean expanded) {
+        getNodeExpandStates().put(nodeId, expanded);
+        if (userToken != null) {
+            ServiceBase.svc_redis.setExpandState(userToken, nodeId, expanded);
+        }
+    }
+
+    // Only Jackson calls this, when reading a session saved as JSON
+    @JsonProperty("nodeExpandStates")
+    private void setLegacyExpandStates(HashMap<String, Boolean> states) {
+        nodeExpandStates = states;
+        legacyExpandStates = states;
+    }
+
+    public HashMap<String, Boolean> takeLegacyExpandStates() {
+        HashMap<String, Boolean> ret = legacyExpandStates;
+        legacyExpandStates = null;
+        return ret;
     }
 }
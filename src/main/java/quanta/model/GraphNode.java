@@ -17,6 +17,8 @@ public class GraphNode {
     private List<GraphNode> children;
     private HashSet<String> childIds;
     private List<NodeLink> links;
+    // non-zero on a collapsed node, which stands in for this many nodes that didn't fit in the graph
+    private int hiddenCount;
 
     public GraphNode(String id, String name, String path, int level, boolean highlight, List<NodeLink> links) {
         this.id = id;
@@ -84,6 +86,10 @@ public class GraphNode {
         return this.links;
     }
 
+    public int getHiddenCount() {
+        return this.hiddenCount;
+    }
+
     public void setId(final String id) {
         this.id = id;
     }
@@ -108,5 +114,9 @@ public class GraphNode {
         this.links = links;
     }
 
+    public void setHiddenCount(final int hiddenCount) {
+        this.hiddenCount = hiddenCount;
+    }
+
     public GraphNode() {}
 }
@@ -37,6 +37,12 @@ public enum NodeProp {
     EMAIL_CONTENT("sn:content", null), //
     EMAIL_RECIP("sn:recip", null), //
     EMAIL_SUBJECT("sn:subject", null), //
+    // outbox delivery state (see EmailService)
+    EMAIL_LEASE("sn:emailLease", null), //
+    EMAIL_ATTEMPTS("sn:emailAttempts", null), //
+    EMAIL_NEXT_TRY("sn:emailNextTry", null), //
+    EMAIL_STATUS("sn:emailStatus", null), //
+    EMAIL_ERROR("sn:emailError", null), //
 
     /*
      * when a node id pointing to some other node, we set it's target id to the node it points to. For
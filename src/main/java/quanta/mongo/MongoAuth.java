@@ -84,17 +84,18 @@ public class MongoAuth extends ServiceBase {
      */
     public List<String> getUsersSharedTo(SubNode node) {
         List<String> userNames = null;
-        List<AccessControlInfo> acList = getAclEntries(node);
+        HashMap<String, AccessControl> aclMap = node.getAc();
 
-        if (acList != null) {
-            for (AccessControlInfo info : acList) {
-                String userNodeId = info.getPrincipalNodeId();
+        if (aclMap != null) {
+            for (String userNodeId : aclMap.keySet()) {
                 String name = null;
                 if (PrincipalName.PUBLIC.s().equals(userNodeId)) {
                     name = PrincipalName.PUBLIC.s();
                 } //
-                else if (userNodeId != null) {
-                    AccountNode accountNode = svc_user.getAccountNode(userNodeId);
+                else {
+                    // only the user name is needed, this runs for every push so don't load whole accounts
+                    SubNode accountNode = svc_arun.run(() -> svc_ops.findByIdProjected(new ObjectId(userNodeId),
+                            SubNode.TYPE, SubNode.OWNER, SubNode.PROPS + "." + NodeProp.USER.s()));
                     if (accountNode != null) {
                         name = accountNode.getStr(NodeProp.USER);
                     }
@@ -202,7 +203,8 @@ public class MongoAuth extends ServiceBase {
             }
         } else {
             // if we have a person/account get their account node first
-            myAcntNode = svc_mongoRead.getNode(TL.getSC().getUserNodeId());
+            // only the owner is needed, so this is a lightweight read
+            myAcntNode = svc_mongoRead.getNodeLight(TL.getSC().getUserNodeObjId());
 
             // if unknown person then again only a condition for public is what we want
             if (myAcntNode == null) {
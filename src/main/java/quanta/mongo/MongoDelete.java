@@ -1,5 +1,6 @@
 package quanta.mongo;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -46,10 +47,8 @@ public class MongoDelete extends ServiceBase {
      * only at startup, cleans up any and all of the orphans
      */
     public void removeAbandonedNodes() {
-        Query q = new Query();
-        q.addCriteria(Criteria.where(SubNode.MODIFY_TIME).is(null));
-        DeleteResult res = svc_ops.remove(q);
-        log.debug("Num abandoned nodes deleted: " + res.getDeletedCount());
+        long count = removeByCriteria(Criteria.where(SubNode.MODIFY_TIME).is(null));
+        log.debug("Num abandoned nodes deleted: " + count);
     }
 
     /**
@@ -63,21 +62,33 @@ public class MongoDelete extends ServiceBase {
         if (parent != null) {
             parent.setHasChildren(false);
         }
-        DeleteResult res = svc_ops.remove(q);
-        return res.getDeletedCount();
+        return removeSubGraph(path, q);
     }
 
     public long simpleDeleteUnderPath(String path) {
         Query q = new Query();
         q.addCriteria(svc_mongoUtil.subGraphCriteria(path));
+        return removeSubGraph(path, q);
+    }
+
+    /*
+     * Runs 'q', which only matches nodes under 'path', as one query delete. That never goes thru the
+     * remove hook so the change listeners get told about the subgraph instead.
+     */
+    private long removeSubGraph(String path, Query q) {
+        svc_nodeEvents.subtreeDeleting(path);
         DeleteResult res = svc_ops.remove(q);
+        svc_nodeEvents.subtreeChanged(path);
         return res.getDeletedCount();
     }
 
     // deletes without checking any security
     public void adminDelete(ObjectId id) {
         svc_arun.run(() -> {
-            svc_ops.remove(new Query().addCriteria(new Criteria("id").is(id)));
+            SubNode node = svc_ops.findById(id);
+            if (node != null) {
+                svc_ops.remove(node);
+            }
             return null;
         });
     }
@@ -100,9 +111,8 @@ public class MongoDelete extends ServiceBase {
         Criteria crit = svc_mongoUtil.subGraphCriteria(node.getPath());
         crit = svc_auth.addWriteSecurity(crit);
         q.addCriteria(crit);
-        DeleteResult res = svc_ops.remove(q);
-        log.debug("Num of SubGraph deleted: " + res.getDeletedCount());
-        long totalDelCount = res.getDeletedCount();
+        long totalDelCount = removeSubGraph(node.getPath(), q);
+        log.debug("Num of SubGraph deleted: " + totalDelCount);
         /*
          * Yes we DO have to remove the node itself separate from the remove of all it's subgraph, because
          * in order to be perfectly safe the recursive subgraph regex MUST designate the slash AFTER the
@@ -150,8 +160,45 @@ public class MongoDelete extends ServiceBase {
         svc_mongoUpdate.bulkSetPropValOnParents(q, SubNode.HAS_CHILDREN, null, allowSecurity);
         // look for all calls to 'opsw.remove' just to doublecheck none of them need the above
         // 'bulkSetPropValOnParents'
+        long count = removeByCriteria(crit);
+        log.debug("Nodes deleted: " + count);
+    }
+
+    /*
+     * Deletes everything matching 'crit' and returns how many. A query delete doesn't report the nodes it
+     * removed, so we stream just what the change listeners need from them and delete them by id, a
+     * batch at a time, reporting each batch once it's gone. This can match millions of nodes so we never
+     * hold more than a batch. Anything starting to match after the scan went by is left alone, same as
+     * if it had been written after the delete.
+     */
+    private long removeByCriteria(Criteria crit) {
+        Query scan = new Query(crit);
+        scan.fields().include(svc_nodeEvents.getPriorFields());
+        List<SubNode> batch = new ArrayList<>(Const.MAX_BULK_OPS);
+        LongVal total = new LongVal(0L);
+        svc_ops.forEach(scan, n -> {
+            batch.add(n);
+            if (batch.size() >= Const.MAX_BULK_OPS) {
+                total.add(removeBatch(crit, batch));
+            }
+        });
+        if (!batch.isEmpty()) {
+            total.add(removeBatch(crit, batch));
+        }
+        return total.getVal();
+    }
+
+    private long removeBatch(Criteria crit, List<SubNode> batch) {
+        List<ObjectId> ids = new ArrayList<>(batch.size());
+        for (SubNode n : batch) {
+            ids.add(n.getId());
+        }
+        // still with 'crit', in case any of them changed since we read them
+        Query q = new Query(new Criteria().andOperator(crit, Criteria.where(SubNode.ID).in(ids)));
         DeleteResult res = svc_ops.remove(q);
-        log.debug("Nodes deleted: " + res.getDeletedCount());
+        svc_nodeEvents.nodesDeleted(batch);
+        batch.clear();
+        return res.getDeletedCount();
     }
 
     /*
@@ -165,6 +212,8 @@ public class MongoDelete extends ServiceBase {
         LongVal totalDeleted = new LongVal();
         LongVal opsPending = new LongVal();
         LongVal deletesInPass = new LongVal();
+        // the orphans in 'bops', reported to the change listeners once they're gone
+        List<SubNode> pending = new ArrayList<>();
         int passes = 0;
 
         // run up to 5 passes over the whole DB (orphan trees deeper than 5 levels deep
@@ -172,8 +221,10 @@ public class MongoDelete extends ServiceBase {
         while (passes++ < 5) {
             // starting a new pass, so zero deletes so far in this pass
             deletesInPass.setVal(0L);
-            // scan the entire DB
-            svc_ops.forEach(new Query(), node -> {
+            // scan the entire DB, only the path is needed here (plus what the change listeners need)
+            Query scan = new Query();
+            scan.fields().include(svc_nodeEvents.getPriorFields());
+            svc_ops.forEach(scan, node -> {
                 // if this node is root node, ignore
                 if (NodePath.ROOT_PATH.equals(node.getPath()))
                     return;
@@ -186,16 +237,16 @@ public class MongoDelete extends ServiceBase {
                 // query to see if node's parent exists.
                 Query q = new Query();
                 q.addCriteria(Criteria.where(SubNode.PATH).is(parentPath));
-                SubNode parent = svc_ops.findOne(q);
 
                 // if parent node doesn't exist, this is an orphan we can delete.
-                if (parent == null) {
+                if (!svc_ops.exists(q)) {
                     // lazy create our bulk ops here.
                     if (bops.getVal() == null) {
                         bops.setVal(svc_ops.bulkOps(BulkMode.UNORDERED));
                     }
                     // add bulk ops command to delete this orphan
                     bops.getVal().remove(new Query().addCriteria(new Criteria("id").is(node.getId())));
+                    pending.add(node);
                     // update counters
                     opsPending.inc();
                     deletesInPass.inc();
@@ -203,6 +254,8 @@ public class MongoDelete extends ServiceBase {
                         BulkWriteResult results = bops.getVal().execute();
                         totalDeleted.add(results.getDeletedCount());
                         log.debug("DEL TOTAL: " + totalDeleted.getVal());
+                        svc_nodeEvents.nodesDeleted(pending);
+                        pending.clear();
                         bops.setVal(null);
                         opsPending.setVal(0L);
                     }
@@ -214,6 +267,8 @@ public class MongoDelete extends ServiceBase {
                 BulkWriteResult results = bops.getVal().execute();
                 totalDeleted.add(results.getDeletedCount());
                 log.debug("remainders. DEL TOTAL: " + totalDeleted.getVal());
+                svc_nodeEvents.nodesDeleted(pending);
+                pending.clear();
                 bops.setVal(null);
                 opsPending.setVal(0L);
             }
@@ -433,6 +488,12 @@ public class MongoDelete extends ServiceBase {
             }
         }
 
+        if (bops != null) {
+            bops.execute();
+        }
+        // bulk ops don't go thru the remove hook either, and we already have the whole nodes
+        svc_nodeEvents.nodesDeleted(nodes);
+
         // in async thread send out all the deletes to the foreign servers, and then delete the subgraphs
         // under the deleted nodes so there should be no orphans left
         svc_async.run(() -> {
@@ -440,9 +501,6 @@ public class MongoDelete extends ServiceBase {
                 deleteSubGraphChildren(n, false);
             });
         });
-        if (bops != null) {
-            bops.execute();
-        }
         svc_mongoUpdate.saveSession();
         return res;
     }
@@ -460,7 +518,7 @@ public class MongoDelete extends ServiceBase {
         log.debug("DEL SUBGRAPH: " + node.getPath());
         Criteria crit = svc_mongoUtil.subGraphCriteria(node.getPath());
         q.addCriteria(crit);
-        svc_ops.remove(q);
+        removeSubGraph(node.getPath(), q);
     }
 
     // returns a new BulkOps if one not yet existing
@@ -494,8 +552,8 @@ public class MongoDelete extends ServiceBase {
 
         // This will potentially leave orphans and this is fine. We don't bother cleaning orphans now
         // because there's no need.
-        DeleteResult delRes = svc_ops.remove(q);
-        String msg = "Nodes deleted: " + delRes.getDeletedCount();
+        long count = removeByCriteria(crit);
+        String msg = "Nodes deleted: " + count;
         log.debug("Bulk Delete: " + msg);
         res.setMessage(msg);
         return res;
@@ -116,7 +116,9 @@ public class MongoRead extends ServiceBase {
      */
     public boolean noChildren(String path) {
         if (SubNode.USE_HAS_CHILDREN) {
-            SubNode node = getNodeAP(path);
+            SubNode node = svc_arun.run(() -> svc_ops.findOneProjected(
+                    new Query(Criteria.where(SubNode.PATH).is(XString.stripIfEndsWith(path, "/"))),
+                    SubNode.HAS_CHILDREN, SubNode.TYPE, SubNode.OWNER));
             // using booleanValue for clarity
             if (node != null && node.getHasChildren() != null && !node.getHasChildren().booleanValue()) {
                 return true;
@@ -156,8 +158,11 @@ public class MongoRead extends ServiceBase {
             return node.getHasChildren().booleanValue();
         }
         boolean ret = directChildrenExist(node.getPath());
-        node.setHasChildren(ret);
-        svc_mongoUpdate.saveIfDirtyAP(node);
+        // a lightweight node can't be saved, so the answer just won't be remembered
+        if (!node.isPartial()) {
+            node.setHasChildren(ret);
+            svc_mongoUpdate.saveIfDirtyAP(node);
+        }
         return ret;
     }
 
@@ -388,6 +393,11 @@ public class MongoRead extends ServiceBase {
         return svc_ops.findById(objId);
     }
 
+    /* Lightweight (SubNode.LIGHT_FIELDS) node, which can't be saved */
+    public SubNode getNodeLight(ObjectId objId) {
+        return svc_ops.findByIdProjected(objId, SubNode.LIGHT_FIELDS);
+    }
+
     public SubNode findNodeByPathAP(String path) {
         return svc_arun.run(() -> findNodeByPath(path));
     }
@@ -450,6 +460,23 @@ public class MongoRead extends ServiceBase {
         return getNode(parentPath);
     }
 
+    /*
+     * Same as getParent but returns a lightweight node (SubNode.LIGHT_FIELDS plus 'moreFields'), which
+     * can't be saved.
+     */
+    public SubNode getParentLight(SubNode node, String... moreFields) {
+        if (node == null || "/".equals(node.getPath()))
+            return null;
+        String parentPath = XString.truncAfterLast(node.getPath(), "/");
+        if (StringUtils.isEmpty(parentPath))
+            return null;
+        parentPath = parentPath.replace(NodePath.PENDING_PATH_S, NodePath.ROOT_PATH_S);
+
+        Query q = new Query(svc_auth.addReadSecurity(Criteria.where(SubNode.PATH).is(parentPath)));
+        q.fields().include(moreFields);
+        return svc_ops.findOneProjected(q, SubNode.LIGHT_FIELDS);
+    }
+
     public List<String> getChildrenIds(SubNode node, boolean ordered, Integer limit) {
         if (noChildren(node)) {
             return Collections.<String>emptyList();
@@ -704,7 +731,15 @@ public class MongoRead extends ServiceBase {
             }
 
             if (fuzzy) {
-                ands.add(Criteria.where(prop).regex(text, caseSensitive ? "" : "i"));
+                // the search index (when enabled) answers content searches without scanning the subgraph
+                List<ObjectId> ids = SubNode.CONTENT.equals(prop) && svc_searchIndex.isEnabled()
+                        ? svc_searchIndex.search(node, text, recursive, caseSensitive)
+                        : null;
+                if (ids != null) {
+                    ands.add(Criteria.where(SubNode.ID).in(ids));
+                } else {
+                    ands.add(Criteria.where(prop).regex(text, caseSensitive ? "" : "i"));
+                }
             } else {
                 List<String> quotedStrings = XString.extractQuotedStrings(text, "or");
                 if (!quotedStrings.isEmpty()) {
@@ -803,25 +838,31 @@ public class MongoRead extends ServiceBase {
         }
 
         /*
-         * We support the special case of "contentLength" as sort order string, which is not a "real"
-         * property, but a calculated one.
+         * We support the special cases of "contentLength" and "treeDepth" as sort order strings, which are
+         * not "real" properties on the client but are stored on every node (SubNode.CONTENT_LEN and
+         * SubNode.DEPTH) and indexed ahead of the path, so we just sort on them with the index hinted.
+         * MongoDB won't combine a hint with a text search, but then only the text matches get sorted.
          *
-         * For a calculated field we do an Aggregate Query operation. The purpose of this entire Aggregation
-         * is to calculate contentLength on the fly so we can sort on it.
+         * Until the startup backfill has given every node those fields we still have to calculate them on
+         * the fly with an Aggregate Query operation.
          */
-        if ("contentLength".equals(sortField)) {
-            return queryByConentLenOrder(limit, skip, ands, textCriteria, sort);
-        } //
-        else if ("treeDepth".equals(sortField)) {
-            return queryByTreeDepthOrder(limit, skip, ands, textCriteria, sort);
+        if ("contentLength".equals(sortField) || "treeDepth".equals(sortField)) {
+            boolean byLen = "contentLength".equals(sortField);
+            if (!MongoUtil.derivedFieldsReady) {
+                return byLen ? queryByConentLenOrder(limit, skip, ands, textCriteria, sort)
+                        : queryByTreeDepthOrder(limit, skip, ands, textCriteria, sort);
+            }
+            sort = Sort.by(Sort.Direction.ASC, byLen ? SubNode.CONTENT_LEN : SubNode.DEPTH);
+            String hint = textCriteria != null ? null : byLen ? MongoUtil.CONTENT_LEN_INDEX : MongoUtil.DEPTH_INDEX;
+            return basicQuery(limit, skip, ands, textCriteria, sort, hint);
         } //
         else {
-            return basicQuery(limit, skip, ands, textCriteria, sort);
+            return basicQuery(limit, skip, ands, textCriteria, sort, null);
         }
     }
 
     private Iterable<SubNode> basicQuery(int limit, int skip, List<Criteria> ands, TextCriteria textCriteria,
-            Sort sort) {
+            Sort sort, String hint) {
         Query q = new Query();
         Criteria c = svc_auth.addReadSecurity(new Criteria(), ands);
         q.addCriteria(c);
@@ -829,6 +870,9 @@ public class MongoRead extends ServiceBase {
         if (textCriteria != null) {
             q.addCriteria(textCriteria);
         }
+        if (hint != null) {
+            q.withHint(hint);
+        }
         if (sort != null) {
             q.with(sort);
         }
@@ -1238,6 +1282,51 @@ public class MongoRead extends ServiceBase {
         return rootTreeNode;
     }
 
+    /*
+     * Like getSubGraphTree, but only the fields named in 'fields' are loaded (plus what's needed to
+     * build and validate the tree), so there's no MAX_TREE_GRAPH_SIZE limit. The whole skeleton is still
+     * held in memory, since callers need all of it up front (like exports numbering figures), but it's
+     * small per node and full nodes can then be loaded a batch at a time. The nodes in the returned tree
+     * are partial, so never save them. The root node is passed in and used as is.
+     */
+    public TreeNode getSubGraphSkeleton(SubNode rootNode, String... fields) {
+        TreeNode rootTreeNode = new TreeNode(rootNode);
+        if (noChildren(rootNode)) {
+            return rootTreeNode;
+        }
+
+        HashMap<String, TreeNode> nodeMap = new HashMap<>();
+        nodeMap.put(rootNode.getPath(), rootTreeNode);
+
+        Query q = new Query();
+        q.addCriteria(svc_auth.addReadSecurity(svc_mongoUtil.subGraphCriteria(rootNode.getPath())));
+        q.fields().include(SubNode.PATH, SubNode.ORDINAL, SubNode.HAS_CHILDREN, SubNode.TYPE, SubNode.OWNER)
+                .include(fields);
+        svc_ops.forEach(q, n -> nodeMap.put(n.getPath(), new TreeNode(n)));
+
+        nodeMap.forEach((k, n) -> {
+            if (n == rootTreeNode)
+                return;
+            TreeNode parent = nodeMap.get(n.node.getParentPath());
+            if (parent == null) {
+                log.debug("Ignoring Orphan: " + n.node.getPath());
+                return;
+            }
+            if (parent.children == null) {
+                parent.children = new LinkedList<>();
+            }
+            parent.children.add(n);
+            n.parent = parent;
+        });
+
+        nodeMap.forEach((k, n) -> {
+            if (n.children != null) {
+                n.children.sort((a, b) -> a.node.getOrdinal().compareTo(b.node.getOrdinal()));
+            }
+        });
+        return rootTreeNode;
+    }
+
     public List<SubNode> getFlatSubGraph(final String rootId, boolean includeComments, SearchDefinition def) {
         LinkedList<SubNode> doc = new LinkedList<>();
         Criteria typeCriteria = null;
@@ -90,6 +90,14 @@ public class MongoRepository extends ServiceBase {
             svc_pub.getPublisher().publishEvent(new AppStartupEvent());
             svc_mongoDelete.removeAbandonedNodes();
 
+            svc_async.run(() -> {
+                svc_arun.run(() -> {
+                    svc_mongoUtil.backfillDerivedFields();
+                    svc_mongoUtil.backfillAccountKeys();
+                    return null;
+                });
+            });
+
             if (svc_prop.getRssPreCacheEnabled()) {
                 svc_async.run(() -> {
                     // wait 120 seconds before starting to pre-cache the RSS feeds
@@ -1,20 +1,31 @@
 package quanta.mongo;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
+import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.mongodb.core.BulkOperations;
 import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
+import org.springframework.data.mongodb.core.FindAndReplaceOptions;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.aggregation.Aggregation;
 import org.springframework.data.mongodb.core.aggregation.AggregationResults;
+import org.springframework.data.mongodb.core.convert.QueryMapper;
 import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.UpdateDefinition;
 import org.springframework.stereotype.Component;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.result.DeleteResult;
 import quanta.config.ServiceBase;
 import quanta.exception.base.RuntimeEx;
@@ -35,10 +46,17 @@ public class MongoTemplateWrapper extends ServiceBase {
     // todo-2: make this able to be enabled by Admin panel button
     private static boolean logging = false;
     private static Logger log = LoggerFactory.getLogger(MongoTemplateWrapper.class);
+    // fields every projected node read has to include, see prepareProjection
+    private static final String[] REQUIRED_FIELDS = {SubNode.OWNER, SubNode.TYPE};
 
     @Autowired
     MongoTemplate mt;
 
+    // read path for nodes, set up on first use (see codecFind)
+    private volatile SubNodeCodec nodeCodec;
+    private CodecRegistry nodeCodecRegistry;
+    private QueryMapper queryMapper;
+
     // NOTE: The purpose of this wrapper function is only to add logging, error handling, and
     // performance monitoring.
     private <T> T executeOperation(Query query, String operationName, Supplier<T> operation) {
@@ -56,6 +74,7 @@ public class MongoTemplateWrapper extends ServiceBase {
     }
 
     public DeleteResult remove(Query query) {
+        // we can't know what nodes a query delete hit, so every caller reports its own change (see MongoDelete)
         return executeOperation(query, "remove", () -> mt.remove(query, SubNode.class));
     }
 
@@ -68,10 +87,72 @@ public class MongoTemplateWrapper extends ServiceBase {
     }
 
     public List<SubNode> find(Query query) {
-        List<SubNode> nodes = executeOperation(query, "find", () -> mt.find(query, SubNode.class));
+        boolean projected = prepareProjection(query);
+        List<SubNode> nodes = executeOperation(query, "find", () -> codecFind(query).into(new ArrayList<>()));
+        if (projected) {
+            nodes.forEach(n -> markPartial(n));
+        }
         return nodes;
     }
 
+    /*
+     * Projected reads. These return lightweight nodes having only 'fields' (plus the id), flagged as
+     * partial so they can't be saved. Use SubNode.LIGHT_FIELDS for auth checks and tree navigation.
+     */
+    public List<SubNode> findProjected(Query query, String... fields) {
+        query.fields().include(fields);
+        return find(query);
+    }
+
+    public SubNode findOneProjected(Query query, String... fields) {
+        query.fields().include(fields);
+        return findOne(query);
+    }
+
+    public SubNode findByIdProjected(ObjectId id, String... fields) {
+        if (id == null)
+            return null;
+        SubNode node = findOneProjected(new Query(Criteria.where(SubNode.ID).is(id)), fields);
+        if (node != null) {
+            svc_auth.readAuth(node);
+        }
+        return node;
+    }
+
+    /*
+     * Returns true if 'query' has a projection. Every projection has to keep the fields the codec needs
+     * to build and validate any node (the class comes from the type, and a node without an owner is
+     * rejected as corrupt), so we fail fast on one that doesn't rather than quietly widening it.
+     */
+    private boolean prepareProjection(Query query) {
+        if (query == null)
+            return false;
+        Document fields = query.getFieldsObject();
+        if (fields.isEmpty())
+            return false;
+        // an exclusion projection keeps everything it doesn't name
+        boolean inclusion = fields.entrySet().stream()
+                .anyMatch(e -> !SubNode.ID.equals(e.getKey()) && Integer.valueOf(1).equals(e.getValue()));
+        for (String field : REQUIRED_FIELDS) {
+            boolean kept = inclusion ? Integer.valueOf(1).equals(fields.get(field)) : !fields.containsKey(field);
+            if (!kept) {
+                throw new RuntimeEx("Projection is missing " + field + ": " + fields.toJson());
+            }
+        }
+        return true;
+    }
+
+    private <T extends SubNode> T markPartial(T node) {
+        if (node == null)
+            return null;
+        node.setPartial(true);
+        // loading may have touched it (see MongoUtil.validate) and it can't be written back anyway
+        if (TL.getDirtyNodes() != null && TL.getDirtyNodes().get(node.getId()) == node) {
+            TL.clean(node);
+        }
+        return node;
+    }
+
     // This is used to find the DB root BEFORE the adminSessionContext is built so any kind of actual
     // security
     // code must be bypassed so we call directly onto 'mt.findOne' instead of thru executeOptionation
@@ -85,8 +166,69 @@ public class MongoTemplateWrapper extends ServiceBase {
     }
 
     public <T extends SubNode> T findOne(Query query, Class<T> clazz) {
-        T node = executeOperation(query, "findOne", () -> mt.findOne(query, clazz));
-        return node;
+        boolean projected = prepareProjection(query);
+        T node = executeOperation(query, "findOne", () -> {
+            SubNode n = codecFind(query).limit(1).first();
+            // same as what MongoTemplate does when the document can't be read as the requested class
+            if (n != null && !clazz.isInstance(n)) {
+                throw new RuntimeEx("Node " + n.getIdStr() + " is not a " + clazz.getSimpleName());
+            }
+            return clazz.cast(n);
+        });
+        return projected ? markPartial(node) : node;
+    }
+
+    /*
+     * Runs 'query' directly on the collection, decoding the results with SubNodeCodec instead of going
+     * thru a Document and SubNodeConverter. The query is mapped by the same QueryMapper MongoTemplate
+     * uses, and MongoTemplate.getCollection is bound to the current transaction session if there is one.
+     */
+    private FindIterable<SubNode> codecFind(Query query) {
+        MongoPersistentEntity<?> entity = mt.getConverter().getMappingContext().getPersistentEntity(SubNode.class);
+        FindIterable<SubNode> it =
+                nodeCollection().find(queryMapper.getMappedObject(query.getQueryObject(), entity));
+        Document fields = query.getFieldsObject();
+        if (!fields.isEmpty()) {
+            it.projection(queryMapper.getMappedFields(fields, entity));
+        }
+        Document sort = query.getSortObject();
+        if (!sort.isEmpty()) {
+            it.sort(queryMapper.getMappedSort(sort, entity));
+        }
+        if (query.getSkip() > 0) {
+            it.skip((int) query.getSkip());
+        }
+        if (query.getLimit() > 0) {
+            it.limit(query.getLimit());
+        }
+        String hint = query.getHint();
+        if (hint != null) {
+            if (hint.startsWith("{")) {
+                it.hint(Document.parse(hint));
+            } else {
+                it.hintString(hint);
+            }
+        }
+        query.getCollation().ifPresent(c -> it.collation(c.toMongoCollation()));
+        return it;
+    }
+
+    private MongoCollection<SubNode> nodeCollection() {
+        MongoCollection<Document> coll = mt.getCollection(getNodesCollectionName());
+        if (nodeCodec == null) {
+            SubNodeCodec codec = new SubNodeCodec(coll.getCodecRegistry(), mt.getConverter());
+            queryMapper = new QueryMapper(mt.getConverter());
+            nodeCodecRegistry =
+                    CodecRegistries.fromRegistries(CodecRegistries.fromCodecs(codec), coll.getCodecRegistry());
+            // assigned last, since it's what tells other threads the rest is set
+            nodeCodec = codec;
+        }
+        return coll.withCodecRegistry(nodeCodecRegistry).withDocumentClass(SubNode.class);
+    }
+
+    public SubNodeCodec getNodeCodec() {
+        nodeCollection();
+        return nodeCodec;
     }
 
     public AccountNode findUserAccountNode(Query query) {
@@ -127,8 +269,30 @@ public class MongoTemplateWrapper extends ServiceBase {
     }
 
     public SubNode save(SubNode node) {
+        if (node.isPartial()) {
+            throw new RuntimeEx("Attempted to save a partially loaded node: " + node.getIdStr());
+        }
         MongoUtil.validate(node);
-        SubNode ret = mt.save(node);
+        node.updateDerivedFields();
+        /*
+         * Some change listeners need the prior state of the node (like stats rollups computing a delta).
+         * When one does we write with findAndReplace, which hands back the replaced document (projected
+         * to just what the listeners need) in the same round trip as the write. A new node (no id yet)
+         * has no prior state, so it's a plain save. svc_nodeEvents is null only during startup.
+         */
+        SubNode oldNode = null;
+        SubNode ret;
+        if (svc_nodeEvents != null && node.getId() != null && svc_nodeEvents.needsPriorState(node)) {
+            Query q = new Query(Criteria.where(SubNode.ID).is(node.getId()));
+            q.fields().include(svc_nodeEvents.getPriorFields());
+            oldNode = mt.findAndReplace(q, node, FindAndReplaceOptions.options().upsert());
+            ret = node;
+        } else {
+            ret = mt.save(node);
+        }
+        if (svc_nodeEvents != null) {
+            svc_nodeEvents.nodeSaved(oldNode, ret);
+        }
         AccountNode dbRoot = svc_mongoRead.getDbRoot();
         if (dbRoot != null && dbRoot.getId().equals(ret.getId())) {
             /*
@@ -150,11 +314,19 @@ public class MongoTemplateWrapper extends ServiceBase {
     }
 
     public DeleteResult remove(Object object) {
-        return mt.remove(object);
+        DeleteResult ret = mt.remove(object);
+        if (object instanceof SubNode node && svc_nodeEvents != null) {
+            svc_nodeEvents.nodeDeleted(node);
+        }
+        return ret;
     }
 
     public void forEach(Query query, Consumer<SubNode> consumer) {
-        mt.stream(query, SubNode.class).forEach(n -> {
+        boolean projected = prepareProjection(query);
+        codecFind(query).forEach(n -> {
+            if (projected) {
+                markPartial(n);
+            }
             consumer.accept(n);
         });
     }
@@ -167,6 +339,22 @@ public class MongoTemplateWrapper extends ServiceBase {
         mt.dropCollection(SubNode.class);
     }
 
+    public void dropCollection(String name) {
+        mt.dropCollection(name);
+    }
+
+    public String getNodesCollectionName() {
+        return mt.getCollectionName(SubNode.class);
+    }
+
+    /*
+     * Raw collection access with no SubNode mapping or security. Only for bulk admin tasks (like the
+     * NDJSON dump/restore) that work directly on BSON documents.
+     */
+    public <T> MongoCollection<T> getCollection(String name, Class<T> clazz) {
+        return mt.getDb().getCollection(name, clazz);
+    }
+
     private void log(String name, Query query) {
         String msg = "MQ: cmd:" + //
                 (TL.getSC().getCommand() != null ? TL.getSC().getCommand() : "?") + " u:"
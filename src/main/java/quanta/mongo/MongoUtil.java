@@ -34,6 +34,7 @@ import quanta.model.client.NodeType;
 import quanta.model.client.PrincipalName;
 import quanta.model.client.PrivilegeType;
 import quanta.mongo.model.AccessControl;
+import quanta.mongo.model.AccountNode;
 import quanta.mongo.model.SubNode;
 import quanta.util.Const;
 import quanta.util.ExUtil;
@@ -51,6 +52,14 @@ public class MongoUtil extends ServiceBase {
     private static Logger log = LoggerFactory.getLogger(MongoUtil.class);
     private static final Random rand = new Random();
 
+    public static final String DEPTH_INDEX = "dep-pth";
+    public static final String CONTENT_LEN_INDEX = "cln-pth";
+
+    // set once backfillDerivedFields has run, until then nodes may be missing DEPTH and CONTENT_LEN
+    public static volatile boolean derivedFieldsReady = false;
+    // set once backfillAccountKeys has run, until then accounts may be missing their USER_KEY/EMAIL_KEY
+    public static volatile boolean accountKeysReady = false;
+
     /*
      * removed lower-case 'r' and 'p' since those are 'root' and 'pending' (see setPendingPath), and we
      * need very performant way to translate from /r/p to /r path and vice verse
@@ -245,6 +254,88 @@ public class MongoUtil extends ServiceBase {
         createAllIndexes();
     }
 
+    /*
+     * Fills in SubNode.DEPTH and SubNode.CONTENT_LEN on nodes saved before those fields existed. This
+     * runs in the background at startup with the app live, and only has to ever do anything once since
+     * every save maintains them. Each update is conditional on the field still being missing, so we
+     * never overwrite what a concurrent save just wrote.
+     */
+    public void backfillDerivedFields() {
+        long start = System.currentTimeMillis();
+        IntVal batchSize = new IntVal();
+        IntVal total = new IntVal();
+        Query q = new Query(Criteria.where(SubNode.DEPTH).exists(false));
+        q.fields().include(SubNode.PATH, SubNode.CONTENT, SubNode.TYPE, SubNode.OWNER);
+        Val<BulkOperations> bops = new Val<>(svc_ops.bulkOps(BulkMode.UNORDERED));
+
+        svc_ops.forEach(q, node -> {
+            Query query = new Query(Criteria.where(SubNode.ID).is(node.getId()).and(SubNode.DEPTH).exists(false));
+            Update update = new Update().set(SubNode.DEPTH, SubNode.getPathDepth(node.getPath()))
+                    .set(SubNode.CONTENT_LEN, SubNode.getContentLength(node.getContent()));
+            bops.getVal().updateOne(query, update);
+            total.inc();
+
+            batchSize.inc();
+            if (batchSize.getVal() > Const.MAX_BULK_OPS) {
+                bops.getVal().execute();
+                bops.setVal(svc_ops.bulkOps(BulkMode.UNORDERED));
+                batchSize.setVal(0);
+            }
+        });
+        if (batchSize.getVal() > 0) {
+            bops.getVal().execute();
+        }
+        derivedFieldsReady = true;
+        log.debug("Derived fields backfilled on " + total.getVal() + " nodes in " + (System.currentTimeMillis() - start)
+                + "ms");
+    }
+
+    /*
+     * Same idea as backfillDerivedFields, for the normalized user name and email on account nodes. If
+     * any of these fail (like two accounts whose names only differ by case) the lookups just keep using
+     * the old queries, and the error is logged so it can be cleaned up.
+     */
+    public void backfillAccountKeys() {
+        IntVal batchSize = new IntVal();
+        IntVal total = new IntVal();
+        Val<Boolean> ok = new Val<>(true);
+        Query q = new Query(Criteria.where(SubNode.TYPE).is(NodeType.ACCOUNT.s()).and(AccountNode.USER_KEY).exists(false));
+        q.fields().include(SubNode.TYPE, SubNode.OWNER, SubNode.PROPS + "." + NodeProp.USER.s(),
+                SubNode.PROPS + "." + NodeProp.EMAIL.s());
+        Val<BulkOperations> bops = new Val<>(svc_ops.bulkOps(BulkMode.UNORDERED));
+
+        svc_ops.forEach(q, node -> {
+            Query query =
+                    new Query(Criteria.where(SubNode.ID).is(node.getId()).and(AccountNode.USER_KEY).exists(false));
+            Update update = new Update().set(AccountNode.USER_KEY, AccountNode.normalize(node.getStr(NodeProp.USER)))
+                    .set(AccountNode.EMAIL_KEY, AccountNode.normalize(node.getStr(NodeProp.EMAIL)));
+            bops.getVal().updateOne(query, update);
+            total.inc();
+
+            batchSize.inc();
+            if (batchSize.getVal() > Const.MAX_BULK_OPS) {
+                ok.setVal(executeBackfill(bops.getVal()) && ok.getVal());
+                bops.setVal(svc_ops.bulkOps(BulkMode.UNORDERED));
+                batchSize.setVal(0);
+            }
+        });
+        if (batchSize.getVal() > 0) {
+            ok.setVal(executeBackfill(bops.getVal()) && ok.getVal());
+        }
+        accountKeysReady = ok.getVal();
+        log.debug("Account keys backfilled on " + total.getVal() + " accounts, ok=" + ok.getVal());
+    }
+
+    private boolean executeBackfill(BulkOperations bops) {
+        try {
+            bops.execute();
+            return true;
+        } catch (Exception e) {
+            ExUtil.error(log, "Failed backfilling account keys", e);
+            return false;
+        }
+    }
+
     // DO NOT DELETE (this method can be repurposed for other similar tasks)
     public void upgradePaths() {
         MongoTranMgr.ensureTran();
@@ -260,7 +351,7 @@ public class MongoUtil extends ServiceBase {
             if (path.startsWith("/r/usr/L")) {
                 path = path.replace("/r/usr/L", "/r/usr");
             }
-            Update update = new Update().set(SubNode.PATH, path);
+            Update update = new Update().set(SubNode.PATH, path).set(SubNode.DEPTH, SubNode.getPathDepth(path));
             bops.updateOne(query, update);
             batchSize.inc();
 
@@ -300,7 +391,12 @@ public class MongoUtil extends ServiceBase {
          * delete.removeFriendConstraintViolations(ms);
          */
 
+        // normalized names are unique, but emails aren't because test accounts all share one
+        createPartialUniqueIndex("unique-user-key", AccountNode.USER_KEY);
+        createPartialIndex("email-key", AccountNode.EMAIL_KEY);
+
         createUniqueFriendsIndex();
+        createFollowersIndex();
         createUniqueNodeNameIndex();
         // DO NOT DELETE
         // I had done this temporarily to fix a constraint violation
@@ -315,6 +411,13 @@ public class MongoUtil extends ServiceBase {
         createIndex(SubNode.ORDINAL);
         createIndex(SubNode.MODIFY_TIME, Direction.DESC);
         createIndex(SubNode.CREATE_TIME, Direction.DESC);
+        /*
+         * For the tree depth and content length search orderings. The sort key comes first so the index
+         * returns nodes already in order and the subgraph path prefix is checked from the index keys, so
+         * there's never a blocking sort.
+         */
+        createCompoundIndex(DEPTH_INDEX, SubNode.DEPTH, SubNode.PATH);
+        createCompoundIndex(CONTENT_LEN_INDEX, SubNode.CONTENT_LEN, SubNode.PATH);
         createTextIndexes();
         logIndexes();
         log.debug("finished checking all indexes.");
@@ -339,6 +442,24 @@ public class MongoUtil extends ServiceBase {
         }
     }
 
+    /*
+     * For finding everyone following a user (the FRIEND nodes that point to them). Ordered by id so the
+     * followers list pages in index order.
+     */
+    public void createFollowersIndex() {
+        log.debug("Creating followers index.");
+        svc_auth.requireAdmin();
+        String indexName = "followers";
+        try {
+            svc_ops.indexOps()
+                    .ensureIndex(new Index().on(SubNode.PROPS + "." + NodeProp.USER_NODE_ID.s(), Direction.ASC)
+                            .on(SubNode.ID, Direction.ASC).named(indexName)
+                            .partial(PartialIndexFilter.of(Criteria.where(SubNode.TYPE).is(NodeType.FRIEND.s()))));
+        } catch (Exception e) {
+            ExUtil.error(log, "Failed to create partial index: " + indexName, e);
+        }
+    }
+
     /* Creates an index which will guarantee no duplicate node names can exist, for any user */
     public void createUniqueNodeNameIndex() {
         log.debug("createUniqueNodeNameIndex()");
@@ -472,6 +593,20 @@ public class MongoUtil extends ServiceBase {
         }
     }
 
+    public void createCompoundIndex(String name, String... properties) {
+        log.debug("createCompoundIndex: " + name);
+        try {
+            svc_auth.requireAdmin();
+            Index index = new Index().named(name);
+            for (String property : properties) {
+                index.on(property, Direction.ASC);
+            }
+            svc_ops.indexOps().ensureIndex(index);
+        } catch (Exception e) {
+            ExUtil.error(log, "Failed in createCompoundIndex: " + name, e);
+        }
+    }
+
     public void createIndex(String property, Direction dir) {
         log.debug("createIndex: " + property + " dir=" + dir);
         try {
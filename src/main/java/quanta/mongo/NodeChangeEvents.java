@@ -0,0 +1,265 @@
+package quanta.mongo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import quanta.config.NodePath;
+import quanta.config.ServiceBase;
+import quanta.mongo.model.SubNode;
+import quanta.redis.RedisNodeChanges;
+import quanta.service.PushRouter;
+import quanta.util.Util;
+
+/**
+ * The one place node changes are reported to. Passes each change on to every NodeChangeListener bean,
+ * and turns node level changes into the path level ones (pathChanged) for listeners keyed by path.
+ *
+ * A failing listener is logged and doesn't stop the others, or the write that was reported.
+ *
+ * The path of every change is also shared with the other replicas (once committed, and batched for a
+ * few millis like PushRouter does) so their listeners can drop what they derived from it, see
+ * remoteChanged.
+ */
+@Component
+public class NodeChangeEvents extends ServiceBase {
+    private static Logger log = LoggerFactory.getLogger(NodeChangeEvents.class);
+
+    @Autowired
+    private List<NodeChangeListener> listeners;
+
+    private static final long LINGER_MILLIS = 10;
+    private static final int MAX_BATCH = 500;
+
+    private volatile String[] priorFields;
+
+    // changed paths waiting to be published to the other replicas
+    private final Set<String> outbox = ConcurrentHashMap.newKeySet();
+    // and the subgraphs changed in bulk
+    private final Set<String> subtreeOutbox = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+
+    public boolean needsPriorState(SubNode node) {
+        for (NodeChangeListener l : listeners) {
+            if (l.needsPriorState(node))
+                return true;
+        }
+        return false;
+    }
+
+    /* Everything any listener needs from an old or bulk deleted node, plus what every node read needs */
+    public String[] getPriorFields() {
+        if (priorFields == null) {
+            LinkedHashSet<String> fields = new LinkedHashSet<>();
+            fields.add(SubNode.PATH);
+            fields.add(SubNode.TYPE);
+            fields.add(SubNode.OWNER);
+            for (NodeChangeListener l : listeners) {
+                fields.addAll(List.of(l.getPriorFields()));
+            }
+            priorFields = fields.toArray(new String[0]);
+        }
+        return priorFields;
+    }
+
+    public void nodeSaved(SubNode oldNode, SubNode newNode) {
+        for (NodeChangeListener l : listeners) {
+            try {
+                l.nodeSaved(oldNode, newNode);
+                l.pathChanged(newNode.getPath());
+            } catch (Exception e) {
+                log.error("nodeSaved listener failed: " + l.getClass().getSimpleName(), e);
+            }
+        }
+        share(newNode.getPath());
+    }
+
+    public void nodeDeleted(SubNode node) {
+        for (NodeChangeListener l : listeners) {
+            try {
+                l.nodeDeleted(node);
+                l.pathChanged(node.getPath());
+            } catch (Exception e) {
+                log.error("nodeDeleted listener failed: " + l.getClass().getSimpleName(), e);
+            }
+        }
+        share(node.getPath());
+    }
+
+    /*
+     * After a targeted update to the node at 'path' that only touched fields no listener derives per node
+     * state from (like the OpenGraph property), so only the path level listeners need to hear about it.
+     */
+    public void pathChanged(String path) {
+        for (NodeChangeListener l : listeners) {
+            try {
+                l.pathChanged(path);
+            } catch (Exception e) {
+                log.error("pathChanged listener failed: " + l.getClass().getSimpleName(), e);
+            }
+        }
+        share(path);
+    }
+
+    /* New nodes written in bulk, all of them at or under 'path' */
+    public void nodesInserted(Collection<SubNode> nodes, String path) {
+        for (NodeChangeListener l : listeners) {
+            try {
+                for (SubNode node : nodes) {
+                    l.nodeSaved(null, node);
+                }
+                l.pathChanged(path);
+            } catch (Exception e) {
+                log.error("nodesInserted listener failed: " + l.getClass().getSimpleName(), e);
+            }
+        }
+        share(path);
+    }
+
+    /*
+     * Nodes deleted in bulk (read beforehand with getPriorFields). These usually include many siblings,
+     * so pathChanged is called once per distinct parent.
+     */
+    public void nodesDeleted(Collection<SubNode> nodes) {
+        HashSet<String> parentPaths = new HashSet<>();
+        for (SubNode node : nodes) {
+            parentPaths.add(node.getParentPath());
+        }
+        for (NodeChangeListener l : listeners) {
+            try {
+                for (SubNode node : nodes) {
+                    l.nodeDeleted(node);
+                }
+                for (String path : parentPaths) {
+                    l.pathChanged(path);
+                }
+            } catch (Exception e) {
+                log.error("nodesDeleted listener failed: " + l.getClass().getSimpleName(), e);
+            }
+        }
+        parentPaths.forEach(this::share);
+    }
+
+    public void subtreeDeleting(String path) {
+        for (NodeChangeListener l : listeners) {
+            try {
+                l.subtreeDeleting(path);
+            } catch (Exception e) {
+                log.error("subtreeDeleting listener failed: " + l.getClass().getSimpleName(), e);
+            }
+        }
+    }
+
+    public void subtreeChanged(String path) {
+        for (NodeChangeListener l : listeners) {
+            try {
+                l.subtreeChanged(path);
+                l.pathChanged(path);
+            } catch (Exception e) {
+                log.error("subtreeChanged listener failed: " + l.getClass().getSimpleName(), e);
+            }
+        }
+        share(path, true);
+    }
+
+    public void subtreeMoved(String oldPath, String newPath) {
+        for (NodeChangeListener l : listeners) {
+            try {
+                l.subtreeMoved(oldPath, newPath);
+            } catch (Exception e) {
+                log.error("subtreeMoved listener failed: " + l.getClass().getSimpleName(), e);
+            }
+        }
+        share(oldPath, true);
+        share(newPath, true);
+    }
+
+    public void allChanged() {
+        for (NodeChangeListener l : listeners) {
+            try {
+                l.allChanged();
+            } catch (Exception e) {
+                log.error("allChanged listener failed: " + l.getClass().getSimpleName(), e);
+            }
+        }
+        share(NodePath.ROOT_PATH, true);
+    }
+
+    /* Changes published by another replica (see share) */
+    public void remoteChanged(RedisNodeChanges changes) {
+        if (PushRouter.REPLICA_ID.equals(changes.getReplicaId()) || changes.getPaths() == null)
+            return;
+        for (NodeChangeListener l : listeners) {
+            try {
+                for (String path : changes.getPaths()) {
+                    if (changes.isSubtree()) {
+                        l.remoteSubtreeChanged(path);
+                    } else {
+                        l.remoteChanged(path);
+                    }
+                }
+            } catch (Exception e) {
+                log.error("remoteChanged listener failed: " + l.getClass().getSimpleName(), e);
+            }
+        }
+    }
+
+    private void share(String path) {
+        share(path, false);
+    }
+
+    private void share(String path, boolean subtree) {
+        if (path == null || svc_redis == null)
+            return;
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    enqueue(path, subtree);
+                }
+            });
+        } else {
+            enqueue(path, subtree);
+        }
+    }
+
+    private void enqueue(String path, boolean subtree) {
+        (subtree ? subtreeOutbox : outbox).add(path);
+        if (flushQueued.compareAndSet(false, true)) {
+            svc_async.run(() -> {
+                Util.sleep(LINGER_MILLIS);
+                flush();
+            });
+        }
+    }
+
+    private void flush() {
+        // cleared before draining, so anything added while we drain schedules another flush
+        flushQueued.set(false);
+        publish(subtreeOutbox, true);
+        publish(outbox, false);
+    }
+
+    private void publish(Set<String> box, boolean subtree) {
+        List<String> paths = new ArrayList<>(box);
+        box.removeAll(paths);
+        for (int i = 0; i < paths.size(); i += MAX_BATCH) {
+            List<String> batch = paths.subList(i, Math.min(paths.size(), i + MAX_BATCH));
+            try {
+                svc_redis.publish(new RedisNodeChanges(PushRouter.REPLICA_ID, new ArrayList<>(batch), subtree));
+            } catch (Exception e) {
+                log.error("Failed publishing node changes", e);
+            }
+        }
+    }
+}
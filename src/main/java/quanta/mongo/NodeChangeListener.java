@@ -0,0 +1,64 @@
+package quanta.mongo;
+
+import quanta.mongo.model.SubNode;
+
+/**
+ * Implemented by every bean that keeps something derived from nodes (caches, indexes, counters) and
+ * needs to hear about changes. All changes are reported thru NodeChangeEvents, which calls every
+ * listener, so code that writes nodes only has to report the change once.
+ *
+ * Listeners keyed by path only need pathChanged (and subtreeMoved). Listeners that look at node
+ * content use nodeSaved/nodeDeleted for single nodes and subtreeChanged for bulk changes where we don't
+ * have the nodes. Changes made by other replicas only come in as paths, thru remoteChanged.
+ */
+public interface NodeChangeListener {
+
+    /*
+     * Whether saving 'node' needs its state from before the save passed to nodeSaved. Only then does the
+     * save return the old document.
+     */
+    default boolean needsPriorState(SubNode node) {
+        return false;
+    }
+
+    /* Fields this listener needs in the old node given to nodeSaved, and in the nodes of nodesDeleted */
+    default String[] getPriorFields() {
+        return new String[0];
+    }
+
+    /*
+     * After a node is saved (or bulk inserted). 'oldNode' is what was there before, projected to the
+     * prior fields, and is null for a new node or when no listener asked for it.
+     */
+    default void nodeSaved(SubNode oldNode, SubNode newNode) {}
+
+    /* After a node is deleted. For bulk deletes 'node' only has the prior fields. */
+    default void nodeDeleted(SubNode node) {}
+
+    /* After the node at 'path', or something under it, changed. 'path' may no longer exist. */
+    default void pathChanged(String path) {}
+
+    /* Before the subgraph under 'path' is deleted in bulk, for listeners that need to read it first */
+    default void subtreeDeleting(String path) {}
+
+    /* After a bulk change to the node at 'path' and/or its subgraph, with no per node events */
+    default void subtreeChanged(String path) {}
+
+    /* After the subgraph at 'oldPath' was moved to 'newPath' by a bulk path update */
+    default void subtreeMoved(String oldPath, String newPath) {}
+
+    /* After a change we can't locate at all (like a delete by an arbitrary query) */
+    default void allChanged() {}
+
+    /*
+     * After the node at 'path' and/or its subgraph was changed by another replica. Only
+     * the path is shared, so this is for listeners that keep state in this process and can just drop
+     * whatever overlaps it.
+     */
+    default void remoteChanged(String path) {}
+
+    /* Same as remoteChanged, but for a bulk change to the subgraph at 'path' (or everything, at the root) */
+    default void remoteSubtreeChanged(String path) {
+        remoteChanged(path);
+    }
+}
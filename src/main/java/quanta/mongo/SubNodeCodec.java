@@ -0,0 +1,301 @@
+package quanta.mongo;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import org.bson.BsonReader;
+import org.bson.BsonReaderMark;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.Document;
+import org.bson.codecs.BsonTypeClassMap;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import quanta.model.client.Attachment;
+import quanta.model.client.NodeLink;
+import quanta.model.client.NodeProp;
+import quanta.model.client.SearchDefinition;
+import quanta.mongo.model.AccessControl;
+import quanta.mongo.model.AccountNode;
+import quanta.mongo.model.SubNode;
+
+/*
+ * Decodes nodes straight off the BSON stream, without first building the org.bson.Document that
+ * SubNodeConverter gets from Spring. It reads exactly what SubNode(Document) reads, so the two always
+ * produce the same node (see SystemService.codecBenchmark which checks that).
+ *
+ * Writes still go thru Spring's MappingMongoConverter (MongoTemplate.save), and encode() here uses that
+ * same converter so anything this codec writes is identical to what Spring would write.
+ */
+public class SubNodeCodec implements Codec<SubNode> {
+    private static Logger log = LoggerFactory.getLogger(SubNodeCodec.class);
+
+    private static final BsonTypeClassMap typeClassMap = new BsonTypeClassMap();
+
+    private final CodecRegistry registry;
+    private final MongoConverter converter;
+
+    public SubNodeCodec(CodecRegistry registry, MongoConverter converter) {
+        this.registry = registry;
+        this.converter = converter;
+    }
+
+    @Override
+    public Class<SubNode> getEncoderClass() {
+        return SubNode.class;
+    }
+
+    @Override
+    public SubNode decode(BsonReader reader, DecoderContext ctx) {
+        reader.readStartDocument();
+        SubNode node = null;
+        // same choice of class as SubNodeConverter
+        switch (peekType(reader)) {
+            case "sn:repoRoot":
+            case "sn:account":
+                node = new AccountNode(reader, this);
+                break;
+            default:
+                node = new SubNode(reader, this);
+                break;
+        }
+        reader.readEndDocument();
+        MongoUtil.validate(node);
+        return node;
+    }
+
+    /*
+     * Looks ahead for the type field and then rewinds, so the node can be constructed as the right class
+     * and read in one pass. Spring writes the type near the start of the document so this only skips a
+     * few small fields.
+     */
+    private String peekType(BsonReader reader) {
+        BsonReaderMark mark = reader.getMark();
+        String type = null;
+        try {
+            while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                if (SubNode.TYPE.equals(reader.readName())) {
+                    type = readString(reader);
+                    break;
+                }
+                reader.skipValue();
+            }
+        } finally {
+            mark.reset();
+        }
+        // projected reads may not include the type
+        return type != null ? type : "";
+    }
+
+    @Override
+    public void encode(BsonWriter writer, SubNode node, EncoderContext ctx) {
+        Document doc = new Document();
+        converter.write(node, doc);
+        ctx.encodeWithChildContext(registry.get(Document.class), writer, doc);
+    }
+
+    public String readString(BsonReader reader) {
+        if (reader.getCurrentBsonType() == BsonType.STRING)
+            return reader.readString();
+        return (String) readValue(reader);
+    }
+
+    public Integer readInteger(BsonReader reader) {
+        return switch (reader.getCurrentBsonType()) {
+            case INT32 -> reader.readInt32();
+            case INT64 -> (int) reader.readInt64();
+            case DOUBLE -> (int) reader.readDouble();
+            default -> (Integer) readValue(reader);
+        };
+    }
+
+    public Long readLong(BsonReader reader) {
+        return switch (reader.getCurrentBsonType()) {
+            case INT64 -> reader.readInt64();
+            case INT32 -> (long) reader.readInt32();
+            case DOUBLE -> (long) reader.readDouble();
+            default -> (Long) readValue(reader);
+        };
+    }
+
+    public Boolean readBoolean(BsonReader reader) {
+        if (reader.getCurrentBsonType() == BsonType.BOOLEAN)
+            return reader.readBoolean();
+        return (Boolean) readValue(reader);
+    }
+
+    public ObjectId readObjectId(BsonReader reader) {
+        if (reader.getCurrentBsonType() == BsonType.OBJECT_ID)
+            return reader.readObjectId();
+        return (ObjectId) readValue(reader);
+    }
+
+    public Date readDate(BsonReader reader) {
+        if (reader.getCurrentBsonType() == BsonType.DATE_TIME)
+            return new Date(reader.readDateTime());
+        return (Date) readValue(reader);
+    }
+
+    /*
+     * Reads any value into the same Java type the driver's DocumentCodec would have put in the Document.
+     * The common scalar types are read directly and anything else goes thru the registry.
+     */
+    public Object readValue(BsonReader reader) {
+        switch (reader.getCurrentBsonType()) {
+            case STRING:
+                return reader.readString();
+            case INT32:
+                return reader.readInt32();
+            case INT64:
+                return reader.readInt64();
+            case DOUBLE:
+                return reader.readDouble();
+            case BOOLEAN:
+                return reader.readBoolean();
+            case DATE_TIME:
+                return new Date(reader.readDateTime());
+            case OBJECT_ID:
+                return reader.readObjectId();
+            case NULL:
+                reader.readNull();
+                return null;
+            case ARRAY:
+                List<Object> list = new ArrayList<>();
+                reader.readStartArray();
+                while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                    list.add(readValue(reader));
+                }
+                reader.readEndArray();
+                return list;
+            default:
+                return registry.get(typeClassMap.get(reader.getCurrentBsonType())).decode(reader,
+                        DecoderContext.builder().build());
+        }
+    }
+
+    /* Same result as Convert.parseNodeProps */
+    public HashMap<String, Object> readProps(BsonReader reader) {
+        HashMap<String, Object> props = new HashMap<>();
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            String key = reader.readName();
+            switch (reader.getCurrentBsonType()) {
+                case ARRAY:
+                    boolean searchDefs = NodeProp.USER_SEACH_DEFINITIONS.s().equals(key);
+                    List<Object> list = new ArrayList<>();
+                    reader.readStartArray();
+                    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                        Object item = readValue(reader);
+                        if (searchDefs && item instanceof Document dItem) {
+                            item = new SearchDefinition(dItem);
+                        }
+                        list.add(item);
+                    }
+                    reader.readEndArray();
+                    props.put(key, list);
+                    break;
+                case DOCUMENT:
+                    log.error("Unable to convert to type: " + readValue(reader));
+                    break;
+                default:
+                    props.put(key, readValue(reader));
+                    break;
+            }
+        }
+        reader.readEndDocument();
+        return props;
+    }
+
+    public HashMap<String, Attachment> readAttachments(BsonReader reader, SubNode node) {
+        HashMap<String, Attachment> attachments = new HashMap<>();
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            String key = reader.readName();
+            Attachment att = new Attachment();
+            reader.readStartDocument();
+            while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                switch (reader.readName()) {
+                    case "width" -> att.setWidth(readInteger(reader));
+                    case "height" -> att.setHeight(readInteger(reader));
+                    case "position" -> att.setPosition(readString(reader));
+                    case "mime" -> att.setMime(readString(reader));
+                    case "fileName" -> att.setFileName(readString(reader));
+                    case "size" -> att.setSize(readLong(reader));
+                    case "bin" -> att.setBin(readString(reader));
+                    case "binData" -> att.setBinData(readString(reader));
+                    case "url" -> att.setUrl(readString(reader));
+                    case "cssSize" -> att.setCssSize(readString(reader));
+                    case "ordinal" -> att.setOrdinal(readInteger(reader));
+                    case "aiPrompt" -> att.setAiPrompt(readString(reader));
+                    default -> reader.skipValue();
+                }
+            }
+            reader.readEndDocument();
+            att.setKey(key);
+            att.setOwnerNode(node);
+            attachments.put(key, att);
+        }
+        reader.readEndDocument();
+        return attachments;
+    }
+
+    public HashMap<String, AccessControl> readAcl(BsonReader reader) {
+        HashMap<String, AccessControl> ac = new HashMap<>();
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            String key = reader.readName();
+            AccessControl entry = new AccessControl();
+            reader.readStartDocument();
+            while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                switch (reader.readName()) {
+                    case AccessControl.FIELD_PRVS -> entry.setPrvs(readString(reader));
+                    case AccessControl.FIELD_KEY -> entry.setKey(readString(reader));
+                    default -> reader.skipValue();
+                }
+            }
+            reader.readEndDocument();
+            ac.put(key, entry);
+        }
+        reader.readEndDocument();
+        return ac;
+    }
+
+    public List<NodeLink> readLinks(BsonReader reader) {
+        List<NodeLink> links = new ArrayList<>();
+        reader.readStartArray();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            NodeLink link = new NodeLink();
+            reader.readStartDocument();
+            while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                switch (reader.readName()) {
+                    case NodeLink.ID -> link.setNodeId(readString(reader));
+                    case NodeLink.NAME -> link.setName(readString(reader));
+                    case NodeLink.EMBED -> link.setEmbed(readBoolean(reader));
+                    default -> reader.skipValue();
+                }
+            }
+            reader.readEndDocument();
+            links.add(link);
+        }
+        reader.readEndArray();
+        return links;
+    }
+
+    public HashSet<String> readStringSet(BsonReader reader) {
+        HashSet<String> set = new HashSet<>();
+        reader.readStartArray();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            set.add(readString(reader));
+        }
+        reader.readEndArray();
+        return set;
+    }
+}
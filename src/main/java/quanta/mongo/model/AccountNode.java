@@ -1,11 +1,29 @@
 package quanta.mongo.model;
 
+import java.util.Locale;
+import org.bson.BsonReader;
 import org.springframework.data.annotation.PersistenceCreator;
 import org.springframework.data.annotation.TypeAlias;
+import org.springframework.data.mongodb.core.mapping.Field;
+import quanta.model.client.NodeProp;
+import quanta.mongo.SubNodeCodec;
 
 @TypeAlias("account")
 public class AccountNode extends SubNode {
 
+    /*
+     * User name and email, trimmed and lower cased, derived from the props on every write (see
+     * updateDerivedFields) so account lookups are exact index hits. These are only ever queried, never
+     * read back onto the object.
+     */
+    public static final String USER_KEY = "unm";
+    @Field(USER_KEY)
+    private String userKey;
+
+    public static final String EMAIL_KEY = "eml";
+    @Field(EMAIL_KEY)
+    private String emailKey;
+
     @PersistenceCreator
     public AccountNode() {
         super();
@@ -14,4 +32,22 @@ public class AccountNode extends SubNode {
     public AccountNode(org.bson.Document doc) {
         super(doc);
     }
+
+    public AccountNode(BsonReader reader, SubNodeCodec codec) {
+        super(reader, codec);
+    }
+
+    @Override
+    public void updateDerivedFields() {
+        super.updateDerivedFields();
+        userKey = normalize(getStr(NodeProp.USER));
+        emailKey = normalize(getStr(NodeProp.EMAIL));
+    }
+
+    public static String normalize(String val) {
+        if (val == null)
+            return null;
+        val = val.trim();
+        return val.isEmpty() ? null : val.toLowerCase(Locale.ROOT);
+    }
 }
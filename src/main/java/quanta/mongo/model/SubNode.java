@@ -8,6 +8,8 @@ import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import org.apache.commons.lang3.StringUtils;
+import org.bson.BsonReader;
+import org.bson.BsonType;
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,6 +33,7 @@ import quanta.model.client.Constant;
 import quanta.model.client.NodeLink;
 import quanta.model.client.NodeProp;
 import quanta.model.client.NodeType;
+import quanta.mongo.SubNodeCodec;
 import quanta.util.Convert;
 import quanta.util.ExUtil;
 import quanta.util.TL;
@@ -130,6 +133,31 @@ public class SubNode {
     @Field(AC)
     private HashMap<String, AccessControl> ac;
 
+    /*
+     * Merkle subtree hash, node count of the subtree, and invalidation counter. These are never mapped
+     * onto the object. MerkleService reads and writes them directly, and since a save replaces the
+     * whole document, saving a node also clears its own hash.
+     */
+    public static final String MERKLE_HASH = "mh";
+    public static final String MERKLE_COUNT = "mhn";
+    public static final String MERKLE_VER = "mhv";
+
+    /*
+     * Number of path segments and content length in code points, derived from PATH and CONTENT on every
+     * write (see updateDerivedFields) so searches can be ordered by them straight from an index.
+     */
+    public static final String DEPTH = "dep";
+    @Field(DEPTH)
+    private Integer depth;
+
+    public static final String CONTENT_LEN = "cln";
+    @Field(CONTENT_LEN)
+    private Integer contentLength;
+
+    // what auth checks and tree navigation need, for lightweight projected reads
+    public static final String[] LIGHT_FIELDS = {SubNode.PATH, SubNode.TYPE, SubNode.NAME, SubNode.OWNER, SubNode.XFR,
+            SubNode.AC, SubNode.HAS_CHILDREN, SubNode.ORDINAL};
+
     public static final String[] ALL_FIELDS = { //
             SubNode.PATH, //
             SubNode.TYPE, //
@@ -147,7 +175,9 @@ public class SubNode {
             SubNode.PROPS, //
             SubNode.ATTACHMENTS, //
             SubNode.LINKS, //
-            SubNode.LIKES,};
+            SubNode.LIKES, //
+            SubNode.DEPTH, //
+            SubNode.CONTENT_LEN,};
 
     @PersistenceCreator
     public SubNode() {
@@ -178,6 +208,8 @@ public class SubNode {
         transferFrom = doc.getObjectId(SubNode.XFR);
         createTime = doc.getDate(SubNode.CREATE_TIME);
         modifyTime = doc.getDate(SubNode.MODIFY_TIME);
+        depth = doc.getInteger(SubNode.DEPTH);
+        contentLength = doc.getInteger(SubNode.CONTENT_LEN);
 
         if (doc.containsKey(SubNode.PROPS)) {
             org.bson.Document d = doc.get(SubNode.PROPS, org.bson.Document.class);
@@ -230,6 +262,44 @@ public class SubNode {
         prevMcid = doc.getString(SubNode.PREV_MCID);
     }
 
+    /*
+     * Same as the Document constructor above but reading the fields straight from the BSON stream (see
+     * SubNodeCodec). The reader is positioned after the start of the document and we stop at its end.
+     */
+    public SubNode(BsonReader reader, SubNodeCodec codec) {
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            String field = reader.readName();
+            if (reader.getCurrentBsonType() == BsonType.NULL) {
+                reader.readNull();
+                continue;
+            }
+            switch (field) {
+                case ID -> id = codec.readObjectId(reader);
+                case ORDINAL -> ordinal = codec.readLong(reader);
+                case HAS_CHILDREN -> hch = codec.readBoolean(reader);
+                case PATH -> path = codec.readString(reader);
+                case TYPE -> type = codec.readString(reader);
+                case CONTENT -> content = codec.readString(reader);
+                case TAGS -> tags = codec.readString(reader);
+                case NAME -> name = codec.readString(reader);
+                case OWNER -> owner = codec.readObjectId(reader);
+                case XFR -> transferFrom = codec.readObjectId(reader);
+                case CREATE_TIME -> createTime = codec.readDate(reader);
+                case MODIFY_TIME -> modifyTime = codec.readDate(reader);
+                case DEPTH -> depth = codec.readInteger(reader);
+                case CONTENT_LEN -> contentLength = codec.readInteger(reader);
+                case PROPS -> props = codec.readProps(reader);
+                case ATTACHMENTS -> attachments = codec.readAttachments(reader, this);
+                case AC -> ac = codec.readAcl(reader);
+                case LINKS -> links = codec.readLinks(reader);
+                case LIKES -> likes = codec.readStringSet(reader);
+                case MCID -> mcid = codec.readString(reader);
+                case PREV_MCID -> prevMcid = codec.readString(reader);
+                default -> reader.skipValue();
+            }
+        }
+    }
+
     // we don't annotate this because we have a custom getter.
     // @JsonProperty(FIELD_ID)
     public ObjectId getId() {
@@ -279,6 +349,22 @@ public class SubNode {
         return XString.parseAfterLast(getPath(), "/");
     }
 
+    /* Called before the whole document is written, so the derived fields always match */
+    public void updateDerivedFields() {
+        depth = getPathDepth(path);
+        contentLength = getContentLength(content);
+    }
+
+    // same as the "size(split(pth, '/'))" aggregation expression this replaces, so "/r/a" is 3
+    public static int getPathDepth(String path) {
+        return path == null ? 0 : StringUtils.countMatches(path, '/') + 1;
+    }
+
+    // same as the "strLenCP(cont)" aggregation expression this replaces
+    public static int getContentLength(String content) {
+        return content == null ? 0 : content.codePointCount(0, content.length());
+    }
+
     /*
      * Auth: As long as the current user owns this node they can set it's path to any path, but only
      * when the save is done is the final validation done
@@ -303,6 +389,26 @@ public class SubNode {
     @JsonIgnore
     public boolean verifyParentPath;
 
+    /*
+     * Set on nodes read with a projection (see MongoTemplateWrapper), which are missing fields and so
+     * must never be saved, since a save replaces the whole document.
+     */
+    @Transient
+    @JsonIgnore
+    private boolean partial;
+
+    @Transient
+    @JsonIgnore
+    public boolean isPartial() {
+        return partial;
+    }
+
+    @Transient
+    @JsonIgnore
+    public void setPartial(boolean partial) {
+        this.partial = partial;
+    }
+
     @Transient
     @JsonIgnore
     public void directSetPath(String path) {
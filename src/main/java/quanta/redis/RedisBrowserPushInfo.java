@@ -8,6 +8,10 @@ public class RedisBrowserPushInfo extends RedisObj {
     private String token;
     private String type; // payload type
     private String payload;
+    // SSE event name, when 'payload' is already the final JSON to send to the browser
+    private String event;
+    // lets the receiving connection replace an older queued push about the same thing (see PushConnection)
+    private String key;
 
     public RedisBrowserPushInfo() {}
 
@@ -40,4 +44,20 @@ public class RedisBrowserPushInfo extends RedisObj {
     public void setType(String type) {
         this.type = type;
     }
+
+    public String getEvent() {
+        return event;
+    }
+
+    public void setEvent(String event) {
+        this.event = event;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public void setKey(String key) {
+        this.key = key;
+    }
 }
@@ -7,12 +7,14 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.listener.ChannelTopic;
 import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.data.redis.listener.adapter.MessageListenerAdapter;
 import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
 import quanta.config.SessionContext;
+import quanta.service.PushRouter;
 
 @Configuration
 public class RedisConfiguration {
@@ -22,16 +24,36 @@ public class RedisConfiguration {
     @Autowired
     private RedisSubscriber subscriber;
 
+    // Sessions, stored in a compact binary form (see SessionSerializer)
     @Bean
     public RedisTemplate<String, SessionContext> redisTemplate(RedisConnectionFactory connectionFactory) {
         RedisTemplate<String, SessionContext> template = new RedisTemplate<>();
         template.setEnableTransactionSupport(true);
         template.setConnectionFactory(connectionFactory);
         template.setKeySerializer(new StringRedisSerializer());
+        template.setValueSerializer(new SessionSerializer());
+        return template;
+    }
+
+    // Pub/sub messages are still JSON, since that's what RedisSubscriber parses
+    @Bean
+    public RedisTemplate<String, Object> redisPubTemplate(RedisConnectionFactory connectionFactory) {
+        RedisTemplate<String, Object> template = new RedisTemplate<>();
+        template.setConnectionFactory(connectionFactory);
+        template.setKeySerializer(new StringRedisSerializer());
         template.setValueSerializer(new GenericJackson2JsonRedisSerializer());
         return template;
     }
 
+    /*
+     * Plain string key/value template for small cache entries (like OpenGraph results) that need a TTL
+     * and don't belong in the SessionContext serializer.
+     */
+    @Bean
+    public StringRedisTemplate stringRedisTemplate(RedisConnectionFactory connectionFactory) {
+        return new StringRedisTemplate(connectionFactory);
+    }
+
     @Bean
     MessageListenerAdapter messageListener() {
         return new MessageListenerAdapter(subscriber);
@@ -42,6 +64,8 @@ public class RedisConfiguration {
         RedisMessageListenerContainer container = new RedisMessageListenerContainer();
         container.setConnectionFactory(connectionFactory);
         container.addMessageListener(messageListener(), topic());
+        // pushes addressed to browsers connected to this replica
+        container.addMessageListener(messageListener(), new ChannelTopic(PushRouter.channel(PushRouter.REPLICA_ID)));
         return container;
     }
 
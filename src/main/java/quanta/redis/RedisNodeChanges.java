@@ -0,0 +1,48 @@
+package quanta.redis;
+
+import java.util.List;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+/*
+ * Paths of nodes changed on one replica, published on the shared topic so the other replicas can drop
+ * what they derived from them (see NodeChangeEvents)
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class RedisNodeChanges extends RedisObj {
+    private String replicaId;
+    private List<String> paths;
+    // true if these are subgraphs changed in bulk, rather than single nodes
+    private boolean subtree;
+
+    public RedisNodeChanges() {}
+
+    public RedisNodeChanges(String replicaId, List<String> paths, boolean subtree) {
+        this.replicaId = replicaId;
+        this.paths = paths;
+        this.subtree = subtree;
+    }
+
+    public String getReplicaId() {
+        return replicaId;
+    }
+
+    public void setReplicaId(String replicaId) {
+        this.replicaId = replicaId;
+    }
+
+    public List<String> getPaths() {
+        return paths;
+    }
+
+    public void setPaths(List<String> paths) {
+        this.paths = paths;
+    }
+
+    public boolean isSubtree() {
+        return subtree;
+    }
+
+    public void setSubtree(boolean subtree) {
+        this.subtree = subtree;
+    }
+}
@@ -6,6 +6,7 @@ import com.fasterxml.jackson.annotation.JsonTypeInfo;
 
 @JsonIgnoreProperties(ignoreUnknown = true)
 @JsonTypeInfo(use = JsonTypeInfo.Id.CLASS, include = JsonTypeInfo.As.PROPERTY)
-@JsonSubTypes({@JsonSubTypes.Type(value = RedisBrowserPushInfo.class)})
+@JsonSubTypes({@JsonSubTypes.Type(value = RedisBrowserPushInfo.class), @JsonSubTypes.Type(value = RedisPushBatch.class),
+        @JsonSubTypes.Type(value = RedisNodeChanges.class)})
 public abstract class RedisObj {
 }
@@ -0,0 +1,27 @@
+package quanta.redis;
+
+import java.util.List;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+/*
+ * A batch of pushes all going to browsers connected to the same replica, published on that replica's
+ * own channel (see PushRouter)
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class RedisPushBatch extends RedisObj {
+    private List<RedisBrowserPushInfo> items;
+
+    public RedisPushBatch() {}
+
+    public RedisPushBatch(List<RedisBrowserPushInfo> items) {
+        this.items = items;
+    }
+
+    public List<RedisBrowserPushInfo> getItems() {
+        return items;
+    }
+
+    public void setItems(List<RedisBrowserPushInfo> items) {
+        this.items = items;
+    }
+}
@@ -7,6 +7,7 @@ import org.springframework.data.redis.connection.Message;
 import org.springframework.data.redis.connection.MessageListener;
 import org.springframework.stereotype.Component;
 import quanta.exception.base.RuntimeEx;
+import quanta.mongo.NodeChangeEvents;
 import quanta.rest.response.FeedPushInfo;
 import quanta.service.PushService;
 import quanta.util.Util;
@@ -19,13 +20,21 @@ public class RedisSubscriber implements MessageListener {
     @Autowired
     private PushService push;
 
+    @Autowired
+    private NodeChangeEvents nodeEvents;
+
     public void onMessage(Message message, byte[] pattern) {
         try {
-            RedisBrowserPushInfo obj =
-                    (RedisBrowserPushInfo) Util.simpleMapper.readValue(message.toString(), RedisBrowserPushInfo.class);
+            RedisObj obj = Util.simpleMapper.readValue(message.toString(), RedisObj.class);
 
-            if (obj.getType().equals(FeedPushInfo.class.getName())) {
-                push.maybePushToBrowser(obj);
+            if (obj instanceof RedisPushBatch batch) {
+                for (RedisBrowserPushInfo item : batch.getItems()) {
+                    push.deliver(item);
+                }
+            } else if (obj instanceof RedisNodeChanges changes) {
+                nodeEvents.remoteChanged(changes);
+            } else if (obj instanceof RedisBrowserPushInfo info && info.getType().equals(FeedPushInfo.class.getName())) {
+                push.maybePushToBrowser(info);
             } else {
                 log.debug("RedisSubscriber (Unhandled): obj.class=" + obj.getClass().getName() + ": "
                         + XString.prettyPrint(obj));
@@ -0,0 +1,164 @@
+package quanta.redis;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+import quanta.config.SessionContext;
+import quanta.model.UserPreferences;
+
+/*
+ * Stores SessionContext in Redis as a small binary record instead of JSON, since every request (and
+ * every push fan-out, which reads all sessions) decodes one.
+ *
+ * Layout is MAGIC, VERSION, FLAGS and then the fields in a fixed order (see write), deflated when the
+ * fields come to more than COMPRESS_THRESHOLD bytes. Anything not starting with MAGIC is a session
+ * saved as JSON before this existed, and is still read with the JSON serializer (JSON always starts
+ * with '{'). Adding a field means bumping VERSION and having read() only expect it for the new version,
+ * so sessions written by the previous version stay readable.
+ *
+ * The node expansion states aren't in here at all, see RedisService.getExpandStates
+ */
+public class SessionSerializer implements RedisSerializer<SessionContext> {
+    private static final byte MAGIC = (byte) 0xC5;
+    private static final byte VERSION = 1;
+    private static final byte FLAG_DEFLATED = 1;
+    private static final int HEADER_SIZE = 3;
+    private static final int COMPRESS_THRESHOLD = 512;
+
+    private final GenericJackson2JsonRedisSerializer json = new GenericJackson2JsonRedisSerializer();
+
+    @Override
+    public byte[] serialize(SessionContext sc) throws SerializationException {
+        if (sc == null)
+            return new byte[0];
+        try {
+            ByteArrayOutputStream fields = new ByteArrayOutputStream(256);
+            write(new DataOutputStream(fields), sc);
+
+            boolean deflate = fields.size() > COMPRESS_THRESHOLD;
+            ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER_SIZE + fields.size());
+            out.write(new byte[] {MAGIC, VERSION, deflate ? FLAG_DEFLATED : 0});
+            if (deflate) {
+                Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+                try (DeflaterOutputStream dos = new DeflaterOutputStream(out, deflater)) {
+                    fields.writeTo(dos);
+                } finally {
+                    deflater.end();
+                }
+            } else {
+                fields.writeTo(out);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new SerializationException("Failed writing session", e);
+        }
+    }
+
+    @Override
+    public SessionContext deserialize(byte[] bytes) throws SerializationException {
+        if (bytes == null || bytes.length == 0)
+            return null;
+
+        // saved before sessions were binary
+        if (bytes[0] != MAGIC)
+            return json.deserialize(bytes, SessionContext.class);
+
+        if (bytes.length < HEADER_SIZE)
+            throw new SerializationException("Truncated session");
+        int version = bytes[1];
+        if (version < 1 || version > VERSION)
+            throw new SerializationException("Unknown session version " + version);
+        try {
+            InputStream in = new ByteArrayInputStream(bytes, HEADER_SIZE, bytes.length - HEADER_SIZE);
+            if ((bytes[2] & FLAG_DEFLATED) != 0) {
+                in = new InflaterInputStream(in);
+            }
+            try (DataInputStream dis = new DataInputStream(in)) {
+                return read(dis, version);
+            }
+        } catch (IOException e) {
+            throw new SerializationException("Failed reading session", e);
+        }
+    }
+
+    private void write(DataOutputStream out, SessionContext sc) throws IOException {
+        writeStr(out, sc.getUserToken());
+        writeStr(out, sc.getUserName());
+        writeStr(out, sc.getUserNodeId());
+        writeStr(out, sc.getCommand());
+        writeStr(out, sc.getTimelinePath());
+        writeStr(out, sc.getTimezone());
+        writeStr(out, sc.getTimeZoneAbbrev());
+        out.writeLong(sc.getLastLoginTime());
+        out.writeLong(sc.getLastActiveTime());
+        out.writeBoolean(sc.isLive());
+        out.writeBoolean(sc.isViewingFeed());
+        out.writeBoolean(sc.isFriendsTagsDirty());
+
+        UserPreferences prefs = sc.getUserPreferences();
+        out.writeBoolean(prefs != null);
+        if (prefs != null) {
+            out.writeBoolean(prefs.isEditMode());
+            writeStr(out, prefs.getAiMode());
+            out.writeBoolean(prefs.isShowMetaData());
+            out.writeBoolean(prefs.isShowProps());
+            out.writeBoolean(prefs.isAutoRefreshFeed());
+            out.writeBoolean(prefs.isShowReplies());
+            out.writeBoolean(prefs.isRssHeadlinesOnly());
+            out.writeLong(prefs.getMainPanelCols());
+            out.writeLong(prefs.getMaxUploadFileSize());
+        }
+    }
+
+    // 'version' is what the session was written with, for when there's more than one
+    private SessionContext read(DataInputStream in, int version) throws IOException {
+        SessionContext sc = new SessionContext();
+        sc.setUserToken(readStr(in));
+        sc.setUserName(readStr(in));
+        sc.setUserNodeId(readStr(in));
+        sc.setCommand(readStr(in));
+        sc.setTimelinePath(readStr(in));
+        sc.setTimezone(readStr(in));
+        sc.setTimeZoneAbbrev(readStr(in));
+        sc.setLastLoginTime(in.readLong());
+        sc.setLastActiveTime(in.readLong());
+        sc.setLive(in.readBoolean());
+        sc.setViewingFeed(in.readBoolean());
+        sc.setFriendsTagsDirty(in.readBoolean());
+
+        if (in.readBoolean()) {
+            UserPreferences prefs = new UserPreferences();
+            prefs.setEditMode(in.readBoolean());
+            prefs.setAiMode(readStr(in));
+            prefs.setShowMetaData(in.readBoolean());
+            prefs.setShowProps(in.readBoolean());
+            prefs.setAutoRefreshFeed(in.readBoolean());
+            prefs.setShowReplies(in.readBoolean());
+            prefs.setRssHeadlinesOnly(in.readBoolean());
+            prefs.setMainPanelCols(in.readLong());
+            prefs.setMaxUploadFileSize(in.readLong());
+            sc.setUserPreferences(prefs);
+        }
+        return sc;
+    }
+
+    private static void writeStr(DataOutputStream out, String val) throws IOException {
+        out.writeBoolean(val != null);
+        if (val != null) {
+            out.writeUTF(val);
+        }
+    }
+
+    private static String readStr(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -8,6 +8,9 @@ public class GraphRequest extends RequestBase {
 	/* can be node id or path. server interprets correctly no matter which */
 	private String nodeId;
 	private SearchDefinition searchDefinition;
+	// zero means use the server defaults
+	private int maxNodes;
+	private int maxDepth;
 
 	public String getNodeId() {
 		return this.nodeId;
@@ -25,5 +28,21 @@ public class GraphRequest extends RequestBase {
 		this.searchDefinition = searchDefinition;
 	}
 
+	public int getMaxNodes() {
+		return this.maxNodes;
+	}
+
+	public void setMaxNodes(final int maxNodes) {
+		this.maxNodes = maxNodes;
+	}
+
+	public int getMaxDepth() {
+		return this.maxDepth;
+	}
+
+	public void setMaxDepth(final int maxDepth) {
+		this.maxDepth = maxDepth;
+	}
+
 	public GraphRequest() {}
 }
@@ -6,6 +6,8 @@ import quanta.rest.request.base.RequestBase;
 public class SubGraphHashRequest extends RequestBase {
 	private boolean recursive;
 	private String nodeId;
+	// optional, if given we compare the two subgraphs instead
+	private String compareToNodeId;
 	
 	public boolean isRecursive() {
 		return this.recursive;
@@ -15,6 +17,14 @@ public class SubGraphHashRequest extends RequestBase {
 		return this.nodeId;
 	}
 	
+	public String getCompareToNodeId() {
+		return this.compareToNodeId;
+	}
+	
+	public void setCompareToNodeId(final String compareToNodeId) {
+		this.compareToNodeId = compareToNodeId;
+	}
+	
 	public void setRecursive(final boolean recursive) {
 		this.recursive = recursive;
 	}
@@ -0,0 +1,44 @@
+package quanta.rest.response;
+
+/**
+ * Text of an AI answer as it's being generated. 'text' is only what's new since the last one of
+ * these, and 'done' is set on the last one (the answer node itself arrives the normal way).
+ */
+public class AIStreamPushInfo extends ServerPushInfo {
+    private String streamId;
+    private String text;
+    private boolean done;
+
+    public AIStreamPushInfo(String streamId, String text, boolean done) {
+        super("aiStream");
+        this.streamId = streamId;
+        this.text = text;
+        this.done = done;
+    }
+
+    public AIStreamPushInfo() {}
+
+    public String getStreamId() {
+        return streamId;
+    }
+
+    public void setStreamId(String streamId) {
+        this.streamId = streamId;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public void setText(String text) {
+        this.text = text;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    public void setDone(boolean done) {
+        this.done = done;
+    }
+}
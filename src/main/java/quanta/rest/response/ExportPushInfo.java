@@ -0,0 +1,54 @@
+package quanta.rest.response;
+
+/**
+ * Progress (and final result) of an export running in the background. When 'done' is true either
+ * 'fileName' is ready for download or 'error' says what went wrong.
+ */
+public class ExportPushInfo extends ServerPushInfo {
+    private String fileName;
+    private int nodeCount;
+    private boolean done;
+    private String error;
+
+    public ExportPushInfo(String fileName, int nodeCount, boolean done, String error) {
+        super("exportProgress");
+        this.fileName = fileName;
+        this.nodeCount = nodeCount;
+        this.done = done;
+        this.error = error;
+    }
+
+    public ExportPushInfo() {}
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public void setNodeCount(int nodeCount) {
+        this.nodeCount = nodeCount;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    public void setDone(boolean done) {
+        this.done = done;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+}
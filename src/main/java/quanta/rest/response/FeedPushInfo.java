@@ -5,6 +5,8 @@ import quanta.model.NodeInfo;
 
 public class FeedPushInfo extends ServerPushInfo {
 	private NodeInfo nodeInfo;
+	// the recipient's key for an encrypted node, which isn't in nodeInfo because that is shared by all recipients
+	private String cipherKey;
 
 	public FeedPushInfo(NodeInfo nodeInfo) {
 		super("feedPush");
@@ -19,5 +21,13 @@ public class FeedPushInfo extends ServerPushInfo {
 		this.nodeInfo = nodeInfo;
 	}
 
+	public String getCipherKey() {
+		return this.cipherKey;
+	}
+
+	public void setCipherKey(final String cipherKey) {
+		this.cipherKey = cipherKey;
+	}
+
 	public FeedPushInfo() {}
 }
@@ -6,6 +6,8 @@ import quanta.rest.response.base.ResponseBase;
 
 public class GraphResponse extends ResponseBase {
 	private GraphNode rootNode;
+	// true if the graph was cut short, so some collapsed node counts are only lower bounds
+	private boolean truncated;
 	
 	public GraphNode getRootNode() {
 		return this.rootNode;
@@ -15,6 +17,14 @@ public class GraphResponse extends ResponseBase {
 		this.rootNode = rootNode;
 	}
 
+	public boolean isTruncated() {
+		return this.truncated;
+	}
+
+	public void setTruncated(final boolean truncated) {
+		this.truncated = truncated;
+	}
+
 	public GraphResponse() {
 	}
 }
@@ -0,0 +1,36 @@
+package quanta.rest.response;
+
+import java.util.List;
+import quanta.model.client.OpenGraph;
+
+/**
+ * Sent to the browser once OpenGraph data for a node's links has been loaded in the background.
+ */
+public class OpenGraphPushInfo extends ServerPushInfo {
+    private String nodeId;
+    private List<OpenGraph> openGraphs;
+
+    public OpenGraphPushInfo(String nodeId, List<OpenGraph> openGraphs) {
+        super("openGraph");
+        this.nodeId = nodeId;
+        this.openGraphs = openGraphs;
+    }
+
+    public OpenGraphPushInfo() {}
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    public List<OpenGraph> getOpenGraphs() {
+        return openGraphs;
+    }
+
+    public void setOpenGraphs(List<OpenGraph> openGraphs) {
+        this.openGraphs = openGraphs;
+    }
+}
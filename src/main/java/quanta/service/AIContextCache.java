@@ -0,0 +1,499 @@
+package quanta.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+import org.apache.commons.collections4.map.LRUMap;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import quanta.config.ServiceBase;
+import quanta.model.AIMessage;
+import quanta.model.client.NodeType;
+import quanta.mongo.NodeChangeListener;
+import quanta.mongo.model.SubNode;
+import quanta.util.DateUtil;
+import quanta.util.TL;
+
+/*
+ * Caches what goes into the context of AI questions, so asking another question in a conversation
+ * doesn't walk (and re-read) the whole chain of questions and answers above it again.
+ *
+ * There are three parts: the parent of each node (which is all the ancestor walks for configs, book
+ * context, etc. need), the chat history above a node, and the flattened text of subgraphs used by
+ * askSubGraph. Chat histories are extended rather than rebuilt: a new question only walks up to the
+ * question above it, and then adds on the cached history from there.
+ *
+ * Everything is per user (since what they can read differs) and keyed on the node's id and modify
+ * time. Nodes are kept as snapshots (see NodeSnapshot) so no request ever gets a node another one can
+ * change. Entries are dropped when a node they were built from is saved, moved or deleted here or on
+ * another replica (see nodeChanged and remoteChanged), and a chat history is checked against the
+ * modify times of its nodes before it's used, since that's what a question is answered from. The max
+ * age is a backstop for updates that don't go thru the save hooks.
+ */
+@Component
+public class AIContextCache extends ServiceBase implements NodeChangeListener {
+    private static Logger log = LoggerFactory.getLogger(AIContextCache.class);
+
+    private static final int MAX_PARENTS = 2000;
+    private static final int MAX_HISTORIES = 500;
+    private static final int MAX_SUBGRAPHS = 100;
+    private static final long MAX_AGE_MILLIS = 10 * DateUtil.MINUTE_MILLIS;
+
+    /*
+     * The parts of a node the AI context is made from (content, type, tags, and the simple valued props
+     * like the AI config), copied at the time it was read. Every toNode call makes a new partial node, so
+     * callers can't change what's cached or what another request sees, and can't save it.
+     */
+    private static class NodeSnapshot {
+        private final Document doc;
+        final String path;
+        final long modifyTime;
+
+        NodeSnapshot(SubNode node) {
+            path = node.getPath();
+            modifyTime = node.getModifyTime() != null ? node.getModifyTime().getTime() : 0;
+            doc = new Document();
+            doc.put(SubNode.ID, node.getId());
+            doc.put(SubNode.PATH, path);
+            doc.put(SubNode.TYPE, node.getType());
+            doc.put(SubNode.OWNER, node.getOwner());
+            doc.put(SubNode.NAME, node.getName());
+            doc.put(SubNode.CONTENT, node.getContent());
+            doc.put(SubNode.TAGS, node.getTags());
+
+            HashMap<String, Object> props = node.getProps();
+            if (props != null) {
+                Document propsDoc = new Document();
+                synchronized (node) {
+                    props.forEach((k, v) -> {
+                        if (v instanceof String || v instanceof Number || v instanceof Boolean) {
+                            propsDoc.put(k, v);
+                        }
+                    });
+                }
+                doc.put(SubNode.PROPS, propsDoc);
+            }
+        }
+
+        SubNode toNode() {
+            Document d = new Document(doc);
+            if (modifyTime != 0) {
+                d.put(SubNode.MODIFY_TIME, new Date(modifyTime));
+            }
+            SubNode node = new SubNode(d);
+            node.setPartial(true);
+            return node;
+        }
+
+        static NodeSnapshot of(SubNode node) {
+            return node != null ? new NodeSnapshot(node) : null;
+        }
+
+        static SubNode toNode(NodeSnapshot snap) {
+            return snap != null ? snap.toNode() : null;
+        }
+    }
+
+    /*
+     * Everything cached here is for one node (at 'path'), and is invalid once that node or any of its
+     * ancestors changes.
+     */
+    private static class Entry {
+        final String path;
+        final long time = System.currentTimeMillis();
+
+        Entry(String path) {
+            this.path = path;
+        }
+
+        boolean isFresh() {
+            return System.currentTimeMillis() - time < MAX_AGE_MILLIS;
+        }
+    }
+
+    private static class ParentEntry extends Entry {
+        final NodeSnapshot parent;
+
+        ParentEntry(String path, NodeSnapshot parent) {
+            super(path);
+            this.parent = parent;
+        }
+    }
+
+    /*
+     * The chat history above a node: the messages in top-down order, the non-answer nodes that were
+     * visited (which the AI config is read from, in the order it should be checked), and the node the
+     * walk stopped at, which is where looking further up for the config continues from. 'versions' has
+     * the modify time of every node the history was built from, by path.
+     */
+    public static class ChatHistory extends Entry {
+        private final List<AIMessage> messages;
+        private final List<NodeSnapshot> configNodes;
+        private final NodeSnapshot end;
+        private final Map<String, Long> versions;
+
+        ChatHistory(String path, List<AIMessage> messages, List<NodeSnapshot> configNodes, NodeSnapshot end,
+                Map<String, Long> versions) {
+            super(path);
+            this.messages = Collections.unmodifiableList(messages);
+            this.configNodes = Collections.unmodifiableList(configNodes);
+            this.end = end;
+            this.versions = Collections.unmodifiableMap(versions);
+        }
+
+        // copies, since AIMessage can be changed
+        public List<AIMessage> getMessages() {
+            List<AIMessage> ret = new ArrayList<>(messages.size());
+            for (AIMessage msg : messages) {
+                ret.add(new AIMessage(msg.getType(), msg.getContent()));
+            }
+            return ret;
+        }
+
+        public List<SubNode> getConfigNodes() {
+            List<SubNode> ret = new ArrayList<>(configNodes.size());
+            for (NodeSnapshot snap : configNodes) {
+                ret.add(snap.toNode());
+            }
+            return ret;
+        }
+
+        public SubNode getEnd() {
+            return NodeSnapshot.toNode(end);
+        }
+    }
+
+    private static final ChatHistory EMPTY_HISTORY = new ChatHistory("", List.of(), List.of(), null, Map.of());
+
+    private static class SubGraphEntry extends Entry {
+        final String context;
+
+        SubGraphEntry(String path, String context) {
+            super(path);
+            this.context = context;
+        }
+    }
+
+    /*
+     * LRU map of entries that also indexes them by path, so a change only looks at the entries for the
+     * changed node and the nodes above or below it, instead of all of them. Guarded by synchronizing on
+     * the map.
+     */
+    private static class EntryMap<E extends Entry> extends LRUMap<String, E> {
+        private final TreeMap<String, Set<String>> keysByPath = new TreeMap<>();
+
+        EntryMap(int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        public E put(String key, E entry) {
+            E old = super.put(key, entry);
+            if (old != null) {
+                unindex(key, old);
+            }
+            keysByPath.computeIfAbsent(entry.path, k -> new HashSet<>()).add(key);
+            return old;
+        }
+
+        @Override
+        public E remove(Object key) {
+            E old = super.remove(key);
+            if (old != null) {
+                unindex((String) key, old);
+            }
+            return old;
+        }
+
+        @Override
+        protected boolean removeLRU(LinkEntry<String, E> entry) {
+            unindex(entry.getKey(), entry.getValue());
+            return true;
+        }
+
+        @Override
+        public void clear() {
+            super.clear();
+            keysByPath.clear();
+        }
+
+        private void unindex(String key, E entry) {
+            Set<String> keys = keysByPath.get(entry.path);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    keysByPath.remove(entry.path);
+                }
+            }
+        }
+
+        /*
+         * Removes the entries for 'path' and everything under it, and if 'ancestors' is set for every node
+         * above it too. Returns the number removed.
+         */
+        int removeDependents(String path, boolean ancestors) {
+            if (isEmpty())
+                return 0;
+            List<String> keys = new ArrayList<>();
+            addKeys(keysByPath.get(path), keys);
+            // '0' is the char after '/', so this is every path under 'path'
+            for (Set<String> under : keysByPath.subMap(path + "/", path + "0").values()) {
+                addKeys(under, keys);
+            }
+            if (ancestors) {
+                for (int idx = path.lastIndexOf('/'); idx > 0; idx = path.lastIndexOf('/', idx - 1)) {
+                    addKeys(keysByPath.get(path.substring(0, idx)), keys);
+                }
+            }
+            for (String key : keys) {
+                remove(key);
+            }
+            return keys.size();
+        }
+
+        private static void addKeys(Set<String> from, List<String> to) {
+            if (from != null) {
+                to.addAll(from);
+            }
+        }
+    }
+
+    private final EntryMap<ParentEntry> parents = new EntryMap<>(MAX_PARENTS);
+    private final EntryMap<ChatHistory> histories = new EntryMap<>(MAX_HISTORIES);
+    private final EntryMap<SubGraphEntry> subGraphs = new EntryMap<>(MAX_SUBGRAPHS);
+
+    private String key(SubNode node) {
+        String user = TL.getSC() != null ? TL.getSC().getUserName() : null;
+        long version = node.getModifyTime() != null ? node.getModifyTime().getTime() : 0;
+        return user + ":" + node.getIdStr() + ":" + version;
+    }
+
+    /* Same as MongoRead.getParent, but cached. The node returned is a partial copy. */
+    public SubNode getParent(SubNode node) {
+        if (node == null)
+            return null;
+        String key = key(node);
+        synchronized (parents) {
+            ParentEntry entry = parents.get(key);
+            if (entry != null && entry.isFresh()) {
+                return NodeSnapshot.toNode(entry.parent);
+            }
+        }
+        NodeSnapshot parent = NodeSnapshot.of(svc_mongoRead.getParent(node));
+        synchronized (parents) {
+            parents.put(key, new ParentEntry(node.getPath(), parent));
+        }
+        return NodeSnapshot.toNode(parent);
+    }
+
+    /*
+     * Gets the chat history for a question asked under 'start' (the question's parent). Going up from
+     * 'start' questions and answers alternate, and the conversation began where there are two non-answer
+     * nodes in a row.
+     */
+    public ChatHistory getChatHistory(SubNode start) {
+        if (start == null)
+            return EMPTY_HISTORY;
+        ChatHistory history = getCachedHistory(start);
+        if (history != null)
+            return history;
+
+        LinkedList<AIMessage> messages = new LinkedList<>();
+        List<NodeSnapshot> configNodes = new ArrayList<>();
+        Map<String, Long> versions = new HashMap<>();
+        NodeSnapshot end = null;
+        int nonAnswerCounter = isAnswer(start) ? 0 : 1;
+        SubNode node = start;
+
+        while (node != null) {
+            NodeSnapshot snap = new NodeSnapshot(node);
+            versions.put(snap.path, snap.modifyTime);
+
+            if (isAnswer(node)) {
+                nonAnswerCounter = 0;
+                messages.addFirst(new AIMessage("ai", node.getContent()));
+                node = getParent(node);
+                continue;
+            }
+
+            nonAnswerCounter++;
+            configNodes.add(snap);
+
+            // if we hit two non-answer nodes in a row that means we're at the top level of where the first
+            // question was asked, and therefore the beginning of the chat.
+            if (nonAnswerCounter > 1) {
+                end = snap;
+                break;
+            }
+            messages.addFirst(new AIMessage("human", node.getContent()));
+
+            // Right after a question the rest of the walk is the same as a fresh one starting from the
+            // next node up, so if that one is cached (from when this question was asked) we're done.
+            node = getParent(node);
+            ChatHistory rest = node != null ? getCachedHistory(node) : null;
+            if (rest != null) {
+                messages.addAll(0, rest.messages);
+                configNodes.addAll(rest.configNodes);
+                versions.putAll(rest.versions);
+                end = rest.end;
+                break;
+            }
+        }
+
+        history = new ChatHistory(start.getPath(), messages, configNodes, end, versions);
+        synchronized (histories) {
+            histories.put(key(start), history);
+        }
+        return history;
+    }
+
+    /*
+     * Gets the cached history for 'start' if every node it was built from is still there, at the same
+     * path and modify time. That's one small query, instead of reading the whole chain.
+     */
+    private ChatHistory getCachedHistory(SubNode start) {
+        String key = key(start);
+        ChatHistory history;
+        synchronized (histories) {
+            history = histories.get(key);
+        }
+        if (history == null)
+            return null;
+        if (history.isFresh() && isCurrent(history)) {
+            return history;
+        }
+        synchronized (histories) {
+            if (histories.get(key) == history) {
+                histories.remove(key);
+            }
+        }
+        return null;
+    }
+
+    private boolean isCurrent(ChatHistory history) {
+        if (history.versions.isEmpty())
+            return true;
+        Query q = new Query(Criteria.where(SubNode.PATH).in(history.versions.keySet()));
+        List<SubNode> nodes = svc_ops.findProjected(q, SubNode.PATH, SubNode.MODIFY_TIME);
+        if (nodes.size() != history.versions.size())
+            return false;
+        for (SubNode node : nodes) {
+            long time = node.getModifyTime() != null ? node.getModifyTime().getTime() : 0;
+            Long cached = history.versions.get(node.getPath());
+            if (cached == null || cached.longValue() != time)
+                return false;
+        }
+        return true;
+    }
+
+    private boolean isAnswer(SubNode node) {
+        return NodeType.AI_ANSWER.s().equals(node.getType());
+    }
+
+    /*
+     * Gets the flattened context text for the subgraph under 'root' (limited to 'nodeIds' if given),
+     * using 'builder' to make it if it's not cached.
+     */
+    public String getSubGraphContext(SubNode root, List<String> nodeIds, Supplier<String> builder) {
+        String key = key(root);
+        if (nodeIds != null && nodeIds.size() > 0) {
+            key += ":" + String.join(",", new TreeSet<>(nodeIds));
+        }
+        synchronized (subGraphs) {
+            SubGraphEntry entry = subGraphs.get(key);
+            if (entry != null && entry.isFresh()) {
+                return entry.context;
+            }
+        }
+        String context = builder.get();
+        synchronized (subGraphs) {
+            subGraphs.put(key, new SubGraphEntry(root.getPath(), context));
+        }
+        return context;
+    }
+
+    @Override
+    public void pathChanged(String path) {
+        nodeChanged(path);
+    }
+
+    @Override
+    public void subtreeMoved(String oldPath, String newPath) {
+        nodeChanged(oldPath);
+        nodeChanged(newPath);
+    }
+
+    @Override
+    public void allChanged() {
+        clear(parents);
+        clear(histories);
+        clear(subGraphs);
+    }
+
+    // changes made on other replicas, which are already committed
+    @Override
+    public void remoteChanged(String path) {
+        invalidate(path);
+    }
+
+    private void clear(EntryMap<?> map) {
+        synchronized (map) {
+            map.clear();
+        }
+    }
+
+    /*
+     * Called for every node created, saved, deleted or moved (with the path of the node, or of the parent
+     * whose children changed). Inside a transaction we drop entries again once it's done, in case one
+     * was built from the old data in the meantime.
+     */
+    public void nodeChanged(String path) {
+        if (path == null)
+            return;
+
+        invalidate(path);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    invalidate(path);
+                }
+            });
+        }
+    }
+
+    /*
+     * Parents and histories depend on their node and its ancestors, so those under 'path' go. A subgraph
+     * also depends on everything below its root, so those above it go too.
+     */
+    private void invalidate(String path) {
+        if (path == null)
+            return;
+        int count = removeDependents(parents, path, false) + removeDependents(histories, path, false)
+                + removeDependents(subGraphs, path, true);
+        if (count > 0 && log.isTraceEnabled()) {
+            log.trace("AI context entries dropped for " + path + ": " + count);
+        }
+    }
+
+    private int removeDependents(EntryMap<?> map, String path, boolean ancestors) {
+        synchronized (map) {
+            return map.removeDependents(path, ancestors);
+        }
+    }
+}
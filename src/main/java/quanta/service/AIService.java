@@ -1,31 +1,41 @@
 package quanta.service;
 
 import java.math.BigDecimal;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
 import org.springframework.stereotype.Component;
 import org.springframework.web.reactive.function.client.WebClient;
+import com.fasterxml.jackson.databind.JsonNode;
 import quanta.config.ServiceBase;
+import quanta.config.SessionContext;
 import quanta.exception.MessageException;
 import quanta.exception.base.RuntimeEx;
 import quanta.model.AIMessage;
 import quanta.model.AIRequest;
 import quanta.model.AIResponse;
 import quanta.model.client.AIModel;
-import quanta.model.client.NodeType;
 import quanta.model.client.SystemConfig;
 import quanta.mongo.model.AccountNode;
 import quanta.mongo.model.SubNode;
+import quanta.rest.response.AIStreamPushInfo;
 import quanta.rest.response.UpdateAccountInfo;
+import quanta.service.AIContextCache.ChatHistory;
+import quanta.util.BackendLimiter;
+import quanta.util.Const;
 import quanta.util.TL;
 import quanta.util.Util;
 import quanta.util.XString;
 import quanta.util.val.Val;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
 
 /*
  * Originally the Anthropic Service, but we will now begin to subsume all other services into this
@@ -36,6 +46,32 @@ import quanta.util.val.Val;
 public class AIService extends ServiceBase {
     private static Logger log = LoggerFactory.getLogger(AIService.class);
 
+    // how often (at most) partial answers are pushed to the browser
+    private static final long STREAM_PUSH_MILLIS = 100;
+
+    /*
+     * One client for all calls to QuantaAI, so connections are pooled and reused rather than each question
+     * setting up its own client and connection. The pool is the same size as the number of AI calls
+     * BackendLimiter allows at once.
+     */
+    private WebClient qaiClient;
+
+    @Override
+    public void postConstruct() {
+        ConnectionProvider provider = ConnectionProvider.builder("quanta-ai") //
+                .maxConnections(BackendLimiter.AI.getMaxConcurrent()) //
+                .maxIdleTime(Duration.ofSeconds(60)) //
+                .build();
+        HttpClient httpClient = HttpClient.create(provider).responseTimeout(Duration.ofMinutes(10));
+
+        qaiClient = WebClient.builder() //
+                .baseUrl("http://" + svc_prop.getQuantaAIHost() + ":" + svc_prop.getQuantaAIPort()) //
+                .clientConnector(new ReactorClientHttpConnector(httpClient)) //
+                // only needs to hold the largest single line of the response (the final one has the full answer)
+                .codecs(configurer -> configurer.defaultCodecs().maxInMemorySize(16 * Const.ONE_MB)) //
+                .build();
+    }
+
     public AIResponse getAnswer(boolean agentic, SubNode node, String question, SystemConfig system, AIModel svc) {
         if (svc == null) {
             throw new RuntimeEx("No AI service selected.");
@@ -74,11 +110,6 @@ public class AIService extends ServiceBase {
         system.setModel(svc.getModel());
         svc_aiUtil.ensureDefaults(system);
         String apiKey = getApiKey(svc.getService());
-        String QAI_URL = "http://" + svc_prop.getQuantaAIHost() + ":" + svc_prop.getQuantaAIPort() + "/api/query";
-        WebClient webClient = Util.webClientBuilder().baseUrl(QAI_URL) //
-                .defaultHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE) //
-                .defaultHeader("X-api-key", apiKey) //
-                .build();
 
         if (system.getFileExtensions() == null) {
             system.setFileExtensions("txt");
@@ -112,14 +143,12 @@ public class AIService extends ServiceBase {
         request.setAgentFileExtensions(system.getFileExtensions());
 
         log.debug("AI Req: USER: " + TL.getSC().getUserName() + " AI Service: " + svc.getService() + ", Model="
-                + svc.getModel() + ": " + XString.prettyPrint(request));
-        AIResponse aiRes = null;
-        String res = Util.httpCall(webClient, request);
-        try {
-            aiRes = (AIResponse) Util.mapper.readValue(res, AIResponse.class);
-        } catch (Exception e) {
-            throw new RuntimeEx("Error parsing response: " + e.getMessage() + " response\n\n" + res);
+                + svc.getModel());
+        if (log.isTraceEnabled()) {
+            log.trace("AI Req: " + XString.prettyPrint(request));
         }
+        String streamId = node != null ? node.getIdStr() : null;
+        AIResponse aiRes = BackendLimiter.AI.get(() -> streamQuery(request, apiKey, streamId));
 
         if (!StringUtils.isEmpty(aiRes.getError())) {
             throw new RuntimeEx(aiRes.getError());
@@ -128,7 +157,71 @@ public class AIService extends ServiceBase {
         String userId = TL.getSC().getUserNodeId();
         BigDecimal newBalance = svc_user.adjustCredit(userId, new BigDecimal(-aiRes.getCost()));
         svc_push.pushInfo(TL.getSC(), new UpdateAccountInfo(userId, newBalance));
-        log.debug("AI Res: " + XString.prettyPrint(aiRes));
+        log.debug("AI Res: cost=" + aiRes.getCost() + " length="
+                + (aiRes.getContent() != null ? aiRes.getContent().length() : 0));
+        return aiRes;
+    }
+
+    /*
+     * Sends the query to the QuantaAI stream endpoint, and forwards the answer to the user's browser as
+     * it arrives (if 'streamId' is given) while we wait for the final line, which is the same
+     * AIResponse the non-streaming endpoint returns.
+     *
+     * The reading happens on this (virtual) thread rather than a Netty one, since pushing to the
+     * browser may need to go thru Redis.
+     */
+    private AIResponse streamQuery(AIRequest request, String apiKey, String streamId) {
+        SessionContext sc = TL.getSC();
+        Flux<String> lines = qaiClient.post() //
+                .uri("/api/query/stream") //
+                .header("X-api-key", apiKey) //
+                .contentType(MediaType.APPLICATION_JSON) //
+                .bodyValue(XString.compactPrint(request)) //
+                .retrieve() //
+                .onStatus(status -> status.isError(), clientResponse -> {
+                    return clientResponse.bodyToMono(String.class).flatMap(errorBody -> {
+                        log.debug("Error response from server: " + errorBody);
+                        return Mono.error(new RuntimeEx("Error response from server: " + errorBody));
+                    });
+                }) //
+                .bodyToFlux(String.class);
+
+        StringBuilder pending = new StringBuilder();
+        long lastPush = System.currentTimeMillis();
+        AIResponse aiRes = null;
+        try {
+            for (String line : lines.toIterable()) {
+                if (StringUtils.isBlank(line))
+                    continue;
+                JsonNode json = Util.mapper.readTree(line);
+                JsonNode delta = json.get("delta");
+                if (delta != null) {
+                    if (streamId == null)
+                        continue;
+                    pending.append(delta.asText());
+                    // group up small chunks rather than sending the browser an event for every few words
+                    if (System.currentTimeMillis() - lastPush >= STREAM_PUSH_MILLIS) {
+                        svc_push.pushInfo(sc, new AIStreamPushInfo(streamId, pending.toString(), false));
+                        pending.setLength(0);
+                        lastPush = System.currentTimeMillis();
+                    }
+                } else {
+                    aiRes = Util.mapper.treeToValue(json, AIResponse.class);
+                }
+            }
+        } catch (RuntimeEx e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeEx("Error reading AI response: " + e.getMessage(), e);
+        } finally {
+            if (streamId != null) {
+                svc_push.pushInfo(sc, new AIStreamPushInfo(streamId, pending.toString(), true));
+            }
+        }
+
+        if (aiRes == null) {
+            throw new RuntimeEx("AI response ended without an answer.");
+        }
         return aiRes;
     }
 
@@ -154,32 +247,15 @@ public class AIService extends ServiceBase {
         if (system.getAgentNodeId() == null) {
             svc_aiUtil.parseAIConfig(node, system);
         }
-        SubNode parent = svc_mongoRead.getParent(node);
-        int nonAnswerCounter = NodeType.AI_ANSWER.s().equals(parent.getType()) ? 0 : 1;
-
-        // this while loop should encounter alternating questions and answer nodes as we go back up
-        // the tree building history.
-        while (parent != null) {
-            if (NodeType.AI_ANSWER.s().equals(parent.getType())) {
-                nonAnswerCounter = 0;
-                messages.add(0, new AIMessage("ai", parent.getContent()));
-            } else {
-                nonAnswerCounter++;
-                if (system.getAgentNodeId() == null) {
-                    svc_aiUtil.parseAIConfig(parent, system);
-                }
+        ChatHistory history = svc_aiContext.getChatHistory(svc_aiContext.getParent(node));
+        messages.addAll(history.getMessages());
 
-                // if we hit two non-answer nodes in a row that means we're at the top level of
-                // where teh first question was asked, and therefore the beginning of the chat.
-                if (nonAnswerCounter > 1) {
-                    break;
-                }
-                messages.add(0, new AIMessage("human", parent.getContent()));
-            }
-            // walk up the tree. get parent of parent.
-            parent = svc_mongoRead.getParent(parent);
+        for (SubNode configNode : history.getConfigNodes()) {
+            if (system.getAgentNodeId() != null)
+                break;
+            svc_aiUtil.parseAIConfig(configNode, system);
         }
         // if we still don't have a system prompt check all ancestor nodes
-        svc_aiUtil.getAIConfigFromAncestorNodes(parent, system);
+        svc_aiUtil.getAIConfigFromAncestorNodes(history.getEnd(), system);
     }
 }
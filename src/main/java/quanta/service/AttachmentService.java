@@ -9,9 +9,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URI;
-import java.net.URL;
 import java.net.URLConnection;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -705,7 +704,6 @@ public class AttachmentService extends ServiceBase {
 
         LimitedInputStreamEx limitedIs = null;
         try {
-            URL url = new URI(sourceUrl).toURL();
             int timeout = 20;
             // if this is an image extension, handle it in a special way, mainly to extract the width, height
             // from it
@@ -722,8 +720,10 @@ public class AttachmentService extends ServiceBase {
              * handle it as one.
              */
             else {
-                if (!detectAndSaveImage(nodeId, attKey, sourceUrl, url, storeLocally)) {
-                    limitedIs = StreamUtil.getLimitedStream(sourceUrl, timeout, maxFileSize);
+                // read it once, for both the image detection and saving it as is
+                byte[] data = svc_http.getBytes(sourceUrl, maxFileSize, Duration.ofSeconds(timeout));
+                if (!detectAndSaveImage(nodeId, attKey, sourceUrl, data, storeLocally)) {
+                    limitedIs = new LimitedInputStreamEx(new ByteArrayInputStream(data), maxFileSize);
 
                     // insert 0L for size now, because we don't know it yet
                     attachBinaryFromStream(false, attKey, node, nodeId, sourceUrl, 0L, limitedIs, "", -1, -1, false,
@@ -747,13 +747,16 @@ public class AttachmentService extends ServiceBase {
      * 
      * returns true if it was detected AND saved as an image
      */
-    private boolean detectAndSaveImage(String nodeId, String attKey, String sourceUrl, URL url, boolean storeLocally) {
+    private boolean detectAndSaveImage(String nodeId, String attKey, String sourceUrl, byte[] data,
+            boolean storeLocally) {
         ImageInputStream is = null;
         LimitedInputStreamEx is2 = null;
         ImageReader reader = null;
         int maxFileSize = 20 * 1024 * 1024;
+        if (data.length > maxFileSize)
+            return false;
         try {
-            is = ImageIO.createImageInputStream(url.openStream());
+            is = ImageIO.createImageInputStream(new ByteArrayInputStream(data));
             Iterator<ImageReader> readers = ImageIO.getImageReaders(is);
             if (readers.hasNext()) {
                 reader = readers.next();
@@ -786,13 +789,11 @@ public class AttachmentService extends ServiceBase {
         // don't create attachment here, there shuold already be one, but we pass create=true anyway
         Attachment att = node.getAttachment(attName, !importMode, false);
         svc_auth.ownerAuth(node);
-        DBObject metaData = new BasicDBObject();
-        metaData.put("nodeId", node.getId());
         if (userNode == null) {
             userNode = svc_user.getSessionUserAccount();
         }
 
-        String id = grid.store(stream, fileName, mimeType, metaData).toString();
+        String id = storeBinary(node.getId(), stream, fileName, mimeType);
         long streamCount = stream.getCount();
         // update the user quota which enforces their total storage limit
         if (!TL.hasAdminPrivileges()) {
@@ -807,6 +808,17 @@ public class AttachmentService extends ServiceBase {
         att.setMime(mimeType);
     }
 
+    /*
+     * Writes the stream to the grid and returns the new grid id. Touches nothing but the grid, so it's
+     * safe to call from worker threads. Callers are responsible for auth, quota, and setting the id
+     * onto the attachment.
+     */
+    public String storeBinary(ObjectId nodeId, InputStream stream, String fileName, String mimeType) {
+        DBObject metaData = new BasicDBObject();
+        metaData.put("nodeId", nodeId);
+        return grid.store(stream, fileName, mimeType, metaData).toString();
+    }
+
     /*
      * Assumes owner 'ms' has already been auth-checked for owning this node. If 'gridOnly' is true that
      * means we should only delete from the GRID DB, and not touch any of the properties on the node
@@ -3,7 +3,6 @@ package quanta.service;
 import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyFactory;
-import java.security.MessageDigest;
 import java.security.PublicKey;
 import java.security.spec.RSAPublicKeySpec;
 import java.util.Base64;
@@ -12,12 +11,10 @@ import java.util.Random;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.data.domain.Sort;
 import org.springframework.stereotype.Component;
 import quanta.config.NodePath;
 import quanta.config.ServiceBase;
 import quanta.model.Jwk;
-import quanta.model.client.Attachment;
 import quanta.model.client.NodeProp;
 import quanta.mongo.model.AccountNode;
 import quanta.mongo.model.SubNode;
@@ -32,6 +29,7 @@ import quanta.util.Util;
 @Component
 public class CryptoService extends ServiceBase {
     private static Logger log = LoggerFactory.getLogger(CryptoService.class);
+    private static final int MAX_HASH_DIFFS = 100;
 
     public CryptoService() {}
 
@@ -57,65 +55,37 @@ public class CryptoService extends ServiceBase {
     }
 
     /*
-     * This method will eventually use push+recieve to send node data down to the browser, but I'm
-     * putting here for now the ability to use it (temporarily) as a SHA-256 hash generator that
-     * generates the hash of all subnodes, and will just stick thas hash into a property on the top
-     * parent node (req.nodeId)
+     * Gets the Merkle hash of the subgraph under req.nodeId (see MerkleService) and stores it in a
+     * property on that node, reporting whether it changed since the last time. If compareToNodeId is
+     * given we instead list where the two subgraphs differ.
+     *
+     * Without 'recursive' only the node and its direct children are hashed (or compared), and since that
+     * isn't the subgraph hash it's only reported, not stored.
      */
     public SubGraphHashResponse cm_subGraphHash(SubGraphHashRequest req) {
         SubGraphHashResponse res = new SubGraphHashResponse();
-        String nodeId = req.getNodeId();
-        SubNode node = svc_mongoRead.getNode(nodeId);
+        SubNode node = svc_mongoRead.getNode(req.getNodeId());
         svc_auth.ownerAuth(node);
-        String prevHash = null;
-        String newHash = null;
-        try {
-            long totalBytes = 0;
-            long nodeCount = 0;
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            if (req.isRecursive()) {
-                StringBuilder sb = new StringBuilder();
 
-                for (SubNode n : svc_mongoRead.getSubGraphAP(node, Sort.by(Sort.Direction.ASC, SubNode.PATH), 0, false,
-                        null)) {
-                    nodeCount++;
-                    sb.append(n.getPath());
-                    sb.append("-");
-                    sb.append(n.getOwner().toHexString());
-                    sb.append(StringUtils.isNotEmpty(n.getContent()) + "-" + n.getContent());
-                    List<Attachment> atts = n.getOrderedAttachments();
-                    if (atts != null && atts.size() > 0) {
-                        for (Attachment att : atts) {
-                            if (att.getBin() != null) {
-                                sb.append(StringUtils.isNotEmpty(n.getContent()) + "-bin" + att.getBin());
-                            }
-                            if (att.getBinData() != null) {
-                                sb.append(StringUtils.isNotEmpty(n.getContent()) + "-bindat" + att.getBinData());
-                            }
-                        }
-                    }
-                    if (sb.length() > 4096) {
-                        byte[] b = sb.toString().getBytes(StandardCharsets.UTF_8);
-                        totalBytes += b.length;
-                        digest.update(b);
-                        sb.setLength(0);
-                    }
-                }
-                if (sb.length() > 0) {
-                    byte[] b = sb.toString().getBytes(StandardCharsets.UTF_8);
-                    totalBytes += b.length;
-                    digest.update(b);
-                }
-            }
-            byte[] encodedHash = digest.digest();
-            newHash = String.valueOf(nodeCount) + " nodes, " + String.valueOf(totalBytes) + " bytes: "
-                    + Util.bytesToHex(encodedHash);
-            prevHash = node.getStr(NodeProp.SUBGRAPH_HASH);
-            node.set(NodeProp.SUBGRAPH_HASH, newHash);
-        } catch (Exception e) {
-            res.error("Failed generating hash");
+        if (!StringUtils.isEmpty(req.getCompareToNodeId())) {
+            SubNode otherNode = svc_mongoRead.getNode(req.getCompareToNodeId());
+            svc_auth.ownerAuth(otherNode);
+            List<String> diffs = svc_merkle.findDifferences(node, otherNode, MAX_HASH_DIFFS, req.isRecursive());
+            res.setMessage(diffs.isEmpty() ? "Subgraphs MATCH." : "Differences:\n" + String.join("\n", diffs));
             return res;
         }
+
+        if (!req.isRecursive()) {
+            MerkleService.MerkleHash hash = svc_merkle.getShallowHash(node);
+            res.setMessage("Node and " + (hash.nodeCount - 1) + " children: " + hash.hash);
+            return res;
+        }
+
+        MerkleService.MerkleHash hash = svc_merkle.getHash(node);
+        String newHash = hash.nodeCount + " nodes: " + hash.hash;
+        String prevHash = node.getStr(NodeProp.SUBGRAPH_HASH);
+        node.set(NodeProp.SUBGRAPH_HASH, newHash);
+
         boolean hashChanged = prevHash != null && !prevHash.equals(newHash);
         res.setMessage(
                 (hashChanged ? "Hash CHANGED: " : (prevHash == null ? "New Hash: " : "Hash MATCHED!: ")) + newHash);
@@ -1,15 +1,32 @@
 package quanta.service;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.mail.SimpleMailMessage;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.mail.javamail.JavaMailSenderImpl;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import jakarta.annotation.PreDestroy;
 import jakarta.mail.BodyPart;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Transport;
+import jakarta.mail.internet.AddressException;
+import jakarta.mail.internet.InternetAddress;
 import jakarta.mail.internet.MimeMessage;
 import jakarta.mail.internet.MimeMultipart;
 import quanta.AppServer;
@@ -20,107 +37,277 @@ import quanta.model.client.NodeType;
 import quanta.mongo.MongoRepository;
 import quanta.mongo.model.AccountNode;
 import quanta.mongo.model.SubNode;
+import quanta.util.DateUtil;
 import quanta.util.LimitedInputStream;
 import quanta.util.TL;
 
 /**
  * Deamon for sending emails.
+ *
+ * Mail is queued as nodes under the system outbox and delivered by a small pool of workers. A worker
+ * leases messages one at a time with an atomic findAndModify (so any number of replicas can drain
+ * the same outbox without sending anything twice), delivers a batch of them over one SMTP connection
+ * taken from a pool of open connections, and only deletes a message once the SMTP server accepted
+ * it. Failed sends are retried with exponential backoff, and after MAX_ATTEMPTS the message is left
+ * in the outbox marked as dead (EMAIL_STATUS) with the last error (EMAIL_ERROR) for an admin to look
+ * at.
+ *
+ * Everything SMTP comes from the mail.* config (including mail.port) so this can be pointed at an
+ * in-process SMTP stub. Authentication is only used when mail.user is set.
  */
 @Component
 public class EmailService extends ServiceBase {
     private static Logger log = LoggerFactory.getLogger(EmailService.class);
     private int runCounter = 0;
-    private static final int INTERVAL_SECONDS = 10;
-    private int runCountdown = INTERVAL_SECONDS;
-    private static boolean run = false;
 
     public static final Object lock = new Object();
     private JavaMailSenderImpl mailSender = null;
 
-    private String mailBatchSize = "10";
+    private static final int MAIL_THREADS = 4;
+    // max messages a worker leases and sends per SMTP connection before looking for more
+    @Value("${mailBatchSize:10}")
+    private int mailBatchSize;
+    public static final int MAX_ATTEMPTS = 8;
+    // how long a leased message is reserved for the worker (on any replica) that leased it
+    private static final long LEASE_MILLIS = 5 * DateUtil.MINUTE_MILLIS;
+    public static final long MIN_BACKOFF_MILLIS = DateUtil.MINUTE_MILLIS;
+    private static final long MAX_BACKOFF_MILLIS = 2 * DateUtil.HOUR_MILLIS;
+    public static final String STATUS_DEAD = "dead";
+
     private static SubNode outboxNode = null;
     private static final Object outboxLock = new Object();
     private int emailService_runCount = 0;
 
+    // workers are capped at MAIL_THREADS by activeWorkers (that's what limits SMTP connections), so
+    // they can just be virtual threads
+    private final ExecutorService mailPool = Executors.newVirtualThreadPerTaskExecutor();
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+    // open SMTP connections not currently in use by a worker
+    private final LinkedBlockingQueue<Transport> idleTransports = new LinkedBlockingQueue<>();
+
     /*
-     * Note: Spring does correctly protect against concurrent runs. It will always wait until the last
-     * run of this function is completed before running again. So we can always assume only one
-     * thread/deamon of this class is running at at time, because this is a singleton class.
-     *
-     * see also: @EnableScheduling (in this project)
-     *
-     * @Scheduled value is in milliseconds.
-     *
-     * Runs immediately at startup, and then every 10 seconds
+     * @Scheduled value is in milliseconds. This is only the fallback poll (for retries coming due, and
+     * mail queued by other replicas), because queueing mail starts the workers right away.
      */
-    @Scheduled(fixedDelay = 30000)
+    @Scheduled(fixedDelay = 10000)
     public void run() {
-        svc_arun.run(() -> {
-            emailService_runCount++;
-            if (!initComplete || run || !MongoRepository.fullInit)
-                return null;
+        emailService_runCount++;
+        if (!initComplete || !MongoRepository.fullInit)
+            return;
 
-            // This first run will happen at startup and we don't want that.
-            if (emailService_runCount == 1) {
-                log.debug("emailService.run() first run, skipping.");
+        // This first run will happen at startup and we don't want that.
+        if (emailService_runCount == 1) {
+            log.debug("emailService.run() first run, skipping.");
+            return;
+        }
+
+        if (AppServer.isShuttingDown() || !AppServer.isEnableScheduling()) {
+            log.debug("ignoring NotificationDeamon schedule cycle");
+            return;
+        }
+        runCounter++;
+        // fail fast if no mail host is configured.
+        if (StringUtils.isEmpty(svc_prop.getMailHost()) || !mailEnabled()) {
+            if (runCounter < 3) {
+                log.debug("NotificationDaemon is disabled, because no mail server is configured.");
             }
+            return;
+        }
+        startWorkers();
+    }
 
-            try {
-                run = true;
-                if (AppServer.isShuttingDown() || !AppServer.isEnableScheduling()) {
-                    log.debug("ignoring NotificationDeamon schedule cycle");
-                    return null;
+    @PreDestroy
+    public void preDestroy() {
+        mailPool.shutdownNow();
+        Transport transport;
+        while ((transport = idleTransports.poll()) != null) {
+            closeTransport(transport);
+        }
+    }
+
+    /*
+     * Starts workers right away rather than waiting for the next poll. If we're in a transaction the
+     * new mail isn't visible until commit, so we wait for that.
+     */
+    public void setOutboxDirty() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    startWorkers();
                 }
-                runCounter++;
-                // fail fast if no mail host is configured.
-                if (StringUtils.isEmpty(svc_prop.getMailHost())) {
-                    if (runCounter < 3) {
-                        log.debug("NotificationDaemon is disabled, because no mail server is configured.");
+            });
+        } else {
+            startWorkers();
+        }
+    }
+
+    // Tops up the pool to MAIL_THREADS workers. Each one exits when there's nothing left to lease.
+    private void startWorkers() {
+        if (StringUtils.isEmpty(svc_prop.getMailHost()) || !mailEnabled() || AppServer.isShuttingDown())
+            return;
+
+        while (true) {
+            int count = activeWorkers.get();
+            if (count >= MAIL_THREADS)
+                return;
+            if (activeWorkers.compareAndSet(count, count + 1)) {
+                svc_async.submit(mailPool, () -> {
+                    try {
+                        svc_arun.run(() -> {
+                            drainOutbox();
+                            return null;
+                        });
+                    } catch (Exception e) {
+                        log.error("outbox worker failed", e);
+                    } finally {
+                        activeWorkers.decrementAndGet();
                     }
                     return null;
+                });
+            }
+        }
+    }
+
+    private void drainOutbox() {
+        Transport transport = null;
+        try {
+            while (!AppServer.isShuttingDown()) {
+                List<SubNode> batch = new ArrayList<>();
+                SubNode node;
+                while (batch.size() < mailBatchSize && (node = leaseNextMail()) != null) {
+                    batch.add(node);
                 }
-                if (--runCountdown <= 0) {
-                    runCountdown = INTERVAL_SECONDS;
+                if (batch.isEmpty())
+                    break;
 
-                    LinkedList<SubNode> mailNodes = svc_mongoUtil.asList(getMailNodes());
-                    if (mailNodes.size() > 0) {
-                        sendAllMail(mailNodes);
+                for (SubNode mail : batch) {
+                    try {
+                        if (transport == null) {
+                            transport = borrowTransport();
+                        }
+                        deliver(transport, mail);
+                        // only now that the server has accepted the message do we remove it.
+                        svc_mongoDelete.delete(mail);
+                    } catch (Exception e) {
+                        mailFailed(mail, e);
+                        // the connection may be what's broken, so don't reuse it
+                        if (!(e instanceof AddressException) && transport != null) {
+                            closeTransport(transport);
+                            transport = null;
+                        }
                     }
                 }
-            } catch (Exception e) {
-                log.error("notification daemon cycle fail", e);
-            } finally {
-                run = false;
             }
-            return null;
-        });
+        } finally {
+            if (transport != null) {
+                returnTransport(transport);
+            }
+        }
     }
 
-    // Triggers the next cycle to not wait, but process immediately
-    public void setOutboxDirty() {
-        runCountdown = 0;
+    /*
+     * Atomically claims the oldest outbox message that isn't dead, isn't leased (or whose lease has
+     * expired, like when a replica died mid-send), and isn't waiting for its retry time.
+     */
+    private SubNode leaseNextMail() {
+        long now = System.currentTimeMillis();
+        String leaseProp = SubNode.PROPS + "." + NodeProp.EMAIL_LEASE.s();
+        String nextTryProp = SubNode.PROPS + "." + NodeProp.EMAIL_NEXT_TRY.s();
+
+        Criteria crit = svc_mongoUtil.childrenCriteria(getSystemOutbox().getPath()) //
+                .and(SubNode.PROPS + "." + NodeProp.EMAIL_STATUS.s()).ne(STATUS_DEAD) //
+                .andOperator( //
+                        new Criteria().orOperator(Criteria.where(leaseProp).exists(false),
+                                Criteria.where(leaseProp).lt(now)), //
+                        new Criteria().orOperator(Criteria.where(nextTryProp).exists(false),
+                                Criteria.where(nextTryProp).lte(now)));
+        Query q = new Query(crit).with(Sort.by(Sort.Direction.ASC, SubNode.CREATE_TIME));
+        Update update = new Update().set(leaseProp, now + LEASE_MILLIS).inc(SubNode.PROPS + "." + NodeProp.EMAIL_ATTEMPTS.s(),
+                1);
+        return svc_ops.findAndModify(q, update);
     }
 
-    private void sendAllMail(Iterable<SubNode> nodes) {
-        synchronized (getLock()) {
-            for (SubNode node : nodes) {
-                log.debug("Iterating node to email. nodeId:" + node.getIdStr());
-                String email = node.getStr(NodeProp.EMAIL_RECIP);
-                String subject = node.getStr(NodeProp.EMAIL_SUBJECT);
-                String content = node.getStr(NodeProp.EMAIL_CONTENT);
-                if (!StringUtils.isEmpty(email) && !StringUtils.isEmpty(subject) && !StringUtils.isEmpty(content)) {
-                    log.debug("Found mail to send to: " + email);
-                    if (svc_mongoDelete.delete(node, false) > 0) {
-                        // only send mail if we were able to delete the node, because other wise something is wrong
-                        // without ability to delete and so we'd go into a loop sending this item multiple times.
-                        sendMail(email, null, content, subject);
-                    } else {
-                        log.debug("Unable to delete queued mail node: " + node.getIdStr());
-                    }
-                } else {
-                    log.debug("not sending email. Missing some properties. email or subject or content");
-                }
+    private void mailFailed(SubNode mail, Exception e) {
+        // findAndModify gave us the node as it was before the lease incremented the attempt count
+        Long prevAttempts = mail.getInt(NodeProp.EMAIL_ATTEMPTS);
+        long attempts = (prevAttempts != null ? prevAttempts : 0) + 1;
+        boolean permanent = e instanceof AddressException;
+        String error = e.getClass().getSimpleName() + ": " + e.getMessage();
+
+        Update update = new Update().unset(SubNode.PROPS + "." + NodeProp.EMAIL_LEASE.s())
+                .set(SubNode.PROPS + "." + NodeProp.EMAIL_ERROR.s(), error);
+        if (permanent || attempts >= MAX_ATTEMPTS) {
+            log.error("Giving up on mail node " + mail.getIdStr() + " after " + attempts + " attempts: " + error);
+            update.set(SubNode.PROPS + "." + NodeProp.EMAIL_STATUS.s(), STATUS_DEAD);
+        } else {
+            long backoff = Math.min(MAX_BACKOFF_MILLIS, MIN_BACKOFF_MILLIS << (attempts - 1));
+            log.warn("Mail node " + mail.getIdStr() + " failed (attempt " + attempts + "), retry in "
+                    + (backoff / 1000) + "s: " + error);
+            update.set(SubNode.PROPS + "." + NodeProp.EMAIL_NEXT_TRY.s(), System.currentTimeMillis() + backoff);
+        }
+        svc_ops.findAndModify(new Query(Criteria.where(SubNode.ID).is(mail.getId())), update);
+    }
+
+    private void deliver(Transport transport, SubNode mail) throws MessagingException {
+        String email = mail.getStr(NodeProp.EMAIL_RECIP);
+        String subject = mail.getStr(NodeProp.EMAIL_SUBJECT);
+        String content = mail.getStr(NodeProp.EMAIL_CONTENT);
+        if (StringUtils.isEmpty(email) || StringUtils.isEmpty(subject) || StringUtils.isEmpty(content)) {
+            throw new AddressException("Missing some properties. email or subject or content");
+        }
+        log.debug("Sending mail node " + mail.getIdStr() + " to: " + email);
+        MimeMessage message = buildMessage(email, null, content, subject);
+        transport.sendMessage(message, message.getAllRecipients());
+    }
+
+    private MimeMessage buildMessage(String sendToAddress, String fromAddress, String content, String subjectLine)
+            throws MessagingException {
+        MimeMessage message = new MimeMessage(mailSender.getSession());
+        String from = fromAddress != null ? fromAddress : svc_prop.getMailFrom();
+        if (!StringUtils.isEmpty(from)) {
+            message.setFrom(new InternetAddress(from));
+        }
+        message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(sendToAddress));
+        message.setSubject(subjectLine);
+        message.setText(content);
+        return message;
+    }
+
+    /*
+     * Returns an open SMTP connection, reusing an idle one when we have it. Note: isConnected() on an
+     * SMTP transport sends a NOOP, so connections the server has timed out get replaced here.
+     */
+    private Transport borrowTransport() throws MessagingException {
+        initJavaMailSender();
+        Transport transport;
+        while ((transport = idleTransports.poll()) != null) {
+            if (transport.isConnected()) {
+                return transport;
             }
+            closeTransport(transport);
+        }
+        transport = mailSender.getSession().getTransport("smtp");
+        String user = svc_prop.getMailUser();
+        if (StringUtils.isEmpty(user)) {
+            transport.connect(mailSender.getHost(), mailSender.getPort(), null, null);
+        } else {
+            transport.connect(mailSender.getHost(), mailSender.getPort(), user, svc_prop.getMailPassword());
+        }
+        return transport;
+    }
+
+    private void returnTransport(Transport transport) {
+        if (AppServer.isShuttingDown() || idleTransports.size() >= MAIL_THREADS || !idleTransports.offer(transport)) {
+            closeTransport(transport);
+        }
+    }
+
+    private void closeTransport(Transport transport) {
+        try {
+            transport.close();
+        } catch (Exception e) {
+            // ignore
         }
     }
 
@@ -140,43 +327,45 @@ public class EmailService extends ServiceBase {
         }
     }
 
+    // Sends immediately (not thru the outbox) with no retries
     public void sendMail(String sendToAddress, String fromAddress, String content, String subjectLine) {
         if (!mailEnabled())
             return;
 
-        initJavaMailSender();
-        if (mailSender != null) {
-            try {
-                SimpleMailMessage message = new SimpleMailMessage();
-                message.setFrom(fromAddress);
-                message.setTo(sendToAddress);
-                message.setSubject(subjectLine);
-                message.setText(content);
-                mailSender.send(message);
-            } catch (Exception e) {
-                log.error("Failed to send email", e);
+        Transport transport = null;
+        try {
+            transport = borrowTransport();
+            MimeMessage message = buildMessage(sendToAddress, fromAddress, content, subjectLine);
+            transport.sendMessage(message, message.getAllRecipients());
+            returnTransport(transport);
+        } catch (Exception e) {
+            if (transport != null) {
+                closeTransport(transport);
             }
+            log.error("Failed to send email", e);
         }
     }
 
-    public void initJavaMailSender() {
+    public synchronized void initJavaMailSender() {
         if (mailSender != null || StringUtils.isEmpty(svc_prop.getMailPassword()))
             return;
 
         String mailHost = svc_prop.getMailHost();
         String mailUser = svc_prop.getMailUser();
         String mailPassword = svc_prop.getMailPassword();
+        String mailPort = svc_prop.getMailPort();
 
-        mailSender = new JavaMailSenderImpl();
-        mailSender.setHost(mailHost);
-        mailSender.setPort(587);
-        mailSender.setUsername(mailUser);
-        mailSender.setPassword(mailPassword);
+        JavaMailSenderImpl sender = new JavaMailSenderImpl();
+        sender.setHost(mailHost);
+        sender.setPort(StringUtils.isEmpty(mailPort) ? 587 : Integer.parseInt(mailPort));
+        sender.setUsername(mailUser);
+        sender.setPassword(mailPassword);
 
-        Properties props = mailSender.getJavaMailProperties();
+        Properties props = sender.getJavaMailProperties();
         props.put("mail.transport.protocol", "smtp");
-        props.put("mail.smtp.auth", "true");
+        props.put("mail.smtp.auth", String.valueOf(!StringUtils.isEmpty(mailUser)));
         props.put("mail.debug", "true");
+        mailSender = sender;
     }
 
     // Converts a stream of EML file text to Markdown
@@ -238,15 +427,6 @@ public class EmailService extends ServiceBase {
         svc_email.setOutboxDirty();
     }
 
-    /*
-     * Loads only up to mailBatchSize emails at a time
-     */
-    public Iterable<SubNode> getMailNodes() {
-        SubNode outboxNode = getSystemOutbox();
-        int mailBatchSizeInt = Integer.parseInt(mailBatchSize);
-        return svc_mongoRead.getChildrenAP(outboxNode, null, mailBatchSizeInt, 0);
-    }
-
     public SubNode getSystemOutbox() {
         if (outboxNode != null) {
             return outboxNode;
@@ -0,0 +1,299 @@
+package quanta.service;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import quanta.AppServer;
+import quanta.config.NodePath;
+import quanta.config.ServiceBase;
+import quanta.model.client.NodeProp;
+import quanta.model.client.NodeType;
+import quanta.mongo.MongoRepository;
+import quanta.mongo.NodeChangeListener;
+import quanta.mongo.model.AccountNode;
+import quanta.mongo.model.SubNode;
+import quanta.util.DateUtil;
+import quanta.util.XString;
+
+/*
+ * Keeps follower and following counts per account, so showing a profile doesn't have to count FRIEND
+ * nodes.
+ *
+ * The counts are in their own small collection (keyed by account node id) rather than on the account
+ * nodes, because account nodes are always written with a full save, which would overwrite (or race
+ * with) the atomic increments done here.
+ *
+ * Every save and delete of a FRIEND node goes thru friendChanged (from MongoTemplateWrapper), which
+ * applies the difference between the old and new state with $inc. A count that doesn't exist yet is
+ * computed on first read. Bulk deletes/moves/imports can't be tracked per node, so they mark the
+ * accounts involved for a recount, and the reconcile job also recounts a batch of accounts every
+ * run, so any drift (like from a crash between a commit and the increment) gets fixed eventually.
+ */
+@Component
+public class FollowCountService extends ServiceBase implements NodeChangeListener {
+    private static Logger log = LoggerFactory.getLogger(FollowCountService.class);
+
+    private static final String COLLECTION = "followCounts";
+    private static final String FOLLOWERS = "followers";
+    private static final String FOLLOWING = "following";
+    private static final int RECONCILE_BATCH = 50;
+
+    // all friendChanged looks at, so we can do projected reads
+    public static final String[] FRIEND_FIELDS =
+            {SubNode.PATH, SubNode.TYPE, SubNode.OWNER, SubNode.PROPS + "." + NodeProp.USER_NODE_ID.s()};
+
+    // accounts to recount on the next reconcile run
+    private final Set<ObjectId> dirty = ConcurrentHashMap.newKeySet();
+    // where the rolling recount is at (only used by the reconcile job)
+    private ObjectId reconcileCursor;
+
+    public long getFollowers(AccountNode accnt) {
+        return getCount(accnt, FOLLOWERS);
+    }
+
+    public long getFollowing(AccountNode accnt) {
+        return getCount(accnt, FOLLOWING);
+    }
+
+    private long getCount(AccountNode accnt, String field) {
+        if (accnt == null)
+            return 0L;
+        Document doc = getCollection().find(Filters.eq(SubNode.ID, accnt.getId())).first();
+        if (doc == null) {
+            doc = recount(accnt);
+        }
+        Number count = (Number) doc.get(field);
+        return count != null ? Math.max(0L, count.longValue()) : 0L;
+    }
+
+    @Override
+    public boolean needsPriorState(SubNode node) {
+        return node.isType(NodeType.FRIEND);
+    }
+
+    @Override
+    public String[] getPriorFields() {
+        return FRIEND_FIELDS;
+    }
+
+    @Override
+    public void nodeSaved(SubNode oldNode, SubNode newNode) {
+        friendChanged(oldNode, newNode);
+    }
+
+    @Override
+    public void nodeDeleted(SubNode node) {
+        friendChanged(node, null);
+    }
+
+    @Override
+    public void subtreeDeleting(String path) {
+        subtreeChanged(path);
+    }
+
+    @Override
+    public void subtreeMoved(String oldPath, String newPath) {
+        subtreeChanged(newPath);
+    }
+
+    /*
+     * We can't tell whose counts are off, so they all go and get recounted as they're read (see
+     * getCount). After the transaction, if any, so no read recounts from the old data and stores that.
+     */
+    @Override
+    public void allChanged() {
+        Runnable drop = () -> {
+            dirty.clear();
+            getCollection().deleteMany(new Document());
+        };
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    drop.run();
+                }
+            });
+        } else {
+            drop.run();
+        }
+    }
+
+    /*
+     * Called after a FRIEND node is saved or deleted. 'oldNode' is what was in the DB before (null for a
+     * new node) and 'newNode' is what's there now (null for a delete). These only need the
+     * FRIEND_FIELDS.
+     */
+    public void friendChanged(SubNode oldNode, SubNode newNode) {
+        if (oldNode != null && !oldNode.isType(NodeType.FRIEND))
+            oldNode = null;
+        if (newNode != null && !newNode.isType(NodeType.FRIEND))
+            newNode = null;
+        if (oldNode == null && newNode == null)
+            return;
+
+        // followers of the user the FRIEND node points to. Blocked users are FRIEND nodes too, and have
+        // always been counted as followers (getPeopleByUserName_query finds them as well)
+        ObjectId oldFollowed = getFollowedId(oldNode);
+        ObjectId newFollowed = getFollowedId(newNode);
+        if (!Objects.equals(oldFollowed, newFollowed)) {
+            inc(oldFollowed, FOLLOWERS, -1);
+            inc(newFollowed, FOLLOWERS, 1);
+        }
+
+        // following of the owner, but only for nodes in their friends list
+        String oldParent = oldNode != null ? getParentPath(oldNode) : null;
+        String newParent = newNode != null ? getParentPath(newNode) : null;
+        boolean newInList = newParent != null && isFriendsList(newParent);
+        boolean oldInList = oldParent != null && (oldParent.equals(newParent) ? newInList : isFriendsList(oldParent));
+        ObjectId oldFollower = oldInList ? oldNode.getOwner() : null;
+        ObjectId newFollower = newInList ? newNode.getOwner() : null;
+        if (!Objects.equals(oldFollower, newFollower)) {
+            inc(oldFollower, FOLLOWING, -1);
+            inc(newFollower, FOLLOWING, 1);
+        }
+    }
+
+    /*
+     * Called for bulk operations on the subgraph at 'path' (including the node at 'path'). For deletes
+     * this has to be called before the nodes are gone (see subtreeDeleting).
+     */
+    @Override
+    public void subtreeChanged(String path) {
+        if (path == null || !path.startsWith(NodePath.USERS_PATH_S))
+            return;
+        Query q = new Query(Criteria.where(SubNode.PATH).regex(svc_mongoUtil.regexSubGraphAndRoot(path))
+                .and(SubNode.TYPE).is(NodeType.FRIEND.s()));
+        q.fields().include(FRIEND_FIELDS);
+        svc_ops.forEach(q, n -> {
+            ObjectId followed = getFollowedId(n);
+            if (followed != null) {
+                dirty.add(followed);
+            }
+            if (n.getOwner() != null) {
+                dirty.add(n.getOwner());
+            }
+        });
+    }
+
+    private ObjectId getFollowedId(SubNode node) {
+        if (node == null)
+            return null;
+        String id = node.getStr(NodeProp.USER_NODE_ID);
+        return id != null && ObjectId.isValid(id) ? new ObjectId(id) : null;
+    }
+
+    private String getParentPath(SubNode node) {
+        String path = node.getPath();
+        if (path == null)
+            return null;
+        // same as getParentLight, pending nodes are still under their real parent
+        return XString.truncAfterLast(path, "/").replace(NodePath.PENDING_PATH_S, NodePath.ROOT_PATH_S);
+    }
+
+    // Not security checked, since this runs for whoever happens to be saving the FRIEND node
+    private boolean isFriendsList(String path) {
+        Query q = new Query(Criteria.where(SubNode.PATH).is(path));
+        q.fields().include(SubNode.TYPE, SubNode.OWNER);
+        SubNode parent = svc_ops.findOne(q);
+        return parent != null && parent.isType(NodeType.FRIEND_LIST);
+    }
+
+    /*
+     * Counts only exist once they've been computed (see getCount) so we don't upsert here. If the save
+     * is part of a transaction the increment waits until it commits, so a rollback can't leave the count
+     * off.
+     */
+    private void inc(ObjectId accntId, String field, int delta) {
+        if (accntId == null)
+            return;
+        Runnable update = () -> getCollection().updateOne(Filters.eq(SubNode.ID, accntId), Updates.inc(field, delta));
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    update.run();
+                }
+            });
+        } else {
+            update.run();
+        }
+    }
+
+    /* Counts the FRIEND nodes for 'accnt' and stores the result */
+    public Document recount(AccountNode accnt) {
+        long followers = svc_friend.countFollowersLive(accnt);
+        long following = svc_friend.countFollowingLive(accnt.getStr(NodeProp.USER));
+        getCollection().updateOne(Filters.eq(SubNode.ID, accnt.getId()),
+                Updates.combine(Updates.set(FOLLOWERS, followers), Updates.set(FOLLOWING, following)),
+                new UpdateOptions().upsert(true));
+        return new Document(SubNode.ID, accnt.getId()).append(FOLLOWERS, followers).append(FOLLOWING, following);
+    }
+
+    private void recount(ObjectId accntId) {
+        AccountNode accnt = svc_user.getAccountNodeAP(accntId);
+        if (accnt != null) {
+            recount(accnt);
+        } else {
+            getCollection().deleteOne(Filters.eq(SubNode.ID, accntId));
+        }
+    }
+
+    /*
+     * Recounts everything bulk operations marked, and then the next batch of stored counts, wrapping
+     * around at the end. Each recount is two indexed counts so this stays cheap however many accounts
+     * there are.
+     */
+    @Scheduled(fixedDelay = DateUtil.MINUTE_MILLIS)
+    public void reconcile() {
+        if (!initComplete || !MongoRepository.fullInit || AppServer.isShuttingDown())
+            return;
+        try {
+            svc_arun.run(() -> {
+                for (Iterator<ObjectId> iter = dirty.iterator(); iter.hasNext();) {
+                    ObjectId id = iter.next();
+                    iter.remove();
+                    recount(id);
+                }
+
+                Bson filter = reconcileCursor != null ? Filters.gt(SubNode.ID, reconcileCursor) : new Document();
+                List<ObjectId> ids = new ArrayList<>();
+                getCollection().find(filter).projection(new Document(SubNode.ID, 1)).sort(Sorts.ascending(SubNode.ID))
+                        .limit(RECONCILE_BATCH).forEach(doc -> ids.add(doc.getObjectId(SubNode.ID)));
+                for (ObjectId id : ids) {
+                    recount(id);
+                }
+                reconcileCursor = ids.size() < RECONCILE_BATCH ? null : ids.get(ids.size() - 1);
+                return null;
+            });
+        } catch (Exception e) {
+            log.error("Failed reconciling follow counts", e);
+        }
+    }
+
+    /*
+     * Deliberately not the transaction bound database from MongoTemplate, since increments are applied
+     * after commit (see inc)
+     */
+    private MongoCollection<Document> getCollection() {
+        return svc_mdbf.getMongoDatabase().getCollection(COLLECTION);
+    }
+}
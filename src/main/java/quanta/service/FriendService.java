@@ -10,7 +10,6 @@ import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Component;
-import quanta.config.NodePath;
 import quanta.config.ServiceBase;
 import quanta.exception.base.RuntimeEx;
 import quanta.model.NodeInfo;
@@ -361,6 +360,8 @@ public class FriendService extends ServiceBase {
             Query q = getPeopleByUserName_query(null, req.getTargetUserName());
             if (q == null)
                 return null;
+            // in index order, so paging only skips over index keys
+            q.with(Sort.by(Sort.Direction.ASC, SubNode.ID));
             q.limit(ConstantInt.ROWS_PER_PAGE.val());
             q.skip(ConstantInt.ROWS_PER_PAGE.val() * req.getPage());
             Iterable<SubNode> iterable = svc_ops.find(q);
@@ -383,14 +384,28 @@ public class FriendService extends ServiceBase {
         return countFollowersOfLocalUser(userNode, userName);
     }
 
+    // maintained count (see FollowCountService)
     public long countFollowersOfLocalUser(AccountNode userNode, String userName) {
-        Query q = getPeopleByUserName_query(userNode, userName);
+        if (userNode == null) {
+            userNode = svc_user.getAccountByUserNameAP(userName);
+        }
+        return svc_followCount.getFollowers(userNode);
+    }
+
+    // counts the FRIEND nodes, only for when FollowCountService needs to compute a count
+    public long countFollowersLive(AccountNode userNode) {
+        Query q = getPeopleByUserName_query(userNode, null);
         if (q == null)
             return 0L;
         return svc_ops.count(q);
     }
 
-    /* caller can pass userName only or else pass userNode if it's already available */
+    /*
+     * caller can pass userName only or else pass userNode if it's already available
+     *
+     * FRIEND nodes only ever exist under user accounts so there's no path criteria, which lets this use
+     * the 'followers' index (see MongoUtil.createFollowersIndex)
+     */
     public Query getPeopleByUserName_query(AccountNode userNode, String userName) {
         Query q = new Query();
         if (userNode == null) {
@@ -399,9 +414,8 @@ public class FriendService extends ServiceBase {
                 return null;
             }
         }
-        Criteria crit =
-                svc_mongoUtil.subGraphCriteria(NodePath.USERS_PATH).and(SubNode.PROPS + "." + NodeProp.USER_NODE_ID.s())
-                        .is(userNode.getIdStr()).and(SubNode.TYPE).is(NodeType.FRIEND.s());
+        Criteria crit = Criteria.where(SubNode.PROPS + "." + NodeProp.USER_NODE_ID.s()).is(userNode.getIdStr())
+                .and(SubNode.TYPE).is(NodeType.FRIEND.s());
         crit = svc_auth.addReadSecurity(crit);
         q.addCriteria(crit);
         return q;
@@ -455,7 +469,13 @@ public class FriendService extends ServiceBase {
         return countFollowingOfLocalUser(userName);
     }
 
+    // maintained count (see FollowCountService)
     public long countFollowingOfLocalUser(String userName) {
+        return svc_followCount.getFollowing(svc_user.getAccountByUserNameAP(userName));
+    }
+
+    // counts the FRIEND nodes, only for when FollowCountService needs to compute a count
+    public long countFollowingLive(String userName) {
         Query q = findFollowingOfUser_query(userName);
         if (q == null)
             return 0;
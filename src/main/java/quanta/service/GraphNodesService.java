@@ -1,67 +1,90 @@
 package quanta.service;
 
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Component;
 import quanta.config.ServiceBase;
 import quanta.exception.base.RuntimeEx;
 import quanta.model.GraphNode;
+import quanta.model.client.NodeLink;
 import quanta.model.client.SearchDefinition;
+import quanta.mongo.MongoUtil;
 import quanta.mongo.model.SubNode;
 import quanta.rest.request.GraphRequest;
 import quanta.rest.response.GraphResponse;
-import quanta.util.TL;
 import quanta.util.XString;
+import quanta.util.val.IntVal;
 
+/*
+ * Builds the tree for the graph view. Every request is bounded by a node budget (maxNodes) and, when
+ * browsing, a depth (maxDepth), and any parent having more than MAX_CHILDREN children only shows the
+ * first ones plus a single collapsed node standing for the rest. Whatever doesn't fit in the budget is
+ * counted into the collapsed node of its nearest shown ancestor, so the user can see where the rest of
+ * the tree is.
+ */
 @Component
 public class GraphNodesService extends ServiceBase {
     private static Logger log = LoggerFactory.getLogger(GraphNodesService.class);
-    private int guid = 0;
+
+    private static final int DEFAULT_MAX_NODES = 1000;
+    private static final int MAX_NODES_LIMIT = 5000;
+    private static final int DEFAULT_MAX_DEPTH = 10;
+    private static final int MAX_CHILDREN = 100;
+    // how far past the budget we keep reading, only to count what's collapsed
+    private static final int SCAN_FACTOR = 4;
+    private static final int MAX_NAME_LEN = 500;
+
+    private static final String[] GRAPH_FIELDS =
+            {SubNode.PATH, SubNode.CONTENT, SubNode.LINKS, SubNode.TYPE, SubNode.OWNER};
+
+    // state of one request
+    private static class GraphBuilder {
+        final String rootPath;
+        final int rootLevel;
+        final int maxNodes;
+        final HashMap<String, GraphNode> mapByPath = new HashMap<>();
+        // parent path -> the node standing in for its children that didn't fit
+        final HashMap<String, GraphNode> collapsedByPath = new HashMap<>();
+        int count;
+
+        GraphBuilder(String rootPath, int maxNodes) {
+            this.rootPath = rootPath;
+            this.rootLevel = StringUtils.countMatches(rootPath, "/");
+            this.maxNodes = maxNodes;
+        }
+    }
 
     public GraphResponse cm_graphNodes(GraphRequest req) {
         SearchDefinition def = req.getSearchDefinition();
-        HashMap<String, GraphNode> mapByPath = new HashMap<>();
         GraphResponse res = new GraphResponse();
-        boolean searching = !StringUtils.isEmpty(def.getSearchText());
+        int maxNodes = req.getMaxNodes() > 0 ? Math.min(req.getMaxNodes(), MAX_NODES_LIMIT) : DEFAULT_MAX_NODES;
+        int maxDepth = req.getMaxDepth() > 0 ? req.getMaxDepth() : DEFAULT_MAX_DEPTH;
 
         SubNode node = svc_mongoRead.getNode(req.getNodeId());
+        GraphBuilder gb = new GraphBuilder(node.getPath(), maxNodes);
         GraphNode gnode = new GraphNode(node.getIdStr(), getNodeName(node), node.getPath(), 0, false, node.getLinks());
-        String rootPath = node.getPath();
-        int rootLevel = StringUtils.countMatches(rootPath, "/");
-        mapByPath.put(gnode.getPath(), gnode);
+        gb.mapByPath.put(gnode.getPath(), gnode);
 
         try {
-            Iterable<SubNode> results = null;
-            // Run subgraph query to get all nodes if no search text provided
-            if (StringUtils.isEmpty(def.getSearchText())) {
-                results = svc_mongoRead.getSubGraph(node, null, 0, false, null);
+            boolean truncated;
+            if (def == null || StringUtils.isEmpty(def.getSearchText())) {
+                truncated = loadSubGraph(gb, node, maxDepth);
+            } else {
+                truncated = loadSearchResults(gb, node, def);
             }
-            // If search text provided run subgraph search.
-            else {
-                int limit = TL.getSC().isAdmin() ? Integer.MAX_VALUE : 1000;
-                results = svc_mongoRead.searchSubGraph(node, null, def.getSearchText(), null, null, limit, 0,
-                        def.isFuzzy(), def.isCaseSensitive(), null, def.isRecursive(), def.isRequirePriority(),
-                        def.isRequireAttachment(), def.isRequireDate());
+            for (GraphNode collapsed : gb.collapsedByPath.values()) {
+                collapsed.setName("+" + collapsed.getHiddenCount() + (truncated ? " (or more)" : "") + " more nodes");
             }
-
-            // Construct the GraphNode object for each result and add to mapByPath
-            for (SubNode n : results) {
-                try {
-                    svc_auth.readAuth(node);
-                    GraphNode gn = new GraphNode(n.getIdStr(), getNodeName(n), n.getPath(),
-                            StringUtils.countMatches(n.getPath(), "/") - rootLevel, searching, n.getLinks());
-                    mapByPath.put(gn.getPath(), gn);
-                } catch (Exception e) {
-                    // ignore
-                }
-            }
-
-            // processNodes ensuring we have a coherent/complete/consistent tree (no orphans)
-            processNodes(rootPath, rootLevel, mapByPath);
+            res.setTruncated(truncated);
             res.setRootNode(gnode);
         } catch (Exception ex) {
             throw new RuntimeEx(ex);
@@ -69,6 +92,137 @@ public class GraphNodesService extends ServiceBase {
         return res;
     }
 
+    /*
+     * Streams a projection of the subgraph shallowest first, so the budget is spent evenly across the
+     * top levels of the tree rather than on the first deep branch. Returns true if we stopped reading
+     * before the end, meaning the collapsed counts are only lower bounds.
+     */
+    private boolean loadSubGraph(GraphBuilder gb, SubNode node, int maxDepth) {
+        Criteria crit = svc_mongoUtil.subGraphCriteria(node.getPath());
+        Query q = new Query();
+        // the depth field and its index are there once the startup backfill is done (see MongoUtil)
+        if (MongoUtil.derivedFieldsReady) {
+            crit = crit.and(SubNode.DEPTH).lte(SubNode.getPathDepth(node.getPath()) + maxDepth);
+            q.with(Sort.by(Sort.Direction.ASC, SubNode.DEPTH).and(Sort.by(Sort.Direction.ASC, SubNode.PATH)));
+            q.withHint(MongoUtil.DEPTH_INDEX);
+        } else {
+            // path order still puts every parent before its children
+            q.with(Sort.by(Sort.Direction.ASC, SubNode.PATH));
+        }
+        q.addCriteria(svc_auth.addReadSecurity(crit));
+        q.fields().include(GRAPH_FIELDS);
+        int scanLimit = gb.maxNodes * SCAN_FACTOR;
+        q.limit(scanLimit);
+
+        IntVal scanned = new IntVal();
+        svc_ops.forEach(q, n -> {
+            scanned.inc();
+            if (StringUtils.countMatches(n.getPath(), "/") - gb.rootLevel > maxDepth)
+                return;
+            addNode(gb, n.getIdStr(), getNodeName(n), n.getPath(), false, n.getLinks());
+        });
+        return scanned.getVal() >= scanLimit;
+    }
+
+    /*
+     * Runs the search limited to the budget, then reads all the ancestors the matches need in order to
+     * connect to the root in one query, and adds everything shallowest first.
+     */
+    private boolean loadSearchResults(GraphBuilder gb, SubNode node, SearchDefinition def) {
+        List<SubNode> matches = new ArrayList<>();
+        for (SubNode n : svc_mongoRead.searchSubGraph(node, null, def.getSearchText(), null, null, gb.maxNodes, 0,
+                def.isFuzzy(), def.isCaseSensitive(), null, def.isRecursive(), def.isRequirePriority(),
+                def.isRequireAttachment(), def.isRequireDate())) {
+            matches.add(n);
+        }
+
+        HashSet<String> matchPaths = new HashSet<>();
+        matches.forEach(n -> matchPaths.add(n.getPath()));
+        HashSet<String> ancestorPaths = new HashSet<>();
+        for (SubNode n : matches) {
+            String path = XString.truncAfterLast(n.getPath(), "/");
+            while (path.length() > gb.rootPath.length() && !matchPaths.contains(path) && ancestorPaths.add(path)) {
+                path = XString.truncAfterLast(path, "/");
+            }
+        }
+
+        HashMap<String, SubNode> ancestors = new HashMap<>();
+        if (!ancestorPaths.isEmpty()) {
+            Query q = new Query(svc_auth.addReadSecurity(Criteria.where(SubNode.PATH).in(ancestorPaths)));
+            q.fields().include(GRAPH_FIELDS);
+            svc_ops.forEach(q, n -> ancestors.put(n.getPath(), n));
+        }
+
+        List<String> allPaths = new ArrayList<>(ancestorPaths);
+        allPaths.addAll(matchPaths);
+        allPaths.sort(Comparator.comparingInt((String p) -> StringUtils.countMatches(p, "/"))
+                .thenComparing(Comparator.naturalOrder()));
+
+        HashMap<String, SubNode> matchByPath = new HashMap<>();
+        matches.forEach(n -> matchByPath.put(n.getPath(), n));
+        for (String path : allPaths) {
+            SubNode n = matchByPath.get(path);
+            if (n != null) {
+                addNode(gb, n.getIdStr(), getNodeName(n), path, true, n.getLinks());
+                continue;
+            }
+            n = ancestors.get(path);
+            if (n != null) {
+                addNode(gb, n.getIdStr(), getNodeName(n), path, false, n.getLinks());
+            } else {
+                /*
+                 * Ancestor we can't read. The path works as the id (and client looks it up on mouseover, which
+                 * will fail the same auth), because the graph still needs it to connect the matches under it.
+                 */
+                addNode(gb, path, "", path, false, null);
+            }
+        }
+        return matches.size() >= gb.maxNodes;
+    }
+
+    /*
+     * Adds a node under its parent, unless the parent isn't shown, is already showing MAX_CHILDREN
+     * children, or we're out of budget, in which case it's counted into a collapsed node instead.
+     * Parents must be added before their children.
+     */
+    private void addNode(GraphBuilder gb, String id, String name, String path, boolean highlight,
+            List<NodeLink> links) {
+        String parentPath = XString.truncAfterLast(path, "/");
+        GraphNode parent = gb.mapByPath.get(parentPath);
+        if (parent == null || gb.count >= gb.maxNodes
+                || (parent.getChildIds() != null && parent.getChildIds().size() >= MAX_CHILDREN)) {
+            collapse(gb, parentPath);
+            return;
+        }
+        GraphNode gn = new GraphNode(id, name, path, StringUtils.countMatches(path, "/") - gb.rootLevel, highlight,
+                links);
+        gb.mapByPath.put(path, gn);
+        parent.addChild(gn);
+        gb.count++;
+    }
+
+    // counts a node into the collapsed node of the nearest shown ancestor of 'parentPath'
+    private void collapse(GraphBuilder gb, String parentPath) {
+        String path = parentPath;
+        GraphNode shown = gb.mapByPath.get(path);
+        while (shown == null && path.length() > gb.rootPath.length()) {
+            path = XString.truncAfterLast(path, "/");
+            shown = gb.mapByPath.get(path);
+        }
+        if (shown == null) {
+            log.debug("No shown ancestor for: " + parentPath);
+            return;
+        }
+
+        GraphNode collapsed = gb.collapsedByPath.get(path);
+        if (collapsed == null) {
+            collapsed = new GraphNode(shown.getId() + "-more", "", path + "/...", shown.getLevel() + 1, false, null);
+            gb.collapsedByPath.put(path, collapsed);
+            shown.addChild(collapsed);
+        }
+        collapsed.setHiddenCount(collapsed.getHiddenCount() + 1);
+    }
+
     private String getNodeName(SubNode node) {
         String content = node.getContent();
         if (content == null)
@@ -85,64 +239,9 @@ public class GraphNodesService extends ServiceBase {
         } else {
             name = content;
         }
-        if (name.length() > 500) {
-            name = name.substring(0, 500) + "...";
+        if (name.length() > MAX_NAME_LEN) {
+            name = name.substring(0, MAX_NAME_LEN) + "...";
         }
         return name;
     }
-
-    private void processNodes(String rootPath, int rootLevel, HashMap<String, GraphNode> mapByPath) {
-        // collection to hold keys so we don't get concurrent modification
-        // exception when updating the map.
-        List<String> keys = new LinkedList<>();
-
-        for (String path : mapByPath.keySet()) {
-            keys.add(path);
-        }
-        /*
-         * First scan to create any parents that don't exist, putting them in mapByPath. Since the query to
-         * get nodes wasn't a pure recursive method we can have nodes in 'mapByPath' which don't have their
-         * parent in mapByPath, so we want to pull all those parents into 'mapByPath' too, to be sure we
-         * have a an actual proper directed graph to send back to client (no orphans in it, not connected to
-         * root)
-         */
-        for (String path : keys) {
-            ensureEnoughParents(rootPath, rootLevel, path, mapByPath);
-        }
-
-        // now add all nodes to the child list of their parents.
-        for (String path : mapByPath.keySet()) {
-            if (path.equals(rootPath))
-                continue;
-            GraphNode n = mapByPath.get(path);
-            String parentPath = XString.truncAfterLast(n.getPath(), "/");
-            GraphNode parent = mapByPath.get(parentPath);
-            if (parent != null) {
-                parent.addChild(n);
-            } else {
-                log.debug("Top level node??:" + n);
-            }
-        }
-    }
-
-    public void ensureEnoughParents(String rootPath, int rootLevel, String path, HashMap<String, GraphNode> mapByPath) {
-        if (path == null || path.length() < 3)
-            return;
-        String parentPath = XString.truncAfterLast(path, "/");
-        if (parentPath.equals(rootPath))
-            return;
-        GraphNode parent = mapByPath.get(parentPath);
-        if (parent == null) {
-            /*
-             * We only need guid on this name, to ensure D3 works, but the actual name on these is queries for
-             * during mouseover because otherwise it could be a large number of queries to populate them here
-             * now, when that's not needed.
-             */
-            parent = new GraphNode(parentPath, String.valueOf(guid++), parentPath,
-                    StringUtils.countMatches(parentPath, "/") - rootLevel, false, null);
-            mapByPath.put(parentPath, parent);
-            // keep creating parents until we know we made it to common root.
-            ensureEnoughParents(rootPath, rootLevel, parentPath, mapByPath);
-        }
-    }
 }
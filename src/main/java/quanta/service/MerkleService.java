@@ -0,0 +1,560 @@
+package quanta.service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+import quanta.config.ServiceBase;
+import quanta.exception.base.RuntimeEx;
+import quanta.model.client.Attachment;
+import quanta.mongo.NodeChangeListener;
+import quanta.mongo.model.SubNode;
+import quanta.util.Util;
+import quanta.util.XString;
+import quanta.util.val.LongVal;
+import quanta.util.val.Val;
+
+/**
+ * Merkle hashes of subgraphs, stored on each node (SubNode.MERKLE_HASH) and computed lazily.
+ *
+ * A node's hash covers its own owner, content and attachments plus the (last path part, hash) of
+ * each child, so it doesn't depend on where the node lives and moving a subgraph only dirties the
+ * ancestors at the old and new locations, never the moved nodes themselves.
+ *
+ * Any change to a node clears the hash on it and its ancestors (see invalidate), and getHash only
+ * recomputes the nodes missing a hash, reusing every stored child hash, so after the first
+ * computation the cost of a root hash is proportional to the number of changed branches, not the
+ * size of the tree. The first computation of a subgraph is a single ordered scan of it (see
+ * scanHash) rather than a walk down one level at a time.
+ *
+ * To avoid storing a hash computed from data that changed underneath it, invalidate also increments
+ * SubNode.MERKLE_VER and a computed hash is only written if the version is still the one we read. A
+ * hash computed from a child hash that couldn't be written isn't written either, so a failed write
+ * fails all the way up.
+ *
+ * Since a hash is only ever computed from stored child hashes, a node with no hash never has an
+ * ancestor with one, which is what lets invalidate stop at the first ancestor already missing its
+ * hash.
+ */
+@Component
+public class MerkleService extends ServiceBase implements NodeChangeListener {
+    private static Logger log = LoggerFactory.getLogger(MerkleService.class);
+
+    private static final String[] NODE_FIELDS = {SubNode.PATH, SubNode.OWNER, SubNode.CONTENT,
+            SubNode.ATTACHMENTS, SubNode.HAS_CHILDREN, SubNode.MERKLE_HASH, SubNode.MERKLE_COUNT, SubNode.MERKLE_VER};
+    private static final String[] CHILD_FIELDS =
+            {SubNode.PATH, SubNode.HAS_CHILDREN, SubNode.MERKLE_HASH, SubNode.MERKLE_COUNT};
+
+    // paths invalidated during the current transaction, flushed once after it completes
+    private static final Object PENDING_KEY = MerkleService.class.getName() + ".pending";
+
+    public static class MerkleHash {
+        public final String hash;
+        public final long nodeCount;
+        // false if this was computed but not written, because something under it changed meanwhile
+        final boolean stored;
+
+        MerkleHash(String hash, long nodeCount) {
+            this(hash, nodeCount, true);
+        }
+
+        MerkleHash(String hash, long nodeCount, boolean stored) {
+            this.hash = hash;
+            this.nodeCount = nodeCount;
+            this.stored = stored;
+        }
+    }
+
+    /*
+     * Returns the hash of 'node' and its entire subgraph, computing only what's missing. Security is up
+     * to the caller, since the hash covers all descendants regardless of who owns them.
+     */
+    public MerkleHash getHash(SubNode node) {
+        Document doc = loadDoc(node.getId());
+        if (doc == null) {
+            throw new RuntimeEx("Node not found: " + node.getIdStr());
+        }
+        return getHash(doc);
+    }
+
+    private MerkleHash getHash(Document doc) {
+        String hash = doc.getString(SubNode.MERKLE_HASH);
+        if (hash != null) {
+            return new MerkleHash(hash, getCount(doc));
+        }
+        return computeHash(doc);
+    }
+
+    /*
+     * A node that's never had a version has never had a hash (see invalidate), and neither has most of
+     * what's under it, so that subgraph is hashed in one pass. Otherwise it was hashed before and only
+     * the changed branches need walking.
+     */
+    private MerkleHash computeHash(Document doc) {
+        if (doc.get(SubNode.MERKLE_VER) == null) {
+            return scanHash(doc);
+        }
+        Object ver = doc.get(SubNode.MERKLE_VER);
+        MessageDigest digest = newDigest();
+        digest.update(getNodeContentString(doc).getBytes(StandardCharsets.UTF_8));
+        long count = 1;
+        boolean childrenStored = true;
+
+        if (!Boolean.FALSE.equals(doc.getBoolean(SubNode.HAS_CHILDREN))) {
+            for (Document child : getChildren(doc.getString(SubNode.PATH))) {
+                MerkleHash childHash = getChildHash(child);
+                if (childHash == null)
+                    continue;
+                digest.update((getLastPathPart(child) + ":" + childHash.hash + "\n").getBytes(StandardCharsets.UTF_8));
+                count += childHash.nodeCount;
+                childrenStored &= childHash.stored;
+            }
+        }
+
+        return storeHash(doc.getObjectId(SubNode.ID), ver, Util.bytesToHex(digest.digest()), count, childrenStored);
+    }
+
+    private MerkleHash storeHash(ObjectId id, Object ver, String hash, long count, boolean childrenStored) {
+        if (!childrenStored) {
+            return new MerkleHash(hash, count, false);
+        }
+        Bson verFilter = ver == null ? Filters.exists(SubNode.MERKLE_VER, false) : Filters.eq(SubNode.MERKLE_VER, ver);
+        long matched = getCollection()
+                .updateOne(Filters.and(Filters.eq(SubNode.ID, id), verFilter),
+                        Updates.combine(Updates.set(SubNode.MERKLE_HASH, hash), Updates.set(SubNode.MERKLE_COUNT, count)))
+                .getMatchedCount();
+        return new MerkleHash(hash, count, matched > 0);
+    }
+
+    /* A node whose hash is being computed by scanHash, waiting for the rest of its children */
+    private static class Frame {
+        final ObjectId id;
+        final String path;
+        final Object ver;
+        final MessageDigest digest;
+        long count = 1;
+        boolean childrenStored = true;
+
+        Frame(Document doc, MessageDigest digest) {
+            this.id = doc.getObjectId(SubNode.ID);
+            this.path = doc.getString(SubNode.PATH);
+            this.ver = doc.get(SubNode.MERKLE_VER);
+            this.digest = digest;
+        }
+
+        void addChild(String path, MerkleHash childHash) {
+            String name = path.substring(path.lastIndexOf('/') + 1);
+            digest.update((name + ":" + childHash.hash + "\n").getBytes(StandardCharsets.UTF_8));
+            count += childHash.nodeCount;
+            childrenStored &= childHash.stored;
+        }
+    }
+
+    /*
+     * Hashes the subgraph of 'doc' bottom up from one cursor over it in path order. Path chars all sort
+     * after '/', so that order has every node right before its subgraph and children in the same order
+     * getChildren lists them. We keep the chain of open ancestors, and a node is finished (and its hash
+     * added to its parent) as soon as the cursor leaves its subgraph. Hashed nodes are used as they are
+     * and everything under them is skipped, as are orphans.
+     */
+    private MerkleHash scanHash(Document doc) {
+        Deque<Frame> stack = new ArrayDeque<>();
+        Val<MerkleHash> ret = new Val<>();
+        stack.push(newFrame(doc));
+
+        getCollection().find(Filters.regex(SubNode.PATH, svc_mongoUtil.regexSubGraph(doc.getString(SubNode.PATH))))
+                .projection(Projections.include(NODE_FIELDS)).sort(Sorts.ascending(SubNode.PATH)).forEach(node -> {
+                    String path = node.getString(SubNode.PATH);
+                    while (!path.startsWith(stack.peek().path + "/")) {
+                        finish(stack, ret);
+                    }
+                    // not a direct child means its parent isn't open, because it's hashed or missing
+                    if (path.indexOf('/', stack.peek().path.length() + 1) != -1)
+                        return;
+                    String hash = node.getString(SubNode.MERKLE_HASH);
+                    if (hash != null) {
+                        stack.peek().addChild(path, new MerkleHash(hash, getCount(node)));
+                    } else {
+                        stack.push(newFrame(node));
+                    }
+                });
+
+        while (!stack.isEmpty()) {
+            finish(stack, ret);
+        }
+        return ret.getVal();
+    }
+
+    private Frame newFrame(Document doc) {
+        MessageDigest digest = newDigest();
+        digest.update(getNodeContentString(doc).getBytes(StandardCharsets.UTF_8));
+        return new Frame(doc, digest);
+    }
+
+    // pops the top frame, stores its hash, and adds it to its parent (or to 'ret' if it's the root)
+    private void finish(Deque<Frame> stack, Val<MerkleHash> ret) {
+        Frame frame = stack.pop();
+        MerkleHash hash = storeHash(frame.id, frame.ver, Util.bytesToHex(frame.digest.digest()), frame.count,
+                frame.childrenStored);
+        if (stack.isEmpty()) {
+            ret.setVal(hash);
+        } else {
+            stack.peek().addChild(frame.path, hash);
+        }
+    }
+
+    // children are read with a small projection and only fully loaded if their hash is missing
+    private MerkleHash getChildHash(Document child) {
+        if (child.getString(SubNode.MERKLE_HASH) != null) {
+            return new MerkleHash(child.getString(SubNode.MERKLE_HASH), getCount(child));
+        }
+        Document full = loadDoc(child.getObjectId(SubNode.ID));
+        // deleted since we listed it
+        if (full == null)
+            return null;
+        return getHash(full);
+    }
+
+    private Document loadDoc(ObjectId id) {
+        return getCollection().find(Filters.eq(SubNode.ID, id)).projection(Projections.include(NODE_FIELDS)).first();
+    }
+
+    private List<Document> getChildren(String path) {
+        return getChildren(path, CHILD_FIELDS);
+    }
+
+    private List<Document> getChildren(String path, String[] fields) {
+        List<Document> children = new ArrayList<>();
+        getCollection().find(Filters.regex(SubNode.PATH, svc_mongoUtil.regexChildren(path)))
+                .projection(Projections.include(fields)).sort(Sorts.ascending(SubNode.PATH)).into(children);
+        return children;
+    }
+
+    /*
+     * Hash of just 'node' and its direct children, each child counted by its own content only. Nothing
+     * deeper is looked at, so this doesn't use or store any subgraph hashes.
+     */
+    public MerkleHash getShallowHash(SubNode node) {
+        Document doc = loadDoc(node.getId());
+        if (doc == null) {
+            throw new RuntimeEx("Node not found: " + node.getIdStr());
+        }
+        MessageDigest digest = newDigest();
+        digest.update(getNodeContentString(doc).getBytes(StandardCharsets.UTF_8));
+        LongVal count = new LongVal(1L);
+        getCollection().find(Filters.regex(SubNode.PATH, svc_mongoUtil.regexChildren(doc.getString(SubNode.PATH))))
+                .projection(Projections.include(NODE_FIELDS)).sort(Sorts.ascending(SubNode.PATH)).forEach(child -> {
+                    digest.update((getLastPathPart(child) + ":" + getContentHash(child) + "\n")
+                            .getBytes(StandardCharsets.UTF_8));
+                    count.inc();
+                });
+        return new MerkleHash(Util.bytesToHex(digest.digest()), count.getVal(), false);
+    }
+
+    private String getContentHash(Document doc) {
+        return Util.bytesToHex(newDigest().digest(getNodeContentString(doc).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /*
+     * Compares two subgraphs and returns a description of each difference, only descending into
+     * children whose hashes differ. Children are matched by their last path part. If not 'recursive'
+     * only the two nodes and their direct children are compared, by their own content.
+     */
+    public List<String> findDifferences(SubNode node1, SubNode node2, int maxDiffs, boolean recursive) {
+        List<String> diffs = new ArrayList<>();
+        Document doc1 = loadDoc(node1.getId());
+        Document doc2 = loadDoc(node2.getId());
+        if (doc1 != null && doc2 != null) {
+            if (recursive) {
+                findDifferences(doc1, doc2, "", diffs, maxDiffs);
+            } else {
+                findShallowDifferences(doc1, doc2, diffs, maxDiffs);
+            }
+        }
+        return diffs;
+    }
+
+    private void findShallowDifferences(Document doc1, Document doc2, List<String> diffs, int maxDiffs) {
+        if (!getNodeContentString(doc1).equals(getNodeContentString(doc2))) {
+            diffs.add("Changed: /");
+        }
+        Map<String, Document> children1 = getChildMap(doc1.getString(SubNode.PATH), NODE_FIELDS);
+        Map<String, Document> children2 = getChildMap(doc2.getString(SubNode.PATH), NODE_FIELDS);
+        for (Map.Entry<String, Document> entry : children1.entrySet()) {
+            if (diffs.size() >= maxDiffs)
+                return;
+            Document child2 = children2.get(entry.getKey());
+            if (child2 == null) {
+                diffs.add("Removed: /" + entry.getKey());
+            } else if (!getNodeContentString(entry.getValue()).equals(getNodeContentString(child2))) {
+                diffs.add("Changed: /" + entry.getKey());
+            }
+        }
+        for (String key : children2.keySet()) {
+            if (diffs.size() >= maxDiffs)
+                return;
+            if (!children1.containsKey(key)) {
+                diffs.add("Added: /" + key);
+            }
+        }
+    }
+
+    private void findDifferences(Document doc1, Document doc2, String relPath, List<String> diffs, int maxDiffs) {
+        if (diffs.size() >= maxDiffs || getHash(doc1).hash.equals(getHash(doc2).hash))
+            return;
+
+        if (!getNodeContentString(doc1).equals(getNodeContentString(doc2))) {
+            diffs.add("Changed: " + (relPath.isEmpty() ? "/" : relPath));
+        }
+
+        Map<String, Document> children1 = getChildMap(doc1.getString(SubNode.PATH));
+        Map<String, Document> children2 = getChildMap(doc2.getString(SubNode.PATH));
+        for (Map.Entry<String, Document> entry : children1.entrySet()) {
+            if (diffs.size() >= maxDiffs)
+                return;
+            String childPath = relPath + "/" + entry.getKey();
+            Document child2 = children2.get(entry.getKey());
+            if (child2 == null) {
+                diffs.add("Removed: " + childPath);
+                continue;
+            }
+            MerkleHash hash1 = getChildHash(entry.getValue());
+            MerkleHash hash2 = getChildHash(child2);
+            if (hash1 != null && hash2 != null && !hash1.hash.equals(hash2.hash)) {
+                findDifferences(loadFull(entry.getValue()), loadFull(child2), childPath, diffs, maxDiffs);
+            }
+        }
+        for (String key : children2.keySet()) {
+            if (diffs.size() >= maxDiffs)
+                return;
+            if (!children1.containsKey(key)) {
+                diffs.add("Added: " + relPath + "/" + key);
+            }
+        }
+    }
+
+    private Map<String, Document> getChildMap(String path) {
+        return getChildMap(path, CHILD_FIELDS);
+    }
+
+    private Map<String, Document> getChildMap(String path, String[] fields) {
+        Map<String, Document> map = new LinkedHashMap<>();
+        for (Document child : getChildren(path, fields)) {
+            map.put(getLastPathPart(child), child);
+        }
+        return map;
+    }
+
+    private Document loadFull(Document child) {
+        Document full = loadDoc(child.getObjectId(SubNode.ID));
+        if (full == null) {
+            throw new RuntimeEx("Node deleted during comparison: " + child.getString(SubNode.PATH));
+        }
+        return full;
+    }
+
+    @Override
+    public void pathChanged(String path) {
+        invalidate(path);
+    }
+
+    // moved nodes keep their hashes, but the ancestors at both the old and new locations no longer match,
+    // and at the new one we start from the parent so the moved node keeps its hash
+    @Override
+    public void subtreeMoved(String oldPath, String newPath) {
+        invalidate(oldPath);
+        invalidate(XString.truncAfterLast(newPath, "/"));
+    }
+
+    /*
+     * A bulk delete or replace of the subgraph at 'path'. Nodes written in bulk (like by a restore) may
+     * have come with hashes that don't match what's under them now, so every stored hash in the subgraph
+     * goes too (pathChanged, which is also called, takes care of the node and its ancestors). For a delete
+     * there's nothing left under 'path' and this matches nothing.
+     */
+    @Override
+    public void subtreeChanged(String path) {
+        if (path == null)
+            return;
+        clearHashes(Filters.regex(SubNode.PATH, svc_mongoUtil.regexSubGraph(path)));
+    }
+
+    @Override
+    public void allChanged() {
+        clearHashes(new Document());
+    }
+
+    // After the transaction, if any, for the same reason as in invalidate
+    private void clearHashes(Bson filter) {
+        Runnable clear = () -> {
+            try {
+                getCollection().updateMany(Filters.and(filter, Filters.exists(SubNode.MERKLE_HASH)),
+                        Updates.combine(Updates.unset(SubNode.MERKLE_HASH), Updates.unset(SubNode.MERKLE_COUNT),
+                                Updates.inc(SubNode.MERKLE_VER, 1)));
+            } catch (Exception e) {
+                log.error("Failed clearing merkle hashes", e);
+            }
+        };
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    clear.run();
+                }
+            });
+        } else {
+            clear.run();
+        }
+    }
+
+    /*
+     * Clears the stored hash of the node at 'path' and of its ancestors, up to the first one that has no
+     * hash already (everything above that has none either). Inside a transaction this
+     * is deferred until the transaction completes so we never clear hashes and then have them recomputed
+     * from the not-yet-committed state.
+     */
+    public void invalidate(String path) {
+        if (path == null)
+            return;
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            @SuppressWarnings("unchecked")
+            HashSet<String> pending = (HashSet<String>) TransactionSynchronizationManager.getResource(PENDING_KEY);
+            if (pending == null) {
+                HashSet<String> newPending = new HashSet<>();
+                TransactionSynchronizationManager.bindResource(PENDING_KEY, newPending);
+                TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                    @Override
+                    public void afterCompletion(int status) {
+                        TransactionSynchronizationManager.unbindResourceIfPossible(PENDING_KEY);
+                        // on rollback too, since that's harmless and a stored hash may have been cleared by a save
+                        flush(newPending);
+                    }
+                });
+                pending = newPending;
+            }
+            pending.add(path);
+        } else {
+            HashSet<String> paths = new HashSet<>();
+            paths.add(path);
+            flush(paths);
+        }
+    }
+
+    private void flush(HashSet<String> paths) {
+        HashSet<String> allPaths = new HashSet<>();
+        for (String path : paths) {
+            // the node itself plus every ancestor
+            while (path != null && path.length() > 1) {
+                if (!allPaths.add(path))
+                    break;
+                path = XString.truncAfterLast(path, "/");
+            }
+        }
+        if (allPaths.isEmpty())
+            return;
+
+        try {
+            HashSet<String> existing = new HashSet<>();
+            HashSet<String> hashed = new HashSet<>();
+            getCollection().find(Filters.in(SubNode.PATH, allPaths))
+                    .projection(Projections.include(SubNode.PATH, SubNode.MERKLE_HASH)).forEach(doc -> {
+                        existing.add(doc.getString(SubNode.PATH));
+                        if (doc.getString(SubNode.MERKLE_HASH) != null) {
+                            hashed.add(doc.getString(SubNode.PATH));
+                        }
+                    });
+
+            /*
+             * The first ancestor with no hash may have a computation running that already read the hash
+             * below it we're about to clear, so it still gets its version bumped. A path with no node
+             * (like the old location of a moved or deleted node) doesn't stop the walk.
+             */
+            HashSet<String> firstUnhashed = new HashSet<>();
+            for (String path : paths) {
+                while (path != null && path.length() > 1) {
+                    if (existing.contains(path) && !hashed.contains(path)) {
+                        firstUnhashed.add(path);
+                        break;
+                    }
+                    path = XString.truncAfterLast(path, "/");
+                }
+            }
+
+            // filtering on the hash again (not just using 'hashed') catches any stored since we looked
+            getCollection().updateMany(
+                    Filters.and(Filters.in(SubNode.PATH, allPaths),
+                            Filters.or(Filters.exists(SubNode.MERKLE_HASH), Filters.in(SubNode.PATH, firstUnhashed))),
+                    Updates.combine(Updates.unset(SubNode.MERKLE_HASH), Updates.unset(SubNode.MERKLE_COUNT),
+                            Updates.inc(SubNode.MERKLE_VER, 1)));
+        } catch (Exception e) {
+            log.error("Failed invalidating merkle hashes", e);
+        }
+    }
+
+    // The part of the hash coming from the node itself. Its own path is deliberately not included.
+    private String getNodeContentString(Document doc) {
+        SubNode n = new SubNode(doc);
+        StringBuilder sb = new StringBuilder();
+        sb.append(n.getOwner() != null ? n.getOwner().toHexString() : "");
+        sb.append("-");
+        sb.append(n.getContent() != null ? n.getContent() : "");
+        List<Attachment> atts = n.getOrderedAttachments();
+        if (atts != null) {
+            for (Attachment att : atts) {
+                if (att.getBin() != null) {
+                    sb.append("-bin" + att.getBin());
+                }
+                if (att.getBinData() != null) {
+                    sb.append("-bindat" + att.getBinData());
+                }
+            }
+        }
+        sb.append("\n");
+        return sb.toString();
+    }
+
+    private String getLastPathPart(Document doc) {
+        String path = doc.getString(SubNode.PATH);
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    private long getCount(Document doc) {
+        Number count = (Number) doc.get(SubNode.MERKLE_COUNT);
+        return count != null ? count.longValue() : 0;
+    }
+
+    /*
+     * Deliberately not the transaction bound database from MongoTemplate, hash maintenance is never part
+     * of a transaction (see invalidate)
+     */
+    private MongoCollection<Document> getCollection() {
+        return svc_mdbf.getMongoDatabase().getCollection(svc_ops.getNodesCollectionName());
+    }
+
+    private MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (Exception e) {
+            throw new RuntimeEx(e);
+        }
+    }
+}
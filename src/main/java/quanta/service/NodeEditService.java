@@ -241,7 +241,7 @@ public class NodeEditService extends ServiceBase {
         else {
             expanded = !expanded;
         }
-        sc.getNodeExpandStates().put(req.getNodeId(), expanded);
+        sc.setNodeExpanded(req.getNodeId(), expanded);
         svc_mongoRead.forceCheckHasChildren(node);
 
         NodeInfo newNodeInfo = svc_convert.toNodeInfo(false, TL.getSC(), node, false, Convert.LOGICAL_ORDINAL_GENERATE,
@@ -425,7 +425,7 @@ public class NodeMoveService extends ServiceBase {
             Criteria crit = new Criteria("id").is(node.getId());
             crit = svc_auth.addWriteSecurity(crit);
             Query query = new Query().addCriteria(crit);
-            Update update = new Update().set(SubNode.PATH, newPath);
+            Update update = new Update().set(SubNode.PATH, newPath).set(SubNode.DEPTH, SubNode.getPathDepth(newPath));
 
             bops.updateOne(query, update);
             if (++batchSize > Const.MAX_BULK_OPS) {
@@ -437,6 +437,8 @@ public class NodeMoveService extends ServiceBase {
         if (bops != null) {
             bops.execute();
         }
+        // the bulk path updates bypass the per node save hook
+        svc_nodeEvents.subtreeMoved(oldPathPrefix, newPathPrefix);
     }
 
     public SelectAllNodesResponse cm_selectAllNodes(SelectAllNodesRequest req) {
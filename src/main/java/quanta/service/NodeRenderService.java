@@ -561,7 +561,7 @@ public class NodeRenderService extends ServiceBase {
     public void getBreadcrumbs(SubNode node, LinkedList<BreadcrumbInfo> list) {
         try {
             if (node != null) {
-                node = svc_mongoRead.getParent(node);
+                node = svc_mongoRead.getParentLight(node, SubNode.CONTENT);
             }
             while (node != null) {
                 BreadcrumbInfo bci = new BreadcrumbInfo();
@@ -588,7 +588,7 @@ public class NodeRenderService extends ServiceBase {
                 bci.setId(node.getIdStr());
                 bci.setType(node.getType());
                 list.add(0, bci);
-                node = svc_mongoRead.getParent(node);
+                node = svc_mongoRead.getParentLight(node, SubNode.CONTENT);
             }
         } catch (Exception e) {
         }
@@ -2,12 +2,9 @@ package quanta.service;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.StringTokenizer;
 import org.apache.commons.lang3.StringUtils;
-import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.data.domain.Sort;
@@ -22,7 +19,6 @@ import quanta.model.client.Constant;
 import quanta.model.client.ConstantInt;
 import quanta.model.client.NodeProp;
 import quanta.model.client.NodeType;
-import quanta.model.client.PrincipalName;
 import quanta.model.client.PrivilegeType;
 import quanta.model.client.SearchDefinition;
 import quanta.mongo.model.AccessControl;
@@ -61,15 +57,6 @@ import quanta.util.val.Val;
 public class NodeSearchService extends ServiceBase {
     private static Logger log = LoggerFactory.getLogger(NodeSearchService.class);
 
-    /*
-     * Warning: Do not add '#' or '@' to this list because we're using it to parse text for hashtags
-     * and/or usernames so those characters are part of the text. Also since urls sometimes contain
-     * something like "/path/#hash=" where a hashtag is used as a parameter in the url we also don't
-     * want / or ? or & characters in this delimiters list, and to support hyphenated terms we don't
-     * want '-' character as a delimiter either
-     */
-    private static final String WORD_DELIMS = " \n\r\t,;:\"'`()*{}[]<>=\\.!“";
-
     public RenderDocumentResponse cm_renderDocument(RenderDocumentRequest req) {
         SearchDefinition def = req.getSearchDefinition();
         if (def != null && !StringUtils.isEmpty(def.getName())) {
@@ -430,236 +417,61 @@ public class NodeSearchService extends ServiceBase {
         return res;
     }
 
-    private class Stats {
-        long nodeCount = 0;
-        long wordCount = 0;
-        int publicCount = 0;
-        int publicWriteCount = 0;
-        int nonPublicCount = 0;
-        int adminOwnedCount = 0;
-        int userShareCount = 0;
-        int signedNodeCount = 0;
-        int unsignedNodeCount = 0;
-        int failedSigCount = 0;
-    }
-
     public GetNodeStatsResponse cm_getNodeStats(GetNodeStatsRequest req) {
         GetNodeStatsResponse res = new GetNodeStatsResponse();
-        boolean countVotes = true;
-
-        HashMap<String, WordStats> wordMap = req.isGetWords() ? new HashMap<>() : null;
-        HashMap<String, WordStats> tagMap = req.isGetTags() ? new HashMap<>() : null;
-        HashMap<String, WordStats> voteMap = countVotes ? new HashMap<>() : null;
-
-        Stats stats = new Stats();
-        Iterable<SubNode> iter = null;
-        boolean strictFiltering = false;
-        SubNode searchRoot = null;
-
-        searchRoot = svc_mongoRead.getNode(req.getNodeId());
-        Sort sort = null;
-        iter = svc_mongoRead.getSubGraph(searchRoot, sort, 0, false, null);
-        HashSet<String> uniqueUsersSharedTo = new HashSet<>();
-        HashSet<ObjectId> uniqueVoters = countVotes ? new HashSet<>() : null;
-
-        // for tree stats we need to process the root node as well because our query only gets children
-        if (searchRoot != null) {
-            processStatsForNode(searchRoot, req, stats, uniqueVoters, strictFiltering, uniqueUsersSharedTo, countVotes,
-                    wordMap, tagMap, voteMap);
-        }
-
-        for (SubNode node : iter) {
-            processStatsForNode(node, req, stats, uniqueVoters, strictFiltering, uniqueUsersSharedTo, countVotes,
-                    wordMap, tagMap, voteMap);
+        SubNode searchRoot = svc_mongoRead.getNode(req.getNodeId());
+        if (searchRoot == null) {
+            throw new RuntimeEx("Node not found: " + req.getNodeId());
         }
-
-        List<WordStats> wordList = req.isGetWords() ? new ArrayList<>(wordMap.values()) : null;
-        List<WordStats> tagList = req.isGetTags() ? new ArrayList<>(tagMap.values()) : null;
-        List<WordStats> voteList = countVotes ? new ArrayList<>(voteMap.values()) : null;
-
-        if (wordList != null)
-            wordList.sort((s1, s2) -> (int) (s2.count - s1.count));
-        if (tagList != null)
-            tagList.sort((s1, s2) -> (int) (s2.count - s1.count));
-        if (voteList != null)
-            voteList.sort((s1, s2) -> (int) (s2.count - s1.count));
+        NodeStats stats = svc_nodeStats.getStats(searchRoot);
 
         StringBuilder sb = new StringBuilder();
         sb.append("Node count: " + stats.nodeCount + "\n");
         sb.append("Total Words: " + stats.wordCount + "\n");
-        if (wordList != null) {
-            sb.append("Unique Words: " + wordList.size() + "\n");
-        }
-        if (voteList != null) {
-            sb.append("Unique Votes: " + voteList.size() + "\n");
+        if (req.isGetWords()) {
+            sb.append("Unique Words: " + stats.words.size() + "\n");
         }
-
+        sb.append("Unique Votes: " + stats.votes.size() + "\n");
         sb.append("Non-Public: " + stats.nonPublicCount + "\n");
         sb.append("Public: " + stats.publicCount + "\n");
         sb.append("Public Writable: " + stats.publicWriteCount + "\n");
         sb.append("Admin Owned: " + stats.adminOwnedCount + "\n");
         sb.append("User Shares: " + stats.userShareCount + "\n");
-        sb.append("Unique Users Shared To: " + uniqueUsersSharedTo.size() + "\n");
-
+        sb.append("Unique Users Shared To: " + stats.sharedTo.size() + "\n");
         res.setStats(sb.toString());
-        if (wordList != null) {
+
+        if (req.isGetWords()) {
             ArrayList<String> topWords = new ArrayList<>();
             res.setTopWords(topWords);
-
-            for (WordStats ws : wordList) {
-                topWords.add(ws.word); // + "," + ws.count);
-                if (topWords.size() >= 100)
-                    break;
+            for (NodeStats.Counter c : NodeStats.top(stats.words, 100)) {
+                topWords.add(c.word);
             }
         }
 
-        if (voteList != null) {
-            ArrayList<String> topVotes = new ArrayList<>();
-            res.setTopVotes(topVotes);
-
-            for (WordStats ws : voteList) {
-                topVotes.add(ws.word + "(" + ws.count + ")");
-                if (topVotes.size() >= 100)
-                    break;
-            }
+        ArrayList<String> topVotes = new ArrayList<>();
+        res.setTopVotes(topVotes);
+        for (NodeStats.Counter c : NodeStats.top(stats.votes, 100)) {
+            topVotes.add(c.word + "(" + c.count + ")");
         }
 
-        if (tagList != null) {
+        if (req.isGetTags()) {
             ArrayList<HashtagInfo> topTags = new ArrayList<>();
             res.setTopTags(topTags);
-
-            for (WordStats ws : tagList) {
+            for (NodeStats.Counter c : NodeStats.top(stats.tags, 100)) {
                 HashtagInfo hi = new HashtagInfo();
-                hi.setHashtag(ws.word);
-                if (ws.usedWith != null) {
-                    hi.setUsedWith(new ArrayList<>(ws.usedWith));
-                }
-                topTags.add(hi); // + "," + ws.count);
-                if (topTags.size() >= 100)
-                    break;
-            }
-        }
-        return res;
-    }
-
-    private void processStatsForNode(SubNode node, GetNodeStatsRequest req, Stats stats, //
-            HashSet<ObjectId> uniqueVoters, boolean strictFiltering, HashSet<String> uniqueUsersSharedTo,
-            boolean countVotes, HashMap<String, WordStats> wordMap, HashMap<String, WordStats> tagMap,
-            HashMap<String, WordStats> voteMap) {
-
-        // set to hold all hashtags in this node only
-        HashSet<String> tags = null;
-        stats.nodeCount++;
-
-        // PART 1: Process sharing info
-        HashMap<String, AccessControl> aclEntry = node.getAc();
-        boolean isPublic = false;
-        if (aclEntry != null) {
-            for (String key : aclEntry.keySet()) {
-                AccessControl ac = aclEntry.get(key);
-                if (PrincipalName.PUBLIC.s().equals(key)) {
-                    isPublic = true;
-                    stats.publicCount++;
-                    if (ac != null && ac.getPrvs() != null && ac.getPrvs().contains(PrivilegeType.WRITE.s())) {
-                        stats.publicWriteCount++;
-                    }
-                } else {
-                    stats.userShareCount++;
-                    uniqueUsersSharedTo.add(key);
-                }
-            }
-        }
-
-        if (!isPublic) {
-            stats.nonPublicCount++;
-        }
-
-        if (svc_acl.isAdminOwned(node)) {
-            stats.adminOwnedCount++;
-        }
-
-        // PART 2: process 'content' text.
-        if (node.getContent() == null)
-            return;
-        String content = node.getContent();
-        if (node.getTags() != null) {
-            content += " " + node.getTags();
-        }
-
-        StringTokenizer tokens = new StringTokenizer(content, WORD_DELIMS, false);
-        while (tokens.hasMoreTokens()) {
-            String token = tokens.nextToken().trim();
-            if (!svc_english.isStopWord(token)) {
-                String lcToken = token.toLowerCase();
-                // if word is a hashtag.
-                if (token.startsWith("#")) {
-                    if (token.endsWith("#") || token.length() < 3)
-                        continue;
-
-                    // ignore stuff like #1 #23
-                    String numCheck = token.substring(1);
-                    if (StringUtils.isNumeric(numCheck))
-                        continue;
-
-                    if (tagMap != null) {
-                        WordStats ws = tagMap.get(lcToken);
-                        if (ws == null) {
-                            ws = new WordStats(token);
-                            tagMap.put(lcToken, ws);
-                        }
-                        if (tags == null) {
-                            tags = new HashSet<>();
-                        }
-                        tags.add(token);
-                        ws.inc(node);
-                    }
-                }
-                // ordinary word
-                else {
-                    if (!StringUtils.isAlpha(token) || token.length() < 3) {
-                        continue;
-                    }
-
-                    if (wordMap != null) {
-                        WordStats ws = wordMap.get(lcToken);
-                        if (ws == null) {
-                            ws = new WordStats(token);
-                            wordMap.put(lcToken, ws);
-                        }
-                        ws.inc(node);
-                    }
-                }
-            }
-            stats.wordCount++;
-        }
-
-        if (countVotes) {
-            String vote = node.getStr(NodeProp.VOTE.s());
-            if (vote != null) {
-                // 'add' returns true if we are encountering this ID for the first time, so we can tally it's vote
-                if (uniqueVoters.add(node.getId())) {
-                    WordStats ws = voteMap.get(vote);
-                    if (ws == null) {
-                        ws = new WordStats(vote);
-                        voteMap.put(vote, ws);
-                    }
-                    ws.inc(node);
-                }
-            }
-        }
-
-        // now process all the tags, so all of them know what other tags they are used with
-        if (tags != null) {
-            for (String tag : tags) {
-                WordStats ws = tagMap.get(tag);
-                if (ws != null) {
-                    for (String otherTag : tags) {
-                        if (!tag.equals(otherTag)) {
-                            ws.addUsedWith(otherTag);
-                        }
+                hi.setHashtag(c.word);
+                HashMap<String, NodeStats.Counter> usedWith = stats.usedWith.get(c.word.toLowerCase());
+                if (usedWith != null) {
+                    List<String> usedWithList = new ArrayList<>();
+                    for (String otherTag : usedWith.keySet()) {
+                        NodeStats.Counter other = stats.tags.get(otherTag);
+                        usedWithList.add(other != null ? other.word : otherTag);
                     }
+                    hi.setUsedWith(usedWithList);
                 }
+                topTags.add(hi);
             }
         }
+        return res;
     }
 }
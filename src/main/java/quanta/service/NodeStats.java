@@ -0,0 +1,235 @@
+package quanta.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.lang3.StringUtils;
+import org.bson.types.ObjectId;
+import quanta.config.ServiceBase;
+import quanta.model.client.NodeProp;
+import quanta.model.client.PrincipalName;
+import quanta.model.client.PrivilegeType;
+import quanta.mongo.model.AccessControl;
+import quanta.mongo.model.SubNode;
+
+/*
+ * Word, hashtag, vote and sharing counts for a set of nodes (normally a subgraph). Every count can be
+ * both added to and subtracted from (see addNode 'sign') so that a rollup can be kept current as
+ * nodes are saved and deleted without rescanning the whole subgraph, and two instances can be merged
+ * so the live computation can tokenize in parallel.
+ *
+ * All map keys are lowercase. Entries are removed when their count drops to zero so a subtraction
+ * leaves the maps exactly as they would be if the node had never been added.
+ *
+ * Not thread safe. Callers synchronize on the instance when it's shared.
+ */
+public class NodeStats {
+    /*
+     * Warning: Do not add '#' or '@' to the delimiters because tokens are checked for hashtags and
+     * usernames, so those characters are part of the text. Also since urls sometimes contain something
+     * like "/path/#hash=" we don't want / or ? or & either, and to support hyphenated terms we don't
+     * want '-' as a delimiter.
+     */
+    private static final int MAX_DELIM = 128;
+    private static final boolean[] delims = new boolean[MAX_DELIM];
+    static {
+        for (char c : " \n\r\t,;:\"'`()*{}[]<>=\\.!".toCharArray()) {
+            delims[c] = true;
+        }
+    }
+
+    public long nodeCount;
+    public long wordCount;
+    public long publicCount;
+    public long publicWriteCount;
+    public long nonPublicCount;
+    public long adminOwnedCount;
+    public long userShareCount;
+
+    public final HashMap<String, Counter> words = new HashMap<>();
+    public final HashMap<String, Counter> tags = new HashMap<>();
+    public final HashMap<String, Counter> votes = new HashMap<>();
+    // how many shares each user has, so we know when the last one goes away
+    public final HashMap<String, Counter> sharedTo = new HashMap<>();
+    // lowercase tag -> (other lowercase tag -> number of nodes having both)
+    public final HashMap<String, HashMap<String, Counter>> usedWith = new HashMap<>();
+
+    /*
+     * Mutable count holder, so a map update is a single lookup and there's no boxing. 'word' is the
+     * spelling as it was first encountered (for display)
+     */
+    public static class Counter {
+        public final String word;
+        public long count;
+
+        Counter(String word) {
+            this.word = word;
+        }
+    }
+
+    /*
+     * Adds (sign=1) or removes (sign=-1) everything 'node' contributes to these stats. Removing must be
+     * done with the same node content that was originally added.
+     */
+    public void addNode(SubNode node, int sign, ObjectId adminOwnerId) {
+        nodeCount += sign;
+
+        // PART 1: Process sharing info
+        HashMap<String, AccessControl> acl = node.getAc();
+        boolean isPublic = false;
+        if (acl != null) {
+            for (Map.Entry<String, AccessControl> entry : acl.entrySet()) {
+                if (PrincipalName.PUBLIC.s().equals(entry.getKey())) {
+                    isPublic = true;
+                    publicCount += sign;
+                    AccessControl ac = entry.getValue();
+                    if (ac != null && ac.getPrvs() != null && ac.getPrvs().contains(PrivilegeType.WRITE.s())) {
+                        publicWriteCount += sign;
+                    }
+                } else {
+                    userShareCount += sign;
+                    inc(sharedTo, entry.getKey(), entry.getKey(), sign);
+                }
+            }
+        }
+
+        if (!isPublic) {
+            nonPublicCount += sign;
+        }
+
+        if (node.getOwner() != null && node.getOwner().equals(adminOwnerId)) {
+            adminOwnedCount += sign;
+        }
+
+        // PART 2: process 'content' text.
+        String content = node.getContent();
+        if (content == null)
+            return;
+        if (node.getTags() != null) {
+            content += " " + node.getTags();
+        }
+
+        List<String> nodeTags = null;
+        int len = content.length();
+        int i = 0;
+        while (i < len) {
+            // skip delimiters, then scan to the end of the token
+            while (i < len && isDelim(content.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < len && !isDelim(content.charAt(i))) {
+                i++;
+            }
+            if (start == i)
+                break;
+
+            String token = content.substring(start, i).trim();
+            if (!ServiceBase.svc_english.isStopWord(token)) {
+                String lcToken = token.toLowerCase();
+                // if word is a hashtag.
+                if (token.startsWith("#")) {
+                    if (token.endsWith("#") || token.length() < 3)
+                        continue;
+
+                    // ignore stuff like #1 #23
+                    if (StringUtils.isNumeric(token.substring(1)))
+                        continue;
+
+                    if (nodeTags == null) {
+                        nodeTags = new ArrayList<>();
+                    }
+                    if (!nodeTags.contains(lcToken)) {
+                        nodeTags.add(lcToken);
+                    }
+                    inc(tags, lcToken, token, sign);
+                }
+                // ordinary word
+                else {
+                    if (!StringUtils.isAlpha(token) || token.length() < 3) {
+                        continue;
+                    }
+                    inc(words, lcToken, token, sign);
+                }
+            }
+            wordCount += sign;
+        }
+
+        String vote = node.getStr(NodeProp.VOTE.s());
+        if (vote != null) {
+            inc(votes, vote, vote, sign);
+        }
+
+        // now process all the tags, so all of them know what other tags they are used with
+        if (nodeTags != null && nodeTags.size() > 1) {
+            for (String tag : nodeTags) {
+                HashMap<String, Counter> others = usedWith.computeIfAbsent(tag, k -> new HashMap<>());
+                for (String otherTag : nodeTags) {
+                    if (!tag.equals(otherTag)) {
+                        inc(others, otherTag, otherTag, sign);
+                    }
+                }
+                if (others.isEmpty()) {
+                    usedWith.remove(tag);
+                }
+            }
+        }
+    }
+
+    /* Adds all of 'other' into this */
+    public void merge(NodeStats other) {
+        nodeCount += other.nodeCount;
+        wordCount += other.wordCount;
+        publicCount += other.publicCount;
+        publicWriteCount += other.publicWriteCount;
+        nonPublicCount += other.nonPublicCount;
+        adminOwnedCount += other.adminOwnedCount;
+        userShareCount += other.userShareCount;
+        mergeCounts(words, other.words);
+        mergeCounts(tags, other.tags);
+        mergeCounts(votes, other.votes);
+        mergeCounts(sharedTo, other.sharedTo);
+        for (Map.Entry<String, HashMap<String, Counter>> entry : other.usedWith.entrySet()) {
+            mergeCounts(usedWith.computeIfAbsent(entry.getKey(), k -> new HashMap<>()), entry.getValue());
+        }
+    }
+
+    public NodeStats copy() {
+        NodeStats ret = new NodeStats();
+        ret.merge(this);
+        return ret;
+    }
+
+    /* Returns up to 'max' entries of 'map' with the highest counts, highest first */
+    public static List<Counter> top(HashMap<String, Counter> map, int max) {
+        List<Counter> list = new ArrayList<>(map.values());
+        list.sort((c1, c2) -> Long.compare(c2.count, c1.count));
+        return list.size() > max ? list.subList(0, max) : list;
+    }
+
+    private static boolean isDelim(char c) {
+        return c < MAX_DELIM ? delims[c] : c == '“';
+    }
+
+    private static void inc(HashMap<String, Counter> map, String key, String word, long amount) {
+        Counter c = map.get(key);
+        if (c == null) {
+            // a subtraction of something we don't have means the rollup had drifted, just ignore
+            if (amount <= 0)
+                return;
+            c = new Counter(word);
+            map.put(key, c);
+        }
+        c.count += amount;
+        if (c.count <= 0) {
+            map.remove(key);
+        }
+    }
+
+    private static void mergeCounts(HashMap<String, Counter> target, HashMap<String, Counter> source) {
+        for (Map.Entry<String, Counter> entry : source.entrySet()) {
+            inc(target, entry.getKey(), entry.getValue().word, entry.getValue().count);
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package quanta.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+import jakarta.annotation.PreDestroy;
+import quanta.config.ServiceBase;
+import quanta.exception.base.RuntimeEx;
+import quanta.model.client.NodeProp;
+import quanta.mongo.NodeChangeListener;
+import quanta.mongo.model.SubNode;
+import quanta.util.DateUtil;
+import quanta.util.val.Val;
+
+/**
+ * Maintains word/hashtag/vote statistics per subtree (see NodeStats).
+ *
+ * The first stats request for a subtree does a live computation, tokenizing the subgraph in parallel,
+ * and the result is kept as a 'rollup'. After that, every node save and delete that lands inside a
+ * rollup's subtree is applied to it as a delta (see NodeChangeListener), so repeat
+ * requests cost nothing but a copy. Bulk operations that can change stats (deletes, moves, ACL
+ * changes, imports) just invalidate the rollups overlapping their path, and so do changes made on
+ * other replicas (which only reach us as paths, see NodeChangeEvents). Rollups also expire after
+ * ROLLUP_TTL so any drift (like from an aborted transaction) can't live long.
+ *
+ * Subgraph queries only return what the user is allowed to read, so rollups are kept per viewer (see
+ * NodeViewer) and deltas are only applied for nodes the viewer could see.
+ */
+@Component
+public class NodeStatsService extends ServiceBase implements NodeChangeListener {
+    private static Logger log = LoggerFactory.getLogger(NodeStatsService.class);
+
+    private static final int STATS_THREADS = 4;
+    private static final int BATCH_SIZE = 2000;
+    private static final int MAX_ROLLUPS = 100;
+    private static final long ROLLUP_TTL = 30 * DateUtil.MINUTE_MILLIS;
+
+    // everything NodeStats.addNode looks at, so we can do projected reads (plus type, which every read needs)
+    public static final String[] STATS_FIELDS = {SubNode.PATH, SubNode.TYPE, SubNode.CONTENT, SubNode.TAGS,
+            SubNode.AC, SubNode.OWNER, SubNode.XFR, SubNode.PROPS + "." + NodeProp.VOTE.s()};
+
+    private final ExecutorService pool = Executors.newFixedThreadPool(STATS_THREADS);
+
+    // key is rootId + "|" + viewer key
+    private final ConcurrentHashMap<String, Rollup> rollups = new ConcurrentHashMap<>();
+
+    private static class Rollup {
+        final ObjectId rootId;
+        final String rootPath;
+        final NodeViewer viewer;
+        final long createTime = System.currentTimeMillis();
+
+        // null while the live computation is running
+        volatile NodeStats stats;
+        // set if something changed in the subtree while we were computing, so the result can't be kept
+        volatile boolean dirty;
+
+        Rollup(ObjectId rootId, String rootPath, NodeViewer viewer) {
+            this.rootId = rootId;
+            this.rootPath = rootPath;
+            this.viewer = viewer;
+        }
+
+        boolean covers(String path) {
+            return path != null && path.startsWith(rootPath + "/");
+        }
+    }
+
+    @PreDestroy
+    public void preDestroy() {
+        pool.shutdownNow();
+    }
+
+    /*
+     * Returns stats for 'root' and its entire subgraph as visible to the current user. The caller owns
+     * the returned object.
+     */
+    public NodeStats getStats(SubNode root) {
+        NodeViewer viewer = NodeViewer.current();
+        String key = root.getIdStr() + "|" + viewer.key;
+
+        Rollup rollup = rollups.get(key);
+        if (rollup != null && rollup.stats != null && !rollup.dirty && rollup.rootPath.equals(root.getPath())
+                && System.currentTimeMillis() - rollup.createTime < ROLLUP_TTL) {
+            NodeStats stats = rollup.stats;
+            synchronized (stats) {
+                return stats.copy();
+            }
+        }
+
+        // register before computing so any saves that happen during the scan mark it dirty
+        rollup = new Rollup(root.getId(), root.getPath(), viewer);
+        rollups.put(key, rollup);
+        NodeStats stats = null;
+        try {
+            stats = computeStats(root);
+        } catch (Exception e) {
+            rollups.remove(key, rollup);
+            throw e;
+        }
+
+        if (rollup.dirty) {
+            rollups.remove(key, rollup);
+            return stats;
+        }
+        rollup.stats = stats;
+        evictOldest();
+        synchronized (stats) {
+            return stats.copy();
+        }
+    }
+
+    /*
+     * Live computation. We stream a projection of the subgraph on this thread and hand off batches to
+     * the pool for tokenizing, each batch into its own NodeStats, then merge them all.
+     */
+    public NodeStats computeStats(SubNode root) {
+        ObjectId adminOwnerId = getAdminOwnerId();
+        NodeStats ret = new NodeStats();
+
+        // for tree stats we need to process the root node as well because our query only gets children
+        ret.addNode(root, 1, adminOwnerId);
+        if (svc_mongoRead.noChildren(root)) {
+            return ret;
+        }
+
+        Query q = new Query();
+        q.addCriteria(svc_auth.addReadSecurity(svc_mongoUtil.subGraphCriteria(root.getPath())));
+        q.fields().include(STATS_FIELDS);
+
+        List<Future<NodeStats>> futures = new ArrayList<>();
+        Val<List<SubNode>> batch = new Val<>(new ArrayList<>(BATCH_SIZE));
+        svc_ops.forEach(q, n -> {
+            batch.getVal().add(n);
+            if (batch.getVal().size() >= BATCH_SIZE) {
+                futures.add(submitBatch(batch.getVal(), adminOwnerId));
+                batch.setVal(new ArrayList<>(BATCH_SIZE));
+            }
+        });
+        if (batch.getVal().size() > 0) {
+            futures.add(submitBatch(batch.getVal(), adminOwnerId));
+        }
+
+        try {
+            for (Future<NodeStats> f : futures) {
+                ret.merge(f.get());
+            }
+        } catch (Exception e) {
+            futures.forEach(f -> f.cancel(true));
+            throw new RuntimeEx("Failed computing node stats", e);
+        }
+        log.debug("Computed stats for " + ret.nodeCount + " nodes under " + root.getPath());
+        return ret;
+    }
+
+    private Future<NodeStats> submitBatch(List<SubNode> nodes, ObjectId adminOwnerId) {
+        return svc_async.submit(pool, () -> {
+            NodeStats stats = new NodeStats();
+            for (SubNode n : nodes) {
+                stats.addNode(n, 1, adminOwnerId);
+            }
+            return stats;
+        });
+    }
+
+    // only saves landing in a rollup need the old node, everything else stays a plain save
+    @Override
+    public boolean needsPriorState(SubNode node) {
+        if (rollups.isEmpty())
+            return false;
+        for (Rollup rollup : rollups.values()) {
+            if (rollup.rootId.equals(node.getId()) || rollup.covers(node.getPath()))
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String[] getPriorFields() {
+        return STATS_FIELDS;
+    }
+
+    @Override
+    public void nodeSaved(SubNode oldNode, SubNode newNode) {
+        nodeChanged(oldNode, newNode);
+    }
+
+    @Override
+    public void nodeDeleted(SubNode node) {
+        nodeChanged(node, null);
+    }
+
+    @Override
+    public void subtreeChanged(String path) {
+        invalidate(path);
+    }
+
+    @Override
+    public void subtreeMoved(String oldPath, String newPath) {
+        invalidate(oldPath);
+        invalidate(newPath);
+    }
+
+    @Override
+    public void allChanged() {
+        invalidateAll();
+    }
+
+    @Override
+    public void remoteChanged(String path) {
+        invalidate(path);
+    }
+
+    /*
+     * Called after a node is saved or deleted. 'oldNode' is what was in the DB before (null for a new
+     * node) and 'newNode' is what's there now (null for a delete). These only need the STATS_FIELDS.
+     */
+    public void nodeChanged(SubNode oldNode, SubNode newNode) {
+        if (rollups.isEmpty())
+            return;
+        ObjectId adminOwnerId = getAdminOwnerId();
+        for (Rollup rollup : rollups.values()) {
+            if (oldNode != null) {
+                applyDelta(rollup, oldNode, -1, adminOwnerId);
+            }
+            if (newNode != null) {
+                applyDelta(rollup, newNode, 1, adminOwnerId);
+            }
+        }
+    }
+
+    private void applyDelta(Rollup rollup, SubNode node, int sign, ObjectId adminOwnerId) {
+        // the root itself is always included, other nodes only if they're in the subtree and readable
+        boolean isRoot = rollup.rootId.equals(node.getId());
+        if (!isRoot && (!rollup.covers(node.getPath()) || !rollup.viewer.canRead(node)))
+            return;
+
+        NodeStats stats = rollup.stats;
+        if (stats == null) {
+            rollup.dirty = true;
+            return;
+        }
+        synchronized (stats) {
+            stats.addNode(node, sign, adminOwnerId);
+        }
+    }
+
+    /*
+     * Drops every rollup whose subtree overlaps 'path' (is above it, below it, or equal). For bulk
+     * changes where we don't have the individual nodes.
+     */
+    public void invalidate(String path) {
+        if (rollups.isEmpty() || path == null)
+            return;
+        rollups.forEach((key, rollup) -> {
+            if (rollup.rootPath.equals(path) || rollup.covers(path) || rollup.rootPath.startsWith(path + "/")) {
+                rollup.dirty = true;
+                rollups.remove(key, rollup);
+            }
+        });
+    }
+
+    public void invalidateAll() {
+        rollups.forEach((key, rollup) -> {
+            rollup.dirty = true;
+            rollups.remove(key, rollup);
+        });
+    }
+
+    private void evictOldest() {
+        long now = System.currentTimeMillis();
+        rollups.forEach((key, rollup) -> {
+            if (now - rollup.createTime > ROLLUP_TTL) {
+                rollups.remove(key, rollup);
+            }
+        });
+
+        while (rollups.size() > MAX_ROLLUPS) {
+            String oldestKey = null;
+            long oldestTime = Long.MAX_VALUE;
+            for (Map.Entry<String, Rollup> entry : rollups.entrySet()) {
+                if (entry.getValue().createTime < oldestTime) {
+                    oldestTime = entry.getValue().createTime;
+                    oldestKey = entry.getKey();
+                }
+            }
+            if (oldestKey == null)
+                break;
+            rollups.remove(oldestKey);
+        }
+    }
+
+    private ObjectId getAdminOwnerId() {
+        return svc_auth.getAdminSC().getUserNodeObjId();
+    }
+}
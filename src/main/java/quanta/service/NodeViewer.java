@@ -0,0 +1,69 @@
+package quanta.service;
+
+import java.util.HashMap;
+import org.bson.types.ObjectId;
+import quanta.config.ServiceBase;
+import quanta.model.client.PrincipalName;
+import quanta.mongo.model.AccessControl;
+import quanta.mongo.model.SubNode;
+import quanta.util.TL;
+
+/*
+ * Who is reading, for the in-memory structures that need to filter nodes the same way a query would.
+ * This mirrors the conditions in MongoAuth.addSecurity so it can tell which nodes would have been in
+ * the viewer's query results.
+ */
+public class NodeViewer {
+    public final String key;
+    public final boolean admin;
+    public final ObjectId ownerId;
+
+    NodeViewer(String key, boolean admin, ObjectId ownerId) {
+        this.key = key;
+        this.admin = admin;
+        this.ownerId = ownerId;
+    }
+
+    /* The viewer for the current request thread */
+    public static NodeViewer current() {
+        if (TL.hasAdminPrivileges()) {
+            return new NodeViewer(PrincipalName.ADMIN.s(), true, null);
+        }
+        if (TL.getSC() != null && !TL.getSC().isAnon()) {
+            SubNode acntNode = ServiceBase.svc_mongoRead.getNodeLight(TL.getSC().getUserNodeObjId());
+            if (acntNode != null) {
+                return new NodeViewer(acntNode.getOwner().toHexString(), false, acntNode.getOwner());
+            }
+        }
+        return new NodeViewer(PrincipalName.ANON.s(), false, null);
+    }
+
+    public boolean canRead(SubNode node) {
+        if (admin)
+            return true;
+        HashMap<String, AccessControl> acl = node.getAc();
+        if (acl != null && (acl.get(PrincipalName.PUBLIC.s()) != null
+                || (ownerId != null && acl.get(ownerId.toHexString()) != null))) {
+            return true;
+        }
+        return isOwner(node.getOwner(), node.getTransferFrom());
+    }
+
+    /* Same as canRead(SubNode) for callers that only kept the relevant fields */
+    public boolean canRead(ObjectId owner, ObjectId transferFrom, boolean isPublic, String[] sharedTo) {
+        if (admin || isPublic)
+            return true;
+        if (ownerId != null && sharedTo != null) {
+            String ownerHex = ownerId.toHexString();
+            for (String share : sharedTo) {
+                if (ownerHex.equals(share))
+                    return true;
+            }
+        }
+        return isOwner(owner, transferFrom);
+    }
+
+    private boolean isOwner(ObjectId owner, ObjectId transferFrom) {
+        return ownerId != null && (ownerId.equals(owner) || ownerId.equals(transferFrom));
+    }
+}
@@ -1,32 +1,91 @@
 package quanta.service;
 
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 import org.apache.commons.collections4.map.LRUMap;
 import org.apache.commons.lang3.StringUtils;
-import org.jsoup.Connection;
+import org.bson.types.ObjectId;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.select.Elements;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import quanta.config.ServiceBase;
+import quanta.config.SessionContext;
+import quanta.exception.base.RuntimeEx;
 import quanta.model.client.NodeProp;
 import quanta.model.client.OpenGraph;
 import quanta.mongo.model.SubNode;
 import quanta.rest.request.GetOpenGraphRequest;
 import quanta.rest.response.GetOpenGraphResponse;
+import quanta.rest.response.OpenGraphPushInfo;
+import quanta.util.Const;
+import quanta.util.ExUtil;
 import quanta.util.MimeUtil;
+import quanta.util.TL;
+import quanta.util.Util;
 import quanta.util.XString;
 
-@Component 
+/**
+ * OpenGraph lookups are done off the request path. Saving a node only picks up results that are
+ * already cached, and any URLs we haven't seen yet get loaded in the background, after which the
+ * node is updated and the browser that saved it is notified via server push.
+ *
+ * Results are cached in memory and also in Redis (with a TTL) so they survive restarts and are
+ * shared across replicas. Failed lookups are cached too (for a shorter time) so a dead link doesn't
+ * get fetched over and over.
+ */
+@Component
 public class OpenGraphService extends ServiceBase {
-    @SuppressWarnings("unused")
     private static Logger log = LoggerFactory.getLogger(OpenGraphService.class);
 
     // private Pattern urlPattern = Pattern.compile("(https?:\\/\\/[^\\s]+)", Pattern.CASE_INSENSITIVE);
-    private final LRUMap<String, OpenGraph> ogCache = new LRUMap<>(1000);
+    private final LRUMap<String, CachedOpenGraph> ogCache = new LRUMap<>(1000);
+
+    // an OpenGraph in the memory cache, which expires when the Redis copy does
+    private static class CachedOpenGraph {
+        final OpenGraph og;
+        final long expireTime;
+
+        CachedOpenGraph(OpenGraph og, Duration ttl) {
+            this.og = og;
+            this.expireTime = System.currentTimeMillis() + ttl.toMillis();
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() >= expireTime;
+        }
+    }
+
+    // URLs currently being fetched, so concurrent requests for the same URL share one fetch
+    private final ConcurrentHashMap<String, CompletableFuture<OpenGraph>> inFlight = new ConcurrentHashMap<>();
+
+    private static final String REDIS_PREFIX = "og:";
+    private static final Duration CACHE_TTL = Duration.ofDays(7);
+    private static final Duration NEGATIVE_CACHE_TTL = Duration.ofHours(6);
+    private static final int MAX_LINKS_PER_NODE = 10;
+
+    // max time an enrichment task will wait on a fetch that some other thread is running
+    private static final long IN_FLIGHT_WAIT_SECS = 30;
+
+    // Jsoup's default max body size, which is what we always used to read pages with
+    private static final int MAX_PAGE_BYTES = 2 * Const.ONE_MB;
+
     private static final String BROWSER_USER_AGENT =
             "Browser: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/91.0.4472.114 Safari/537.36";
 
@@ -37,46 +96,140 @@ public class OpenGraphService extends ServiceBase {
     }
 
     public OpenGraph getOpenGraph(String url) {
+        url = normalizeUrl(url);
+        OpenGraph og = getCachedOpenGraph(url);
+        if (og != null) {
+            return og;
+        }
+        CompletableFuture<OpenGraph> future = loadOpenGraph(url);
+        try {
+            return future.get(IN_FLIGHT_WAIT_SECS, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            return makeEmptyOpenGraph(url);
+        }
+    }
+
+    private String normalizeUrl(String url) {
         url = XString.stripIfEndsWith(url, "/");
         url = XString.stripIfEndsWith(url, "\\");
+        return url;
+    }
 
-        // if the url is cached (even if null) then return whatever's in the cache
+    /*
+     * Returns the OpenGraph for the url if it's in the memory cache or Redis, and never does any network
+     * I/O. Returns null if we have nothing yet for this url.
+     */
+    public OpenGraph getCachedOpenGraph(String url) {
         synchronized (ogCache) {
-            if (ogCache.containsKey(url)) {
-                return ogCache.get(url);
+            CachedOpenGraph cached = ogCache.get(url);
+            if (cached != null) {
+                if (!cached.isExpired()) {
+                    return cached.og;
+                }
+                ogCache.remove(url);
             }
         }
 
+        try {
+            String json = svc_redis.getStr(REDIS_PREFIX + url);
+            if (json != null) {
+                OpenGraph og = Util.simpleMapper.readValue(json, OpenGraph.class);
+                // kept only as long as Redis has left on it, so this replica doesn't outlive the shared copy
+                Duration ttl = svc_redis.getStrTtl(REDIS_PREFIX + url);
+                synchronized (ogCache) {
+                    ogCache.put(url, new CachedOpenGraph(og, ttl != null ? ttl : getTtl(og)));
+                }
+                return og;
+            }
+        } catch (Exception e) {
+            ExUtil.error(log, "failed reading OpenGraph cache for " + url, e);
+        }
+        return null;
+    }
+
+    /*
+     * Single-flight load of the url. If some other thread is already fetching this url we return its
+     * future, otherwise we run the fetch right here on the calling thread and return a completed one.
+     */
+    private CompletableFuture<OpenGraph> loadOpenGraph(String url) {
+        CompletableFuture<OpenGraph> future = new CompletableFuture<>();
+        CompletableFuture<OpenGraph> existing = inFlight.putIfAbsent(url, future);
+        if (existing != null) {
+            return existing;
+        }
+
+        try {
+            future.complete(fetchAndCache(url));
+        } catch (Exception e) {
+            future.complete(makeEmptyOpenGraph(url));
+        } finally {
+            inFlight.remove(url, future);
+        }
+        return future;
+    }
+
+    private OpenGraph fetchAndCache(String url) {
         OpenGraph openGraph = null;
         try {
             openGraph = parseOpenGraph(url);
         } catch (Exception e) {
-            String mime = MimeUtil.getMimeTypeFromUrl(url);
-            openGraph = new OpenGraph();
-            openGraph.setMime(mime);
+            openGraph = makeEmptyOpenGraph(url);
         }
 
         // we can't trust what we get back from servers, but we do need to be sure URL is correct here
         // ourselves.
         openGraph.setUrl(url);
 
-        // we allow storing a null if we got back a null. Cache it so we don't try again.
+        Duration ttl = getTtl(openGraph);
         synchronized (ogCache) {
-            ogCache.put(url, openGraph);
+            ogCache.put(url, new CachedOpenGraph(openGraph, ttl));
+        }
+
+        try {
+            svc_redis.setStr(REDIS_PREFIX + url, XString.compactPrint(openGraph), ttl);
+        } catch (Exception e) {
+            ExUtil.error(log, "failed writing OpenGraph cache for " + url, e);
         }
         return openGraph;
     }
 
+    // failed lookups are retried sooner than good ones
+    private Duration getTtl(OpenGraph og) {
+        return isEmpty(og) ? NEGATIVE_CACHE_TTL : CACHE_TTL;
+    }
+
+    private OpenGraph makeEmptyOpenGraph(String url) {
+        OpenGraph openGraph = new OpenGraph();
+        openGraph.setMime(MimeUtil.getMimeTypeFromUrl(url));
+        openGraph.setUrl(url);
+        return openGraph;
+    }
+
+    // true if the lookup gave us nothing renderable (i.e. a negative result)
+    private boolean isEmpty(OpenGraph og) {
+        return StringUtils.isEmpty(og.getTitle()) && StringUtils.isEmpty(og.getDescription())
+                && StringUtils.isEmpty(og.getImage());
+    }
+
     public OpenGraph parseOpenGraph(String urlStr) throws Exception {
         OpenGraph openGraph = new OpenGraph();
-        Connection con = Jsoup.connect(urlStr);
-        con.timeout(5000);
         /*
          * this browseragent thing is important to trick servers into sending us the LARGEST versions of the
          * images
          */
-        con.userAgent(BROWSER_USER_AGENT);
-        Document doc = con.get();
+        OutboundHttpService.Response res =
+                svc_http.get(urlStr, BROWSER_USER_AGENT, MAX_PAGE_BYTES, Duration.ofMillis(5000), true);
+        if (!res.isOk()) {
+            throw new RuntimeEx("HTTP " + res.status + " reading " + urlStr);
+        }
+        // same as Jsoup.connect().get(), which refused anything that isn't HTML or XML
+        String contentType = res.getContentType();
+        if (contentType != null && !contentType.startsWith("text/") && !contentType.contains("xml")) {
+            throw new RuntimeEx("Unsupported content type " + contentType + " for " + urlStr);
+        }
+        // charset is null if the server didn't send one, and then Jsoup detects it from the page
+        Charset charset = res.getCharset();
+        Document doc = Jsoup.parse(new ByteArrayInputStream(res.body), charset != null ? charset.name() : null, urlStr);
 
         // todo-2: add site_name, type, url, twitter:url, twitter:card (like og:type)
         openGraph.setTitle(getOg(doc, "og:title"));
@@ -104,8 +257,9 @@ public class OpenGraphService extends ServiceBase {
     }
 
     /*
-     * Parses the content for any HTML links and attempts to get the OpenGraph from the network and puts
-     * the opengraph object into node properties.
+     * Parses the content for any HTML links and puts the OpenGraph objects we already have cached into
+     * node properties. Any links not yet cached are loaded in the background (see enrichNodeAsync) so
+     * that saving a node never waits on remote servers.
      * 
      * todo-3: for now this method is 'cumulative' and never removes unused OG entries like if a node is
      * edited (unless all HTTPs text is removed), but we will take care of that when we are calling this
@@ -135,11 +289,45 @@ public class OpenGraphService extends ServiceBase {
             return;
         }
 
+        // urls we have nothing cached for yet, which will be loaded in the background
+        List<String> pendingUrls = null;
+
         // iterate through each url and cache it
-        for (String line : urlList) {
+        for (String url : getUrlsFromLines(urlList)) {
+            if (ogList == null) {
+                ogList = new ArrayList<>();
+            }
+
+            if (ogListContains(ogList, url) || (pendingUrls != null && pendingUrls.contains(url)))
+                continue;
+
+            OpenGraph og = getCachedOpenGraph(url);
+            if (og != null) {
+                ogList.add(XString.compactPrint(og));
+            } else {
+                if (pendingUrls == null) {
+                    pendingUrls = new LinkedList<>();
+                }
+                pendingUrls.add(url);
+            }
+
+            // if more than 10 links in content then ignore the rest
+            if (ogList.size() + (pendingUrls != null ? pendingUrls.size() : 0) > MAX_LINKS_PER_NODE) {
+                break;
+            }
+        }
+        node.set(NodeProp.OPEN_GRAPH.s(), ogList);
+
+        if (pendingUrls != null) {
+            enrichNodeAsync(node, pendingUrls);
+        }
+    }
+
+    private List<String> getUrlsFromLines(List<String> lines) {
+        List<String> urls = new LinkedList<>();
+        for (String line : lines) {
             if (!line.contains("http"))
                 continue;
-            String url = null;
 
             // startingn line with "* http" means do not render opengraph
             if (line.startsWith("* ")) {
@@ -151,40 +339,89 @@ public class OpenGraphService extends ServiceBase {
             }
 
             if (line.startsWith("http://") || line.startsWith("https://")) {
-                url = line;
-            } else {
-                continue;
+                // Stripping trailing slashes is a hack because my regex isn't perfect (todo-3: fix the regex)
+                urls.add(normalizeUrl(line));
             }
+        }
+        return urls;
+    }
 
-            if (ogList == null) {
-                ogList = new ArrayList<>();
+    private boolean ogListContains(List<String> ogList, String url) {
+        for (String urlCheck : ogList) {
+            // just finding the URL is a hack but will be fine for now, to avoid parsing JSON
+            if (urlCheck.contains(url)) {
+                return true;
             }
+        }
+        return false;
+    }
 
-            // Stripping trailing slashes is a hack because my regex isn't perfect (todo-3: fix the regex)
-            url = XString.stripIfEndsWith(url, "/");
-            url = XString.stripIfEndsWith(url, "\\");
+    /*
+     * Loads the OpenGraph for each of 'urls' on a worker thread, then adds them to the node's
+     * OPEN_GRAPH property and pushes them to the browser of the session that saved the node. If we're
+     * in a transaction we wait for the commit, so the node (and its id) exists by the time we write.
+     *
+     * We fetch the urls this task owns before waiting on any that other threads are already fetching,
+     * so two tasks waiting on each other can't tie up the pool.
+     */
+    private void enrichNodeAsync(SubNode node, List<String> urls) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    enrichNode(node, urls);
+                }
+            });
+        } else {
+            enrichNode(node, urls);
+        }
+    }
 
-            // set load=false if we already have this URL in our ogList
-            boolean load = true;
+    private void enrichNode(SubNode node, List<String> urls) {
+        SessionContext sc = TL.getSC();
+        // what was saved, so we don't add links to content that has been edited since
+        String content = node.getContent();
+        svc_async.run(() -> {
+            HashMap<String, CompletableFuture<OpenGraph>> futures = new HashMap<>();
+            for (String url : urls) {
+                futures.put(url, loadOpenGraph(url));
+            }
 
-            for (String urlCheck : ogList) {
-                // just finding the URL is a hack but will be fine for now, to avoid parsing JSON
-                if (urlCheck.contains(url)) {
-                    load = false;
-                    break;
+            List<OpenGraph> ogs = new LinkedList<>();
+            for (String url : urls) {
+                try {
+                    ogs.add(futures.get(url).get(IN_FLIGHT_WAIT_SECS, TimeUnit.SECONDS));
+                } catch (Exception e) {
+                    log.debug("OpenGraph not ready for: " + url);
                 }
             }
-            if (!load)
-                continue;
 
-            OpenGraph og = getOpenGraph(url);
-            ogList.add(XString.compactPrint(og));
+            ObjectId nodeId = node.getId();
+            if (ogs.isEmpty() || nodeId == null)
+                return;
 
-            // if more than 10 links in content then ignore the rest
-            if (ogList.size() > 10) {
-                break;
+            /*
+             * One targeted update per link rather than saving the node, so we can't overwrite anything
+             * saved meanwhile. Each update only matches if the content is still what was saved, the list
+             * doesn't already have this url, and the list isn't full yet.
+             */
+            String ogField = SubNode.PROPS + "." + NodeProp.OPEN_GRAPH.s();
+            List<OpenGraph> written = new LinkedList<>();
+            for (OpenGraph og : ogs) {
+                Query q = new Query(Criteria.where(SubNode.ID).is(nodeId).and(SubNode.CONTENT).is(content)
+                        .and(ogField).not().regex(Pattern.quote(og.getUrl())) //
+                        .and(ogField + "." + MAX_LINKS_PER_NODE).exists(false));
+                if (svc_ops.findAndModify(q, new Update().addToSet(ogField, XString.compactPrint(og))) != null) {
+                    written.add(og);
+                }
             }
-        }
-        node.set(NodeProp.OPEN_GRAPH.s(), ogList);
+            if (written.isEmpty())
+                return;
+
+            svc_nodeEvents.pathChanged(node.getPath());
+            if (sc != null) {
+                svc_push.pushInfo(sc, new OpenGraphPushInfo(nodeId.toHexString(), written));
+            }
+        });
     }
 }
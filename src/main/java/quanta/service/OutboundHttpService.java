@@ -0,0 +1,322 @@
+package quanta.service;
+
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferLimitException;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClient;
+import io.netty.channel.ChannelOption;
+import jakarta.annotation.PreDestroy;
+import quanta.config.ServiceBase;
+import quanta.exception.base.RuntimeEx;
+import quanta.util.BackendLimiter;
+import quanta.util.Const;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+/*
+ * All outbound HTTP to arbitrary web servers (RSS feeds, OpenGraph, uploads from URL, mime sniffing)
+ * goes thru here, so there's one connection pool with keep-alive instead of a new client (and TLS
+ * handshake) for every call.
+ *
+ * The pool (which is per host) keeps at most MAX_CONNS_PER_HOST connections open to any one host, and
+ * BackendLimiter.WEB caps how many fetches run at once overall. Callers first wait for one of the
+ * MAX_CONNS_PER_HOST permits of their host and only then for a WEB one, so a burst of calls to one slow
+ * host queues up on its own permits instead of holding all the WEB ones while they wait for that host's
+ * connections. Response bodies are capped at whatever size the caller passes in, and per host stats
+ * are in getReport.
+ */
+@Component
+public class OutboundHttpService extends ServiceBase {
+    private static Logger log = LoggerFactory.getLogger(OutboundHttpService.class);
+
+    private static final int MAX_CONNS_PER_HOST = 8;
+    private static final int MAX_PENDING_PER_HOST = 100;
+    private static final Duration PENDING_TIMEOUT = Duration.ofSeconds(60);
+    private static final Duration MAX_IDLE = Duration.ofSeconds(30);
+    private static final Duration MAX_LIFE = Duration.ofMinutes(5);
+    private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+    // body cap for ranged reads, in case the server sends the whole thing anyway
+    private static final int RANGE_MAX_BYTES = 64 * 1024;
+    // beyond this many hosts the rest are counted together, so the stats can't grow without bound
+    private static final int MAX_HOSTS_TRACKED = 500;
+    private static final String OTHER_HOSTS = "(other)";
+
+    private ConnectionProvider provider;
+    private WebClient client;
+    private WebClient redirectingClient;
+
+    private final ConcurrentHashMap<String, HostStats> hostStats = new ConcurrentHashMap<>();
+
+    // permits of each host being called right now, by host and port (guarded by synchronizing on it)
+    private final HashMap<String, HostPermits> hostPermits = new HashMap<>();
+
+    private static class HostPermits {
+        final Semaphore permits = new Semaphore(MAX_CONNS_PER_HOST, true);
+        // callers holding or waiting for a permit, so it can be dropped when there are none
+        int users;
+    }
+
+    private static class HostStats {
+        final String host;
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+
+        HostStats(String host) {
+            this.host = host;
+        }
+    }
+
+    public static class Response {
+        public final int status;
+        public final HttpHeaders headers;
+        public final byte[] body;
+
+        Response(int status, HttpHeaders headers, byte[] body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        public boolean isOk() {
+            return status >= 200 && status < 300;
+        }
+
+        public boolean isRedirect() {
+            return status >= 300 && status < 400;
+        }
+
+        public String getContentType() {
+            return headers.getFirst(HttpHeaders.CONTENT_TYPE);
+        }
+
+        // charset from the Content-Type, or null if the server didn't say
+        public Charset getCharset() {
+            try {
+                MediaType type = headers.getContentType();
+                return type != null ? type.getCharset() : null;
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        // body decoded the same way WebClient's bodyToMono(String.class) would
+        public String getText() {
+            Charset charset = getCharset();
+            return new String(body, charset != null ? charset : StandardCharsets.UTF_8);
+        }
+    }
+
+    @Override
+    public void postConstruct() {
+        // Note: reactor-netty keeps a separate pool per remote host, so maxConnections is per host
+        provider = ConnectionProvider.builder("outbound") //
+                .maxConnections(MAX_CONNS_PER_HOST) //
+                .pendingAcquireMaxCount(MAX_PENDING_PER_HOST) //
+                .pendingAcquireTimeout(PENDING_TIMEOUT) //
+                .maxIdleTime(MAX_IDLE) //
+                .maxLifeTime(MAX_LIFE) //
+                .evictInBackground(MAX_IDLE) //
+                .build();
+        HttpClient httpClient = HttpClient.create(provider) //
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, CONNECT_TIMEOUT_MILLIS) //
+                .compress(true);
+
+        client = WebClient.builder().clientConnector(new ReactorClientHttpConnector(httpClient)).build();
+        redirectingClient = WebClient.builder()
+                .clientConnector(new ReactorClientHttpConnector(httpClient.followRedirect(true))).build();
+    }
+
+    @PreDestroy
+    public void preDestroy() {
+        if (provider != null) {
+            provider.dispose();
+        }
+    }
+
+    /*
+     * GETs 'url' and returns whatever the server sent, including error and redirect statuses. Throws if
+     * the body is bigger than 'maxBytes', on timeout, or if the server can't be reached. 'userAgent' can
+     * be null for the default one.
+     */
+    public Response get(String url, String userAgent, int maxBytes, Duration timeout, boolean followRedirects) {
+        return exchange(HttpMethod.GET, url, userAgent, maxBytes, timeout, followRedirects, null);
+    }
+
+    /* GETs the body of 'url' following any redirects, and throws if the status isn't 2xx */
+    public byte[] getBytes(String url, int maxBytes, Duration timeout) {
+        Response res = get(url, null, maxBytes, timeout, true);
+        if (!res.isOk()) {
+            throw new RuntimeEx("HTTP " + res.status + " reading " + url);
+        }
+        return res.body;
+    }
+
+    public Response head(String url, Duration timeout) {
+        return exchange(HttpMethod.HEAD, url, null, 0, timeout, true, null);
+    }
+
+    /*
+     * GETs only the first byte of 'url' (following redirects), for when the status and headers are all
+     * that's wanted but the server rejects HEAD. A server that ignores the range has the body cut off
+     * after RANGE_MAX_BYTES, and the body returned is empty in that case.
+     */
+    public Response getFirstByte(String url, Duration timeout) {
+        return exchange(HttpMethod.GET, url, null, RANGE_MAX_BYTES, timeout, true, "bytes=0-0");
+    }
+
+    private Response exchange(HttpMethod method, String url, String userAgent, int maxBytes, Duration timeout,
+            boolean followRedirects, String range) {
+        URI uri = URI.create(url);
+        WebClient webClient = followRedirects ? redirectingClient : client;
+        HostStats stats = getStats(uri.getHost());
+        String hostKey = uri.getHost() + ":" + uri.getPort();
+        long start = System.nanoTime();
+        stats.active.incrementAndGet();
+        HostPermits permits = null;
+        try {
+            permits = acquireHost(hostKey, url);
+            Response res = BackendLimiter.WEB.call(() -> webClient.method(method).uri(uri) //
+                    .header(HttpHeaders.USER_AGENT, userAgent != null ? userAgent : Const.FAKE_USER_AGENT) //
+                    .headers(h -> {
+                        if (range != null) {
+                            h.set(HttpHeaders.RANGE, range);
+                        }
+                    }) //
+                    .exchangeToMono(clientRes -> DataBufferUtils
+                            // join() errors out as soon as more than maxBytes arrive, rather than after reading it all
+                            .join(clientRes.bodyToFlux(DataBuffer.class), maxBytes) //
+                            .map(OutboundHttpService::toBytes) //
+                            // a ranged read only wants the headers, so a server sending it all isn't an error
+                            .onErrorResume(DataBufferLimitException.class,
+                                    e -> range != null ? Mono.just(new byte[0]) : Mono.error(e)) //
+                            .defaultIfEmpty(new byte[0]) //
+                            .map(body -> new Response(clientRes.statusCode().value(),
+                                    clientRes.headers().asHttpHeaders(), body))) //
+                    .timeout(timeout) //
+                    .block());
+            stats.bytes.addAndGet(res.body.length);
+            return res;
+        } catch (DataBufferLimitException e) {
+            stats.errors.incrementAndGet();
+            throw new RuntimeEx("Response from " + url + " is larger than " + maxBytes + " bytes");
+        } catch (Exception e) {
+            stats.errors.incrementAndGet();
+            throw new RuntimeEx("Failed reading " + url + ": " + e.getMessage(), e);
+        } finally {
+            releaseHost(hostKey, permits);
+            stats.active.decrementAndGet();
+            stats.calls.incrementAndGet();
+            stats.totalNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /*
+     * Waits for a connection permit for 'hostKey', as long as the pool itself would wait for a
+     * connection. Redirects to other hosts are done under the permit of the first one.
+     */
+    private HostPermits acquireHost(String hostKey, String url) throws InterruptedException {
+        HostPermits hp;
+        synchronized (hostPermits) {
+            hp = hostPermits.computeIfAbsent(hostKey, k -> new HostPermits());
+            hp.users++;
+        }
+        boolean acquired = false;
+        try {
+            acquired = hp.permits.tryAcquire(PENDING_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+        } finally {
+            if (!acquired) {
+                releaseUser(hostKey, hp);
+            }
+        }
+        if (!acquired) {
+            throw new RuntimeEx("Timed out waiting for a connection to " + url);
+        }
+        return hp;
+    }
+
+    private void releaseHost(String hostKey, HostPermits hp) {
+        if (hp == null)
+            return;
+        hp.permits.release();
+        releaseUser(hostKey, hp);
+    }
+
+    private void releaseUser(String hostKey, HostPermits hp) {
+        synchronized (hostPermits) {
+            if (--hp.users == 0) {
+                hostPermits.remove(hostKey);
+            }
+        }
+    }
+
+    private static byte[] toBytes(DataBuffer buf) {
+        try {
+            byte[] bytes = new byte[buf.readableByteCount()];
+            buf.read(bytes);
+            return bytes;
+        } finally {
+            DataBufferUtils.release(buf);
+        }
+    }
+
+    private HostStats getStats(String host) {
+        if (host == null) {
+            host = OTHER_HOSTS;
+        }
+        HostStats stats = hostStats.get(host);
+        if (stats == null) {
+            if (hostStats.size() >= MAX_HOSTS_TRACKED) {
+                host = OTHER_HOSTS;
+            }
+            stats = hostStats.computeIfAbsent(host, HostStats::new);
+        }
+        return stats;
+    }
+
+    public String getReport() {
+        List<HostStats> all = new ArrayList<>(hostStats.values());
+        long calls = 0, errors = 0, bytes = 0;
+        for (HostStats s : all) {
+            calls += s.calls.get();
+            errors += s.errors.get();
+            bytes += s.bytes.get();
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Outbound HTTP: hosts=%d calls=%d errors=%d bytes=%d maxConnsPerHost=%d\n", all.size(),
+                calls, errors, bytes, MAX_CONNS_PER_HOST));
+
+        // busiest hosts
+        all.sort((a, b) -> Long.compare(b.calls.get(), a.calls.get()));
+        for (int i = 0; i < all.size() && i < 10; i++) {
+            HostStats s = all.get(i);
+            long hostCalls = s.calls.get();
+            sb.append(String.format("  %s: active=%d calls=%d errors=%d bytes=%d avg=%.1fms\n", s.host, s.active.get(),
+                    hostCalls, s.errors.get(), s.bytes.get(),
+                    hostCalls > 0 ? s.totalNanos.get() / hostCalls / 1e6 : 0.0));
+        }
+        return sb.toString();
+    }
+}
@@ -1,46 +1,94 @@
 package quanta.service;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
-import java.io.InputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.collections4.map.LRUMap;
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.data.mongodb.gridfs.GridFsResource;
 import org.springframework.data.mongodb.gridfs.GridFsTemplate;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 import com.mongodb.client.gridfs.model.GridFSFile;
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import quanta.AppServer;
+import quanta.config.NodePath;
 import quanta.config.ServiceBase;
 import quanta.exception.base.RuntimeEx;
 import quanta.model.client.NodeProp;
+import quanta.mongo.NodeChangeListener;
 import quanta.mongo.model.SubNode;
 import quanta.service.exports.ExportTarService;
-import quanta.util.StreamUtil;
+import quanta.util.ExUtil;
+import quanta.util.TL;
+import quanta.util.Util;
+import quanta.util.XString;
 
 /*
  * This service renders a view of a node as an html page with a nav panel on the left and content on
  * the RHS
+ *
+ * Each published site (a node with the WEBSITE prop) is stored as one pre-rendered page in GridFS
+ * (BIN_WEBSITE), and a site nested inside another site is its own page that the outer site only links
+ * to. So a site's page depends on exactly the nodes under it that aren't inside a nested site, plus the
+ * root nodes of its directly nested sites (for their titles). When any node changes, nodeChanged()
+ * finds the sites depending on it and only those pages are rebuilt, in the background, while the
+ * previous version keeps being served.
+ *
+ * Pages are also held in a bounded memory cache, keyed by their GridFS id (which only changes when the
+ * page content changes) along with a pre-gzipped copy, and that id is the ETag.
  */
 @Component
-public class PublicationService extends ServiceBase {
+public class PublicationService extends ServiceBase implements NodeChangeListener {
     private static Logger log = LoggerFactory.getLogger(PublicationService.class);
 
+    private static final int MAX_CACHED_PAGES = 200;
+    // how long we wait after a change for more changes, so a burst of edits is one rebuild
+    private static final long REBUILD_DELAY_MILLIS = 3000;
+    private static final String WEBSITE_PROP = SubNode.PROPS + "." + NodeProp.WEBSITE.s();
+
     @Autowired
     private GridFsTemplate grid;
 
-    /*
-     * Admin-owned nodes get cached, not just in MongoDB, but also directly in memory for fastest
-     * possible page loads
-     */
-    HashMap<String, String> adminCache = new HashMap<String, String>();
+    private static class CachedPage {
+        final String etag;
+        final byte[] body;
+        final byte[] gzipBody;
+
+        CachedPage(String binId, byte[] body) {
+            this.etag = "\"" + binId + "\"";
+            this.body = body;
+            this.gzipBody = gzip(body);
+        }
+    }
+
+    private final LRUMap<String, CachedPage> pageCache = new LRUMap<>(MAX_CACHED_PAGES);
+
+    // paths of changed nodes waiting for the next rebuild pass
+    private final Set<String> changedPaths = ConcurrentHashMap.newKeySet();
+    // paths of subgraphs changed in bulk, where every site inside gets rebuilt too
+    private final Set<String> changedSubtrees = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean rebuildScheduled = new AtomicBoolean();
 
     public void getPublication(String id, boolean updateCache, String nameOnAdminNode, String nameOnUserNode,
             String userName, HttpServletResponse response) {
@@ -80,41 +128,82 @@ public class PublicationService extends ServiceBase {
         getPublication(node, updateCache, response);
     }
 
+    /*
+     * With 'updateCache' the site and every site nested in it are rebuilt now. Otherwise the page is only
+     * generated here if it's never been generated, because after that it's kept up to date by
+     * nodeChanged()
+     */
     public void getPublication(SubNode node, boolean updateCache, HttpServletResponse response) {
-        BufferedInputStream inStream = null;
-        BufferedOutputStream outStream = null;
         try {
-            String html = updateCache ? null : cacheGet(node);
-            if (html == null) {
+            CachedPage page = updateCache ? null : cacheGet(node);
+            if (page == null) {
                 // log.debug("GENERATING publication for node: " + lookup);
-                // We can run as admin, because the filtering is done in the service to access only public nodes.
-                html = svc_arun.run(() -> {
-                    ExportTarService svc = (ExportTarService) context.getBean(ExportTarService.class);
-                    String _html = svc.generatePublication(null, node.getIdStr());
-                    return _html;
-                });
+                String html = generate(node, updateCache);
                 if (html == null)
                     throw new RuntimeEx("Failed to generate publication for node");
-
-                cachePut(node, html);
-            } else {
-                // log.debug("Using cached publication for node: " + lookup);
+                page = storePage(node, html);
             }
 
             if (response != null) {
-                response.setContentType("text/html");
-                response.setContentLength((int) html.length());
-                response.setHeader("Cache-Control", "public, max-age=86400"); // 1 day
-                InputStream is = new ByteArrayInputStream(html.getBytes());
-                inStream = new BufferedInputStream(is);
-                outStream = new BufferedOutputStream(response.getOutputStream());
-                IOUtils.copy(inStream, outStream);
-                outStream.flush();
+                writePage(page, TL.getServletRequest(), response);
             }
         } catch (Exception ex) {
             throw new RuntimeEx(ex);
-        } finally {
-            StreamUtil.close(inStream, outStream);
+        }
+    }
+
+    private String generate(SubNode node, boolean rebuildSubSites) {
+        // We can run as admin, because the filtering is done in the service to access only public nodes.
+        return svc_arun.run(() -> {
+            ExportTarService svc = (ExportTarService) context.getBean(ExportTarService.class);
+            return svc.generatePublication(getParentSite(node), node.getIdStr(), rebuildSubSites);
+        });
+    }
+
+    // the nearest site this one is nested in, for the link back to it, or null
+    private SubNode getParentSite(SubNode node) {
+        List<String> ancestors = new ArrayList<>();
+        String path = XString.truncAfterLast(node.getPath(), "/");
+        while (path != null && path.length() > 1) {
+            ancestors.add(path);
+            path = XString.truncAfterLast(path, "/");
+        }
+        if (ancestors.isEmpty())
+            return null;
+
+        SubNode ret = null;
+        Query q = new Query(Criteria.where(SubNode.PATH).in(ancestors).and(WEBSITE_PROP).is(true));
+        q.fields().include(SubNode.PATH, SubNode.NAME, SubNode.TYPE, SubNode.OWNER);
+        for (SubNode site : svc_ops.find(q)) {
+            if (ret == null || site.getPath().length() > ret.getPath().length()) {
+                ret = site;
+            }
+        }
+        return ret;
+    }
+
+    private void writePage(CachedPage page, HttpServletRequest request, HttpServletResponse response)
+            throws Exception {
+        // browsers always check back (cheaply, with the ETag) since pages change whenever their content does
+        response.setHeader("Cache-Control", "public, no-cache");
+        response.setHeader("ETag", page.etag);
+        response.setHeader("Vary", "Accept-Encoding");
+
+        if (request != null && page.etag.equals(request.getHeader("If-None-Match"))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        response.setContentType("text/html; charset=UTF-8");
+        byte[] body = page.body;
+        String acceptEncoding = request != null ? request.getHeader("Accept-Encoding") : null;
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            response.setHeader("Content-Encoding", "gzip");
+            body = page.gzipBody;
+        }
+        response.setContentLength(body.length);
+        try (OutputStream out = response.getOutputStream()) {
+            out.write(body);
         }
     }
 
@@ -128,48 +217,72 @@ public class PublicationService extends ServiceBase {
     }
 
     public void cachePut(SubNode node, String html) {
+        storePage(node, html);
+    }
+
+    private CachedPage storePage(SubNode node, String html) {
         if (html == null) {
-            return;
+            return null;
         }
+        byte[] body = html.getBytes(StandardCharsets.UTF_8);
         String prevBinWebsite = node.getStr(NodeProp.BIN_WEBSITE);
 
-        String existingHtml = cacheGet(node);
-        if (html.equals(existingHtml)) {
-            return;
+        CachedPage existing = cacheGet(node);
+        if (existing != null && Arrays.equals(body, existing.body)) {
+            return existing;
         }
         DBObject metaData = new BasicDBObject();
         metaData.put("nodeId", node.getId());
         metaData.put("type", "website");
-        String binWebsite =
-                grid.store(new ByteArrayInputStream(html.getBytes()), "website", "text/html", metaData).toString();
-        node.set(NodeProp.BIN_WEBSITE, binWebsite);
+        String binWebsite = grid.store(new ByteArrayInputStream(body), "website", "text/html", metaData).toString();
+
+        /*
+         * Written directly rather than by saving the node, because a save counts as a change to the node,
+         * which would make nodeChanged() rebuild this same page again. The node object isn't updated for
+         * the same reason (it'd get saved with the rest of the dirty nodes).
+         *
+         * Only set if the node still has the page we started from. If another rebuild of this site (here
+         * or on another replica) stored its page first, ours lost, so we delete it rather than leave it
+         * orphaned, and use the one that won.
+         */
+        String binProp = SubNode.PROPS + "." + NodeProp.BIN_WEBSITE.s();
+        SubNode prev = svc_ops.findAndModify(
+                new Query(Criteria.where(SubNode.ID).is(node.getId()).and(binProp).is(prevBinWebsite)),
+                new Update().set(binProp, binWebsite));
+        if (prev == null) {
+            grid.delete(new Query(Criteria.where("_id").is(binWebsite)));
+            SubNode current =
+                    svc_ops.findOneProjected(new Query(Criteria.where(SubNode.ID).is(node.getId())), binProp);
+            CachedPage winner = current != null ? cacheGet(current) : null;
+            // the winner was removed in the meantime too, so just serve what we made (without caching it)
+            return winner != null ? winner : new CachedPage(binWebsite, body);
+        }
 
         // If we had a previously cached site on this node, delete it.
         if (prevBinWebsite != null) {
-            Query q = new Query(Criteria.where("_id").is(prevBinWebsite));
-            grid.delete(q);
-            adminCache.remove(prevBinWebsite);
+            grid.delete(new Query(Criteria.where("_id").is(prevBinWebsite)));
+            synchronized (pageCache) {
+                pageCache.remove(prevBinWebsite);
+            }
         }
 
-        // cache also in memory so this can be served faster, but we still need admin sites cached in
-        // MongoDB so they'er pre-rendered just like everything else.
-        if (svc_acl.isAdminOwned(node)) {
-            html = adminCache.put(binWebsite, html);
+        CachedPage page = new CachedPage(binWebsite, body);
+        synchronized (pageCache) {
+            pageCache.put(binWebsite, page);
         }
-        svc_mongoUpdate.save(node);
+        return page;
     }
 
-    private String cacheGet(SubNode node) {
+    private CachedPage cacheGet(SubNode node) {
         String binWebsite = node.getStr(NodeProp.BIN_WEBSITE);
         if (binWebsite == null) {
             return null;
         }
 
-        String html = null;
-        if (svc_acl.isAdminOwned(node)) {
-            html = adminCache.get(binWebsite);
-            if (html != null) {
-                return html;
+        synchronized (pageCache) {
+            CachedPage page = pageCache.get(binWebsite);
+            if (page != null) {
+                return page;
             }
         }
 
@@ -180,8 +293,11 @@ public class PublicationService extends ServiceBase {
         }
         GridFsResource gridFsResource = grid.getResource(gridFile);
         try {
-            html = IOUtils.toString(gridFsResource.getInputStream(), "UTF-8");
-            return html;
+            CachedPage page = new CachedPage(binWebsite, IOUtils.toByteArray(gridFsResource.getInputStream()));
+            synchronized (pageCache) {
+                pageCache.put(binWebsite, page);
+            }
+            return page;
         } catch (Exception e) {
             throw new RuntimeEx("unable to readStream", e);
         }
@@ -198,10 +314,165 @@ public class PublicationService extends ServiceBase {
         }
         Query q = new Query(Criteria.where("_id").is(binWebsite));
         grid.delete(q);
+        synchronized (pageCache) {
+            pageCache.remove(binWebsite);
+        }
 
         if (updateNode) {
             node.set(NodeProp.BIN_WEBSITE, null);
             svc_mongoUpdate.save(node);
         }
     }
+
+    @Override
+    public void pathChanged(String path) {
+        nodeChanged(path);
+    }
+
+    @Override
+    public void subtreeMoved(String oldPath, String newPath) {
+        nodeChanged(oldPath);
+        nodeChanged(newPath);
+    }
+
+    // pathChanged covers the sites above 'path', and this the ones inside it
+    @Override
+    public void subtreeChanged(String path) {
+        if (path == null)
+            return;
+        afterCommit(() -> {
+            changedSubtrees.add(path);
+            scheduleRebuild();
+        });
+    }
+
+    @Override
+    public void allChanged() {
+        subtreeChanged(NodePath.ROOT_PATH);
+    }
+
+    /*
+     * Called for every node created, saved, deleted or moved (with the path of the node, or of the parent
+     * whose children changed). Inside a transaction we wait for the commit, so the rebuild sees it.
+     */
+    public void nodeChanged(String path) {
+        if (path == null)
+            return;
+
+        afterCommit(() -> {
+            changedPaths.add(path);
+            scheduleRebuild();
+        });
+    }
+
+    private void afterCommit(Runnable runnable) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    runnable.run();
+                }
+            });
+        } else {
+            runnable.run();
+        }
+    }
+
+    private void scheduleRebuild() {
+        if (rebuildScheduled.compareAndSet(false, true)) {
+            svc_async.run(() -> {
+                Util.sleep(REBUILD_DELAY_MILLIS);
+                // cleared before we take the paths, so a change coming in during the rebuild schedules another
+                rebuildScheduled.set(false);
+                rebuildAffected();
+            });
+        }
+    }
+
+    private void rebuildAffected() {
+        List<String> paths = new ArrayList<>(changedPaths);
+        changedPaths.removeAll(paths);
+        List<String> subtrees = new ArrayList<>(changedSubtrees);
+        changedSubtrees.removeAll(subtrees);
+        if ((paths.isEmpty() && subtrees.isEmpty()) || AppServer.isShuttingDown())
+            return;
+
+        svc_arun.run(() -> {
+            Set<String> siteIds = getAffectedSites(paths);
+            for (String path : subtrees) {
+                Query q = new Query(Criteria.where(SubNode.PATH).regex(svc_mongoUtil.regexSubGraphAndRoot(path))
+                        .and(WEBSITE_PROP).is(true));
+                q.fields().include(SubNode.PATH, SubNode.TYPE, SubNode.OWNER);
+                svc_ops.forEach(q, n -> siteIds.add(n.getIdStr()));
+            }
+            for (String siteId : siteIds) {
+                try {
+                    SubNode site = svc_mongoRead.getNode(siteId);
+                    if (site == null || !site.getBool(NodeProp.WEBSITE) || !AclService.isPublic(site)) {
+                        continue;
+                    }
+                    // sites never visited yet get generated on their first visit instead
+                    if (site.getStr(NodeProp.BIN_WEBSITE) == null)
+                        continue;
+                    log.debug("Rebuilding publication: " + site.getPath());
+                    storePage(site, generate(site, false));
+                } catch (Exception e) {
+                    ExUtil.error(log, "Failed rebuilding publication " + siteId, e);
+                }
+            }
+            return null;
+        });
+    }
+
+    /*
+     * For each changed path, the nearest site above it (whose page has that node's content, or a link to
+     * it if it's a site itself) and the changed node itself if it's a site. All of the candidate sites
+     * are looked up with one query on the ancestor paths.
+     */
+    private Set<String> getAffectedSites(List<String> paths) {
+        HashSet<String> allPaths = new HashSet<>();
+        for (String path : paths) {
+            while (path != null && path.length() > 1) {
+                if (!allPaths.add(path))
+                    break;
+                path = XString.truncAfterLast(path, "/");
+            }
+        }
+
+        HashMap<String, String> siteIdsByPath = new HashMap<>();
+        Query q = new Query(Criteria.where(SubNode.PATH).in(allPaths).and(WEBSITE_PROP).is(true));
+        q.fields().include(SubNode.PATH, SubNode.TYPE, SubNode.OWNER);
+        svc_ops.forEach(q, n -> siteIdsByPath.put(n.getPath(), n.getIdStr()));
+
+        HashSet<String> ret = new HashSet<>();
+        if (siteIdsByPath.isEmpty())
+            return ret;
+
+        for (String path : paths) {
+            String selfId = siteIdsByPath.get(path);
+            if (selfId != null) {
+                ret.add(selfId);
+            }
+            String parent = XString.truncAfterLast(path, "/");
+            while (parent != null && parent.length() > 1) {
+                String siteId = siteIdsByPath.get(parent);
+                if (siteId != null) {
+                    ret.add(siteId);
+                    break;
+                }
+                parent = XString.truncAfterLast(parent, "/");
+            }
+        }
+        return ret;
+    }
+
+    private static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length / 4 + 64);
+        try (GZIPOutputStream gz = new GZIPOutputStream(baos)) {
+            gz.write(data);
+        } catch (Exception e) {
+            throw new RuntimeEx(e);
+        }
+        return baos.toByteArray();
+    }
 }
@@ -0,0 +1,161 @@
+package quanta.service;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter.SseEventBuilder;
+import quanta.config.ServiceBase;
+import quanta.exception.base.RuntimeEx;
+import quanta.util.DateUtil;
+
+/*
+ * One browser's server push connection, with a bounded queue of events waiting to go out. Pushes only
+ * ever add to the queue, and a single writer task drains it, so nothing waits on a slow browser except
+ * that writer.
+ *
+ * Events can have a key (like the node they're about) and a newer event with the same key replaces
+ * the queued one rather than being sent after it, so a burst of edits to a node only sends the latest.
+ * A browser that falls so far behind that the queue fills up is disconnected (the EventSource will
+ * reconnect and the user can refresh), as is one where a send has been stuck longer than STALL_MILLIS.
+ */
+public class PushConnection {
+    private static Logger log = LoggerFactory.getLogger(PushConnection.class);
+
+    public static final int MAX_QUEUED = 200;
+    public static final long STALL_MILLIS = 60 * DateUtil.SECOND_MILLIS;
+
+    private static final AtomicLong sent = new AtomicLong();
+    private static final AtomicLong coalesced = new AtomicLong();
+    private static final AtomicLong overflowed = new AtomicLong();
+    private static final AtomicLong stalled = new AtomicLong();
+    private static final AtomicLong failed = new AtomicLong();
+
+    private final String token;
+    private final SseEmitter emitter;
+
+    // guarded by 'this'
+    private final LinkedHashMap<Object, Supplier<SseEventBuilder>> queue = new LinkedHashMap<>();
+    private boolean draining = false;
+    private boolean closed = false;
+    private long seq = 0;
+
+    // when the send in progress started, or zero if we're not sending
+    private volatile long sendStartTime = 0;
+
+    public PushConnection(String token, SseEmitter emitter) {
+        this.token = token;
+        this.emitter = emitter;
+    }
+
+    public SseEmitter getEmitter() {
+        return emitter;
+    }
+
+    /*
+     * Queues an event. If 'key' is not null and an event with that key is still waiting, this one takes
+     * its place in the queue.
+     */
+    public void offer(String key, Supplier<SseEventBuilder> event) {
+        boolean startDrain = false;
+        boolean overflow = false;
+        synchronized (this) {
+            if (closed)
+                return;
+
+            if (key != null && queue.containsKey(key)) {
+                queue.put(key, event);
+                coalesced.incrementAndGet();
+                return;
+            }
+
+            if (queue.size() >= MAX_QUEUED) {
+                overflow = true;
+            } else {
+                // events without a key get a unique one, which can't equal any String key
+                queue.put(key != null ? key : Long.valueOf(seq++), event);
+                if (!draining) {
+                    draining = true;
+                    startDrain = true;
+                }
+            }
+        }
+
+        if (overflow) {
+            overflowed.incrementAndGet();
+            close(new RuntimeEx("push queue full for token: " + token));
+        } else if (startDrain) {
+            ServiceBase.svc_async.run(this::drain);
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Supplier<SseEventBuilder> next;
+            synchronized (this) {
+                if (closed || queue.isEmpty()) {
+                    draining = false;
+                    return;
+                }
+                Iterator<Map.Entry<Object, Supplier<SseEventBuilder>>> iter = queue.entrySet().iterator();
+                next = iter.next().getValue();
+                iter.remove();
+            }
+
+            sendStartTime = System.currentTimeMillis();
+            try {
+                emitter.send(next.get());
+                sent.incrementAndGet();
+            } catch (Exception e) {
+                log.debug("FAILED Pushing to Session with token: " + token);
+                failed.incrementAndGet();
+                close(e);
+                return;
+            } finally {
+                sendStartTime = 0;
+            }
+        }
+    }
+
+    /*
+     * Called periodically. Sends a comment line (which the browser ignores) so a dead connection shows up
+     * as a failed send, and disconnects a browser whose send has been stuck too long.
+     */
+    public void heartbeat() {
+        long started = sendStartTime;
+        if (started != 0 && System.currentTimeMillis() - started > STALL_MILLIS) {
+            stalled.incrementAndGet();
+            close(new RuntimeEx("push connection stalled for token: " + token));
+            return;
+        }
+        offer("heartbeat", () -> SseEmitter.event().comment("hb"));
+    }
+
+    public void close(Throwable ex) {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            queue.clear();
+        }
+        ServiceBase.svc_user.removePushConnection(token, this);
+        try {
+            if (ex != null) {
+                emitter.completeWithError(ex);
+            } else {
+                emitter.complete();
+            }
+        } catch (Exception e) {
+            // already completed
+        }
+    }
+
+    public static String getReport() {
+        return String.format("pushSent=%d coalesced=%d overflowed=%d stalled=%d failed=%d\n", sent.get(),
+                coalesced.get(), overflowed.get(), stalled.get(), failed.get());
+    }
+}
@@ -0,0 +1,158 @@
+package quanta.service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import quanta.config.ServiceBase;
+import quanta.redis.RedisBrowserPushInfo;
+import quanta.redis.RedisPushBatch;
+import quanta.util.DateUtil;
+import quanta.util.Util;
+
+/*
+ * Gets server push messages to whichever replica holds the browser's SseEmitter.
+ *
+ * Each replica registers "push:route:<token>" -> its own id in Redis for every emitter it holds, and
+ * listens on its own channel. A push for a browser connected elsewhere looks up the route and goes
+ * only to that replica's channel, instead of every replica getting (and decoding) every push on the
+ * shared topic. Messages for the same replica are held for a few millis and published together, so a
+ * node update going to many users costs one publish per replica rather than one per user.
+ *
+ * Routes expire on their own if a replica dies, and the live ones are refreshed by refreshRoutes()
+ */
+@Component
+public class PushRouter extends ServiceBase {
+    private static Logger log = LoggerFactory.getLogger(PushRouter.class);
+
+    // unique per process, so a restarted replica never gets messages meant for its previous emitters
+    public static final String REPLICA_ID = new ObjectId().toHexString();
+
+    private static final String ROUTE_PREFIX = "push:route:";
+    private static final Duration ROUTE_TTL = Duration.ofMinutes(5);
+    private static final long LINGER_MILLIS = 10;
+    private static final int MAX_BATCH = 200;
+
+    private static class Outbox {
+        final ConcurrentLinkedQueue<RedisBrowserPushInfo> queue = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean flushQueued = new AtomicBoolean();
+    }
+
+    private final ConcurrentHashMap<String, Outbox> outboxes = new ConcurrentHashMap<>();
+
+    private final AtomicLong routed = new AtomicLong();
+    private final AtomicLong unrouted = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    public static String channel(String replicaId) {
+        return "push:replica:" + replicaId;
+    }
+
+    // Called when this replica starts holding the emitter for 'token'
+    public void register(String token) {
+        svc_redis.setStr(ROUTE_PREFIX + token, REPLICA_ID, ROUTE_TTL);
+    }
+
+    public void unregister(String token) {
+        // only remove the route if it's still ours, the browser may already have reconnected elsewhere
+        if (REPLICA_ID.equals(svc_redis.getStr(ROUTE_PREFIX + token))) {
+            svc_redis.deleteStr(ROUTE_PREFIX + token);
+        }
+    }
+
+    /*
+     * Sends messages for browsers that aren't connected to this replica. Routes for the whole list are
+     * looked up in one round trip. Messages for browsers that aren't connected anywhere are dropped,
+     * since there'd be no one to deliver them.
+     */
+    public void send(List<RedisBrowserPushInfo> msgs) {
+        if (msgs.isEmpty())
+            return;
+        List<String> keys = new ArrayList<>(msgs.size());
+        for (RedisBrowserPushInfo msg : msgs) {
+            keys.add(ROUTE_PREFIX + msg.getToken());
+        }
+        List<String> replicas = svc_redis.getStrs(keys);
+
+        for (int i = 0; i < msgs.size(); i++) {
+            String replica = replicas != null ? replicas.get(i) : null;
+            // a route to ourselves means the emitter is already gone from here
+            if (replica == null || replica.equals(REPLICA_ID)) {
+                unrouted.incrementAndGet();
+                continue;
+            }
+            routed.incrementAndGet();
+            enqueue(replica, msgs.get(i));
+        }
+    }
+
+    public void send(RedisBrowserPushInfo msg) {
+        send(List.of(msg));
+    }
+
+    private void enqueue(String replica, RedisBrowserPushInfo msg) {
+        Outbox box = outboxes.computeIfAbsent(replica, k -> new Outbox());
+        box.queue.add(msg);
+        if (box.flushQueued.compareAndSet(false, true)) {
+            svc_async.run(() -> {
+                Util.sleep(LINGER_MILLIS);
+                flush(replica, box);
+            });
+        }
+    }
+
+    private void flush(String replica, Outbox box) {
+        // cleared before draining, so anything added while we drain schedules another flush
+        box.flushQueued.set(false);
+        List<RedisBrowserPushInfo> batch = new ArrayList<>();
+        RedisBrowserPushInfo msg;
+        while ((msg = box.queue.poll()) != null) {
+            batch.add(msg);
+            if (batch.size() == MAX_BATCH) {
+                publish(replica, batch);
+                batch = new ArrayList<>();
+            }
+        }
+        if (!batch.isEmpty()) {
+            publish(replica, batch);
+        }
+        // replica ids change on every restart so don't keep outboxes around for ones that are gone. If
+        // something was enqueued after we drained it also queued a flush, which will still drain it.
+        outboxes.remove(replica, box);
+    }
+
+    private void publish(String replica, List<RedisBrowserPushInfo> batch) {
+        batches.incrementAndGet();
+        try {
+            svc_redis.publish(channel(replica), new RedisPushBatch(batch));
+        } catch (Exception e) {
+            log.error("Failed publishing push batch to replica " + replica, e);
+        }
+    }
+
+    // Keeps the routes of all browsers connected to us from expiring
+    @Scheduled(fixedDelay = DateUtil.MINUTE_MILLIS)
+    public void refreshRoutes() {
+        if (!initComplete)
+            return;
+        HashMap<String, String> routes = new HashMap<>();
+        for (String token : UserManagerService.pushEmitters.keySet()) {
+            routes.put(ROUTE_PREFIX + token, REPLICA_ID);
+        }
+        svc_redis.setStrs(routes, ROUTE_TTL);
+    }
+
+    public String getReport() {
+        return String.format("replica=%s emitters=%d routed=%d unrouted=%d batches=%d\n", REPLICA_ID,
+                UserManagerService.pushEmitters.size(), routed.get(), unrouted.get(), batches.get());
+    }
+}
@@ -1,9 +1,14 @@
 package quanta.service;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.function.Supplier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter.SseEventBuilder;
@@ -11,11 +16,14 @@ import quanta.config.ServiceBase;
 import quanta.config.SessionContext;
 import quanta.exception.base.RuntimeEx;
 import quanta.model.NodeInfo;
+import quanta.mongo.model.AccessControl;
 import quanta.mongo.model.SubNode;
 import quanta.redis.RedisBrowserPushInfo;
 import quanta.rest.response.FeedPushInfo;
+import quanta.rest.response.NodeEditedPushInfo;
 import quanta.rest.response.ServerPushInfo;
 import quanta.util.Convert;
+import quanta.util.DateUtil;
 import quanta.util.TL;
 import quanta.util.Util;
 import quanta.util.XString;
@@ -42,79 +50,151 @@ public class PushService extends ServiceBase {
             if (!isPublic && usersSharedToSet.size() == 0)
                 return;
 
-            maybePushToBrowser(sessionsPushed, node, usersSharedToSet, isPublic, TL.getSC());
+            List<SessionContext> recipients = new ArrayList<>();
+            if (isRecipient(sessionsPushed, node, usersSharedToSet, TL.getSC())) {
+                recipients.add(TL.getSC());
+            }
 
             List<SessionContext> scList = svc_redis.query("*");
-            if (scList.size() > 0) {
-                for (SessionContext sc : scList) {
-                    // skip our own session because we already considered it first, above.
-                    if (TL.getSC() != null && sc.getUserToken().equals(TL.getSC().getUserToken()))
-                        continue;
-
-                    // log.debug("Maybe Pushing to user: " + sc.getUserName() + " sc.hashCode=" + sc.hashCode()
-                    // + " token: " + sc.getUserToken());
-                    maybePushToBrowser(sessionsPushed, node, usersSharedToSet, isPublic, sc);
+            for (SessionContext sc : scList) {
+                // skip our own session because we already considered it first, above.
+                if (TL.getSC() != null && sc.getUserToken().equals(TL.getSC().getUserToken()))
+                    continue;
+
+                if (isRecipient(sessionsPushed, node, usersSharedToSet, sc)) {
+                    recipients.add(sc);
                 }
             }
+            pushToBrowsers(recipients, sessionsPushed, node);
         });
     }
 
-    private void maybePushToBrowser(HashSet<String> sessionsPushed, SubNode node,
-            HashSet<String> usersSharedToSet, boolean isPublic, SessionContext sc) {
+    private boolean isRecipient(HashSet<String> sessionsPushed, SubNode node, HashSet<String> usersSharedToSet,
+            SessionContext sc) {
+        // Anonymous sessions won't have userName and can be ignored
+        if (sc == null || sc.getUserName() == null)
+            return false;
+
         // if we know we already just pushed to this session, we can skip it in here.
         if (sessionsPushed != null && sessionsPushed.contains(sc.getUserToken())) {
-            return;
+            return false;
         }
 
-        // Anonymous sessions won't have userName and can be ignored
-        if (sc == null || sc.getUserName() == null)
-            return;
-
-        // if 'sc' is my session and 'node' is my node, then push to my browser and return
+        // if 'sc' is my session and 'node' is my node, then push to my browser
         if (node.getOwner().toHexString().equals(sc.getUserNodeId()) && TL.getSC() != null
                 && sc.getUserToken().equals(TL.getSC().getUserToken())) {
-            pushToBrowser(sc, sessionsPushed, node);
-            return;
+            return true;
         }
 
         // if user has no kind of live updateable view, or we know based on path this won't be shown in
         // the timeline then return
         if (!sc.isViewingFeed() && (sc.getTimelinePath() == null || !node.getPath().startsWith(sc.getTimelinePath())))
-            return;
+            return false;
 
         if (svc_auth.ownedBy(sc, node)) {
-            pushToBrowser(sc, sessionsPushed, node);
+            return true;
         }
         // Nodes whose path starts with "timeline path", are subnodes of (or descendants of) the timeline
         // node and therefore will be sent to their respecitve browsers
         else if (sc.getTimelinePath() != null && node.getPath().startsWith(sc.getTimelinePath())) {
-            if (node.getOwner().toHexString().equals(sc.getUserNodeId()) // is my node
+            return node.getOwner().toHexString().equals(sc.getUserNodeId()) // is my node
                     || AclService.isPublic(node) // is public node
-                    || (usersSharedToSet != null && usersSharedToSet.contains(sc.getUserName())) // shared to me
-            ) {
-                pushToBrowser(sc, sessionsPushed, node);
-            }
+                    || (usersSharedToSet != null && usersSharedToSet.contains(sc.getUserName())); // shared to me
         }
+        return false;
     }
 
     public void pushToBrowser(SessionContext sc, HashSet<String> sessionsPushed, SubNode node) {
-        if (sessionsPushed != null && sessionsPushed.contains(sc.getUserToken())) {
-            return;
-        }
+        pushToBrowsers(List.of(sc), sessionsPushed, node);
+    }
+
+    /*
+     * The NodeInfo for a node only differs between viewers by whether they own it (secret props are
+     * removed for everyone else) and by the timezone dates are formatted in, so we render and encode it
+     * once per distinct 'audience' and send those same bytes to every session in it. The only truly per
+     * user part is the cipherKey (from the viewer's ACL entry) which goes alongside the shared
+     * nodeInfo and the client puts it back in place.
+     *
+     * Nodes with links are still rendered per user, because the linked nodes carry their own cipherKeys.
+     */
+    public void pushToBrowsers(List<SessionContext> recipients, HashSet<String> sessionsPushed, SubNode node) {
+        String ownerId = node.getOwner().toHexString();
+        HashMap<String, String> encoded = new HashMap<>();
+        // pushes for browsers connected to other replicas, routed together at the end
+        List<RedisBrowserPushInfo> remote = new ArrayList<>();
+
+        for (SessionContext sc : recipients) {
+            if (sessionsPushed != null && sessionsPushed.contains(sc.getUserToken())) {
+                continue;
+            }
+            boolean owner = ownerId.equals(sc.getUserNodeId());
+            String audience = (owner ? "owner" : "viewer") + "|" + sc.getTimezone() + "|" + sc.getTimeZoneAbbrev();
+            if (node.getLinks() != null) {
+                audience += "|" + sc.getUserNodeId();
+            }
+
+            String nodeJson = encoded.computeIfAbsent(audience, k -> renderForAudience(sc, node, owner));
+            if (nodeJson == null)
+                continue;
 
-        // build our push message payload
-        NodeInfo info = svc_convert.toNodeInfo( false, sc, node, false, Convert.LOGICAL_ORDINAL_IGNORE, false, false,
-                false, true, null);
+            StringBuilder json = new StringBuilder(nodeJson.length() + 100);
+            json.append("{\"type\":\"feedPush\",\"nodeInfo\":").append(nodeJson);
+            String cipherKey = owner ? null : getCipherKey(sc, node);
+            if (cipherKey != null) {
+                try {
+                    json.append(",\"cipherKey\":").append(Util.mapper.writeValueAsString(cipherKey));
+                } catch (Exception e) {
+                    throw new RuntimeEx(e);
+                }
+            }
+            json.append("}");
 
-        if (info != null) {
-            FeedPushInfo pushInfo = new FeedPushInfo(info);
             // push notification message to browser
-            svc_push.pushInfo(sc, pushInfo);
+            RedisBrowserPushInfo msg = pushJsonOrRoute(sc, "feedPush", "feedPush:" + node.getIdStr(), json.toString());
+            if (msg != null) {
+                remote.add(msg);
+            }
 
             if (sessionsPushed != null) {
                 sessionsPushed.add(sc.getUserToken());
             }
         }
+        svc_pushRouter.send(remote);
+    }
+
+    /*
+     * Renders the node as seen by anyone in the audience 'sc' belongs to. We render against a session that
+     * only has the audience's properties, so nothing specific to 'sc' (like it's cipherKey) can end up in
+     * the shared JSON.
+     */
+    private String renderForAudience(SessionContext sc, SubNode node, boolean owner) {
+        SessionContext audienceSC = new SessionContext();
+        audienceSC.setTimezone(sc.getTimezone());
+        audienceSC.setTimeZoneAbbrev(sc.getTimeZoneAbbrev());
+        if (owner || node.getLinks() != null) {
+            audienceSC.setUserNodeId(sc.getUserNodeId());
+        }
+
+        NodeInfo info = svc_convert.toNodeInfo(false, audienceSC, node, false, Convert.LOGICAL_ORDINAL_IGNORE, false,
+                false, false, true, null);
+        if (info == null)
+            return null;
+
+        // pushes run with admin privileges so toNodeInfo won't have done this for us
+        if (!owner) {
+            svc_convert.clearSecretProperties(info);
+        }
+
+        // cipherKey is sent separately, per user
+        info.setCipherKey(null);
+        return XString.compactPrint(info);
+    }
+
+    private String getCipherKey(SessionContext sc, SubNode node) {
+        if (node.getAc() == null || sc.getUserNodeId() == null)
+            return null;
+        AccessControl ac = node.getAc().get(sc.getUserNodeId());
+        return ac != null ? ac.getKey() : null;
     }
 
     public void pushInfo(SessionContext sc, ServerPushInfo info) {
@@ -129,40 +209,54 @@ public class PushService extends ServiceBase {
             return;
         }
 
-        // look for an SseEmitter on this replica, which may or may not exist. We might not be the replica
-        // that the browser is connected to for it's SseEmittre
-        if (UserManagerService.pushEmitters == null) {
-            log.error("pushEmitters is null");
-            return;
-        }
-
-        if (UserManagerService.pushEmitters.isEmpty()) {
-            log.error("pushEmitters isEmpty");
-            return;
-        }
-        SseEmitter emitter = UserManagerService.pushEmitters.get(sc.getUserToken());
-
         // if we happened to be the right replica to push to browser, then push
-        if (emitter != null) {
-            // log.debug("PUSHING: we have the emitter in replica: " + prop.getSwarmTaskSlot());
+        if (UserManagerService.pushEmitters.get(sc.getUserToken()) != null) {
             pushInfo(sc.getUserToken(), info);
         }
-        // else we post to Redis PubSub to let the correct replica push this to the browser for us
+        // else we let the replica the browser is connected to push this to the browser for us
         else {
-            // log.debug("PUSH Queued via Redis PubSub");
             RedisBrowserPushInfo msg =
                     new RedisBrowserPushInfo(sc.getUserToken(), XString.compactPrint(info), info.getClass().getName());
-            svc_redis.publish(msg);
+            msg.setEvent(info.getType());
+            msg.setKey(coalesceKey(info));
+            svc_pushRouter.send(msg);
         }
     }
 
-    public void maybePushToBrowser(RedisBrowserPushInfo rinfo) {
-        SseEmitter emitter = UserManagerService.pushEmitters.get(rinfo.getToken());
+    /*
+     * Same as pushInfo(sc, info) but for a payload that's already been encoded to JSON, which is sent
+     * as is rather than being serialized again for every session. Returns the message to send thru
+     * PushRouter if the browser isn't connected to this replica, so callers pushing to many sessions can
+     * route them all at once.
+     */
+    private RedisBrowserPushInfo pushJsonOrRoute(SessionContext sc, String eventName, String key, String json) {
+        if (sc == null || sc.getUserToken() == null) {
+            log.error("no session token to push to");
+            return null;
+        }
 
+        if (UserManagerService.pushEmitters.get(sc.getUserToken()) != null) {
+            pushJson(sc.getUserToken(), eventName, key, json);
+            return null;
+        }
+        RedisBrowserPushInfo msg = new RedisBrowserPushInfo(sc.getUserToken(), json, FeedPushInfo.class.getName());
+        msg.setEvent(eventName);
+        msg.setKey(key);
+        return msg;
+    }
+
+    /*
+     * Handles a push that came from another replica on the shared topic. These are only sent by replicas
+     * that predate PushRouter (during a rolling update) so every replica gets them and most ignore them.
+     */
+    public void maybePushToBrowser(RedisBrowserPushInfo rinfo) {
         // if we happened to be the right replica to push to browser, then push
-        if (emitter != null) {
-            // log.debug("Message handled by replica " + prop.getSwarmTaskSlot() + ": "
-            // + XString.prettyPrint(rinfo));
+        if (UserManagerService.pushEmitters.get(rinfo.getToken()) != null) {
+            // payloads that say which event they are can go to the browser exactly as they were sent
+            if (rinfo.getEvent() != null) {
+                pushJson(rinfo.getToken(), rinfo.getEvent(), rinfo.getKey(), rinfo.getPayload());
+                return;
+            }
             try {
                 FeedPushInfo info = Util.simpleMapper.readValue(rinfo.getPayload(), FeedPushInfo.class);
                 pushInfo(rinfo.getToken(), info);
@@ -172,31 +266,60 @@ public class PushService extends ServiceBase {
         }
     }
 
+    /* Delivers a push PushRouter sent to this replica, because it holds the emitter for the browser */
+    public void deliver(RedisBrowserPushInfo rinfo) {
+        if (UserManagerService.pushEmitters.get(rinfo.getToken()) == null) {
+            // the browser disconnected (or reconnected elsewhere) since the route was looked up
+            log.debug("No PushEmitter for routed push, token: " + rinfo.getToken());
+            return;
+        }
+        pushJson(rinfo.getToken(), rinfo.getEvent(), rinfo.getKey(), rinfo.getPayload());
+    }
+
     public void pushInfo(String token, ServerPushInfo info) {
-        svc_async.run(() -> {
-            SessionContext sc = svc_redis.get(token);
-            if (sc == null) {
-                // todo-2: We were getting this a LOT in the log file, just from outdated sessions (i think) so let's ignore it for now.
-                // throw new RuntimeEx("bad token for push emitter: " + token); 
-                return;
-            }
-            SseEmitter pushEmitter = svc_user.getPushEmitter(token);
-            if (pushEmitter == null) {
-                log.debug("No PushEmitter for token: " + token);
-                return;
-            }
-            // Note: Each session has it's own pushEmitter, so this will not be a bottleck, and is desirable
-            // even probably to be sure each session is only doing one emit at a time.
-            synchronized (pushEmitter) {
-                try {
-                    SseEventBuilder event =
-                            SseEmitter.event().data(info).id(String.valueOf(info.hashCode())).name(info.getType());
-                    pushEmitter.send(event);
-                } catch (Exception ex) {
-                    log.error("FAILED Pushing to Session with token: " + token);
-                    pushEmitter.completeWithError(ex);
-                }
-            }
-        });
+        emit(token, coalesceKey(info),
+                () -> SseEmitter.event().data(info).id(String.valueOf(info.hashCode())).name(info.getType()));
+    }
+
+    /*
+     * 'key' identifies what the event is about (like "feedPush:" + nodeId) so a newer one can replace an
+     * older one that hasn't been sent yet, or null if every event must be sent.
+     */
+    public void pushJson(String token, String eventName, String key, String json) {
+        emit(token, key, () -> SseEmitter.event().data(json, MediaType.APPLICATION_JSON)
+                .id(String.valueOf(json.hashCode())).name(eventName));
+    }
+
+    // Node updates only need to show the latest state of the node, anything else is sent every time
+    private String coalesceKey(ServerPushInfo info) {
+        if (info instanceof FeedPushInfo fpi && fpi.getNodeInfo() != null) {
+            return info.getType() + ":" + fpi.getNodeInfo().getId();
+        }
+        if (info instanceof NodeEditedPushInfo nepi && nepi.getNodeInfo() != null) {
+            return info.getType() + ":" + nepi.getNodeInfo().getId();
+        }
+        return null;
+    }
+
+    private void emit(String token, String key, Supplier<SseEventBuilder> eventBuilder) {
+        // Only browsers with a live session ever get an emitter (see cm_serverPush), and it's removed when
+        // the connection ends, so we don't need to look up the session itself here.
+        PushConnection conn = UserManagerService.pushEmitters.get(token);
+        if (conn == null) {
+            log.debug("No PushEmitter for token: " + token);
+            return;
+        }
+        conn.offer(key, eventBuilder);
+    }
+
+    /*
+     * Lets each browser's connection notice if it's dead (or stuck) even when there's nothing to push,
+     * so it gets cleaned out of pushEmitters.
+     */
+    @Scheduled(fixedDelay = 30 * DateUtil.SECOND_MILLIS)
+    public void heartbeat() {
+        for (PushConnection conn : UserManagerService.pushEmitters.values()) {
+            conn.heartbeat();
+        }
     }
 }
@@ -20,13 +20,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.http.HttpHeaders;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
-import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
-import org.springframework.web.reactive.function.client.ExchangeStrategies;
-import org.springframework.web.reactive.function.client.WebClient;
-import org.springframework.web.reactive.function.client.WebClientRequestException;
-import org.springframework.web.reactive.function.client.WebClientResponseException;
 import com.rometools.modules.content.ContentModuleImpl;
 import com.rometools.modules.itunes.EntryInformationImpl;
 import com.rometools.modules.mediarss.MediaEntryModuleImpl;
@@ -68,10 +64,7 @@ import quanta.util.ExUtil;
 import quanta.util.LimitedInputStreamEx;
 import quanta.util.StreamUtil;
 import quanta.util.TL;
-import quanta.util.Util;
 import quanta.util.XString;
-import quanta.util.val.Val;
-import reactor.core.publisher.Mono;
 
 /* Proof of Concept RSS Publishing */
 @Component
@@ -324,47 +317,9 @@ public class RSSFeedService extends ServiceBase {
 
             // we try two times, which is onece for the original call and once more of it's a redirect
             while (++tries < 3) {
-                Val<String> redirectUrl = new Val<>();
-                String _url = url;
-                WebClient webClient = Util.webClientBuilder().exchangeStrategies(ExchangeStrategies.builder()
-                        .codecs(configurer -> configurer.defaultCodecs().maxInMemorySize(100 * 1024 * 1024)).build())
-                        // NOTE: These two 'filter' calls are what is required to detect redirects.
-                        .filter(ExchangeFilterFunction.ofRequestProcessor(clientRequest -> {
-                            // log.debug("Request URL: " + clientRequest.url());
-                            return Mono.just(clientRequest);
-                        })).filter(ExchangeFilterFunction.ofResponseProcessor(clientResponse -> {
-                            clientResponse.headers().asHttpHeaders()
-                                    .forEach((name, values) -> values.forEach(value -> log.debug(name + "=" + value)));
-                            if (clientResponse.statusCode().is3xxRedirection()) {
-                                redirectUrl.setVal(clientResponse.headers().header("Location").get(0));
-                                redirects.add(_url + " --> " + redirectUrl.getVal());
-                                // log.debug("Redirected to: " + redirectUrl);
-                            }
-                            return Mono.just(clientResponse);
-                        })).build();
-
+                OutboundHttpService.Response res = null;
                 try {
-                    response = webClient.get().uri(url)//
-                            .retrieve() //
-                            .onStatus(status -> status.is4xxClientError() || status.is5xxServerError(),
-                                    clientResponse -> {
-                                        // This will trigger for any response with 4xx or 5xx status codes
-                                        return clientResponse.bodyToMono(String.class).flatMap(errorBody -> {
-                                            log.debug("Error response from server: " + errorBody);
-                                            return Mono.error(
-                                                    new RuntimeException("Error response from server: " + errorBody));
-                                        });
-                                    })//
-                            .bodyToMono(String.class)//
-                            .timeout(Duration.ofSeconds(60))//
-                            .block();
-                } catch (WebClientResponseException e) {
-                    // This exception is thrown for HTTP status code errors
-                    throw new RuntimeEx("Error while calling the RSS feed service: " + e.getMessage() + " Status Code: "
-                            + e.getStatusCode(), e);
-                } catch (WebClientRequestException e) {
-                    // This exception is thrown for errors while making the request (e.g., connectivity issues)
-                    throw new RuntimeEx("Request error while calling the RSS feed service: " + e.getMessage(), e);
+                    res = svc_http.get(url, null, 100 * Const.ONE_MB, Duration.ofSeconds(60), false);
                 } catch (Exception e) {
                     /*
                      * Note: A common failure scenario here happens when servers opt to return HTML that does a redirect
@@ -374,12 +329,18 @@ public class RSSFeedService extends ServiceBase {
                      * 
                      * First known example of this tactic for me was: https://defence-blog.com/feed
                      */
-                    // This is a generic exception handler for other exceptions
-                    throw new RuntimeEx("General error while calling the RSS feed service: " + e.getMessage(), e);
+                    throw new RuntimeEx("Request error while calling the RSS feed service: " + e.getMessage(), e);
+                }
+                if (res.status >= 400) {
+                    log.debug("Error response from server: " + res.getText());
+                    throw new RuntimeEx("Error while calling the RSS feed service: Status Code: " + res.status);
                 }
+                response = res.getText();
 
-                if (redirectUrl.hasVal()) {
-                    url = redirectUrl.getVal();
+                String redirectUrl = res.isRedirect() ? res.headers.getFirst(HttpHeaders.LOCATION) : null;
+                if (redirectUrl != null) {
+                    redirects.add(url + " --> " + redirectUrl);
+                    url = redirectUrl;
                     log.debug("Redirecting to: " + url + " len of redirect response: " + response.length());
                 } else {
                     break;
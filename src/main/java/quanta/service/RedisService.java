@@ -1,17 +1,23 @@
 package quanta.service;
 
+import java.time.Duration;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.dao.DataAccessException;
 import org.springframework.data.redis.core.RedisOperations;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.listener.ChannelTopic;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
@@ -24,20 +30,47 @@ import quanta.util.DateUtil;
 public class RedisService extends ServiceBase {
     private static Logger log = LoggerFactory.getLogger(RedisService.class);
 
+    /*
+     * The expansion states of a session are in a hash under this prefix plus the token, rather than in
+     * the SessionContext itself, so the session stays small and only rendering reads them.
+     */
+    private static final String EXPAND_PREFIX = "xs:";
+
     @Autowired
+    @Qualifier("redisTemplate")
     private RedisTemplate<String, SessionContext> rops;
 
+    @Autowired
+    @Qualifier("redisPubTemplate")
+    private RedisTemplate<String, Object> pubOps;
+
+    @Autowired
+    private StringRedisTemplate strOps;
+
     @Autowired
     private ChannelTopic topic;
 
     public void publish(Object message) {
-        rops.convertAndSend(topic.getTopic(), message);
+        pubOps.convertAndSend(topic.getTopic(), message);
+    }
+
+    // Publishes on a specific channel, rather than the one every replica listens to
+    public void publish(String channel, Object message) {
+        pubOps.convertAndSend(channel, message);
     }
 
     public void save(SessionContext sc) {
         if (sc.getUserToken() == null)
             return;
         rops.opsForValue().set(sc.getUserToken(), sc);
+
+        // a session saved as JSON had its expansion states inline, so they move to their own hash now
+        HashMap<String, Boolean> legacyStates = sc.takeLegacyExpandStates();
+        if (legacyStates != null && legacyStates.size() > 0) {
+            HashMap<String, String> vals = new HashMap<>();
+            legacyStates.forEach((id, expanded) -> vals.put(id, expanded ? "1" : "0"));
+            strOps.opsForHash().putAll(EXPAND_PREFIX + sc.getUserToken(), vals);
+        }
     }
 
     public void delete(SessionContext sc) {
@@ -46,6 +79,23 @@ public class RedisService extends ServiceBase {
         if (rops.delete(sc.getUserToken())) {
             log.debug("Redis Token Deleted: " + sc.getUserToken());
         }
+        strOps.delete(EXPAND_PREFIX + sc.getUserToken());
+    }
+
+    // All the expansion states the user of session 'token' has set, by node id
+    public HashMap<String, Boolean> getExpandStates(String token) {
+        HashMap<String, Boolean> states = new HashMap<>();
+        if (StringUtils.isEmpty(token))
+            return states;
+        strOps.<String, String>opsForHash().entries(EXPAND_PREFIX + token)
+                .forEach((id, val) -> states.put(id, "1".equals(val)));
+        return states;
+    }
+
+    public void setExpandState(String token, String nodeId, boolean expanded) {
+        if (StringUtils.isEmpty(token))
+            return;
+        strOps.opsForHash().put(EXPAND_PREFIX + token, nodeId, expanded ? "1" : "0");
     }
 
     public SessionContext get(String token) {
@@ -58,12 +108,71 @@ public class RedisService extends ServiceBase {
         return sc;
     }
 
+    // Gets a string value written by setStr, or null if it's missing or has expired
+    public String getStr(String key) {
+        if (StringUtils.isEmpty(key))
+            return null;
+        return strOps.opsForValue().get(key);
+    }
+
+    // Sets a string value that Redis will expire on its own after 'ttl'
+    public void setStr(String key, String val, Duration ttl) {
+        if (StringUtils.isEmpty(key) || val == null)
+            return;
+        strOps.opsForValue().set(key, val, ttl);
+    }
+
+    // Time left before a value written by setStr expires, or null if it's missing or never expires
+    public Duration getStrTtl(String key) {
+        if (StringUtils.isEmpty(key))
+            return null;
+        Long millis = strOps.getExpire(key, TimeUnit.MILLISECONDS);
+        return millis != null && millis > 0 ? Duration.ofMillis(millis) : null;
+    }
+
+    // Gets several string values in one round trip. The result has a null for each missing key
+    public List<String> getStrs(List<String> keys) {
+        if (keys.isEmpty())
+            return List.of();
+        return strOps.opsForValue().multiGet(keys);
+    }
+
+    // Same as setStr for many keys, pipelined so it's a single round trip
+    public void setStrs(Map<String, String> vals, Duration ttl) {
+        if (vals.isEmpty())
+            return;
+        strOps.executePipelined(new SessionCallback<Object>() {
+            @SuppressWarnings("unchecked")
+            @Override
+            public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+                RedisOperations<String, String> ops = (RedisOperations<String, String>) operations;
+                vals.forEach((k, v) -> ops.opsForValue().set(k, v, ttl));
+                return null;
+            }
+        });
+    }
+
+    public void deleteStr(String key) {
+        if (StringUtils.isEmpty(key))
+            return;
+        strOps.delete(key);
+    }
+
     public List<SessionContext> query(String pattern) {
         LinkedList<SessionContext> list = new LinkedList<>();
         Set<String> keys = rops.keys(pattern);
         if (keys != null) {
-            for (String key : keys) {
-                list.add(rops.opsForValue().get(key));
+            // session tokens never contain a colon, so anything namespaced like "og:..." is some other
+            // kind of cache entry and not a SessionContext.
+            List<String> tokens = keys.stream().filter(key -> !key.contains(":")).toList();
+            if (tokens.size() > 0) {
+                // one round trip for all of them, instead of one per session
+                for (SessionContext sc : rops.opsForValue().multiGet(tokens)) {
+                    // null if it was deleted after the keys() call
+                    if (sc != null) {
+                        list.add(sc);
+                    }
+                }
             }
         }
         return list;
@@ -97,6 +206,7 @@ public class RedisService extends ServiceBase {
                         for (SessionContext sc : list) {
                             if (sc.getLastActiveTime() < now.getTime() - timeoutMillis) {
                                 rops.delete(sc.getUserToken());
+                                rops.delete(EXPAND_PREFIX + sc.getUserToken());
                             }
                         }
                         // This will contain the results of all operations in the transaction
@@ -0,0 +1,429 @@
+package quanta.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.bson.types.ObjectId;
+import quanta.model.client.PrincipalName;
+import quanta.mongo.model.SubNode;
+
+/*
+ * Inverted index over node content and tags (see SearchIndexService).
+ *
+ * Documents get an ordinal in the order they're added, and each term maps to the list of ordinals
+ * containing it. Updating a node appends it again under a new ordinal and leaves the old one as a
+ * tombstone (null in 'docs'), so posting lists only ever grow at the end, stay sorted, and never need
+ * searching to remove from. Tombstones are skipped at query time and dropped by compact().
+ *
+ * Besides exact terms, a query token matches every term it's a prefix of (from the sorted term map),
+ * every term containing it (from the trigram map), and every term within a small edit distance of it
+ * (candidates from the trigram map, then checked with Levenshtein). The trigram map is over the
+ * vocabulary, not the documents, so it stays small.
+ *
+ * Each document also keeps its path and the fields MongoAuth.addSecurity looks at, so the subtree and
+ * read security filters run inside the index and only the final matches go back to MongoDB.
+ *
+ * Not thread safe. SearchIndexService guards it with a read/write lock.
+ */
+public class SearchIndex {
+    private static final int FILE_VERSION = 1;
+    private static final int MIN_TERM_LEN = 2;
+    private static final int MAX_TERM_LEN = 64;
+    private static final int GRAM_LEN = 3;
+    // limits how many distinct terms one query token can expand into
+    private static final int MAX_EXPANSIONS = 5000;
+
+    public static class Doc {
+        final ObjectId id;
+        String path;
+        final ObjectId owner;
+        final ObjectId xfr;
+        final boolean isPublic;
+        final String[] sharedTo;
+        final String[] terms;
+
+        Doc(ObjectId id, String path, ObjectId owner, ObjectId xfr, boolean isPublic, String[] sharedTo,
+                String[] terms) {
+            this.id = id;
+            this.path = path;
+            this.owner = owner;
+            this.xfr = xfr;
+            this.isPublic = isPublic;
+            this.sharedTo = sharedTo;
+            this.terms = terms;
+        }
+    }
+
+    /* Growable int array, so posting lists don't box every ordinal */
+    private static class IntList {
+        int[] vals = new int[4];
+        int size;
+
+        void add(int val) {
+            if (size == vals.length) {
+                vals = Arrays.copyOf(vals, size * 2);
+            }
+            vals[size++] = val;
+        }
+    }
+
+    private final ArrayList<Doc> docs = new ArrayList<>();
+    private final HashMap<ObjectId, Integer> ordinals = new HashMap<>();
+    private final TreeMap<String, IntList> postings = new TreeMap<>();
+    // trigram (of "^term$") -> terms containing it
+    private final HashMap<String, HashSet<String>> grams = new HashMap<>();
+    private int deadCount;
+
+    // highest modify time of anything indexed, for catching up with changes made by other replicas
+    public long watermark;
+
+    public static Doc toDoc(SubNode node) {
+        boolean isPublic = false;
+        List<String> sharedTo = new ArrayList<>();
+        if (node.getAc() != null) {
+            for (String key : node.getAc().keySet()) {
+                if (PrincipalName.PUBLIC.s().equals(key)) {
+                    isPublic = true;
+                } else {
+                    sharedTo.add(key);
+                }
+            }
+        }
+        String text = node.getContent();
+        if (node.getTags() != null) {
+            text = text == null ? node.getTags() : text + " " + node.getTags();
+        }
+        return new Doc(node.getId(), node.getPath(), node.getOwner(), node.getTransferFrom(), isPublic,
+                sharedTo.toArray(new String[0]), tokenize(text).toArray(new String[0]));
+    }
+
+    /*
+     * Lowercase runs of letters and digits, deduplicated. Queries go through the same tokenizer, so
+     * "#tag" and "tag" are the same term.
+     */
+    public static LinkedHashSet<String> tokenize(String text) {
+        LinkedHashSet<String> ret = new LinkedHashSet<>();
+        if (text == null)
+            return ret;
+        int len = text.length();
+        int i = 0;
+        while (i < len) {
+            while (i < len && !Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < len && Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            if (i - start >= MIN_TERM_LEN) {
+                ret.add(text.substring(start, Math.min(i, start + MAX_TERM_LEN)).toLowerCase());
+            }
+        }
+        return ret;
+    }
+
+    public int size() {
+        return ordinals.size();
+    }
+
+    public int termCount() {
+        return postings.size();
+    }
+
+    public void put(Doc doc) {
+        remove(doc.id);
+        int ord = docs.size();
+        docs.add(doc);
+        ordinals.put(doc.id, ord);
+        for (String term : doc.terms) {
+            IntList list = postings.get(term);
+            if (list == null) {
+                list = new IntList();
+                postings.put(term, list);
+                for (String gram : getGrams("^" + term + "$")) {
+                    grams.computeIfAbsent(gram, k -> new HashSet<>()).add(term);
+                }
+            }
+            list.add(ord);
+        }
+    }
+
+    public void remove(ObjectId id) {
+        Integer ord = ordinals.remove(id);
+        if (ord != null) {
+            docs.set(ord, null);
+            deadCount++;
+        }
+    }
+
+    /* Rewrites the path of every document at or under 'oldPrefix', for when a subgraph is moved */
+    public void changePathPrefix(String oldPrefix, String newPrefix) {
+        for (Doc doc : docs) {
+            if (doc != null && (doc.path.equals(oldPrefix) || doc.path.startsWith(oldPrefix + "/"))) {
+                doc.path = newPrefix + doc.path.substring(oldPrefix.length());
+            }
+        }
+    }
+
+    /* Removes every document at or under 'prefix', for when a subgraph was deleted or replaced in bulk */
+    public int removeUnder(String prefix) {
+        int count = 0;
+        for (int ord = 0; ord < docs.size(); ord++) {
+            Doc doc = docs.get(ord);
+            if (doc != null && (doc.path.equals(prefix) || doc.path.startsWith(prefix + "/"))) {
+                ordinals.remove(doc.id);
+                docs.set(ord, null);
+                deadCount++;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public boolean needsCompact() {
+        return deadCount > 10000 && deadCount > ordinals.size();
+    }
+
+    /* Returns a new index with only the live documents */
+    public SearchIndex compact() {
+        SearchIndex ret = new SearchIndex();
+        for (Doc doc : docs) {
+            if (doc != null) {
+                ret.put(doc);
+            }
+        }
+        ret.watermark = watermark;
+        return ret;
+    }
+
+    /*
+     * Returns ids of the documents matching every token of 'text' and passing 'filter', or null if there
+     * are more than 'maxHits' of them.
+     */
+    public List<ObjectId> search(String text, Predicate<Doc> filter, int maxHits) {
+        BitSet matches = null;
+        for (String token : tokenize(text)) {
+            BitSet tokenMatches = new BitSet(docs.size());
+            for (String term : expand(token)) {
+                IntList list = postings.get(term);
+                for (int i = 0; i < list.size; i++) {
+                    tokenMatches.set(list.vals[i]);
+                }
+            }
+            if (matches == null) {
+                matches = tokenMatches;
+            } else {
+                matches.and(tokenMatches);
+            }
+            if (matches.isEmpty())
+                break;
+        }
+
+        List<ObjectId> ret = new ArrayList<>();
+        if (matches == null)
+            return ret;
+        for (int ord = matches.nextSetBit(0); ord >= 0; ord = matches.nextSetBit(ord + 1)) {
+            Doc doc = docs.get(ord);
+            if (doc == null || !filter.test(doc))
+                continue;
+            if (ret.size() >= maxHits)
+                return null;
+            ret.add(doc.id);
+        }
+        return ret;
+    }
+
+    /* All indexed terms 'token' matches by prefix, substring or edit distance */
+    private HashSet<String> expand(String token) {
+        HashSet<String> ret = new HashSet<>();
+
+        // prefix, including the exact term
+        for (String term : postings.subMap(token, true, token + Character.MAX_VALUE, false).keySet()) {
+            if (ret.size() >= MAX_EXPANSIONS)
+                return ret;
+            ret.add(term);
+        }
+
+        // substring, for terms having every trigram of the token
+        if (token.length() >= GRAM_LEN) {
+            HashSet<String> candidates = null;
+            for (String gram : getGrams(token)) {
+                HashSet<String> terms = grams.get(gram);
+                if (terms == null) {
+                    candidates = null;
+                    break;
+                }
+                if (candidates == null || terms.size() < candidates.size()) {
+                    candidates = terms;
+                }
+            }
+            if (candidates != null) {
+                for (String term : candidates) {
+                    if (term.contains(token)) {
+                        ret.add(term);
+                        if (ret.size() >= MAX_EXPANSIONS)
+                            return ret;
+                    }
+                }
+            }
+        }
+
+        // edit distance. Each edit can break at most GRAM_LEN trigrams, which gives a lower bound on how
+        // many a term must share with the token before it's worth computing the distance.
+        int maxEdits = token.length() < 4 ? 0 : token.length() < 8 ? 1 : 2;
+        if (maxEdits > 0) {
+            List<String> tokenGrams = getGrams("^" + token + "$");
+            int minShared = Math.max(1, tokenGrams.size() - GRAM_LEN * maxEdits);
+            HashMap<String, Integer> shared = new HashMap<>();
+            for (String gram : tokenGrams) {
+                HashSet<String> terms = grams.get(gram);
+                if (terms == null)
+                    continue;
+                for (String term : terms) {
+                    if (Math.abs(term.length() - token.length()) <= maxEdits) {
+                        shared.merge(term, 1, Integer::sum);
+                    }
+                }
+            }
+            for (Map.Entry<String, Integer> entry : shared.entrySet()) {
+                if (entry.getValue() >= minShared && !ret.contains(entry.getKey())
+                        && editDistance(token, entry.getKey(), maxEdits) <= maxEdits) {
+                    ret.add(entry.getKey());
+                    if (ret.size() >= MAX_EXPANSIONS)
+                        return ret;
+                }
+            }
+        }
+        return ret;
+    }
+
+    private static List<String> getGrams(String s) {
+        List<String> ret = new ArrayList<>();
+        for (int i = 0; i + GRAM_LEN <= s.length(); i++) {
+            ret.add(s.substring(i, i + GRAM_LEN));
+        }
+        return ret;
+    }
+
+    /* Levenshtein distance, giving up (returning max + 1) as soon as every path exceeds 'max' */
+    static int editDistance(String a, String b, int max) {
+        int[] prev = new int[b.length() + 1];
+        int[] cur = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            prev[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            cur[0] = i;
+            int rowMin = cur[0];
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                cur[j] = Math.min(Math.min(cur[j - 1] + 1, prev[j] + 1), prev[j - 1] + cost);
+                rowMin = Math.min(rowMin, cur[j]);
+            }
+            if (rowMin > max)
+                return max + 1;
+            int[] tmp = prev;
+            prev = cur;
+            cur = tmp;
+        }
+        return prev[b.length()];
+    }
+
+    /*
+     * Only the documents are stored, the postings and trigrams are rebuilt from their terms on load.
+     * Written to a temp file first so a crash mid-write never leaves a truncated index behind.
+     */
+    public void write(File file) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmpFile))))) {
+            out.writeInt(FILE_VERSION);
+            out.writeLong(watermark);
+            out.writeInt(ordinals.size());
+            for (Doc doc : docs) {
+                if (doc == null)
+                    continue;
+                out.write(doc.id.toByteArray());
+                out.writeUTF(doc.path);
+                writeId(out, doc.owner);
+                writeId(out, doc.xfr);
+                out.writeBoolean(doc.isPublic);
+                writeStrings(out, doc.sharedTo);
+                writeStrings(out, doc.terms);
+            }
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("Unable to rename " + tmpFile + " to " + file);
+        }
+    }
+
+    public static SearchIndex read(File file) throws IOException {
+        SearchIndex ret = new SearchIndex();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+            if (in.readInt() != FILE_VERSION) {
+                throw new IOException("Unsupported search index version: " + file);
+            }
+            ret.watermark = in.readLong();
+            int count = in.readInt();
+            byte[] idBytes = new byte[12];
+            for (int i = 0; i < count; i++) {
+                in.readFully(idBytes);
+                ObjectId id = new ObjectId(idBytes);
+                String path = in.readUTF();
+                ObjectId owner = readId(in);
+                ObjectId xfr = readId(in);
+                boolean isPublic = in.readBoolean();
+                ret.put(new Doc(id, path, owner, xfr, isPublic, readStrings(in), readStrings(in)));
+            }
+        }
+        return ret;
+    }
+
+    private static void writeId(DataOutputStream out, ObjectId id) throws IOException {
+        out.writeBoolean(id != null);
+        if (id != null) {
+            out.write(id.toByteArray());
+        }
+    }
+
+    private static ObjectId readId(DataInputStream in) throws IOException {
+        if (!in.readBoolean())
+            return null;
+        byte[] bytes = new byte[12];
+        in.readFully(bytes);
+        return new ObjectId(bytes);
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] vals) throws IOException {
+        out.writeInt(vals.length);
+        for (String val : vals) {
+            out.writeUTF(val);
+        }
+    }
+
+    private static String[] readStrings(DataInputStream in) throws IOException {
+        String[] ret = new String[in.readInt()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = in.readUTF();
+        }
+        return ret;
+    }
+}
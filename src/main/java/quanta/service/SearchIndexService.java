@@ -0,0 +1,432 @@
+package quanta.service;
+
+import java.io.File;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import jakarta.annotation.PreDestroy;
+import quanta.AppServer;
+import quanta.config.NodePath;
+import quanta.config.ServiceBase;
+import quanta.exception.base.RuntimeEx;
+import quanta.mongo.MongoRepository;
+import quanta.mongo.NodeChangeListener;
+import quanta.mongo.model.SubNode;
+import quanta.util.DateUtil;
+import quanta.util.TL;
+
+/**
+ * Optional in-process full text index (SearchIndex) for fuzzy searches, enabled with the
+ * 'searchIndexEnabled' property.
+ *
+ * Without it a fuzzy search is an unanchored case-insensitive regex on the content, which MongoDB can
+ * only answer by scanning the whole subgraph. With it, the index finds the matching ids (by prefix,
+ * substring and edit distance, with the subtree and read security filters applied) and MongoDB only
+ * has to load those, by _id, still with all the usual criteria so the index can never widen what a
+ * user sees.
+ *
+ * The index lives in memory and is snapshotted to adminDataFolder/search-index. At startup it's
+ * loaded from the snapshot, or built by a full scan if there isn't one, and after that it's kept
+ * current by MongoTemplateWrapper saves and deletes (applied after commit when inside a transaction),
+ * bulk subgraph deletes (which drop and re-read that subgraph), plus a periodic catch-up on modify time
+ * for changes made by other replicas.
+ */
+@Component
+public class SearchIndexService extends ServiceBase implements NodeChangeListener {
+    private static Logger log = LoggerFactory.getLogger(SearchIndexService.class);
+
+    // above this many matches the $in list costs more than it saves and we just use the regex
+    private static final int MAX_HITS = 10000;
+    private static final long SNAPSHOT_INTERVAL = 10 * DateUtil.MINUTE_MILLIS;
+    // re-read a little before the watermark, for saves that committed out of order
+    private static final long CATCHUP_OVERLAP = DateUtil.MINUTE_MILLIS;
+    private static final int BENCHMARK_RUNS = 5;
+
+    private static final String[] INDEX_FIELDS = {SubNode.PATH, SubNode.CONTENT, SubNode.TAGS, SubNode.OWNER,
+            SubNode.TYPE, SubNode.XFR, SubNode.AC, SubNode.MODIFY_TIME};
+
+    // text meant as a regex has to go to the regex search
+    private static final Pattern REGEX_CHARS = Pattern.compile("[\\\\^$.|?*+()\\[\\]{}]");
+
+    // index changes made during the current transaction (null value is a delete), applied on commit
+    private static final Object PENDING_KEY = SearchIndexService.class.getName() + ".pending";
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // null until loaded or built
+    private volatile SearchIndex index;
+    private final Object buildLock = new Object();
+    private volatile boolean dirty;
+    // set by allChanged, when we can't tell what to update and the next run rebuilds it all
+    private volatile boolean rebuildNeeded;
+    private long lastSnapshotTime = System.currentTimeMillis();
+
+    public boolean isEnabled() {
+        return svc_prop.getSearchIndexEnabled();
+    }
+
+    @Scheduled(fixedDelay = 30000)
+    public void run() {
+        if (!initComplete || !svc_prop.isDaemonsEnabled() || !MongoRepository.fullInit || !isEnabled())
+            return;
+        if (AppServer.isShuttingDown() || !AppServer.isEnableScheduling())
+            return;
+
+        try {
+            svc_arun.run(() -> {
+                if (index == null) {
+                    load();
+                } else if (rebuildNeeded) {
+                    rebuild();
+                }
+                catchUp();
+                compactIfNeeded();
+                if (dirty && System.currentTimeMillis() - lastSnapshotTime > SNAPSHOT_INTERVAL) {
+                    snapshot();
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            log.error("Search index maintenance failed", e);
+        }
+    }
+
+    @PreDestroy
+    public void preDestroy() {
+        if (rebuildNeeded) {
+            // the snapshot has whatever allChanged made stale, so the next startup builds from scratch
+            getFile().delete();
+        } else if (index != null && dirty) {
+            snapshot();
+        }
+    }
+
+    private void load() {
+        synchronized (buildLock) {
+            if (index != null)
+                return;
+            File file = getFile();
+            if (file.exists()) {
+                try {
+                    long start = System.currentTimeMillis();
+                    index = SearchIndex.read(file);
+                    log.debug("Loaded search index of " + index.size() + " nodes in "
+                            + (System.currentTimeMillis() - start) + "ms");
+                    return;
+                } catch (Exception e) {
+                    log.error("Unable to read search index, rebuilding", e);
+                }
+            }
+            rebuild();
+        }
+    }
+
+    /*
+     * Builds a new index with a full scan and swaps it in. Anything saved while we're scanning may be
+     * missed, so the watermark is the time we started and the next catch-up re-reads those.
+     */
+    public String rebuild() {
+        synchronized (buildLock) {
+            rebuildNeeded = false;
+            long start = System.currentTimeMillis();
+            SearchIndex newIndex = new SearchIndex();
+            Query q = new Query();
+            q.fields().include(INDEX_FIELDS);
+            svc_ops.forEach(q, n -> newIndex.put(SearchIndex.toDoc(n)));
+            newIndex.watermark = start;
+
+            lock.writeLock().lock();
+            try {
+                index = newIndex;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            dirty = true;
+            snapshot();
+            String ret = "Search index built: " + newIndex.size() + " nodes, " + newIndex.termCount() + " terms in "
+                    + (System.currentTimeMillis() - start) + "ms";
+            log.debug(ret);
+            return ret;
+        }
+    }
+
+    private void catchUp() {
+        SearchIndex idx = index;
+        if (idx == null)
+            return;
+        Query q = new Query(Criteria.where(SubNode.MODIFY_TIME).gte(new Date(idx.watermark - CATCHUP_OVERLAP)));
+        q.fields().include(INDEX_FIELDS);
+        svc_ops.forEach(q, n -> {
+            lock.writeLock().lock();
+            try {
+                idx.put(SearchIndex.toDoc(n));
+                if (n.getModifyTime() != null && n.getModifyTime().getTime() > idx.watermark) {
+                    idx.watermark = n.getModifyTime().getTime();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            dirty = true;
+        });
+    }
+
+    private void compactIfNeeded() {
+        SearchIndex idx = index;
+        if (idx == null || !idx.needsCompact())
+            return;
+        lock.writeLock().lock();
+        try {
+            index = idx.compact();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        dirty = true;
+    }
+
+    private void snapshot() {
+        SearchIndex idx = index;
+        if (idx == null)
+            return;
+        // the read lock keeps updates out while we write, but searches can continue
+        lock.readLock().lock();
+        try {
+            File file = getFile();
+            file.getParentFile().mkdirs();
+            idx.write(file);
+            dirty = false;
+            lastSnapshotTime = System.currentTimeMillis();
+        } catch (Exception e) {
+            log.error("Unable to write search index", e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private File getFile() {
+        return new File(svc_prop.getAdminDataFolder() + "/search-index/nodes.idx.gz");
+    }
+
+    @Override
+    public void nodeSaved(SubNode oldNode, SubNode node) {
+        if (index == null || node.getId() == null || node.getPath() == null)
+            return;
+        update(node.getId(), SearchIndex.toDoc(node));
+    }
+
+    @Override
+    public void nodeDeleted(SubNode node) {
+        if (index == null || node.getId() == null)
+            return;
+        update(node.getId(), null);
+    }
+
+    // a move is a bulk path update that never saves the nodes
+    @Override
+    public void subtreeMoved(String oldPrefix, String newPrefix) {
+        SearchIndex idx = index;
+        if (idx == null)
+            return;
+        lock.writeLock().lock();
+        try {
+            idx.changePathPrefix(oldPrefix, newPrefix);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        dirty = true;
+    }
+
+    /*
+     * A bulk delete or replace of the subgraph at 'path' (maybe including the node at 'path'), so we drop
+     * everything we have there and index whatever is there now, once it's committed.
+     */
+    @Override
+    public void subtreeChanged(String path) {
+        if (index == null || path == null)
+            return;
+        afterCommit(() -> reindexSubtree(path));
+    }
+
+    @Override
+    public void allChanged() {
+        if (index == null)
+            return;
+        afterCommit(() -> rebuildNeeded = true);
+    }
+
+    /*
+     * Saves made on other replicas get here thru catchUp, but bulk changes don't touch the modify time,
+     * so those come from the shared change feed (see NodeChangeEvents)
+     */
+    @Override
+    public void remoteSubtreeChanged(String path) {
+        if (index == null || path == null)
+            return;
+        if (NodePath.ROOT_PATH.equals(path)) {
+            rebuildNeeded = true;
+        } else {
+            reindexSubtree(path);
+        }
+    }
+
+    private void reindexSubtree(String path) {
+        SearchIndex idx = index;
+        if (idx == null)
+            return;
+        lock.writeLock().lock();
+        try {
+            idx.removeUnder(path);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        dirty = true;
+
+        Query q = new Query(Criteria.where(SubNode.PATH).regex(svc_mongoUtil.regexSubGraphAndRoot(path)));
+        q.fields().include(INDEX_FIELDS);
+        svc_arun.run(() -> {
+            svc_ops.forEach(q, n -> {
+                lock.writeLock().lock();
+                try {
+                    idx.put(SearchIndex.toDoc(n));
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            });
+            return null;
+        });
+    }
+
+    private void afterCommit(Runnable runnable) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    runnable.run();
+                }
+            });
+        } else {
+            runnable.run();
+        }
+    }
+
+    private void update(ObjectId id, SearchIndex.Doc doc) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            @SuppressWarnings("unchecked")
+            HashMap<ObjectId, SearchIndex.Doc> pending =
+                    (HashMap<ObjectId, SearchIndex.Doc>) TransactionSynchronizationManager.getResource(PENDING_KEY);
+            if (pending == null) {
+                HashMap<ObjectId, SearchIndex.Doc> newPending = new HashMap<>();
+                TransactionSynchronizationManager.bindResource(PENDING_KEY, newPending);
+                TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                    @Override
+                    public void afterCompletion(int status) {
+                        TransactionSynchronizationManager.unbindResourceIfPossible(PENDING_KEY);
+                        if (status == STATUS_COMMITTED) {
+                            apply(newPending);
+                        }
+                    }
+                });
+                pending = newPending;
+            }
+            pending.put(id, doc);
+        } else {
+            HashMap<ObjectId, SearchIndex.Doc> changes = new HashMap<>();
+            changes.put(id, doc);
+            apply(changes);
+        }
+    }
+
+    private void apply(HashMap<ObjectId, SearchIndex.Doc> changes) {
+        SearchIndex idx = index;
+        if (idx == null)
+            return;
+        lock.writeLock().lock();
+        try {
+            for (Map.Entry<ObjectId, SearchIndex.Doc> entry : changes.entrySet()) {
+                if (entry.getValue() != null) {
+                    idx.put(entry.getValue());
+                } else {
+                    idx.remove(entry.getKey());
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        dirty = true;
+    }
+
+    /*
+     * Returns the ids of nodes under 'root' (or only its children, if not 'recursive') matching 'text'
+     * that the current user can read, or null if the index can't answer this one and the caller should
+     * use the regex search.
+     */
+    public List<ObjectId> search(SubNode root, String text, boolean recursive, boolean caseSensitive) {
+        SearchIndex idx = index;
+        if (idx == null || caseSensitive || REGEX_CHARS.matcher(text).find() || SearchIndex.tokenize(text).isEmpty())
+            return null;
+
+        NodeViewer viewer = NodeViewer.current();
+        String prefix = root.getPath() + "/";
+        Predicate<SearchIndex.Doc> filter = doc -> doc.path.startsWith(prefix)
+                && (recursive || doc.path.indexOf('/', prefix.length()) == -1)
+                && viewer.canRead(doc.owner, doc.xfr, doc.isPublic, doc.sharedTo);
+
+        lock.readLock().lock();
+        try {
+            return idx.search(text, filter, MAX_HITS);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * Times a fuzzy search of the whole database for 'text' both ways, end to end (the index way
+     * includes loading the matched ids from MongoDB), for the admin console.
+     */
+    public String benchmark(String text) {
+        TL.requireAdmin();
+        if (index == null)
+            return "Search index is not loaded.";
+
+        SubNode root = svc_mongoRead.getDbRoot();
+        long regexTime = 0, indexTime = 0, regexCount = 0, indexCount = 0;
+        for (int i = 0; i < BENCHMARK_RUNS; i++) {
+            long start = System.currentTimeMillis();
+            Query q = new Query(svc_mongoUtil.subGraphCriteria(root.getPath()));
+            q.addCriteria(Criteria.where(SubNode.CONTENT).regex(text, "i"));
+            regexCount = svc_ops.count(q);
+            regexTime += System.currentTimeMillis() - start;
+
+            start = System.currentTimeMillis();
+            List<ObjectId> ids = search(root, text, true, false);
+            if (ids == null)
+                return "Search index can't answer this query (regex characters or too many matches)";
+            q = new Query(Criteria.where(SubNode.ID).in(ids));
+            indexCount = svc_ops.count(q);
+            indexTime += System.currentTimeMillis() - start;
+        }
+        return "Fuzzy search for '" + text + "' averaged over " + BENCHMARK_RUNS + " runs:\n" //
+                + "Regex: " + (regexTime / BENCHMARK_RUNS) + "ms, " + regexCount + " matches\n" //
+                + "Index: " + (indexTime / BENCHMARK_RUNS) + "ms, " + indexCount + " matches (" + index.size()
+                + " nodes, " + index.termCount() + " terms indexed)";
+    }
+
+    public String rebuildCommand() {
+        TL.requireAdmin();
+        if (!isEnabled()) {
+            throw new RuntimeEx("Search index is not enabled (searchIndexEnabled)");
+        }
+        return svc_arun.run(() -> rebuild());
+    }
+}
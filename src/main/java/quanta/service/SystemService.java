@@ -2,15 +2,25 @@ package quanta.service;
 
 import java.lang.management.ManagementFactory;
 import java.lang.management.RuntimeMXBean;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.commons.lang3.StringUtils;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentWriter;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
@@ -20,12 +30,15 @@ import quanta.config.ServiceBase;
 import quanta.config.SessionContext;
 import quanta.exception.base.RuntimeEx;
 import quanta.mongo.MongoAppConfig;
+import quanta.mongo.SubNodeCodec;
+import quanta.mongo.SubNodeConverter;
 import quanta.mongo.model.SubNode;
 import quanta.perf.PerformanceReport;
 import quanta.redis.RedisBrowserPushInfo;
 import quanta.rest.request.ExportRequest;
 import quanta.rest.request.GetServerInfoRequest;
 import quanta.rest.request.SendLogTextRequest;
+import quanta.rest.response.ExportPushInfo;
 import quanta.rest.response.ExportResponse;
 import quanta.rest.response.GetServerInfoResponse;
 import quanta.rest.response.InfoMessage;
@@ -33,11 +46,15 @@ import quanta.rest.response.PingResponse;
 import quanta.rest.response.SendLogTextResponse;
 import quanta.rest.response.SendTestEmailResponse;
 import quanta.rest.response.ServerPushInfo;
+import quanta.service.exports.ExportArchiveBase;
+import quanta.service.exports.ExportJsonService;
 import quanta.service.exports.ExportServicePDF;
 import quanta.service.exports.ExportTarService;
 import quanta.service.exports.ExportZipService;
+import quanta.util.BackendLimiter;
 import quanta.util.Const;
 import quanta.util.DateUtil;
+import quanta.util.ExUtil;
 import quanta.util.TL;
 import quanta.util.XString;
 
@@ -50,6 +67,30 @@ public class SystemService extends ServiceBase {
     private static final Random rand = new Random();
     private static final int replicaId = rand.nextInt(Integer.MAX_VALUE);
 
+    private static final Set<String> EXPORT_EXTS = Set.of("pdf", "zip", "tar", "tar.gz");
+
+    // user names that currently have an export running. We only allow one at a time per user.
+    private final Set<String> exportsRunning = ConcurrentHashMap.newKeySet();
+
+    /*
+     * Full DB backup (nodes and binaries) into the adminDataFolder. If no name is given we use a
+     * timestamped one.
+     */
+    public String dumpDb(String dumpName) {
+        TL.requireAdmin();
+        if (StringUtils.isEmpty(dumpName)) {
+            dumpName = "dump-" + DateUtil.getFileNameCompatDate();
+        }
+        ExportJsonService svc = (ExportJsonService) context.getBean(ExportJsonService.class);
+        return svc.dumpAllNodes(null, dumpName);
+    }
+
+    public String restoreDb(String dumpName) {
+        TL.requireAdmin();
+        ExportJsonService svc = (ExportJsonService) context.getBean(ExportJsonService.class);
+        return svc.restoreAllNodes(dumpName);
+    }
+
     public String rebuildIndexes() {
         TL.requireAdmin();
         svc_arun.run(() -> {
@@ -59,6 +100,98 @@ public class SystemService extends ServiceBase {
         return "success.";
     }
 
+    /*
+     * Times reading (and decoding) the same nodes as full documents and as the LIGHT_FIELDS projection,
+     * to see what the projected reads save. First round of each is a warmup and not counted.
+     */
+    public String projectionBenchmark() {
+        TL.requireAdmin();
+        final int count = 10000;
+        final int rounds = 3;
+        return svc_arun.run(() -> {
+            long fullTime = 0;
+            long lightTime = 0;
+            int fullCount = 0;
+            int lightCount = 0;
+            for (int i = 0; i <= rounds; i++) {
+                long start = System.nanoTime();
+                fullCount = svc_ops.find(new Query().limit(count)).size();
+                long mid = System.nanoTime();
+                Query q = new Query().limit(count);
+                q.fields().include(SubNode.LIGHT_FIELDS);
+                lightCount = svc_ops.find(q).size();
+                long end = System.nanoTime();
+                if (i > 0) {
+                    fullTime += mid - start;
+                    lightTime += end - mid;
+                }
+            }
+            return "Full read of " + fullCount + " nodes: " + (fullTime / rounds / 1000000) + "ms\n" //
+                    + "Light read of " + lightCount + " nodes: " + (lightTime / rounds / 1000000) + "ms\n" //
+                    + "(average of " + rounds + " rounds)";
+        });
+    }
+
+    /*
+     * Decodes the same raw documents with SubNodeConverter (via a Document, the way Spring does it) and
+     * with SubNodeCodec, timing both and checking they produce the same nodes by encoding each back.
+     */
+    public String codecBenchmark() {
+        TL.requireAdmin();
+        final int count = 10000;
+        final int rounds = 3;
+        return svc_arun.run(() -> {
+            List<RawBsonDocument> raws = new ArrayList<>();
+            svc_ops.getCollection(svc_ops.getNodesCollectionName(), RawBsonDocument.class).find().limit(count)
+                    .into(raws);
+            SubNodeCodec codec = svc_ops.getNodeCodec();
+            Codec<Document> docCodec = svc_ops.getCollection(svc_ops.getNodesCollectionName(), Document.class)
+                    .getCodecRegistry().get(Document.class);
+            SubNodeConverter converter = new SubNodeConverter();
+            DecoderContext ctx = DecoderContext.builder().build();
+
+            int mismatches = 0;
+            for (RawBsonDocument raw : raws) {
+                SubNode viaConverter = converter.convert(docCodec.decode(raw.asBsonReader(), ctx));
+                SubNode viaCodec = codec.decode(raw.asBsonReader(), ctx);
+                if (!encode(codec, viaConverter).equals(encode(codec, viaCodec))) {
+                    if (mismatches++ == 0) {
+                        log.warn("Codec mismatch on node: " + viaConverter.getIdStr());
+                    }
+                }
+            }
+
+            long converterTime = 0;
+            long codecTime = 0;
+            for (int i = 0; i <= rounds; i++) {
+                long start = System.nanoTime();
+                for (RawBsonDocument raw : raws) {
+                    converter.convert(docCodec.decode(raw.asBsonReader(), ctx));
+                }
+                long mid = System.nanoTime();
+                for (RawBsonDocument raw : raws) {
+                    codec.decode(raw.asBsonReader(), ctx);
+                }
+                long end = System.nanoTime();
+                // first round is warmup
+                if (i > 0) {
+                    converterTime += mid - start;
+                    codecTime += end - mid;
+                }
+            }
+            return "Decoded " + raws.size() + " nodes (average of " + rounds + " rounds)\n" //
+                    + "Document + SubNodeConverter: " + (converterTime / rounds / 1000000) + "ms\n" //
+                    + "SubNodeCodec: " + (codecTime / rounds / 1000000) + "ms\n" //
+                    + "Mismatches: " + mismatches;
+        });
+    }
+
+    private BsonDocument encode(SubNodeCodec codec, SubNode node) {
+        BsonDocument doc = new BsonDocument();
+        codec.encode(new BsonDocumentWriter(doc), node, EncoderContext.builder().build());
+        return doc;
+    }
+
     public String runConversion() {
         String ret = "";
         try {
@@ -178,6 +311,19 @@ public class SystemService extends ServiceBase {
         sb.append(String.format("Server Free Mem: %dMB\n", freeMem));
         sb.append("\n```\n");
 
+        sb.append("## Async Tasks\n");
+        sb.append("\n```\n");
+        sb.append(svc_async.getReport());
+        sb.append(BackendLimiter.getReport());
+        sb.append(svc_http.getReport());
+        sb.append("\n```\n");
+
+        sb.append("## Server Push\n");
+        sb.append("\n```\n");
+        sb.append(svc_pushRouter.getReport());
+        sb.append(PushConnection.getReport());
+        sb.append("\n```\n");
+
         sb.append(svc_user.getUserAccountsReport());
 
         sb.append("## VM Args\n");
@@ -235,6 +381,10 @@ public class SystemService extends ServiceBase {
         return ("Redis PubSub Published: " + XString.prettyPrint(msg));
     }
 
+    /*
+     * Exports run in the background. The response comes back right away, and the browser is sent
+     * ExportPushInfo messages with progress and then the file name (or error) when it's done.
+     */
     public Object cm_export(ExportRequest req) {
         ExportResponse res = new ExportResponse();
 
@@ -248,25 +398,58 @@ public class SystemService extends ServiceBase {
             return null;
         });
 
-        if ("pdf".equalsIgnoreCase(req.getExportExt())) {
+        if (!EXPORT_EXTS.contains(req.getExportExt().toLowerCase())) {
+            throw new RuntimeEx("Unsupported file extension: " + req.getExportExt());
+        }
+
+        SessionContext sc = TL.getSC();
+        if (!exportsRunning.add(sc.getUserName())) {
+            throw new RuntimeEx("You already have an export running. Wait for it to finish first.");
+        }
+
+        try {
+            svc_async.run(() -> {
+                try {
+                    ExportResponse exportRes = new ExportResponse();
+                    int nodeCount = runExport(req, exportRes, sc);
+                    svc_push.pushInfo(sc, new ExportPushInfo(exportRes.getFileName(), nodeCount, true, null));
+                } catch (Exception e) {
+                    ExUtil.error(log, "export failed", e);
+                    String msg = e.getMessage() != null ? e.getMessage() : "Export failed";
+                    svc_push.pushInfo(sc, new ExportPushInfo(null, 0, true, msg));
+                } finally {
+                    exportsRunning.remove(sc.getUserName());
+                }
+            });
+        } catch (Exception e) {
+            // it never started, so nothing else will clear it
+            exportsRunning.remove(sc.getUserName());
+            throw e;
+        }
+        return res;
+    }
+
+    // returns number of nodes exported, or zero if the exporter doesn't count them
+    private int runExport(ExportRequest req, ExportResponse res, SessionContext sc) {
+        String ext = req.getExportExt().toLowerCase();
+        if ("pdf".equals(ext)) {
             ExportServicePDF svc = (ExportServicePDF) context.getBean(ExportServicePDF.class);
             svc.export(req, res);
-        } else if ("zip".equalsIgnoreCase(req.getExportExt())) {
-            ExportZipService svc = (ExportZipService) context.getBean(ExportZipService.class);
-            svc.export(req, res);
-        } //
-        else if ("tar".equalsIgnoreCase(req.getExportExt())) {
-            ExportTarService svc = (ExportTarService) context.getBean(ExportTarService.class);
-            svc.export(req, res);
+            return 0;
+        }
+
+        ExportArchiveBase svc = null;
+        if ("zip".equals(ext)) {
+            svc = (ExportZipService) context.getBean(ExportZipService.class);
         } //
-        else if ("tar.gz".equalsIgnoreCase(req.getExportExt())) {
-            ExportTarService svc = (ExportTarService) context.getBean(ExportTarService.class);
-            svc.setUseGZip(true);
-            svc.export(req, res);
-        } else {
-            throw new RuntimeEx("Unsupported file extension: " + req.getExportExt());
+        else {
+            ExportTarService tarSvc = (ExportTarService) context.getBean(ExportTarService.class);
+            tarSvc.setUseGZip("tar.gz".equals(ext));
+            svc = tarSvc;
         }
-        return res;
+        svc.setProgressListener(count -> svc_push.pushInfo(sc, new ExportPushInfo(null, count, false, null)));
+        svc.export(req, res);
+        return svc.getNodeCount();
     }
 
     public Object cm_getServerInfo(GetServerInfoRequest req) {
@@ -311,6 +494,24 @@ public class SystemService extends ServiceBase {
             case "repairDb":
                 res.getMessages().add(new InfoMessage(svc_system.repairDb(), null));
                 break;
+            case "dumpDb":
+                res.getMessages().add(new InfoMessage(svc_system.dumpDb(req.getParameter()), null));
+                break;
+            case "restoreDb":
+                res.getMessages().add(new InfoMessage(svc_system.restoreDb(req.getParameter()), null));
+                break;
+            case "rebuildSearchIndex":
+                res.getMessages().add(new InfoMessage(svc_searchIndex.rebuildCommand(), null));
+                break;
+            case "codecBenchmark":
+                res.getMessages().add(new InfoMessage(svc_system.codecBenchmark(), null));
+                break;
+            case "projectionBenchmark":
+                res.getMessages().add(new InfoMessage(svc_system.projectionBenchmark(), null));
+                break;
+            case "searchIndexBenchmark":
+                res.getMessages().add(new InfoMessage(svc_searchIndex.benchmark(req.getParameter()), null));
+                break;
             case "rebuildIndexes":
                 res.getMessages().add(new InfoMessage(svc_system.rebuildIndexes(), null));
                 break;
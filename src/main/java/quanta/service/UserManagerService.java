@@ -12,6 +12,7 @@ import java.util.Random;
 import java.util.StringTokenizer;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
+import org.apache.commons.collections4.map.LRUMap;
 import org.apache.commons.lang3.StringUtils;
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
@@ -41,6 +42,7 @@ import quanta.model.client.PrincipalName;
 import quanta.model.client.PrivilegeType;
 import quanta.model.client.UserProfile;
 import quanta.mongo.MongoTranMgr;
+import quanta.mongo.MongoUtil;
 import quanta.mongo.model.AccountNode;
 import quanta.mongo.model.CreateNodeLocation;
 import quanta.mongo.model.SubNode;
@@ -94,22 +96,40 @@ public class UserManagerService extends ServiceBase {
     // private static final ConcurrentHashMap<String, String> privateKeysByUserName = new
     // ConcurrentHashMap<>();
 
-    public static final ConcurrentHashMap<String, SseEmitter> pushEmitters = new ConcurrentHashMap<>();
+    public static final ConcurrentHashMap<String, PushConnection> pushEmitters = new ConcurrentHashMap<>();
+
+    // normalized user name to account id (see getAccountByUserName), guarded by synchronizing on itself
+    private static final int MAX_ACCOUNT_IDS = 10000;
+    private final LRUMap<String, ObjectId> accountIdsByName = new LRUMap<>(MAX_ACCOUNT_IDS);
 
     public SseEmitter getPushEmitter(String token) {
-        SseEmitter emitter = pushEmitters.get(token);
-        if (emitter == null) {
+        PushConnection conn = pushEmitters.get(token);
+        if (conn == null) {
             // big number here so we never timeout
-            emitter = new SseEmitter(Long.MAX_VALUE);
+            SseEmitter emitter = new SseEmitter(Long.MAX_VALUE);
+            PushConnection _conn = new PushConnection(token, emitter);
 
-            // emitter.onCompletion(() -> log.debug("SseEmitter is completed"));
+            // once the connection is gone the emitter can't be used again, and the browser will get a new one
+            // (possibly on another replica) when it reconnects
+            emitter.onCompletion(() -> removePushConnection(token, _conn));
             emitter.onTimeout(() -> log.debug("SseEmitter is timed out"));
-            emitter.onError((ex) -> log.debug("SseEmitter got error:", ex));
+            emitter.onError((ex) -> {
+                log.debug("SseEmitter got error:", ex);
+                removePushConnection(token, _conn);
+            });
 
-            pushEmitters.put(token, emitter);
+            pushEmitters.put(token, _conn);
+            svc_pushRouter.register(token);
             log.debug("SseEmitter token " + token + " on replica " + svc_prop.getSwarmTaskSlot());
+            conn = _conn;
+        }
+        return conn.getEmitter();
+    }
+
+    public void removePushConnection(String token, PushConnection conn) {
+        if (pushEmitters.remove(token, conn)) {
+            svc_pushRouter.unregister(token);
         }
-        return emitter;
     }
 
     public void authBearer() {
@@ -296,6 +316,7 @@ public class UserManagerService extends ServiceBase {
             if (ownerNode != null) {
                 svc_mongoDelete.delete(ownerNode, false);
             }
+            evictAccountId(userName);
             return null;
         });
         session.invalidate();
@@ -1197,6 +1218,11 @@ public class UserManagerService extends ServiceBase {
 
     public void logout(HttpSession session) {
         svc_redis.delete(TL.getSC());
+        // pushes no longer check the session exists, so end the browser's push connection here
+        PushConnection conn = TL.getSC().getUserToken() != null ? pushEmitters.get(TL.getSC().getUserToken()) : null;
+        if (conn != null) {
+            conn.close(null);
+        }
         TL.getSC().forceAnonymous();
         session.invalidate();
     }
@@ -1228,7 +1254,15 @@ public class UserManagerService extends ServiceBase {
         // Otherwise for ordinary users root is based off their username
         Query q = new Query();
         Criteria crit;
-        if (caseSensitive) {
+        String keyField = getAccountKeyField(propName);
+        if (keyField != null && MongoUtil.accountKeysReady) {
+            // exact match on the normalized value, and then on the actual value if it has to match case
+            crit = Criteria.where(keyField).is(AccountNode.normalize(propVal)).and(SubNode.TYPE)
+                    .is(NodeType.ACCOUNT.s());
+            if (caseSensitive) {
+                crit = crit.and(SubNode.PROPS + "." + propName).is(propVal);
+            }
+        } else if (caseSensitive) {
             crit = svc_mongoUtil.childrenCriteria(NodePath.USERS_PATH).and(SubNode.PROPS + "." + propName).is(propVal);
         } else {
             crit = svc_mongoUtil.childrenCriteria(NodePath.USERS_PATH).and(SubNode.PROPS + "." + propName)
@@ -1240,6 +1274,14 @@ public class UserManagerService extends ServiceBase {
         return svc_ops.findOne(q, AccountNode.class);
     }
 
+    private String getAccountKeyField(String propName) {
+        if (NodeProp.USER.s().equals(propName))
+            return AccountNode.USER_KEY;
+        if (NodeProp.EMAIL.s().equals(propName))
+            return AccountNode.EMAIL_KEY;
+        return null;
+    }
+
     public AccountNode getAccountNode(String id) {
         return svc_ops.findById(new ObjectId(id), AccountNode.class);
     }
@@ -1285,15 +1327,56 @@ public class UserManagerService extends ServiceBase {
         if (PrincipalName.ADMIN.s().equalsIgnoreCase(user)) {
             return svc_mongoRead.getDbRoot();
         }
-        // Otherwise for ordinary users root is based off their username
-        // case-insensitive lookup of username:
-        Query q = new Query();
-        Criteria crit = svc_mongoUtil.childrenCriteria(NodePath.USERS_PATH).and(SubNode.PROPS + "." + NodeProp.USER)
-                .is(user).and(SubNode.TYPE).is(NodeType.ACCOUNT.s());
+        if (!MongoUtil.accountKeysReady) {
+            Query q = new Query();
+            Criteria crit = svc_mongoUtil.childrenCriteria(NodePath.USERS_PATH).and(SubNode.PROPS + "." + NodeProp.USER)
+                    .is(user).and(SubNode.TYPE).is(NodeType.ACCOUNT.s());
+
+            crit = svc_auth.addReadSecurity(crit);
+            q.addCriteria(crit);
+            return svc_ops.findUserAccountNode(q);
+        }
 
-        crit = svc_auth.addReadSecurity(crit);
-        q.addCriteria(crit);
-        return svc_ops.findUserAccountNode(q);
+        // Otherwise for ordinary users root is based off their username. If we've looked this user up
+        // before we read by id, and if that doesn't find them anymore (account closed) we fall back to
+        // the name.
+        String key = AccountNode.normalize(user);
+        if (key == null)
+            return null;
+        ObjectId id;
+        synchronized (accountIdsByName) {
+            id = accountIdsByName.get(key);
+        }
+        AccountNode ret = null;
+        if (id != null) {
+            ret = findAccount(Criteria.where(SubNode.ID).is(id), user);
+            if (ret == null) {
+                evictAccountId(user);
+            }
+        }
+        if (ret == null) {
+            ret = findAccount(Criteria.where(AccountNode.USER_KEY).is(key), user);
+            if (ret != null) {
+                synchronized (accountIdsByName) {
+                    accountIdsByName.put(key, ret.getId());
+                }
+            }
+        }
+        return ret;
+    }
+
+    // the name is still matched exactly, since account lookups by name have always been case sensitive
+    private AccountNode findAccount(Criteria crit, String user) {
+        crit = crit.and(SubNode.PROPS + "." + NodeProp.USER).is(user).and(SubNode.TYPE).is(NodeType.ACCOUNT.s());
+        return svc_ops.findUserAccountNode(new Query(svc_auth.addReadSecurity(crit)));
+    }
+
+    public void evictAccountId(String user) {
+        if (user == null)
+            return;
+        synchronized (accountIdsByName) {
+            accountIdsByName.remove(AccountNode.normalize(user));
+        }
     }
 
     public Iterable<SubNode> getAccountNodes(CriteriaDefinition textCriteria, Sort sort, Integer limit, int skip) {
@@ -1,30 +1,43 @@
 package quanta.service.exports;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
 import quanta.config.ServiceBase;
 import quanta.exception.base.RuntimeEx;
 import quanta.model.TreeNode;
 import quanta.model.client.Attachment;
 import quanta.model.client.NodeProp;
 import quanta.model.client.NodeType;
-import quanta.model.client.PrincipalName;
 import quanta.mongo.model.SubNode;
 import quanta.rest.request.ExportRequest;
 import quanta.rest.response.ExportResponse;
@@ -95,18 +108,91 @@ public abstract class ExportArchiveBase extends ServiceBase {
     private final HashSet<String> fileNameSet = new HashSet<>();
 
     private String docTitle;
-    private StringBuilder doc = new StringBuilder();
     private StringBuilder toc = new StringBuilder();
 
-    // markdown links keyed by link url
-    private HashMap<String, MarkdownLink> markdownLinks = new HashMap<>();
+    /*
+     * For md and html the document body is appended to this temp file a node at a time as nodes come
+     * out of the render queue, rather than held in memory, and then gets streamed into the archive (or
+     * read back for publishing) at the end. For html it's markdown until then, and is turned into html
+     * in one pass just before that.
+     */
+    private Path bodyFile;
+    private Writer bodyWriter;
+    private boolean bodyStarted = false;
+    private static final String BODY_MARKER = "{{__export_body__}}";
+
     private HashMap<String, TreeNode> treeItemsByNodeName = new HashMap<>();
     private int figNumStart = 1;
 
     private SubNode node;
     private SubNode parentSiteNode;
+    // when publishing, regenerate nested sites that already have a page too, not just new ones
+    private boolean rebuildSubSites;
+
+    /*
+     * Nodes are walked in document order and queued up in batches. Each batch is loaded from the DB and
+     * rendered on the render pool, and the batches are written out strictly in the order they were
+     * queued. Once MAX_BATCHES_IN_FLIGHT are pending the walker stops and writes the oldest batch out
+     * before it queues any more, so memory stays bounded no matter how big the subtree is.
+     */
+    private static final int FETCH_BATCH_SIZE = 50;
+    private static final int MAX_BATCHES_IN_FLIGHT = 8;
+    private static final int RENDER_THREADS = 4;
+
+    private ExecutorService renderPool;
+    private List<ExportItem> batch = new ArrayList<>();
+    private final ArrayDeque<Future<List<NodeChunk>>> pending = new ArrayDeque<>();
+
+    // called every PROGRESS_INTERVAL nodes written, with the count so far
+    private static final int PROGRESS_INTERVAL = 500;
+    private IntConsumer progressListener;
+    private int nodeCount = 0;
+
+    // A node queued for export. Everything here comes from the lightweight skeleton tree
+    private static class ExportItem {
+        TreeNode tn;
+        ExportItem parent;
+        boolean publishedSubSite;
+
+        // true if this node's children get folded into its own file (fs exports only)
+        boolean concatChildren;
+
+        // full folder path of this node, set when it's written, because 'fs' folder names come from content
+        String folderPath;
+
+        ExportItem(TreeNode tn, ExportItem parent, boolean publishedSubSite) {
+            this.tn = tn;
+            this.parent = parent;
+            this.publishedSubSite = publishedSubSite;
+        }
+    }
 
-    public String generatePublication(SubNode parentSiteNode, String nodeId) {
+    // The rendered output for one node, built on a render thread and written out by the export thread
+    private static class NodeChunk {
+        ExportItem item;
+        SubNode node;
+        String content;
+        String title;
+        List<Attachment> atts;
+        StringBuilder doc = new StringBuilder();
+        StringBuilder toc = new StringBuilder();
+        StringBuilder problems = new StringBuilder();
+
+        NodeChunk(ExportItem item, SubNode node) {
+            this.item = item;
+            this.node = node;
+        }
+    }
+
+    public void setProgressListener(IntConsumer progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public String generatePublication(SubNode parentSiteNode, String nodeId, boolean rebuildSubSites) {
         contentType = "html";
         includeToC = true;
         updateHeadings = true;
@@ -117,6 +203,7 @@ public abstract class ExportArchiveBase extends ServiceBase {
         publishing = true;
         baseFolder = "/export-includes/html/";
         this.parentSiteNode = parentSiteNode;
+        this.rebuildSubSites = rebuildSubSites;
         export(nodeId);
         return html;
     }
@@ -146,25 +233,28 @@ public abstract class ExportArchiveBase extends ServiceBase {
             throw new RuntimeEx("adminDataFolder does not exist: " + svc_prop.getAdminDataFolder());
         }
 
-        Criteria criteria = null;
+        SubNode rootNode = svc_mongoRead.getNode(nodeId);
+        if (rootNode == null)
+            throw new RuntimeEx("unable to access node: " + nodeId);
 
         /*
          * NOTE: I decided to query ALL nodes, and we'll throw an exception if any are not public, this way
          * the user knows that the export failed because of a non-public node. This is better than silently
          * skipping non-public, and we do this check in preProcessTree() method.
+         *
+         * Only what's needed to plan the walk (order, figure numbers, and what gets skipped) is loaded
+         * here. Full nodes are loaded a batch at a time as they get rendered.
          */
-        // if (publishing) {
-        // criteria = Criteria.where(SubNode.AC + "." + PrincipalName.PUBLIC.s()).ne(null);
-        // }
-
-        TreeNode rootNode = svc_mongoRead.getSubGraphTree(nodeId, criteria, null, null);
+        TreeNode rootTn = svc_mongoRead.getSubGraphSkeleton(rootNode, SubNode.NAME, SubNode.ATTACHMENTS, SubNode.AC,
+                SubNode.PROPS + "." + NodeProp.NO_EXPORT.s(), SubNode.PROPS + "." + NodeProp.WEBSITE.s());
 
         boolean requirePublic = publishing || contentType.equals("html");
-        figNumStart = ExportUtil.prePocessTree(treeItemsByNodeName, figNumStart, rootNode, requirePublic);
-        node = rootNode.node;
+        figNumStart = ExportUtil.prePocessTree(treeItemsByNodeName, figNumStart, rootTn, requirePublic);
+        node = rootNode;
         baseSlashCount = StringUtils.countMatches(node.getPath(), "/");
 
         boolean success = false;
+        renderPool = Executors.newFixedThreadPool(RENDER_THREADS);
         try {
             if (!publishing) {
                 String fileName = svc_snUtil.getExportFileName(targetFileName, node);
@@ -173,18 +263,30 @@ public abstract class ExportArchiveBase extends ServiceBase {
                 openOutputStream(fullFileName);
             }
 
+            if (contentType.equals("md") || contentType.equals("html")) {
+                bodyFile = Files.createTempFile("export-", ".body");
+                bodyWriter = Files.newBufferedWriter(bodyFile, StandardCharsets.UTF_8);
+            }
+
             rootPathParent = node.getParentPath();
             svc_auth.ownerAuth(node);
-            ArrayList<SubNode> nodeStack = new ArrayList<>();
-            nodeStack.add(node);
 
             if (publishing && parentSiteNode != null) {
                 String parentSiteUrl = svc_snUtil.getFriendlyHtmlUrl(parentSiteNode);
-                doc.append("[Parent Site](" + parentSiteUrl + ")\n\n");
+                writeBody("[Parent Site](" + parentSiteUrl + ")\n\n");
+            }
+
+            // process the entire exported tree here, then write out whatever is still in the render queue
+            walkNode(rootTn, null, 0);
+            flushBatch();
+            while (!pending.isEmpty()) {
+                writeNextBatch();
             }
 
-            // process the entire exported tree here
-            recurseNode("../", "", rootNode, nodeStack, 0, null);
+            if (bodyWriter != null) {
+                bodyWriter.close();
+                bodyWriter = null;
+            }
             writeMainFile();
             if (!publishing && problems.length() > 0) {
                 addFileEntry("export-info.txt", problems.toString().getBytes(StandardCharsets.UTF_8));
@@ -195,6 +297,11 @@ public abstract class ExportArchiveBase extends ServiceBase {
         } catch (Exception ex) {
             throw new RuntimeEx(ex);
         } finally {
+            renderPool.shutdownNow();
+            StreamUtil.close(bodyWriter);
+            if (bodyFile != null) {
+                FileUtils.deleteFile(bodyFile.toString());
+            }
             closeOutputStream();
             if (!success && !publishing) {
                 FileUtils.deleteFile(fullFileName);
@@ -218,11 +325,37 @@ public abstract class ExportArchiveBase extends ServiceBase {
     private void writeHtmlFile() {
         FlexmarkRender flexmarkRender = new FlexmarkRender();
         String tocIns = flexmarkRender.markdownToHtml(toc.toString());
-        String bodyIns = flexmarkRender.markdownToHtml(doc.toString());
-        html = generateHtml(tocIns, bodyIns);
 
-        if (!publishing) {
-            addFileEntry("index.html", html.toString().getBytes(StandardCharsets.UTF_8));
+        /*
+         * The body is rendered in one pass over the whole document rather than a node at a time, because
+         * reference links, footnotes, etc. can be defined in a different node than where they're used
+         */
+        try {
+            Path htmlFile = Files.createTempFile("export-", ".html");
+            try (Reader in = Files.newBufferedReader(bodyFile, StandardCharsets.UTF_8);
+                    Writer out = Files.newBufferedWriter(htmlFile, StandardCharsets.UTF_8)) {
+                flexmarkRender.markdownToHtml(in, out);
+            } finally {
+                FileUtils.deleteFile(bodyFile.toString());
+                bodyFile = htmlFile;
+            }
+        } catch (IOException e) {
+            throw new RuntimeEx(e);
+        }
+
+        String page = generateHtml(tocIns, BODY_MARKER);
+        int bodyIdx = page.indexOf(BODY_MARKER);
+        String head = page.substring(0, bodyIdx);
+        String tail = page.substring(bodyIdx + BODY_MARKER.length());
+
+        if (publishing) {
+            try {
+                html = head + Files.readString(bodyFile, StandardCharsets.UTF_8) + tail;
+            } catch (Exception e) {
+                throw new RuntimeEx(e);
+            }
+        } else {
+            addBodyFileEntry("index.html", head, tail);
             addStaticFile("prism.css");
             addStaticFile("prism.js");
         }
@@ -262,45 +395,47 @@ public abstract class ExportArchiveBase extends ServiceBase {
         return ret;
     }
 
-    @SuppressWarnings("rawtypes")
+    // NOTE: markdown links were already translated a node at a time as they were rendered
     private void writeMarkdownFile() {
-        String content = doc.toString();
-        // translate all the links to markdown compatable links
-        if (content.contains("](")) {
-            Iterator iter = markdownLinks.entrySet().iterator();
-            while (iter.hasNext()) {
-                Map.Entry entry = (Map.Entry) iter.next();
-                MarkdownLink value = (MarkdownLink) entry.getValue();
-
-                String renderLink = value.link;
-                // if link.value starts with "/n/" then replace the "/n/" prefix with "#"
-                if (value.link.startsWith("/n/")) {
-                    renderLink = "#" + value.link.substring(3);
-                }
-                content = content.replace("](" + value.link + ")", "](" + renderLink + ")");
-            }
-        }
+        addBodyFileEntry("index.md", includeToC ? toc.toString() + "\n\n" : "", "");
+    }
 
-        if (includeToC) {
-            content = toc.toString() + "\n\n" + content;
+    // Streams head + bodyFile + tail into the archive as a single entry
+    private void addBodyFileEntry(String fileName, String head, String tail) {
+        byte[] headBytes = head.getBytes(StandardCharsets.UTF_8);
+        byte[] tailBytes = tail.getBytes(StandardCharsets.UTF_8);
+        InputStream is = null;
+        try {
+            long length = headBytes.length + Files.size(bodyFile) + tailBytes.length;
+            if (length == 0)
+                return;
+            is = new SequenceInputStream(Collections.enumeration(List.of(new ByteArrayInputStream(headBytes),
+                    new BufferedInputStream(Files.newInputStream(bodyFile)), new ByteArrayInputStream(tailBytes))));
+            addFileEntry(fileName, is, length);
+        } catch (Exception e) {
+            throw new RuntimeEx(e);
+        } finally {
+            StreamUtil.close(is);
         }
-        addFileEntry("index.md", content.getBytes(StandardCharsets.UTF_8));
     }
 
-    private void recurseNode(String rootPath, String parentFolder, TreeNode tn, ArrayList<SubNode> nodeStack, int level,
-            String parentId) {
+    private void writeBody(String text) throws IOException {
+        bodyWriter.write(text);
+        bodyStarted = true;
+    }
+
+    /*
+     * Walks the skeleton tree in document order queueing each node that will be exported. Everything
+     * that decides what gets skipped has to be answerable from the skeleton, since the full node won't
+     * be loaded until its batch is rendered.
+     */
+    private void walkNode(TreeNode tn, ExportItem parent, int level) {
         SubNode node = tn.node;
         if (node == null)
             return;
-        boolean publishedSubSite = false;
 
-        /* If we encounter a Website within a website then build it */
-        if (level > 0 && publishing && node.getBool(NodeProp.WEBSITE)) {
-            ExportTarService svc = (ExportTarService) context.getBean(ExportTarService.class);
-            String html = svc.generatePublication(this.node, node.getIdStr());
-            svc_publication.cachePut(node, html);
-            publishedSubSite = true;
-        }
+        /* If we encounter a Website within a website then build it (when the node gets written) */
+        boolean publishedSubSite = level > 0 && publishing && node.getBool(NodeProp.WEBSITE);
 
         /*
          * When publishing, we only export nodes that are public. This is a redundant check because the
@@ -317,34 +452,155 @@ public abstract class ExportArchiveBase extends ServiceBase {
             return;
         }
 
-        // This is the header row at the top of the page. The rest of the page is
-        // children of this node
-        boolean doneWithChildren = processNodeExport(parentFolder, "", tn, true, level, true, publishedSubSite);
-        String folder = contentType.equals("fs") ? getFileNameFromNode(node) : node.getIdStr();
+        ExportItem item = new ExportItem(tn, parent, publishedSubSite);
+        item.concatChildren = contentType.equals("fs") && tn.children != null && tn.children.size() > 0
+                && areAllChildrenAreSimpleLeafs(tn);
+        queueItem(item);
 
-        if (!doneWithChildren && tn.children != null && !publishedSubSite) {
+        if (!item.concatChildren && tn.children != null && !publishedSubSite) {
             for (TreeNode c : tn.children) {
                 boolean noExp = c.node.hasProp(NodeProp.NO_EXPORT.s());
                 if (noExp) {
                     continue;
                 }
+                walkNode(c, item, level + 1);
+            }
+        }
+    }
+
+    private void queueItem(ExportItem item) {
+        batch.add(item);
+        if (batch.size() >= FETCH_BATCH_SIZE) {
+            flushBatch();
+        }
+    }
+
+    private void flushBatch() {
+        if (batch.isEmpty())
+            return;
+        List<ExportItem> items = batch;
+        batch = new ArrayList<>();
+        pending.add(svc_async.submit(renderPool, () -> renderBatch(items)));
+
+        // back-pressure: don't let the walker get too far ahead of the writer
+        while (pending.size() >= MAX_BATCHES_IN_FLIGHT) {
+            writeNextBatch();
+        }
+    }
+
+    private void writeNextBatch() {
+        Future<List<NodeChunk>> future = pending.poll();
+        List<NodeChunk> chunks = null;
+        try {
+            chunks = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeEx(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeEx(e.getCause());
+        }
+        for (NodeChunk chunk : chunks) {
+            writeChunk(chunk);
+        }
+    }
+
+    // Runs on the render pool. Loads the full nodes for the batch in one query and renders each one.
+    private List<NodeChunk> renderBatch(List<ExportItem> items) {
+        List<ObjectId> ids = new ArrayList<>();
+        for (ExportItem item : items) {
+            ids.add(item.tn.node.getId());
+            if (item.concatChildren) {
+                for (TreeNode c : item.tn.children) {
+                    ids.add(c.node.getId());
+                }
+            }
+        }
+
+        HashMap<ObjectId, SubNode> nodes = new HashMap<>();
+        for (SubNode n : svc_ops.find(new Query(Criteria.where(SubNode.ID).in(ids)))) {
+            nodes.put(n.getId(), n);
+        }
+
+        List<NodeChunk> ret = new ArrayList<>();
+        for (ExportItem item : items) {
+            SubNode n = nodes.get(item.tn.node.getId());
+            // node was deleted while the export was running
+            if (n == null)
+                continue;
+            ret.add(renderNode(item, n, nodes));
+        }
+        return ret;
+    }
+
+    // Runs on the export thread, in document order. Everything that touches the archive or the
+    // document-wide state happens here.
+    private void writeChunk(NodeChunk chunk) {
+        ExportItem item = chunk.item;
+        SubNode node = chunk.node;
+        String parentFolder = getParentFolder(item);
+        String folder = contentType.equals("fs") ? getFileNameFromNode(node) : node.getIdStr();
+        item.folderPath = parentFolder + "/" + folder;
+
+        /*
+         * Nested sites are their own pages, kept up to date by PublicationService as their nodes change, so
+         * they're only built here the first time (or when a full rebuild was asked for)
+         */
+        if (item.publishedSubSite && (rebuildSubSites || node.getStr(NodeProp.BIN_WEBSITE) == null)) {
+            ExportTarService svc = (ExportTarService) context.getBean(ExportTarService.class);
+            String html = svc.generatePublication(this.node, node.getIdStr(), rebuildSubSites);
+            svc_publication.cachePut(node, html);
+        }
+
+        toc.append(chunk.toc);
+        problems.append(chunk.problems);
+        if (docTitle == null) {
+            docTitle = chunk.title;
+        }
 
-                nodeStack.add(c.node);
-                recurseNode(rootPath + "../", parentFolder + "/" + folder, c, nodeStack, level + 1, c.node.getIdStr());
-                nodeStack.remove(c.node);
+        try {
+            if (bodyWriter != null && chunk.doc.length() > 0) {
+                if (contentType.equals("md") && bodyStarted) {
+                    writeBody("\n");
+                }
+                writeBody(chunk.doc.toString());
             }
+        } catch (IOException e) {
+            throw new RuntimeEx(e);
+        }
+
+        if (!publishing) {
+            writeFilesForNode(parentFolder, node, chunk.content, chunk.atts);
+        }
+
+        nodeCount++;
+        if (progressListener != null && nodeCount % PROGRESS_INTERVAL == 0) {
+            progressListener.accept(nodeCount);
         }
     }
 
-    String concatAllChildren(TreeNode tn) {
+    private String getParentFolder(ExportItem item) {
+        ExportItem parent = item.parent;
+        if (parent == null)
+            return "";
+
+        // parent is always written before its children, unless it was deleted out from under the export
+        if (parent.folderPath != null)
+            return parent.folderPath;
+        return getParentFolder(parent) + "/" + parent.tn.node.getIdStr();
+    }
+
+    String concatAllChildren(TreeNode tn, HashMap<ObjectId, SubNode> nodes) {
         if (tn.children == null || tn.children.size() == 0) {
             return "";
         }
 
         StringBuilder sb = new StringBuilder();
         for (TreeNode c : tn.children) {
+            SubNode child = nodes.get(c.node.getId());
+            if (child == null)
+                continue;
             sb.append("\n\n");
-            sb.append(c.node.getContent());
+            sb.append(child.getContent());
         }
         return sb.toString();
     }
@@ -415,26 +671,17 @@ public abstract class ExportArchiveBase extends ServiceBase {
      * exceptions bubble all the way up to abort and even cause the zip file itself (to be deleted)
      * since it was unable to be written to completely successfully.
      *
-     * fileNameCont is an output parameter that has the complete filename minus the period and
-     * extension.
-     * 
-     * Returns true if the children were processed and no further drill down on the tree is needed
+     * This runs on the render pool, so it must not touch the archive or any document-wide state. All
+     * its output goes into the returned chunk, which gets written by writeChunk()
      */
-    private boolean processNodeExport(String parentFolder, String deeperPath, TreeNode tn, boolean writeFile, int level,
-            boolean isTopRow, boolean publishedSubSite) {
-        boolean ret = false;
+    private NodeChunk renderNode(ExportItem item, SubNode node, HashMap<ObjectId, SubNode> nodes) {
+        NodeChunk chunk = new NodeChunk(item, node);
         try {
-            SubNode node = tn.node;
-            String concatenatedChildren = "";
-            if (contentType.equals("fs")) {
-                boolean allChildrenAreLeafs = areAllChildrenAreSimpleLeafs(tn);
-                if (allChildrenAreLeafs) {
-                    concatenatedChildren = concatAllChildren(tn);
-                }
-            }
+            String concatenatedChildren = item.concatChildren ? concatAllChildren(item.tn, nodes) : "";
 
             String content = node.getContent() != null ? node.getContent() : "";
-            parseMarkdownLinks(content);
+            HashMap<String, MarkdownLink> markdownLinks = new HashMap<>();
+            parseMarkdownLinks(content, markdownLinks);
             content = ExportUtil.injectFigureLinks(treeItemsByNodeName, content);
             content = content.trim();
 
@@ -443,33 +690,21 @@ public abstract class ExportArchiveBase extends ServiceBase {
                 content = svc_edit.translateHeadingsForLevel(content, lev - 1);
             }
 
-            String title = getTitleFromContent(content);
-            if (writeFile) {
-                if (includeToC) {
-                    addToTableOfContents(node, level, content, publishedSubSite);
-                }
-                if (docTitle == null) {
-                    docTitle = title;
-                }
+            chunk.title = getTitleFromContent(content);
+            if (includeToC) {
+                addToTableOfContents(chunk, content, item.publishedSubSite);
             }
 
             List<Attachment> atts = node.getOrderedAttachments();
-            String targetFolder = null;
-
-            // if we have a markdown file, all the attachments go into that folder
-            if (contentType.equals("md")) {
-                targetFolder = "";
-            } else {
-                targetFolder = "." + parentFolder;
-            }
+            int figNumStart = item.tn.figNumStart;
 
             // Normally images go below content but if we have any attributes with position="ur" (upper right,
             // or left) then we need to insert those into the content first, and make float right.
             if (atts != null && contentType.equals("html")) {
-                int figNum = tn.figNumStart;
+                int figNum = figNumStart;
                 for (Attachment att : atts) {
                     if (svc_snUtil.hasBasicPositioning(att)) {
-                        handleAttachment(node, false, null, deeperPath, targetFolder, writeFile, att, figNum);
+                        handleAttachment(node, false, null, "", att, figNum, chunk);
                         figNum++;
                     }
                 }
@@ -479,7 +714,7 @@ public abstract class ExportArchiveBase extends ServiceBase {
 
             // Process all attachments just to insert File Tags into content
             if (atts != null) {
-                int figNum = tn.figNumStart;
+                int figNum = figNumStart;
                 for (Attachment att : atts) {
                     // detect case where we'll have already handle the image above
                     if (contentType.equals("html") && svc_snUtil.hasBasicPositioning(att)) {
@@ -489,7 +724,7 @@ public abstract class ExportArchiveBase extends ServiceBase {
                     if (!"ft".equals(att.getPosition())) {
                         continue;
                     }
-                    handleAttachment(node, true, contentVal, deeperPath, targetFolder, writeFile, att, figNum);
+                    handleAttachment(node, true, contentVal, "", att, figNum, chunk);
                     figNum++;
                 }
             }
@@ -497,15 +732,12 @@ public abstract class ExportArchiveBase extends ServiceBase {
             switch (contentType) {
                 case "md":
                     removeSpecialSyntax(contentVal);
-                    if (doc.length() > 0)
-                        doc.append("\n");
-
                     if (includeMetaComments) {
-                        doc.append(buildMarkdownHeader(node));
+                        chunk.doc.append(buildMarkdownHeader(node));
                     }
 
-                    doc.append(contentVal.getVal());
-                    doc.append("\n\n");
+                    chunk.doc.append(contentVal.getVal());
+                    chunk.doc.append("\n\n");
                     break;
                 case "html":
                     removeSpecialSyntax(contentVal);
@@ -513,7 +745,7 @@ public abstract class ExportArchiveBase extends ServiceBase {
                     // special handling for htmlContent we have to do this File Tag injection AFTER
                     // the html escaping and processing that's done in the line above
                     if (atts != null) {
-                        int figNum = tn.figNumStart;
+                        int figNum = figNumStart;
                         for (Attachment att : atts) {
                             // detect case where we'll have already handle the image above
                             if (contentType.equals("html") && svc_snUtil.hasBasicPositioning(att)) {
@@ -524,22 +756,22 @@ public abstract class ExportArchiveBase extends ServiceBase {
                             if (!"ft".equals(att.getPosition())) {
                                 continue;
                             }
-                            handleAttachment(node, true, contentVal, deeperPath, targetFolder, writeFile, att, figNum);
+                            handleAttachment(node, true, contentVal, "", att, figNum, chunk);
                             figNum++;
                         }
                     }
 
                     if (includeToC) {
-                        doc.append("\n<div id='" + node.getIdStr() + "'></div>\n");
+                        chunk.doc.append("\n<div id='" + node.getIdStr() + "'></div>\n");
                     }
 
-                    if (publishedSubSite) {
-                        doc.append("\n\n" + title);
+                    if (item.publishedSubSite) {
+                        chunk.doc.append("\n\n" + chunk.title);
                         String nodeUrl = svc_snUtil.getFriendlyHtmlUrl(node);
-                        doc.append("\n\n[Link to Content](" + nodeUrl + ")\n\n");
+                        chunk.doc.append("\n\n[Link to Content](" + nodeUrl + ")\n\n");
                     } else {
-                        doc.append(contentVal.getVal());
-                        doc.append("\n\n");
+                        chunk.doc.append(contentVal.getVal());
+                        chunk.doc.append("\n\n");
                     }
                     break;
                 default:
@@ -547,7 +779,7 @@ public abstract class ExportArchiveBase extends ServiceBase {
             }
 
             if (atts != null) {
-                int figNum = tn.figNumStart;
+                int figNum = figNumStart;
                 for (Attachment att : atts) {
                     // detect case where we'll have already handle the image above
                     if (contentType.equals("html") && svc_snUtil.hasBasicPositioning(att)) {
@@ -559,25 +791,42 @@ public abstract class ExportArchiveBase extends ServiceBase {
                     if ("ft".equals(att.getPosition())) {
                         continue;
                     }
-                    handleAttachment(node, false, null, deeperPath, targetFolder, writeFile, att, figNum);
+                    handleAttachment(node, false, null, "", att, figNum, chunk);
                     figNum++;
                 }
             }
 
-            if (writeFile) {
-                if (concatenatedChildren.length() > 0) {
-                    content += concatenatedChildren;
-                    ret = true; // indicates to calling method we're done drilling down
-                }
-
-                if (!publishing) {
-                    writeFilesForNode(parentFolder, node, content, atts);
-                }
+            switch (contentType) {
+                case "md":
+                    translateMarkdownLinks(chunk.doc, markdownLinks);
+                    break;
+                default:
+                    break;
             }
+
+            chunk.content = content + concatenatedChildren;
+            chunk.atts = atts;
         } catch (Exception ex) {
             throw new RuntimeEx(ex);
         }
-        return ret;
+        return chunk;
+    }
+
+    // translate all the links to markdown compatable links
+    private void translateMarkdownLinks(StringBuilder doc, HashMap<String, MarkdownLink> markdownLinks) {
+        if (markdownLinks.isEmpty() || doc.indexOf("](") == -1)
+            return;
+        String content = doc.toString();
+        for (MarkdownLink value : markdownLinks.values()) {
+            String renderLink = value.link;
+            // if link.value starts with "/n/" then replace the "/n/" prefix with "#"
+            if (value.link.startsWith("/n/")) {
+                renderLink = "#" + value.link.substring(3);
+            }
+            content = content.replace("](" + value.link + ")", "](" + renderLink + ")");
+        }
+        doc.setLength(0);
+        doc.append(content);
     }
 
     private String getTitleFromContent(String content) {
@@ -634,7 +883,7 @@ public abstract class ExportArchiveBase extends ServiceBase {
         return sb.toString();
     }
 
-    private String extractHeadingText(String content) {
+    private String extractHeadingText(String content, StringBuilder problems) {
         if (content == null)
             return null;
         String headerContent = content.trim();
@@ -656,12 +905,12 @@ public abstract class ExportArchiveBase extends ServiceBase {
         return null;
     }
 
-    private void addToTableOfContents(SubNode node, int level, String content, boolean publishedSubSite) {
+    private void addToTableOfContents(NodeChunk chunk, String content, boolean publishedSubSite) {
+        SubNode node = chunk.node;
         if (includeToC) {
-            String heading = extractHeadingText(content);
+            String heading = extractHeadingText(content, chunk.problems);
             if (heading == null)
                 return;
-            level--;
             int lev = getHeadingLevel(node) - 1;
             String prefix = lev > 0 ? "    ".repeat(lev) : "";
             String target = null;
@@ -677,9 +926,9 @@ public abstract class ExportArchiveBase extends ServiceBase {
             }
 
             if (node.getIdStr().equals(this.node.getIdStr())) {
-                toc.append("#### [" + heading + "](" + target + ")\n");
+                chunk.toc.append("#### [" + heading + "](" + target + ")\n");
             } else {
-                toc.append(prefix + "* [" + heading + "](" + target + ")\n");
+                chunk.toc.append(prefix + "* [" + heading + "](" + target + ")\n");
             }
         }
     }
@@ -836,7 +1085,7 @@ public abstract class ExportArchiveBase extends ServiceBase {
      * content and return the content
      */
     private void handleAttachment(SubNode node, boolean injectingTag, Val<String> content, String deeperPath,
-            String parentFolder, boolean writeFile, Attachment att, int figNum) {
+            Attachment att, int figNum, NodeChunk chunk) {
         String nodeId = node.getIdStr();
 
         String af = getAttachmentFileName(att, node);
@@ -872,12 +1121,11 @@ public abstract class ExportArchiveBase extends ServiceBase {
                 break;
         }
 
-        String relPath = writeFile ? "" : (nodeId + "/");
         String url = att.getUrl();
 
         // if no exernal link, this is a local file so build path to it.
         if (url == null) {
-            url = "./" + deeperPath + relPath + att.getKey() + ext;
+            url = "./" + deeperPath + att.getKey() + ext;
         } else {
             displayName = "Image";
             fullUrl = url;
@@ -915,7 +1163,7 @@ public abstract class ExportArchiveBase extends ServiceBase {
                         mdLink = "<figure>\n" + mdLink + "<figcaption>Fig. " + figNum + "</figcaption>\n</figure>\n";
                     }
 
-                    processMdAtt(injectingTag, content, att, mdLink);
+                    processMdAtt(injectingTag, content, att, mdLink, chunk);
                     break;
                 default:
                     break;
@@ -925,7 +1173,7 @@ public abstract class ExportArchiveBase extends ServiceBase {
                 case "html":
                 case "md":
                     String mdLink = "\n[" + displayName + "](" + fullUrl + ")\n";
-                    processMdAtt(injectingTag, content, att, mdLink);
+                    processMdAtt(injectingTag, content, att, mdLink, chunk);
                     break;
                 default:
                     break;
@@ -933,14 +1181,15 @@ public abstract class ExportArchiveBase extends ServiceBase {
         }
     }
 
-    private void processMdAtt(boolean injectingTag, Val<String> content, Attachment att, String mdLink) {
+    private void processMdAtt(boolean injectingTag, Val<String> content, Attachment att, String mdLink,
+            NodeChunk chunk) {
         if (injectingTag) {
             if (content != null) {
                 content.setVal(insertMdLink(content.getVal(), att, mdLink));
             }
         } else {
             if (contentType.equals("md") || contentType.equals("html")) {
-                doc.append(mdLink);
+                chunk.doc.append(mdLink);
             }
         }
     }
@@ -1005,7 +1254,7 @@ public abstract class ExportArchiveBase extends ServiceBase {
         addEntry(fileName, is, length);
     }
 
-    public void parseMarkdownLinks(String mkdown) {
+    private void parseMarkdownLinks(String mkdown, HashMap<String, MarkdownLink> markdownLinks) {
         // Regex pattern to match the Markdown links
         String regex = "\\[([^\\]]+)\\]\\(([^\\)]+)\\)";
 
@@ -1,96 +1,338 @@
 package quanta.service.exports;
 
-import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.lang3.StringUtils;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.annotation.Scope;
-import org.springframework.data.mongodb.core.query.Criteria;
-import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Component;
-import com.fasterxml.jackson.databind.ObjectWriter;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
 import quanta.config.ServiceBase;
 import quanta.exception.base.RuntimeEx;
-import quanta.model.client.Attachment;
 import quanta.mongo.model.SubNode;
 import quanta.util.FileUtils;
-import quanta.util.StreamUtil;
-import quanta.util.Util;
-import quanta.util.val.Val;
+import quanta.util.TL;
 
 /**
- * Import/Export of Raw JSON and Binaries to and from filesystem/classpath)
+ * Dump/Restore of raw DB content (nodes and GridFS binaries) to and from the filesystem as gzipped
+ * NDJSON
  */
 @Component
 @Scope("prototype")
 public class ExportJsonService extends ServiceBase {
     private static Logger log = LoggerFactory.getLogger(ExportJsonService.class);
 
-    private static final ObjectWriter jsonWriter = Util.mapper.writerWithDefaultPrettyPrinter();
+    // GridFS default bucket collections, which hold all the binary attachments
+    private static final String GRID_FILES = "fs.files";
+    private static final String GRID_CHUNKS = "fs.chunks";
+
+    private static final String DUMP_EXT = ".ndjson.gz";
+    // says what a dump holds, so restore knows whether it's the whole DB or one subgraph
+    private static final String MANIFEST = "manifest.json";
+    private static final int DUMP_THREADS = 4;
+    // we split a collection into _id ranges of about this many docs, each written to its own file
+    private static final int PARTITION_SIZE = 250000;
+    private static final int INSERT_BATCH_SIZE = 1000;
+    private static final int BUF_SIZE = 64 * 1024;
+
+    // EXTENDED mode keeps every BSON type (ObjectId, dates, binary, longs) so restore is lossless
+    private static final JsonWriterSettings jsonSettings =
+            JsonWriterSettings.builder().outputMode(JsonMode.EXTENDED).build();
 
     /*
-     * Dumps all nodes that have property "pth" starting with 'pathPrefix', or all nodes if pathPrefix
-     * is null.
+     * Dumps all nodes that have property "pth" starting with 'pathPrefix', or the entire database
+     * (nodes and all GridFS binaries) if pathPrefix is null.
+     * 
+     * Output goes into folder [adminDataFolder]/[dumpName] as gzipped newline-delimited JSON, one
+     * document per line, read as RawBsonDocument so we never map into SubNode objects. Each collection
+     * is split into _id ranges that are written in parallel, one file per range named like
+     * "[collection]-[partition].ndjson.gz", and restoreAllNodes() loads these same files back. The
+     * pathPrefix (if any) goes into MANIFEST.
      */
-    public String dumpAllNodes(String pathPrefix, String fileName) {
+    public String dumpAllNodes(String pathPrefix, String dumpName) {
+        TL.requireAdmin();
+        if (!FileUtils.dirExists(svc_prop.getAdminDataFolder())) {
+            throw new RuntimeEx("adminDataFolder does not exist");
+        }
+        String targetFolder = getDumpFolder(dumpName);
+        if (FileUtils.dirExists(targetFolder)) {
+            throw new RuntimeEx("Dump already exists: " + dumpName);
+        }
+        FileUtils.createDirectory(targetFolder);
+        Document manifest = new Document("pathPrefix", pathPrefix).append("time", System.currentTimeMillis());
+        FileUtils.writeFile(targetFolder + File.separator + MANIFEST, manifest.toJson(), false);
+
+        long startTime = System.currentTimeMillis();
+        AtomicLong numDocs = new AtomicLong();
+        ExecutorService pool = Executors.newFixedThreadPool(DUMP_THREADS);
         try {
-            if (!FileUtils.dirExists(svc_prop.getAdminDataFolder())) {
-                throw new RuntimeEx("adminDataFolder does not exist");
+            List<Future<Long>> futures = new ArrayList<>();
+            Bson nodeFilter = pathPrefix != null ? Filters.regex(SubNode.PATH, svc_mongoUtil.regexSubGraph(pathPrefix))
+                    : new Document();
+            dumpCollection(pool, futures, svc_ops.getNodesCollectionName(), nodeFilter, targetFolder);
+
+            // binaries are only included in full dumps
+            if (pathPrefix == null) {
+                dumpCollection(pool, futures, GRID_FILES, new Document(), targetFolder);
+                dumpCollection(pool, futures, GRID_CHUNKS, new Document(), targetFolder);
             }
-            String targetFolder = svc_prop.getAdminDataFolder() + File.separator + fileName;
-            FileUtils.createDirectory(targetFolder);
-            // This is not a typo, this path will be like ".../fileName/fileName.json"
-            String fullFileName = targetFolder + File.separator + fileName + ".json";
-            Val<Integer> numDocs = new Val<>(0);
-            Val<Integer> numBins = new Val<>(0);
-            byte[] newLine = "\n,\n".getBytes(StandardCharsets.UTF_8);
-            Query q = new Query();
-            Criteria crit = svc_mongoUtil.subGraphCriteria(pathPrefix);
-            crit = svc_auth.addReadSecurity(crit);
-
-            q.addCriteria(crit);
-            Iterable<SubNode> iter = svc_ops.find(q);
-            BufferedOutputStream os = null;
-            try {
-                os = new BufferedOutputStream(new FileOutputStream(fullFileName));
-                BufferedOutputStream _os = os;
-
-                iter.forEach(node -> {
-                    // todo-3: this is not yet handling multiple images, but this method isn't currently used.
-                    Attachment att = node.getFirstAttachment();
-                    String binFileName = att != null ? att.getFileName() : null;
-                    if (binFileName != null) {
-                        if (saveBinaryToFileSystem(binFileName, targetFolder, node)) {
-                            numBins.setVal(numBins.getVal() + 1);
-                        }
-                    } else {
-                        String path = node.getPath();
-                        log.debug("Node has no binary: " + path);
-                    }
 
-                    try {
-                        String json = jsonWriter.writeValueAsString(node);
-                        _os.write(json.getBytes(StandardCharsets.UTF_8));
-                        _os.write(newLine);
-                        numDocs.setVal(numDocs.getVal() + 1);
-                    } catch (Exception e) {
-                        e.printStackTrace();
+            for (Future<Long> f : futures) {
+                numDocs.addAndGet(f.get());
+            }
+        } catch (Exception ex) {
+            throw new RuntimeEx(ex);
+        } finally {
+            pool.shutdownNow();
+        }
+        return "Dumped " + numDocs.get() + " docs to " + dumpName + " " + rateInfo(numDocs.get(), startTime);
+    }
+
+    /*
+     * Splits the collection into _id ranges and submits one writer task per range. Boundaries come from
+     * a single pass over the _id index (projected to _id only) so we don't do any skip() queries.
+     */
+    private void dumpCollection(ExecutorService pool, List<Future<Long>> futures, String collName, Bson filter,
+            String targetFolder) {
+        MongoCollection<RawBsonDocument> coll = svc_ops.getCollection(collName, RawBsonDocument.class);
+        long count = coll.countDocuments(filter);
+        if (count == 0) {
+            return;
+        }
+
+        List<BsonValue> bounds = new ArrayList<>();
+        if (count > PARTITION_SIZE) {
+            long idx = 0;
+            try (MongoCursor<RawBsonDocument> cur = coll.find(filter).projection(Projections.include("_id"))
+                    .sort(Sorts.ascending("_id")).batchSize(10000).iterator()) {
+                while (cur.hasNext()) {
+                    BsonValue id = cur.next().get("_id");
+                    if (idx > 0 && idx % PARTITION_SIZE == 0) {
+                        bounds.add(id);
                     }
-                });
-                os.flush();
-            } catch (Exception ex) {
-                throw new RuntimeEx(ex);
-            } finally {
-                StreamUtil.close(os);
+                    idx++;
+                }
+            }
+        }
+
+        // partition N covers [bounds[N-1], bounds[N]) with open ends on the first and last ranges
+        for (int i = 0; i <= bounds.size(); i++) {
+            List<Bson> parts = new ArrayList<>();
+            parts.add(filter);
+            if (i > 0) {
+                parts.add(Filters.gte("_id", bounds.get(i - 1)));
+            }
+            if (i < bounds.size()) {
+                parts.add(Filters.lt("_id", bounds.get(i)));
+            }
+            Bson rangeFilter = Filters.and(parts);
+            String fileName = targetFolder + File.separator + collName + "-" + String.format("%04d", i) + DUMP_EXT;
+            futures.add(svc_async.submit(pool, () -> writePartition(coll, rangeFilter, fileName)));
+        }
+    }
+
+    private long writePartition(MongoCollection<RawBsonDocument> coll, Bson filter, String fileName) throws Exception {
+        long count = 0;
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                new GZIPOutputStream(new FileOutputStream(fileName), BUF_SIZE), StandardCharsets.UTF_8), BUF_SIZE);
+                MongoCursor<RawBsonDocument> cur = coll.find(filter).batchSize(1000).iterator()) {
+            while (cur.hasNext()) {
+                out.write(cur.next().toJson(jsonSettings));
+                out.write('\n');
+                count++;
             }
-            return "NodeCount: " + numDocs.getVal() + " exported to " + fileName + ". BinaryCount=" + numBins.getVal()
-                    + "<p>";
-        } catch (Exception e) {
-            return "Failed exporting " + fileName;
         }
+        log.debug("Dumped " + count + " docs to " + fileName);
+        return count;
+    }
+
+    /*
+     * Restores a dump written by dumpAllNodes().
+     * 
+     * A full dump REPLACES every collection in it (nodes and GridFS). Collections are dropped first so
+     * inserts don't have to maintain indexes, then all partition files are loaded in parallel with
+     * unordered bulk inserts, and the indexes are built once at the end.
+     * 
+     * A subgraph dump (pathPrefix in the manifest) only replaces that subgraph: the nodes currently
+     * under pathPrefix are deleted and the dumped ones inserted, with the indexes left in place. Its
+     * binaries weren't dumped, so attachments are whatever GridFS still holds.
+     */
+    public String restoreAllNodes(String dumpName) {
+        TL.requireAdmin();
+        String sourceFolder = getDumpFolder(dumpName);
+        File[] files = new File(sourceFolder).listFiles((dir, name) -> name.endsWith(DUMP_EXT));
+        if (files == null || files.length == 0) {
+            throw new RuntimeEx("No dump files found: " + dumpName);
+        }
+        // without a manifest we can't tell a subgraph dump from a full one, and guessing wrong would drop
+        // every node outside the subgraph
+        File manifestFile = new File(sourceFolder + File.separator + MANIFEST);
+        if (!manifestFile.isFile()) {
+            throw new RuntimeEx("Dump has no " + MANIFEST + ", refusing to restore: " + dumpName);
+        }
+        String pathPrefix = Document.parse(FileUtils.readFile(manifestFile)).getString("pathPrefix");
+
+        long startTime = System.currentTimeMillis();
+        Set<String> collNames = new HashSet<>();
+        for (File file : files) {
+            collNames.add(getCollName(file));
+        }
+        String nodesColl = svc_ops.getNodesCollectionName();
+        if (pathPrefix != null) {
+            if (!collNames.equals(Set.of(nodesColl))) {
+                throw new RuntimeEx("Subgraph dump holds more than nodes: " + collNames);
+            }
+            // for listeners that have to see what's being replaced (the subtreeChanged below has the rest)
+            svc_nodeEvents.subtreeDeleting(pathPrefix);
+            long deleted = svc_ops.getCollection(nodesColl, RawBsonDocument.class)
+                    .deleteMany(Filters.regex(SubNode.PATH, svc_mongoUtil.regexSubGraph(pathPrefix))).getDeletedCount();
+            log.debug("Deleted " + deleted + " nodes under " + pathPrefix + " for restore");
+        } else {
+            for (String collName : collNames) {
+                log.debug("Dropping collection for restore: " + collName);
+                svc_ops.dropCollection(collName);
+            }
+        }
+
+        AtomicLong numDocs = new AtomicLong();
+        ExecutorService pool = Executors.newFixedThreadPool(DUMP_THREADS);
+        try {
+            List<Future<Long>> futures = new ArrayList<>();
+            for (File file : files) {
+                futures.add(svc_async.submit(pool, () -> loadPartition(file, pathPrefix != null)));
+            }
+            for (Future<Long> f : futures) {
+                numDocs.addAndGet(f.get());
+            }
+        } catch (Exception ex) {
+            throw new RuntimeEx(ex);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        if (pathPrefix != null) {
+            svc_nodeEvents.subtreeChanged(pathPrefix);
+            return "Restored " + numDocs.get() + " nodes under " + pathPrefix + " from " + dumpName + " "
+                    + rateInfo(numDocs.get(), startTime);
+        }
+
+        long loadTime = System.currentTimeMillis();
+        svc_arun.run(() -> {
+            svc_mongoUtil.createAllIndexes();
+            createGridFsIndexes();
+            return null;
+        });
+        // the cached root node is from the old data, and so is everything derived from nodes
+        svc_mongoRead.setRootNode(null);
+        svc_nodeEvents.allChanged();
+
+        return "Restored " + numDocs.get() + " docs from " + dumpName + " " + rateInfo(numDocs.get(), startTime)
+                + ". Index build took " + (System.currentTimeMillis() - loadTime) / 1000
+                + "s. A server restart is recommended.";
+    }
+
+    /*
+     * Dropping fs.files/fs.chunks drops the indexes the GridFS driver made when it first wrote to them,
+     * and it won't make them again on a collection that already has data, so we do it here. These are
+     * the same ones the driver creates.
+     */
+    private void createGridFsIndexes() {
+        svc_ops.getCollection(GRID_FILES, RawBsonDocument.class)
+                .createIndex(Indexes.ascending("filename", "uploadDate"));
+        svc_ops.getCollection(GRID_CHUNKS, RawBsonDocument.class)
+                .createIndex(Indexes.ascending("files_id", "n"), new IndexOptions().unique(true));
+    }
+
+    /*
+     * 'replace' is for subgraph restores, where the collection still has data: any dumped node that's
+     * since moved out of the subgraph is deleted by _id first so its insert doesn't collide.
+     */
+    private long loadPartition(File file, boolean replace) throws Exception {
+        MongoCollection<RawBsonDocument> coll = svc_ops.getCollection(getCollName(file), RawBsonDocument.class);
+        InsertManyOptions opts = new InsertManyOptions().ordered(false);
+        List<RawBsonDocument> batch = new ArrayList<>(INSERT_BATCH_SIZE);
+        long count = 0;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(file), BUF_SIZE), StandardCharsets.UTF_8), BUF_SIZE)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty())
+                    continue;
+                batch.add(RawBsonDocument.parse(line));
+                if (batch.size() >= INSERT_BATCH_SIZE) {
+                    insertBatch(coll, batch, opts, replace);
+                    count += batch.size();
+                    batch.clear();
+                }
+            }
+        }
+        if (batch.size() > 0) {
+            insertBatch(coll, batch, opts, replace);
+            count += batch.size();
+        }
+        log.debug("Restored " + count + " docs from " + file.getName());
+        return count;
+    }
+
+    private void insertBatch(MongoCollection<RawBsonDocument> coll, List<RawBsonDocument> batch,
+            InsertManyOptions opts, boolean replace) {
+        if (replace) {
+            List<BsonValue> ids = new ArrayList<>(batch.size());
+            for (RawBsonDocument doc : batch) {
+                ids.add(doc.get("_id"));
+            }
+            coll.deleteMany(Filters.in("_id", ids));
+        }
+        coll.insertMany(batch, opts);
+    }
+
+    private String getDumpFolder(String dumpName) {
+        if (StringUtils.isEmpty(dumpName) || dumpName.contains("..") || !dumpName.equals(FileUtils.ensureValidFileNameChars(dumpName))) {
+            throw new RuntimeEx("Invalid dump name: " + dumpName);
+        }
+        return svc_prop.getAdminDataFolder() + File.separator + dumpName;
+    }
+
+    // file names are like "fs.chunks-0003.ndjson.gz"
+    private String getCollName(File file) {
+        String name = file.getName();
+        return name.substring(0, name.lastIndexOf('-'));
+    }
+
+    private String rateInfo(long count, long startTime) {
+        long millis = Math.max(1, System.currentTimeMillis() - startTime);
+        return "in " + (millis / 1000) + "s (" + (count * 1000 / millis) + " docs/sec)";
     }
 
     // Not used, but let's keep this code for now.
@@ -122,30 +364,6 @@ public class ExportJsonService extends ServiceBase {
     // return ret;
     // }
 
-    private boolean saveBinaryToFileSystem(String binFileName, String targetFolder, SubNode node) {
-        boolean ret = false;
-        if (binFileName != null) {
-            log.debug("FileName: " + binFileName);
-        }
-        InputStream is = svc_attach.getStreamByNode(node, "");
-        if (is != null) {
-            try {
-                String targetFileName = targetFolder + File.separator + node.getIdStr() + "-" + binFileName;
-                File targetFile = new File(targetFileName);
-                // warning: we have our own FileUtils (conflict of name)
-                org.apache.commons.io.FileUtils.copyInputStreamToFile(is, targetFile);
-            } catch (Exception e) {
-                e.printStackTrace();
-            } finally {
-                StreamUtil.close(is);
-            }
-            ret = true;
-        } else {
-            log.debug("Unable to get inputstream or oid.");
-        }
-        return ret;
-    }
-
     /*
      * Imports the data from /src/main/resources/nodes/[subFolder] into the db, which will update the
      * targetPath node path (like "/r/public"), content on the tree.
@@ -1,5 +1,6 @@
 package quanta.service.exports;
 
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -21,21 +22,7 @@ public class FlexmarkRender {
 
     public String markdownToHtml(String markdown) {
         try {
-            extensions = new ArrayList<>();
-            extensions.add(TablesExtension.create());
-            extensions.add(TocExtension.create());
-            extensions.add(AnchorLinkExtension.create());
-            extensions.add(AutolinkExtension.create());
-
-            options = new MutableDataSet();
-            options.set(Parser.EXTENSIONS, extensions);
-            // We start the TOC at level 2 because level 1 is the title of the document itself, and the root
-            // node.
-            options.set(TocExtension.LEVELS, TocOptions.getLevels(2, 3, 4, 5, 6));
-            // This numbering works in the TOC but I haven't figured out how to number the
-            // actual headings in the body of the document itself.
-            // options.set(TocExtension.IS_NUMBERED, true);
-
+            init();
             Parser parser = Parser.builder(options).build();
             HtmlRenderer renderer = HtmlRenderer.builder(options).build();
             Node document = parser.parse(markdown);
@@ -45,5 +32,38 @@ public class FlexmarkRender {
             throw new RuntimeEx(ex);
         }
     }
+
+    /*
+     * Same as above but reads the markdown from 'in' and writes the html to 'out', for documents too big
+     * to want to have in a String as well as parsed
+     */
+    public void markdownToHtml(Reader in, Appendable out) {
+        try {
+            init();
+            Parser parser = Parser.builder(options).build();
+            HtmlRenderer renderer = HtmlRenderer.builder(options).build();
+            Node document = parser.parseReader(in);
+            renderer.render(document, out);
+        } catch (Exception ex) {
+            throw new RuntimeEx(ex);
+        }
+    }
+
+    private void init() {
+        extensions = new ArrayList<>();
+        extensions.add(TablesExtension.create());
+        extensions.add(TocExtension.create());
+        extensions.add(AnchorLinkExtension.create());
+        extensions.add(AutolinkExtension.create());
+
+        options = new MutableDataSet();
+        options.set(Parser.EXTENSIONS, extensions);
+        // We start the TOC at level 2 because level 1 is the title of the document itself, and the root
+        // node.
+        options.set(TocExtension.LEVELS, TocOptions.getLevels(2, 3, 4, 5, 6));
+        // This numbering works in the TOC but I haven't figured out how to number the
+        // actual headings in the body of the document itself.
+        // options.set(TocExtension.IS_NUMBERED, true);
+    }
 }
 
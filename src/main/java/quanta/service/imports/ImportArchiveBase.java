@@ -1,22 +1,46 @@
 package quanta.service.imports;
 
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
 import quanta.config.ServiceBase;
 import quanta.exception.base.RuntimeEx;
 import quanta.model.client.Attachment;
+import quanta.mongo.MongoUtil;
 import quanta.mongo.model.SubNode;
+import quanta.rest.response.PushPageMessage;
+import quanta.util.Const;
 import quanta.util.LimitedInputStreamEx;
+import quanta.util.MimeUtil;
 import quanta.util.TL;
 import quanta.util.Util;
-import quanta.util.val.Val;
+import quanta.util.XString;
 
+/*
+ * Imports are planned in memory and written in batches. As each JSON entry is read the node is added
+ * to the current batch, and once the batch is full the ID, path, and name collision checks for the
+ * whole batch are done with one query each, and the batch is written with a single bulk insert.
+ * Attachments are written to the grid on a small pool while we carry on reading the archive.
+ */
 public abstract class ImportArchiveBase extends ServiceBase {
     private static Logger log = LoggerFactory.getLogger(ImportArchiveBase.class);
 
@@ -31,30 +55,70 @@ public abstract class ImportArchiveBase extends ServiceBase {
     public SubNode curNode;
     public HashSet<String> reservedPaths = new HashSet<>();
 
+    private static final int BATCH_SIZE = Const.MAX_BULK_OPS;
+    private final List<SubNode> batch = new ArrayList<>();
+
+    // maps each path as found in the archive to the path it was actually given, so children still land
+    // under their parent when the parent had to be moved to avoid a collision.
+    private final HashMap<String, String> pathMap = new HashMap<>();
+
+    // names and ids given out so far in this import
+    private final HashSet<String> reservedNames = new HashSet<>();
+    private final HashSet<ObjectId> reservedIds = new HashSet<>();
+
+    /*
+     * Attachments up to MAX_BUFFERED_ATT_SIZE are read into memory and written to the grid on attPool,
+     * and total buffered bytes are capped at MAX_BUFFERED_BYTES so a fast archive can't outrun the
+     * grid. Bigger attachments are streamed straight from the archive on the import thread.
+     */
+    private static final int ATT_THREADS = 4;
+    private static final int MAX_BUFFERED_ATT_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_BUFFERED_BYTES = 64 * 1024 * 1024;
+    private final Semaphore attBytesAvailable = new Semaphore(MAX_BUFFERED_BYTES);
+    private ExecutorService attPool;
+    private final List<PendingAttachment> pendingAtts = new ArrayList<>();
+
+    private long startTime;
+    private int nodeCount;
+    private int attCount;
+
+    private static class PendingAttachment {
+        Attachment att;
+        Future<String> binId;
+        long size;
+        String mimeType;
+        String fileName;
+
+        PendingAttachment(Attachment att, Future<String> binId, long size, String mimeType, String fileName) {
+            this.att = att;
+            this.binId = binId;
+            this.size = size;
+            this.mimeType = mimeType;
+            this.fileName = fileName;
+        }
+    }
+
     public void processFile(ArchiveEntry entry, InputStream zis, ObjectId ownerId) {
         String name = entry.getName();
         int lastSlashIdx = name.lastIndexOf("/");
         String fileName = lastSlashIdx == -1 ? name : name.substring(lastSlashIdx + 1);
         log.trace("Import FILE Entry: " + entry.getName());
 
+        if (attPool == null) {
+            attPool = Executors.newFixedThreadPool(ATT_THREADS);
+            startTime = System.currentTimeMillis();
+        }
+
         try {
             TL.setParentCheckEnabled(false);
-            Val<Boolean> done = new Val<>(false);
 
-            // if this is an attachment on our curNode then import it.
+            // if this is an attachment on our curNode then import it, and we're done.
             if (curNode != null && curNode.getAttachments() != null && curNode.getAttachments().containsKey(fileName)) {
-                svc_arun.run(() -> {
-                    if (importBinary(entry, curNode, zis, fileName)) {
-                        done.setVal(true);
-                    }
-                    return null;
-                });
+                if (importBinary(entry, curNode, zis, fileName)) {
+                    return;
+                }
             }
 
-            // if we processed the above as an attachment we're done bail out.
-            if (done.getVal())
-                return;
-
             // HTML FILE
             if (svc_mimeUtil.isHtmlTypeFileName(fileName)) {
             }
@@ -73,19 +137,6 @@ public abstract class ImportArchiveBase extends ServiceBase {
                         // this may not be necessary but we definitely don't want this node cached now
                         // with it's currently undetermined id.
                         TL.clean(n);
-
-                        if (svc_mongoRead.nodeExists(n.getId())) {
-                            log.debug("IMPORT NODE EXISTED (using new ID): " + n.getIdStr());
-                            n.setId(null);
-                        }
-
-                        String newPath = svc_mongoUtil.findAvailablePath(targetPath + n.getPath(), reservedPaths);
-                        n.setPath(newPath);
-                        // verifyParentPath=false signals to MongoListener to not waste cycles checking the path on this
-                        // to verify the parent exists upon saving, because we know the path is fine correct.
-                        n.verifyParentPath = false;
-                        n.setOwner(ownerId);
-                        // log.debug("IMPORT NODE: " + XString.prettyPrint(n));
                         return n;
                     } catch (Exception e) {
                         log.error("Failed unmarshalling node: " + json);
@@ -95,32 +146,43 @@ public abstract class ImportArchiveBase extends ServiceBase {
                 if (node == null) {
                     throw new RuntimeEx("import unmarshalling failed.");
                 }
-                curNode = node;
+
+                // the node we were on has all its attachments now (they always follow its JSON), so this is
+                // a safe point to write out a full batch.
+                if (batch.size() >= BATCH_SIZE) {
+                    flushBatch();
+                }
+
+                // verifyParentPath=false signals to MongoListener to not waste cycles checking the path on this
+                // to verify the parent exists upon saving, because we know the path is fine correct.
+                node.verifyParentPath = false;
+                node.setOwner(ownerId);
+
                 /*
                  * when importing we want to keep all the attachment info EXCEPT the binary IDs because those will
                  * be changing and obsolete for the imported data, will be reassigned. Nullifying those makes sure
                  * the obsolete values cannot be reused.
+                 *
+                 * The grid files record the node id, so a node with attachments needs its final id before they
+                 * get written. Those nodes check their id right away, and the rest are checked with the batch.
                  */
-                if (node.getAttachments() != null) {
+                if (node.getAttachments() != null && node.getAttachments().size() > 0) {
                     node.getAttachments().forEach((String key, Attachment att) -> {
                         att.setBin(null);
                     });
+                    if (node.getId() == null || reservedIds.contains(node.getId())
+                            || svc_mongoRead.nodeExists(node.getId())) {
+                        log.debug("IMPORT NODE EXISTED (using new ID): " + node.getIdStr());
+                        node.setId(new ObjectId());
+                    }
+                    reservedIds.add(node.getId());
                 }
-                
-                int tries = 0;
-                String nodeName = node.getName();
-                String baseNodeName = nodeName;
-                SubNode nodeFound = svc_mongoRead.getNodeByNameAP(nodeName, null);
-                while (nodeFound != null && ++tries < 50) {
-                    nodeName = baseNodeName + "-" + tries;
-                    nodeFound = svc_mongoRead.getNodeByNameAP(nodeName, null);
-                }
-                if (nodeFound != null) {
-                    throw new RuntimeEx(
-                            "Failed to save node " + node.getIdStr() + ". Name already exists: " + nodeName);
+
+                curNode = node;
+                if (importRootNode == null) {
+                    importRootNode = node;
                 }
-                node.setName(nodeName);
-                svc_mongoUpdate.save(node);
+                batch.add(node);
             }
         } catch (Exception ex) {
             throw new RuntimeEx(ex);
@@ -133,6 +195,9 @@ public abstract class ImportArchiveBase extends ServiceBase {
      * This method assumes node has already been loaded which means as we process the zip stream we're
      * expecting the JSON for the node to be encountered before any of the attachments.
      *
+     * The binary is written to the grid (or queued to be), and the attachment gets its grid id when
+     * the node's batch is written.
+     *
      * Returns true only if we imported a file.
      */
     public boolean importBinary(ArchiveEntry entry, SubNode node, InputStream zis, String attName) {
@@ -146,12 +211,248 @@ public abstract class ImportArchiveBase extends ServiceBase {
         if (att == null) {
             return false;
         }
-        Long length = att.getSize();
-        String mimeType = att.getMime();
-        String fileName = att.getFileName();
-        LimitedInputStreamEx lzis = new LimitedInputStreamEx(zis, Integer.MAX_VALUE);
-        svc_attach.attachBinaryFromStream(true, attName, node, null, fileName, length, lzis, mimeType, -1, -1,
-                false, true, false, true, null, false, null);
+        String fileName = StringUtils.isEmpty(att.getFileName()) ? "file" : att.getFileName();
+        String mimeType = att.getMime() != null ? att.getMime() : MimeUtil.getMimeFromFileType(fileName);
+        ObjectId nodeId = node.getId();
+        long size = entry.getSize();
+
+        try {
+            if (size >= 0 && size <= MAX_BUFFERED_ATT_SIZE) {
+                int len = (int) size;
+                attBytesAvailable.acquire(len);
+                byte[] bytes = null;
+                try {
+                    bytes = IOUtils.toByteArray(zis, len);
+                } catch (Exception e) {
+                    attBytesAvailable.release(len);
+                    throw e;
+                }
+                final byte[] data = bytes;
+                Future<String> binId = svc_async.submit(attPool, () -> {
+                    try {
+                        return svc_attach.storeBinary(nodeId, new ByteArrayInputStream(data), fileName, mimeType);
+                    } finally {
+                        attBytesAvailable.release(len);
+                    }
+                });
+                pendingAtts.add(new PendingAttachment(att, binId, len, mimeType, fileName));
+            } else {
+                LimitedInputStreamEx lzis = new LimitedInputStreamEx(zis, Integer.MAX_VALUE);
+                String binId = svc_attach.storeBinary(nodeId, lzis, fileName, mimeType);
+                pendingAtts.add(new PendingAttachment(att, CompletableFuture.completedFuture(binId), lzis.getCount(),
+                        mimeType, fileName));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeEx(e);
+        } catch (Exception e) {
+            throw new RuntimeEx(e);
+        }
         return true;
     }
+
+    /*
+     * Subclasses call this after the last archive entry, to write out the final batch
+     */
+    protected void finishImport() {
+        try {
+            TL.setParentCheckEnabled(false);
+            flushBatch();
+        } finally {
+            TL.setParentCheckEnabled(true);
+        }
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+        String msg = String.format("Imported %d nodes and %d attachments in %.1fs (%d nodes/sec)", nodeCount,
+                attCount, elapsed / 1000.0, nodeCount * 1000L / elapsed);
+        log.info(msg);
+        if (TL.getSC() != null) {
+            svc_push.pushInfo(TL.getSC(), new PushPageMessage(msg, false, null));
+        }
+    }
+
+    /*
+     * Subclasses call this no matter how the import ended
+     */
+    protected void closeImport() {
+        if (attPool != null) {
+            attPool.shutdownNow();
+        }
+    }
+
+    private void flushBatch() {
+        if (batch.isEmpty())
+            return;
+
+        // every attachment read so far belongs to a node in this batch, so wait on all of them
+        for (PendingAttachment pa : pendingAtts) {
+            try {
+                pa.att.setBin(pa.binId.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeEx(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeEx("failed storing attachment: " + pa.fileName, e.getCause());
+            }
+            pa.att.setSize(pa.size);
+            pa.att.setMime(pa.mimeType);
+            pa.att.setFileName(pa.fileName);
+            attCount++;
+        }
+        pendingAtts.clear();
+
+        svc_arun.run(() -> {
+            assignIds();
+            assignPaths();
+            assignNames();
+
+            BulkOperations bops = svc_ops.bulkOps(BulkMode.UNORDERED);
+            for (SubNode node : batch) {
+                svc_mongoUpdate.beforeSave(node);
+                MongoUtil.validate(node);
+                node.updateDerivedFields();
+            }
+            bops.insert(batch);
+            bops.execute();
+            // inserts don't go thru the save hook
+            svc_nodeEvents.nodesInserted(batch, targetPath);
+            return null;
+        });
+
+        nodeCount += batch.size();
+        log.debug("Imported batch. Total nodes: " + nodeCount);
+        batch.clear();
+    }
+
+    // Any node in the batch whose id is already in the DB (or this import) gets a new one.
+    private void assignIds() {
+        List<ObjectId> ids = new ArrayList<>();
+        for (SubNode node : batch) {
+            if (node.getId() != null && !reservedIds.contains(node.getId())) {
+                ids.add(node.getId());
+            }
+        }
+        HashSet<ObjectId> existing = new HashSet<>();
+        if (ids.size() > 0) {
+            Query q = new Query(Criteria.where(SubNode.ID).in(ids));
+            // every node read picks its class from the type and is validated to have an owner, so
+            // projections always need those two
+            q.fields().include(SubNode.ID, SubNode.TYPE, SubNode.OWNER);
+            svc_ops.find(q).forEach(n -> existing.add(n.getId()));
+        }
+
+        for (SubNode node : batch) {
+            // nodes with attachments were already given their final id
+            if (node.getId() != null && reservedIds.contains(node.getId()) && node.getAttachments() != null
+                    && node.getAttachments().size() > 0) {
+                continue;
+            }
+            if (node.getId() == null || existing.contains(node.getId()) || reservedIds.contains(node.getId())) {
+                log.debug("IMPORT NODE EXISTED (using new ID): " + node.getIdStr());
+                node.setId(new ObjectId());
+            }
+            reservedIds.add(node.getId());
+        }
+    }
+
+    /*
+     * Nodes come in parent-first order, so by the time we get to a node its parent's final path is in
+     * pathMap. We check all the paths the batch would get if nothing moved with one query, and only
+     * fall back to findAvailablePath for the ones that collide.
+     */
+    private void assignPaths() {
+        List<String> candidates = new ArrayList<>();
+        for (SubNode node : batch) {
+            candidates.add(getTargetPath(node.getPath()));
+        }
+        HashSet<String> existing = new HashSet<>();
+        Query q = new Query(Criteria.where(SubNode.PATH).in(candidates));
+        q.fields().include(SubNode.PATH, SubNode.TYPE, SubNode.OWNER);
+        svc_ops.find(q).forEach(n -> existing.add(n.getPath()));
+
+        for (int i = 0; i < batch.size(); i++) {
+            SubNode node = batch.get(i);
+            String archivePath = node.getPath();
+            String path = getTargetPath(archivePath);
+
+            /*
+             * If the path differs from the candidate a parent was moved, and the new parent path came from
+             * findAvailablePath, so nothing in the DB can be under it.
+             */
+            boolean collides = reservedPaths.contains(path)
+                    || (path.equals(candidates.get(i)) && existing.contains(path));
+            if (collides) {
+                path = svc_mongoUtil.findAvailablePath(path, reservedPaths);
+            } else {
+                reservedPaths.add(path);
+            }
+            pathMap.put(archivePath, path);
+            node.setPath(path);
+        }
+    }
+
+    private String getTargetPath(String archivePath) {
+        String archiveParent = XString.truncAfterLast(archivePath, "/");
+        String parent = pathMap.get(archiveParent);
+        if (parent == null) {
+            return targetPath + archivePath;
+        }
+        return parent + archivePath.substring(archiveParent.length());
+    }
+
+    /*
+     * Names are unique per owner. Any collision gets a "-N" suffix like the names in the UI do, and we
+     * only go back to the DB for the names that collided.
+     */
+    private void assignNames() {
+        List<String> names = new ArrayList<>();
+        ObjectId ownerId = null;
+        for (SubNode node : batch) {
+            ownerId = node.getOwner();
+            if (node.getName() != null) {
+                // same cleanup beforeSave does, done here so we check the name that will actually be saved
+                node.setName(node.getName().replaceAll("[:~/]", "-"));
+                names.add(node.getName());
+            }
+        }
+        if (names.size() == 0)
+            return;
+
+        HashSet<String> existing = getExistingNames(ownerId, names);
+        for (SubNode node : batch) {
+            String baseNodeName = node.getName();
+            if (baseNodeName == null)
+                continue;
+
+            String nodeName = baseNodeName;
+            if (existing.contains(nodeName) || reservedNames.contains(nodeName)) {
+                List<String> alternates = new ArrayList<>();
+                for (int tries = 1; tries < 50; tries++) {
+                    alternates.add(baseNodeName + "-" + tries);
+                }
+                HashSet<String> taken = getExistingNames(ownerId, alternates);
+                nodeName = null;
+                for (String alt : alternates) {
+                    if (!taken.contains(alt) && !reservedNames.contains(alt)) {
+                        nodeName = alt;
+                        break;
+                    }
+                }
+                if (nodeName == null) {
+                    throw new RuntimeEx(
+                            "Failed to save node " + node.getIdStr() + ". Name already exists: " + baseNodeName);
+                }
+            }
+            reservedNames.add(nodeName);
+            node.setName(nodeName);
+        }
+    }
+
+    private HashSet<String> getExistingNames(ObjectId ownerId, List<String> names) {
+        HashSet<String> existing = new HashSet<>();
+        Query q = new Query(Criteria.where(SubNode.OWNER).is(ownerId).and(SubNode.NAME).in(names));
+        q.fields().include(SubNode.NAME, SubNode.TYPE, SubNode.OWNER);
+        svc_ops.find(q).forEach(n -> existing.add(n.getName()));
+        return existing;
+    }
 }
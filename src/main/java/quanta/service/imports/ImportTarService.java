@@ -54,9 +54,11 @@ public class ImportTarService extends ImportArchiveBase {
                     processFile(entry, zis, userNode.getOwner());
                 }
             }
+            finishImport();
         } catch (final Exception ex) {
             throw new RuntimeEx(ex);
         } finally {
+            closeImport();
             StreamUtil.close(zis);
         }
         return importRootNode;
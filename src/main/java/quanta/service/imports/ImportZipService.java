@@ -80,9 +80,11 @@ public class ImportZipService extends ImportArchiveBase {
                     processFile(entry, zis, userNode.getOwner());
                 }
             }
+            finishImport();
         } catch (Exception ex) {
             throw new RuntimeEx(ex);
         } finally {
+            closeImport();
             StreamUtil.close(is);
         }
         return importRootNode;
@@ -157,7 +157,7 @@ public class AIUtil extends ServiceBase {
             return null;
         }
 
-        SubNode parent = svc_mongoRead.getParent(node);
+        SubNode parent = svc_aiContext.getParent(node);
         String context = null;
         if (svc_aiUtil.hasBookTags(parent)) {
             context = insertBookContext(node);
@@ -183,7 +183,7 @@ public class AIUtil extends ServiceBase {
                 "\nTake into consideration the `bookContext` below which lets you know what book, chapter, section, and subsection "
                         + " we're working on. Don't mention anything about the context your reply, just use it for your own information about context.\n"; //
 
-        SubNode parent = svc_mongoRead.getParent(node);
+        SubNode parent = svc_aiContext.getParent(node);
         boolean foundSystemPrompt = false;
         while (parent != null) {
             if (parent.getTags() != null) {
@@ -205,7 +205,7 @@ public class AIUtil extends ServiceBase {
                 foundSystemPrompt = true;
                 break;
             }
-            parent = svc_mongoRead.getParent(parent);
+            parent = svc_aiContext.getParent(parent);
         }
         if (foundSystemPrompt) {
             return "<instructions>\n" + instructions + "\n<bookContext>\n" + context
@@ -220,7 +220,7 @@ public class AIUtil extends ServiceBase {
                 "\nTake into consideration the `context` below (which will contain 'sections' in top-down order from the document hierarchy)"
                         + " which lets you know what sections, subsections, etc. are being written about. "
                         + " Don't mention anything about the context your reply, just use it for your own information about context.\n";
-        SubNode parent = svc_mongoRead.getParent(node);
+        SubNode parent = svc_aiContext.getParent(node);
         boolean foundSystemPrompt = false;
         while (parent != null) {
             context = "<section>\n" + parent.getContent() + "\n</section>\n" + context;
@@ -230,7 +230,7 @@ public class AIUtil extends ServiceBase {
                 foundSystemPrompt = true;
                 break;
             }
-            parent = svc_mongoRead.getParent(parent);
+            parent = svc_aiContext.getParent(parent);
         }
         if (foundSystemPrompt) {
             return "<instructions>\n" + instructions + "\n<context>\n" + context + "\n</context>\n</instructions>\n\n";
@@ -242,18 +242,48 @@ public class AIUtil extends ServiceBase {
         while (node != null) {
             if (parseAIConfig(node, system))
                 break;
-            node = svc_mongoRead.getParent(node);
+            node = svc_aiContext.getParent(node);
         }
     }
 
     public AskSubGraphResponse cm_askSubGraph(AskSubGraphRequest req) {
         AskSubGraphResponse res = new AskSubGraphResponse();
 
+        SubNode node = svc_mongoRead.getNode(req.getNodeId());
+        if (node == null) {
+            throw new RuntimeEx("Node not found: " + req.getNodeId());
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(svc_aiContext.getSubGraphContext(node, req.getNodeIds(), () -> buildSubGraphContext(req, node)));
+        sb.append("Here is my question:\n");
+        sb.append(req.getQuestion());
+        AIResponse aiResponse = null;
+
+        SystemConfig system = new SystemConfig();
+        AIModel svc = null;
+        svc_aiUtil.getAIConfigFromAncestorNodes(node, system);
+        if (system.getService() != null) {
+            svc = AIModel.fromString(system.getService());
+        }
+        if (svc == null) {
+            throw new NoAgentException();
+        }
+
+        aiResponse = svc_ai.getAnswer(false, null, sb.toString(), system, svc);
+        if (aiResponse != null) {
+            res.setAnswer("Q: " + req.getQuestion() + "\n\nA: " + aiResponse.getContent());
+        } else {
+            throw new RuntimeEx("No answer from AI");
+        }
+        return res;
+    }
+
+    private String buildSubGraphContext(AskSubGraphRequest req, SubNode node) {
         // todo-2: in future use cases we'd want to allow includeComments setting
         List<SubNode> nodes = svc_mongoRead.getFlatSubGraph(req.getNodeId(), true, null);
         int counter = 0;
         StringBuilder sb = new StringBuilder();
-        SubNode node = svc_mongoRead.getNode(req.getNodeId());
 
         sb.append("Here is some context information, to help answer the question below:\n");
         sb.append("<context>\n");
@@ -282,28 +312,7 @@ public class AIUtil extends ServiceBase {
         if (counter == 0) {
             throw new RuntimeEx("No context for this query was able to be created.");
         }
-
-        sb.append("Here is my question:\n");
-        sb.append(req.getQuestion());
-        AIResponse aiResponse = null;
-
-        SystemConfig system = new SystemConfig();
-        AIModel svc = null;
-        svc_aiUtil.getAIConfigFromAncestorNodes(node, system);
-        if (system.getService() != null) {
-            svc = AIModel.fromString(system.getService());
-        }
-        if (svc == null) {
-            throw new NoAgentException();
-        }
-
-        aiResponse = svc_ai.getAnswer(false, null, sb.toString(), system, svc);
-        if (aiResponse != null) {
-            res.setAnswer("Q: " + req.getQuestion() + "\n\nA: " + aiResponse.getContent());
-        } else {
-            throw new RuntimeEx("No answer from AI");
-        }
-        return res;
+        return sb.toString();
     }
 
     public String prepareAIQuestionText(SubNode node, SystemConfig system) {
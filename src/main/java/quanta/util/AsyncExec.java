@@ -1,16 +1,19 @@
 package quanta.util;
 
-import java.time.Instant;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 import org.springframework.stereotype.Component;
+import jakarta.annotation.PreDestroy;
 import quanta.config.ServiceBase;
 
 /**
- * Wraps execution of a Runnable by the spring executor service. Warning: Don't try to refactor to
- * use
+ * Wraps execution of a Runnable on a virtual thread. Warning: Don't try to refactor to use
  *
  * @Async annotation. That approach is dangerous and won't work in all scenarios
  */
@@ -18,53 +21,100 @@ import quanta.config.ServiceBase;
 public class AsyncExec extends ServiceBase {
     private static Logger log = LoggerFactory.getLogger(AsyncExec.class);
 
-    @Autowired
-    public ThreadPoolTaskScheduler threadPoolTaskScheduler;
+    /*
+     * Nearly everything we run here is blocking I/O (Mongo, Redis, HTTP, SMTP), so there's no pool size to
+     * tune. Each task gets its own virtual thread, and anything that needs to limit the load on an
+     * external backend does that with a BackendLimiter instead.
+     */
+    private final ExecutorService executor =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("async-", 0).factory());
 
-    // Reflects the true concurrently count, and should represent the current number of running threads
+    // submitted but not started yet
+    private final AtomicInteger queued = new AtomicInteger();
+    // Reflects the true concurrently count, and should represent the current number of running tasks
     // at all times.
-    int execCounter = 0;
-    int maxExecCounter = 0; // max value for execCounter ever
+    private final AtomicInteger execCounter = new AtomicInteger();
+    private final AtomicInteger maxExecCounter = new AtomicInteger(); // max value for execCounter ever
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    // time from submit to start, and from start to finish
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong totalRunNanos = new AtomicLong();
+    private final AtomicLong maxRunNanos = new AtomicLong();
 
     public void run(Runnable runnable) {
         run(new ThreadLocalsContext(), runnable);
     }
 
+    /*
+     * Runs 'task' on an executor the caller owns (rather than the shared one), carrying this thread's
+     * thread-locals along just like run() does. For jobs that need their own bounded set of workers, and
+     * the caller is expected to handle errors from the returned Future
+     */
+    public <T> Future<T> submit(ExecutorService executor, Callable<T> task) {
+        ThreadLocalsContext tlc = new ThreadLocalsContext();
+        return executor.submit(() -> {
+            try {
+                tlc.setValsIntoThread();
+                return task.call();
+            } finally {
+                TL.removeAll();
+            }
+        });
+    }
+
     private void run(ThreadLocalsContext tlc, Runnable runnable) {
-        // We have to get the stackTrace ahead of time, so that if the async thread fails we can log
-        // what was actually happening that launched the executor/thread that failed.
-        String stackTrace = ExUtil.getStackTrace(null);
+        // Getting the stack trace ahead of time lets us log what launched a task that fails, but it's
+        // too expensive to do for every task so it's only on when 'asyncStackTraces' is set.
+        String stackTrace = svc_prop.getAsyncStackTraces() ? ExUtil.getStackTrace(null) : null;
+        long submitTime = System.nanoTime();
+        queued.incrementAndGet();
 
-        Runnable r = new Runnable() {
-            public void run() {
-                try {
-                    execCounter++;
-                    if (execCounter > maxExecCounter) {
-                        maxExecCounter = execCounter;
-                    }
-                    if (tlc != null) {
-                        tlc.setValsIntoThread();
-                    }
-                    runnable.run();
-                } catch (Exception e) {
-                    ExUtil.error(log, "exception in AsyncExec", e);
+        executor.execute(() -> {
+            long startTime = System.nanoTime();
+            queued.decrementAndGet();
+            record(startTime - submitTime, totalWaitNanos, maxWaitNanos);
+            maxExecCounter.accumulateAndGet(execCounter.incrementAndGet(), Math::max);
+            try {
+                if (tlc != null) {
+                    tlc.setValsIntoThread();
+                }
+                runnable.run();
+            } catch (Exception e) {
+                failed.incrementAndGet();
+                ExUtil.error(log, "exception in AsyncExec", e);
+                if (stackTrace != null) {
                     log.error("AsyncExec that failed was started by: " + stackTrace);
-                } finally {
-                    TL.removeAll();
-                    execCounter--;
-                    // log.error("AsyncExec exiting. Started by: " + stackTrace);
                 }
+            } finally {
+                TL.removeAll();
+                execCounter.decrementAndGet();
+                completed.incrementAndGet();
+                record(System.nanoTime() - startTime, totalRunNanos, maxRunNanos);
             }
-        };
+        });
+    }
+
+    private void record(long nanos, AtomicLong total, AtomicLong max) {
+        total.addAndGet(nanos);
+        max.accumulateAndGet(nanos, Math::max);
+    }
 
-        // DO NOTE DELETE
-        // NOTE: You can also pass triggers like this instead of 'instant' below.
-        // PeriodicTrigger periodicTrigger
-        // = new PeriodicTrigger(2000, TimeUnit.MICROSECONDS);
+    public String getReport() {
+        long done = completed.get();
+        long started = done + execCounter.get();
+        return String.format(
+                "queued=%d running=%d maxRunning=%d completed=%d failed=%d\n"
+                        + "avgWait=%.2fms maxWait=%.2fms avgRun=%.1fms maxRun=%.1fms\n",
+                queued.get(), execCounter.get(), maxExecCounter.get(), done, failed.get(),
+                started > 0 ? totalWaitNanos.get() / started / 1e6 : 0.0, maxWaitNanos.get() / 1e6,
+                done > 0 ? totalRunNanos.get() / done / 1e6 : 0.0, maxRunNanos.get() / 1e6);
+    }
 
-        // get instant from current time
-        Instant instant = Instant.now(); // we start now, but we could add time if we wanted to delay
-        threadPoolTaskScheduler.schedule(r, instant);
+    @PreDestroy
+    public void preDestroy() {
+        executor.shutdown();
     }
 }
 
@@ -0,0 +1,89 @@
+package quanta.util;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import quanta.exception.base.RuntimeEx;
+
+/*
+ * Caps how many calls can be in progress at once against a slow external backend. Now that async work
+ * and requests run on virtual threads there's no thread pool size limiting this anymore, so without
+ * these a burst of saves with links (or AI questions) would open as many connections as there are
+ * callers.
+ *
+ * Mongo and Redis don't need one of these because their drivers already make callers wait for a pooled
+ * connection.
+ */
+public class BackendLimiter {
+    // outbound fetches of arbitrary web URLs (OpenGraph, RSS, uploads from URL)
+    public static final BackendLimiter WEB = new BackendLimiter("web", 32);
+    // calls to the Quanta AI service
+    public static final BackendLimiter AI = new BackendLimiter("ai", 16);
+
+    private static final List<BackendLimiter> all = List.of(WEB, AI);
+
+    private final String name;
+    private final int maxConcurrent;
+    private final Semaphore permits;
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    private BackendLimiter(String name, int maxConcurrent) {
+        this.name = name;
+        this.maxConcurrent = maxConcurrent;
+        this.permits = new Semaphore(maxConcurrent, true);
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public <T> T call(Callable<T> task) throws Exception {
+        acquire();
+        try {
+            return task.call();
+        } finally {
+            permits.release();
+        }
+    }
+
+    /* Same as call() for callers that don't throw checked exceptions */
+    public <T> T get(Callable<T> task) {
+        try {
+            return call(task);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeEx(e);
+        }
+    }
+
+    private void acquire() throws InterruptedException {
+        long start = System.nanoTime();
+        waiting.incrementAndGet();
+        try {
+            permits.acquire();
+        } finally {
+            waiting.decrementAndGet();
+        }
+        long waited = System.nanoTime() - start;
+        calls.incrementAndGet();
+        totalWaitNanos.addAndGet(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+    }
+
+    public static String getReport() {
+        StringBuilder sb = new StringBuilder();
+        for (BackendLimiter l : all) {
+            long calls = l.calls.get();
+            sb.append(String.format("%s: active=%d/%d waiting=%d calls=%d avgWait=%.1fms maxWait=%.1fms\n", l.name,
+                    l.maxConcurrent - l.permits.availablePermits(), l.maxConcurrent, l.waiting.get(), calls,
+                    calls > 0 ? l.totalWaitNanos.get() / calls / 1e6 : 0.0, l.maxWaitNanos.get() / 1e6));
+        }
+        return sb.toString();
+    }
+}
@@ -26,6 +26,7 @@ import quanta.model.client.ConstantInt;
 import quanta.model.client.NodeLink;
 import quanta.model.client.NodeProp;
 import quanta.model.client.PrincipalName;
+import quanta.model.client.SearchDefinition;
 import quanta.mongo.model.AccessControl;
 import quanta.mongo.model.AccountNode;
 import quanta.mongo.model.SubNode;
@@ -152,7 +153,7 @@ public class Convert extends ServiceBase {
         return nodeInfo;
     }
 
-    private void clearSecretProperties(NodeInfo info) {
+    public void clearSecretProperties(NodeInfo info) {
         List<PropertyInfo> props = info.getProperties();
         if (props == null)
             return;
@@ -246,24 +247,20 @@ public class Convert extends ServiceBase {
             Object obj = doc.get(key);
             // of obj is an array then iterate each array element
             if (obj instanceof List) {
-                Class<?> clazz = null;
-                if (NodeProp.USER_SEACH_DEFINITIONS.s().equals(key)) {
-                    clazz = NodeProp.USER_SEACH_DEFINITIONS.getArrayOfType();
-                }
+                boolean searchDefs = NodeProp.USER_SEACH_DEFINITIONS.s().equals(key);
                 List<Object> typedList = new ArrayList<>();
                 // make a list to hold the type-safe objects
                 List<?> list = (List<?>) obj;
                 // scan each Document in the list and convert it to the correct type
                 for (int i = 0; i < list.size(); i++) {
                     Object item = list.get(i);
-                    // if item is a document then get the _class property from it
-                    if (clazz != null && item instanceof org.bson.Document dItem) {
-                        Object ret = null;
+                    // constructed directly rather than by reflection on getArrayOfType, since this runs for every
+                    // node load
+                    if (searchDefs && item instanceof org.bson.Document dItem) {
                         try {
-                            ret = clazz.getConstructor(org.bson.Document.class).newInstance(dItem);
-                            typedList.add(ret);
+                            typedList.add(new SearchDefinition(dItem));
                         } catch (Exception e) {
-                            ExUtil.error(log, "failed to load property as type " + clazz.getName() + "\nRaw JSON: "
+                            ExUtil.error(log, "failed to load property as type SearchDefinition\nRaw JSON: "
                                     + XString.prettyPrint(dItem), e);
                         }
                     } else {
@@ -2,11 +2,10 @@ package quanta.util;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.URI;
-import java.net.URL;
 import java.net.URLConnection;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
 import org.apache.commons.io.FilenameUtils;
@@ -16,6 +15,7 @@ import org.springframework.stereotype.Component;
 import jakarta.activation.MimetypesFileTypeMap;
 import quanta.config.ServiceBase;
 import quanta.exception.base.RuntimeEx;
+import quanta.service.OutboundHttpService;
 
 /**
  * Mime-Type (content type) utilities
@@ -129,15 +129,28 @@ public class MimeUtil extends ServiceBase {
         // if didn't get mime from name, try reading the actual url
         if (StringUtils.isEmpty(mimeType)) {
             int timeout = 60; // seconds
+            boolean reached = false;
             try {
-                URL urlObj = new URI(url).toURL();
-                URLConnection conn = urlObj.openConnection();
-                conn.setConnectTimeout(timeout * 1000);
-                conn.setReadTimeout(timeout * 1000);
-                mimeType = conn.getContentType();
+                OutboundHttpService.Response res = svc_http.head(url, Duration.ofSeconds(timeout));
+                reached = true;
+                if (res.isOk()) {
+                    mimeType = res.getContentType();
+                }
             } catch (Exception e) {
                 // ignore
             }
+            // some servers reject HEAD (405, 403, etc.) or don't say the type for it, so ask for one byte.
+            // No point if the server couldn't be reached at all.
+            if (reached && StringUtils.isEmpty(mimeType)) {
+                try {
+                    OutboundHttpService.Response res = svc_http.getFirstByte(url, Duration.ofSeconds(timeout));
+                    if (res.isOk()) {
+                        mimeType = res.getContentType();
+                    }
+                } catch (Exception e) {
+                    // ignore
+                }
+            }
         }
         return mimeType;
     }
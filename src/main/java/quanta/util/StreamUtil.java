@@ -1,37 +1,23 @@
 package quanta.util;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.InputStream;
-import java.net.URI;
 import java.time.Duration;
 import javax.imageio.ImageReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.core.io.ByteArrayResource;
-import org.springframework.http.HttpHeaders;
-import org.springframework.web.reactive.function.client.ExchangeStrategies;
-import org.springframework.web.reactive.function.client.WebClient;
+import quanta.config.ServiceBase;
 import quanta.exception.base.RuntimeEx;
-import reactor.core.publisher.Mono;
 
 public class StreamUtil {
     private static Logger log = LoggerFactory.getLogger(StreamUtil.class);
 
     public static InputStream getStream(String sourceUrl, int timeout, final int maxFileSize) {
         try {
-            final ExchangeStrategies strategies = ExchangeStrategies.builder()
-                    .codecs(codecs -> codecs.defaultCodecs().maxInMemorySize(maxFileSize)).build();
-
-            WebClient webClient = Util.webClientBuilder().exchangeStrategies(strategies)
-                    .defaultHeader(HttpHeaders.USER_AGENT, Const.FAKE_USER_AGENT).build();
-
-            Mono<ByteArrayResource> result = webClient.get().uri(URI.create(sourceUrl)).retrieve()
-                    .bodyToMono(ByteArrayResource.class).timeout(Duration.ofSeconds(timeout));
-
-            ByteArrayResource resource = result.block();
-            InputStream is = resource.getInputStream();
-            return is;
+            return new ByteArrayInputStream(
+                    ServiceBase.svc_http.getBytes(sourceUrl, maxFileSize, Duration.ofSeconds(timeout)));
         } catch (Exception e) {
             ExUtil.error(log, "Failed Reading: " + sourceUrl, e);
             throw new RuntimeEx("Stream failed. Are you out of server storage space?");
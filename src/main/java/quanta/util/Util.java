@@ -11,7 +11,6 @@ import org.springframework.http.HttpHeaders;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.reactive.function.BodyInserters;
-import org.springframework.web.reactive.function.client.ExchangeStrategies;
 import org.springframework.web.reactive.function.client.WebClient;
 import org.springframework.web.reactive.function.client.WebClientRequestException;
 import org.springframework.web.reactive.function.client.WebClientResponseException;
@@ -47,7 +46,7 @@ public class Util {
         String response = null;
         try {
             response = webClient.post() //
-                    .body(BodyInserters.fromValue(XString.prettyPrint(request))) //
+                    .body(BodyInserters.fromValue(XString.compactPrint(request))) //
                     .retrieve() //
                     .onStatus(status -> status.is4xxClientError() || status.is5xxServerError(), clientResponse -> {
                         // This will trigger for any response with 4xx or 5xx status codes
@@ -71,15 +70,6 @@ public class Util {
         return response;
     }
 
-    public static WebClient.Builder webClientBuilder() {
-        int bufferSize = 100 * Const.ONE_MB;
-        return WebClient.builder()
-                .exchangeStrategies(ExchangeStrategies.builder()
-                        .codecs(configurer -> configurer.defaultCodecs().maxInMemorySize(bufferSize)).build())
-                .defaultHeader(HttpHeaders.USER_AGENT,
-                        "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/58.0.3029.110 Safari/537.3");
-    }
-
     public static double calculateKBps(double bytes, double nanoseconds) {
         if (nanoseconds == 0)
             nanoseconds = 1; // avoid divide by zero
@@ -127,29 +127,33 @@ export class Edit {
         if (node) {
             const dlg = new ExportDlg(node.name, node.id, false);
             await dlg.open();
-            this.exportResponse(dlg.res);
+            this.exportStarted(dlg.res);
+            S.view.scrollToNode();
+        }
+    }
+
+    // Exports run in the background on the server, and we get an "exportProgress" push when it's done.
+    exportStarted(res: J.ExportResponse) {
+        if (res && S.util.checkSuccess("Export", res)) {
+            S.util.showPageMessage("Export started. You'll get a download link when it's done.");
         }
     }
 
-    exportResponse(res: J.ExportResponse) {
+    exportComplete(fileName: string) {
         /* the 'v' arg is for cachebusting. Browser won't download same file once cached, but
         eventually the plan is to have the export return the actual md5 of the export for use here
         */
         // disp=inline (is the other)
-        const downloadLink = S.util.getHostAndPort() + "/f/export/" + res.fileName + "?disp=attachment&v=" + (new Date().getTime()) + "&token=" + S.quanta.authToken;
-
-        if (S.util.checkSuccess("Export", res)) {
-            new MessageDlg(
-                "Export successful.<p>Use the download link below now, to get the file.",
-                "Export",
-                null,
-                new VerticalLayout([
-                    new Anchor(downloadLink, "Download", { target: "_blank" }),
-                ]), false, 0, null
-            ).open();
+        const downloadLink = S.util.getHostAndPort() + "/f/export/" + fileName + "?disp=attachment&v=" + (new Date().getTime()) + "&token=" + S.quanta.authToken;
 
-            S.view.scrollToNode();
-        }
+        new MessageDlg(
+            "Export successful.<p>Use the download link below now, to get the file.",
+            "Export",
+            null,
+            new VerticalLayout([
+                new Anchor(downloadLink, "Download", { target: "_blank" }),
+            ]), false, 0, null
+        ).open();
     }
 
     public async initNodeEditResponse(res: J.InitNodeEditResponse, encrypt: boolean,
@@ -848,9 +852,14 @@ export class Edit {
             return;
         }
 
+        // with two nodes selected we compare the second one's subgraph against the highlighted one
+        const selNodeIds = S.nodeUtil.getSelNodeIdsArray();
+        const compareToNodeId = selNodeIds?.length === 2 ? selNodeIds.find(id => id !== node.id) : null;
+
         S.rpcUtil.rpc<J.SubGraphHashRequest, J.SubGraphHashResponse>("subGraphHash", {
             nodeId: node.id,
-            recursive: true
+            recursive: true,
+            compareToNodeId
         }).then((res: J.SubGraphHashResponse) => {
             if (res.code == C.RESPONSE_CODE_OK) {
                 S.util.showMessage(res.message);
@@ -358,6 +358,8 @@ export interface GetUserProfileRequest extends RequestBase {
 export interface GraphRequest extends RequestBase {
     nodeId: string;
     searchDefinition: SearchDefinition;
+    maxNodes: number;
+    maxDepth: number;
 }
 
 export interface ImportJsonRequest extends RequestBase {
@@ -588,6 +590,7 @@ export interface SplitNodeRequest extends RequestBase {
 export interface SubGraphHashRequest extends RequestBase {
     recursive: boolean;
     nodeId: string;
+    compareToNodeId: string;
 }
 
 export interface TransferNodeRequest extends RequestBase {
@@ -616,6 +619,12 @@ export interface UploadFromUrlRequest extends RequestBase {
 export interface RequestBase {
 }
 
+export interface AIStreamPushInfo extends ServerPushInfo {
+    streamId: string;
+    text: string;
+    done: boolean;
+}
+
 export interface AddCreditResponse extends ResponseBase {
     balance: number;
 }
@@ -678,12 +687,20 @@ export interface DeleteSearchDefResponse extends ResponseBase {
     searchDefs: SearchDefinition[];
 }
 
+export interface ExportPushInfo extends ServerPushInfo {
+    fileName: string;
+    nodeCount: number;
+    done: boolean;
+    error: string;
+}
+
 export interface ExportResponse extends ResponseBase {
     fileName: string;
 }
 
 export interface FeedPushInfo extends ServerPushInfo {
     nodeInfo: NodeInfo;
+    cipherKey: string;
 }
 
 export interface FileSearchResponse extends ResponseBase {
@@ -791,6 +808,7 @@ export interface GetUserProfileResponse extends ResponseBase {
 
 export interface GraphResponse extends ResponseBase {
     rootNode: GraphNode;
+    truncated: boolean;
 }
 
 export interface HashtagInfo {
@@ -868,6 +886,11 @@ export interface NotificationMessage extends ServerPushInfo {
     message: string;
 }
 
+export interface OpenGraphPushInfo extends ServerPushInfo {
+    nodeId: string;
+    openGraphs: OpenGraph[];
+}
+
 export interface OpenSystemFileResponse extends ResponseBase {
 }
 
@@ -1077,6 +1100,7 @@ export interface GraphNode {
     name: string;
     children: GraphNode[];
     links: NodeLink[];
+    hiddenCount: number;
 }
 
 export interface CalendarItem {
@@ -1157,6 +1181,11 @@ export const enum NodeProp {
     EMAIL_CONTENT = "sn:content",
     EMAIL_RECIP = "sn:recip",
     EMAIL_SUBJECT = "sn:subject",
+    EMAIL_LEASE = "sn:emailLease",
+    EMAIL_ATTEMPTS = "sn:emailAttempts",
+    EMAIL_NEXT_TRY = "sn:emailNextTry",
+    EMAIL_STATUS = "sn:emailStatus",
+    EMAIL_ERROR = "sn:emailError",
     TARGET_ID = "sn:target_id",
     BOOKMARK_SEARCH_TEXT = "search",
     USER = "sn:user",
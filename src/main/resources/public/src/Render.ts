@@ -616,7 +616,9 @@ export class Render {
                 requireDate: false,
                 displayLayout: "doc"
             },
-            nodeId: node.id
+            nodeId: node.id,
+            maxNodes: 0,
+            maxDepth: 0
         });
 
         dispatch("ShowGraph", s => {
@@ -14,6 +14,9 @@ import { TimelineTab } from "./tabs/data/TimelineTab";
 export class ServerPush {
     eventSource: EventSource;
 
+    // text so far of each AI answer being streamed to us, by streamId
+    aiStreams: Map<string, string> = new Map<string, string>();
+
     close(): any {
         if (this.eventSource) {
             this.eventSource.close();
@@ -70,9 +73,51 @@ export class ServerPush {
 
         this.eventSource.addEventListener("feedPush", (e: any) => {
             const data: J.FeedPushInfo = JSON.parse(e.data);
+            // nodeInfo is shared by everyone the node was pushed to, so our own key comes separately
+            if (data.cipherKey) {
+                data.nodeInfo.cipherKey = data.cipherKey;
+            }
             this.nodePushed(data.nodeInfo);
         }, false);
 
+        // an AI answer as it's being generated. The answer node itself comes back in the response once
+        // it's complete, so this just shows the tail end of the answer as progress until then.
+        this.eventSource.addEventListener("aiStream", (e: any) => {
+            const data: J.AIStreamPushInfo = JSON.parse(e.data);
+            if (data.done) {
+                this.aiStreams.delete(data.streamId);
+                return;
+            }
+            const text = (this.aiStreams.get(data.streamId) || "") + data.text;
+            this.aiStreams.set(data.streamId, text);
+            S.util.showPageMessage("AI: ..." + text.slice(-200));
+        }, false);
+
+        // OpenGraph data for links in a node we saved, which the server loaded in the background
+        this.eventSource.addEventListener("openGraph", (e: any) => {
+            const data: J.OpenGraphPushInfo = JSON.parse(e.data);
+            if (!data.openGraphs) return;
+            dispatch("OpenGraphPushed", _s => {
+                for (const og of data.openGraphs) {
+                    S.quanta.openGraphData.set(og.url, og);
+                }
+            });
+        }, false);
+
+        // progress and completion of an export running on the server
+        this.eventSource.addEventListener("exportProgress", (e: any) => {
+            const data: J.ExportPushInfo = JSON.parse(e.data);
+            if (data.error) {
+                S.util.showMessage("Export failed: " + data.error, "Warning");
+            }
+            else if (data.done) {
+                S.edit.exportComplete(data.fileName);
+            }
+            else {
+                S.util.showPageMessage("Exporting... " + data.nodeCount + " nodes so far");
+            }
+        }, false);
+
         this.eventSource.addEventListener("pushPageMessage", (e: any) => {
             const data: J.PushPageMessage = JSON.parse(e.data);
             if (data.subType == "rssProgressText") {
@@ -172,6 +172,10 @@ export class FullScreenGraphViewer extends Main {
                     else if (d.data.highlight) {
                         color = "green";
                     }
+                    // collapsed node standing in for nodes the server left out
+                    else if (d.data.hiddenCount) {
+                        color = "gray";
+                    }
                     return color;
                 })
                 .attr("stroke", (d: any) => this.getColorForLevel(d.data.level))
@@ -210,7 +214,7 @@ export class FullScreenGraphViewer extends Main {
                     d3.select(event.currentTarget)
                         .attr("fill", "green");
 
-                    if (d.data.id) {
+                    if (d.data.id && !d.data.hiddenCount) {
                         if (S.util.ctrlKeyCheck()) {
                             window.open(S.util.getHostAndPort() + "?id=" + d.data.id, "_blank");
                         }
@@ -97,6 +97,24 @@ export class AdminView extends AppTab<any> {
                         this.settingsLink("DB Cleanup", () => S.view.runServerCommand("cleanupDb", null, "DB Cleanup Response", null)), //
                         // this.settingsLink("Run DB Conversion", () => S.view.runServerCommand("runConversion", null, "Run DB Conversion", null)), //
                         this.settingsLink("Rebuild Indexes", () => S.view.runServerCommand("rebuildIndexes", null, "Rebuild Indexes Response", null)), //
+                        this.settingsLink("Rebuild Search Index", () => S.view.runServerCommand("rebuildSearchIndex", null, "Rebuild Search Index Response", null)), //
+                        this.settingsLink("Search Index Benchmark", () => {
+                            const text = window.prompt("Fuzzy search text to time");
+                            if (text) {
+                                S.view.runServerCommand("searchIndexBenchmark", text, "Search Index Benchmark", null);
+                            }
+                        }), //
+                        this.settingsLink("Codec Benchmark", () => S.view.runServerCommand("codecBenchmark", null, "Codec Benchmark", null)), //
+                        this.settingsLink("Projection Benchmark", () => S.view.runServerCommand("projectionBenchmark", null, "Projection Benchmark", null)), //
+                    ]),
+                    new Div(null, { className: settingsCol }, [
+                        this.settingsLink("Dump DB", () => S.view.runServerCommand("dumpDb", null, "Dump DB Response", null)), //
+                        this.settingsLink("Restore DB", () => {
+                            const name = window.prompt("Name of dump to restore (replaces ALL data)");
+                            if (name) {
+                                S.view.runServerCommand("restoreDb", name, "Restore DB Response", null);
+                            }
+                        }), //
                     ])
                 ], horzClass),
             ])
@@ -1,15 +1,12 @@
 import { getAs } from "../AppContext";
 import { AppTab } from "../comp/AppTab";
 import { Comp } from "../comp/base/Comp";
-import { Anchor } from "../comp/core/Anchor";
 import { Button } from "../comp/core/Button";
 import { Clearfix } from "../comp/core/Clearfix";
 import { Div } from "../comp/core/Div";
 import { TabHeading } from "../comp/core/TabHeading";
-import { VerticalLayout } from "../comp/core/VerticalLayout";
 import { Constants as C } from "../Constants";
 import { ExportDlg } from "../dlg/ExportDlg";
-import { MessageDlg } from "../dlg/MessageDlg";
 import { TabBase } from "../intf/TabBase";
 import * as J from "../JavaIntf";
 import { NodeInfo } from "../JavaIntf";
@@ -113,23 +110,7 @@ export class ThreadView<PT extends ThreadRSInfo> extends AppTab<PT> {
     _saveAsPDF = async () => {
         const dlg = new ExportDlg("thread-view", getAs().threadViewFromNodeId, true);
         await dlg.open();
-
-        /* the 'v' arg is for cachebusting. Browser won't download same file once cached, but
-        eventually the plan is to have the export return the actual md5 of the export for use here
-        */
-        // disp=inline (is the other)
-        const downloadLink = S.util.getHostAndPort() + "/f/export/" + dlg.res.fileName + "?disp=attachment&v=" + (new Date().getTime()) + "&token=" + S.quanta.authToken;
-
-        if (S.util.checkSuccess("Export", dlg.res)) {
-            new MessageDlg(
-                "Export successful.<p>Use the download link below now, to get the file.",
-                "Export",
-                null,
-                new VerticalLayout([
-                    new Anchor(downloadLink, "Download", { target: "_blank" }),
-                ]), false, 0, null
-            ).open();
-        }
+        S.edit.exportStarted(dlg.res);
     }
 
     /* overridable (don't use arrow function) */